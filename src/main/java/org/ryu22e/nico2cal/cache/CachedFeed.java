@@ -0,0 +1,50 @@
+package org.ryu22e.nico2cal.cache;
+
+/**
+ * キャッシュしたiCalendarフィードの{@link FeedCacheMeta}と本文の組。
+ * @author ryu22e
+ *
+ */
+public final class CachedFeed {
+
+    /**
+     * 
+     */
+    private final FeedCacheMeta meta;
+
+    /**
+     * gzipで圧縮した本文。
+     */
+    private final byte[] body;
+
+    /**
+     * コンストラクタ。
+     * @param meta {@link FeedCacheMeta}
+     * @param body gzipで圧縮した本文
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public CachedFeed(FeedCacheMeta meta, byte[] body) {
+        if (meta == null) {
+            throw new NullPointerException("meta is null.");
+        }
+        if (body == null) {
+            throw new NullPointerException("body is null.");
+        }
+        this.meta = meta;
+        this.body = body;
+    }
+
+    /**
+     * @return the meta
+     */
+    public FeedCacheMeta getMeta() {
+        return meta;
+    }
+
+    /**
+     * @return the body
+     */
+    public byte[] getBody() {
+        return body;
+    }
+}
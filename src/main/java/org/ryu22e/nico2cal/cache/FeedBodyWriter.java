@@ -0,0 +1,128 @@
+package org.ryu22e.nico2cal.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.zip.GZIPOutputStream;
+
+import org.ryu22e.nico2cal.util.TeeOutputStream;
+
+/**
+ * フィードをレスポンスに書き出しながら、キャッシュ用の圧縮した本文とETagも作るクラス。
+ * <p>
+ * 文字列をUTF-8にエンコードするのも、gzipで圧縮するのも1回だけで済むように、
+ * レスポンスがgzipの場合は圧縮後のバイト列を、そうでない場合は圧縮前のバイト列を分岐させる。
+ * </p>
+ * @author ryu22e
+ *
+ */
+public final class FeedBodyWriter {
+
+    /**
+     * 
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * 圧縮前の本文のハッシュ値を計算する。
+     */
+    private final MessageDigest digest = FeedCache.newDigest();
+
+    /**
+     * キャッシュ用の圧縮した本文。
+     */
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    /**
+     * 
+     */
+    private final GZIPOutputStream gzip;
+
+    /**
+     * 
+     */
+    private final Writer writer;
+
+    /**
+     * 書き出しが終わった後のETag。
+     */
+    private String etag;
+
+    /**
+     * コンストラクタ。
+     * @param response レスポンスの書き出し先
+     * @param gzipResponse レスポンスもgzipで圧縮する場合はtrue
+     * @throws NullPointerException パラメータがnullの場合。
+     * @throws IOException 書き出し先への書き出しに失敗した場合。
+     */
+    public FeedBodyWriter(OutputStream response, boolean gzipResponse)
+            throws IOException {
+        if (response == null) {
+            throw new NullPointerException("response is null.");
+        }
+        OutputStream out;
+        if (gzipResponse) {
+            gzip =
+                    new GZIPOutputStream(
+                        new TeeOutputStream(response, body),
+                        BUFFER_SIZE);
+            out = gzip;
+        } else {
+            gzip = new GZIPOutputStream(body, BUFFER_SIZE);
+            out = new TeeOutputStream(response, gzip);
+        }
+        writer =
+                new OutputStreamWriter(
+                    new DigestOutputStream(out, digest),
+                    "UTF-8");
+    }
+
+    /**
+     * 本文を書き出す{@link Writer}を取得する。
+     * @return {@link Writer}
+     */
+    public Writer getWriter() {
+        return writer;
+    }
+
+    /**
+     * 書き出しを終える。レスポンスの書き出し先は閉じない。
+     * @throws IOException 書き出し先への書き出しに失敗した場合。
+     */
+    public void finish() throws IOException {
+        if (etag != null) {
+            return;
+        }
+        writer.flush();
+        gzip.finish();
+        etag = FeedCache.toETag(digest.digest());
+    }
+
+    /**
+     * キャッシュ用の圧縮した本文を取得する。
+     * @return gzipで圧縮した本文
+     * @throws IllegalStateException {@link #finish()}を呼ぶ前の場合。
+     */
+    public byte[] getGzippedBody() {
+        if (etag == null) {
+            throw new IllegalStateException("not finished.");
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * 圧縮前の本文から作ったETagを取得する。
+     * @return ETag（ダブルクォートを含む）
+     * @throws IllegalStateException {@link #finish()}を呼ぶ前の場合。
+     */
+    public String getEtag() {
+        if (etag == null) {
+            throw new IllegalStateException("not finished.");
+        }
+        return etag;
+    }
+}
@@ -0,0 +1,566 @@
+package org.ryu22e.nico2cal.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slim3.memcache.Memcache;
+
+import com.google.appengine.api.memcache.Expiration;
+
+/**
+ * iCalendarフィードをMemcacheにキャッシュするクラス。
+ * <p>
+ * フィードの条件（startWeekとkeyword）ごとに、本文と{@link FeedCacheMeta}を別々に保存する。
+ * 条件付きGETでは{@link FeedCacheMeta}だけを読めばよいので、本文を転送しなくて済む。
+ * 本文はUTF-8でエンコードしてgzipで圧縮したバイト列で保存する。
+ * gzipを受け付けるクライアントにはそのまま返せるし、Memcacheの値も小さくなる。
+ * 圧縮してもMemcacheの値の上限（1MB）を超える場合があるので、本文は一定の大きさごとに
+ * 分割して保存し、{@link FeedCacheMeta}を目録にして1回の{@code getAll}でまとめて取得する。
+ * </p>
+ * <p>
+ * フィードの条件には世代も含める。ニコニコ生放送RSSを取り込んだときはキーワードのないフィードの世代を、
+ * 全文検索用インデックスが変わったときはそのキーワードの世代を進めるので、
+ * 影響のあるフィードだけがキャッシュから外れる。古い世代のキャッシュは有効期限が切れて消える。
+ * </p>
+ * @author ryu22e
+ *
+ */
+public final class FeedCache {
+
+    /**
+     * 
+     */
+    private static final Logger LOGGER = Logger.getLogger(FeedCache.class
+        .getName());
+
+    /**
+     * 本文を分割するときの1つあたりのバイト数。
+     * <p>
+     * Memcacheの値の上限は1MBだが、キーやシリアライズの分を見込んで少し小さくする。
+     * </p>
+     */
+    static final int DEFAULT_CHUNK_SIZE = 1000 * 1000;
+
+    /**
+     * 
+     */
+    private static final String META_PREFIX = "feed-meta:";
+
+    /**
+     * 
+     */
+    private static final String BODY_PREFIX = "feed-body:";
+
+    /**
+     * 世代を除いたフィードの条件ごとに、最後にキャッシュした条件を保存するキーの接頭辞。
+     */
+    private static final String LATEST_PREFIX = "feed-latest:";
+
+    /**
+     * 最後にニコニコ生放送RSSを取り込んだ日時のキー。
+     */
+    private static final String LAST_INGEST_KEY = "feed-last-ingest";
+
+    /**
+     * キーワードのないフィードの世代のキー。
+     */
+    private static final String GENERATION_KEY = "feed-generation";
+
+    /**
+     * キーワードごとの世代のキーの接頭辞。
+     */
+    private static final String KEYWORD_GENERATION_PREFIX = "feed-generation:";
+
+    /**
+     * フィードのキャッシュの有効期限（秒）。
+     * <p>
+     * 世代が進まなくても、フィードの期間は時間とともにずれていくので、
+     * ニコニコ生放送RSSを取り込む間隔と同じ1時間で作り直す。
+     * </p>
+     */
+    private static final int EXPIRATION_SECONDS = 60 * 60;
+
+    /**
+     * 
+     */
+    private static final long MILLIS_PER_SECOND = 1000L;
+
+    /**
+     * 
+     */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * 
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * ETagの作成に使う{@link MessageDigest}を作成する。
+     * @return MD5の{@link MessageDigest}
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * ハッシュ値からETagを作成する。
+     * @param digest 本文（圧縮前のUTF-8のバイト列）のハッシュ値
+     * @return ETag（ダブルクォートを含む）
+     */
+    static String toETag(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2 + 2);
+        sb.append('"');
+        for (byte b : digest) {
+            sb.append(HEX[(b >> 4) & 0x0f]).append(HEX[b & 0x0f]);
+        }
+        sb.append('"');
+        return sb.toString();
+    }
+
+    /**
+     * 本文からETagを作成する。
+     * @param body 本文
+     * @return ETag（ダブルクォートを含む）
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public static String createETag(String body) {
+        if (body == null) {
+            throw new NullPointerException("body is null.");
+        }
+        try {
+            return toETag(newDigest().digest(body.getBytes("UTF-8")));
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * バイト列をgzipで圧縮する。
+     * @param data 圧縮するバイト列
+     * @return 圧縮したバイト列
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public static byte[] compress(byte[] data) {
+        if (data == null) {
+            throw new NullPointerException("data is null.");
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            GZIPOutputStream gzip = new GZIPOutputStream(out, BUFFER_SIZE);
+            gzip.write(data);
+            gzip.close();
+            return out.toByteArray();
+        } catch (IOException e) {
+            // ByteArrayOutputStreamへの書き出しなので起こらない。
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * gzipで圧縮したバイト列を展開する。
+     * @param data 圧縮したバイト列
+     * @return 展開したバイト列
+     * @throws NullPointerException パラメータがnullの場合。
+     * @throws IOException gzipの形式が不正な場合。
+     */
+    public static byte[] decompress(byte[] data) throws IOException {
+        if (data == null) {
+            throw new NullPointerException("data is null.");
+        }
+        GZIPInputStream gzip =
+                new GZIPInputStream(
+                    new ByteArrayInputStream(data),
+                    BUFFER_SIZE);
+        try {
+            // 圧縮率はおおむね1/5前後なので、展開後のサイズを見込んでおく。
+            ByteArrayOutputStream out =
+                    new ByteArrayOutputStream(data.length * 5);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = gzip.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            gzip.close();
+        }
+    }
+
+    /**
+     * 本文を分割するときの1つあたりのバイト数。
+     */
+    private final int chunkSize;
+
+    /**
+     * コンストラクタ。
+     */
+    public FeedCache() {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * コンストラクタ。
+     * @param chunkSize 本文を分割するときの1つあたりのバイト数
+     * @throws IllegalArgumentException パラメータが1未満の場合。
+     */
+    FeedCache(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize is less than 1.");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * 分割した本文のキーを作成する。
+     * <p>
+     * 保存し直したときに古い本文と混ざらないように、ETagもキーに含める。
+     * </p>
+     * @param variant フィードの条件
+     * @param etag ETag
+     * @param index 何番目か（0から始まる）
+     * @return キー
+     */
+    static String createChunkKey(String variant, String etag,
+            int index) {
+        return BODY_PREFIX + variant + "#" + etag + "#" + index;
+    }
+
+    /**
+     * 日時を秒単位に切り捨てる（HTTPの日付ヘッダーは秒までしか表せないため）。
+     * @param millis 日時（ミリ秒）
+     * @return 秒未満を切り捨てた日時
+     */
+    static long truncateToSeconds(long millis) {
+        return millis / MILLIS_PER_SECOND * MILLIS_PER_SECOND;
+    }
+
+    /**
+     * 最後にニコニコ生放送RSSを取り込んだ日時を取得する。
+     * @return 取り込んだ日時。分からない場合はnull。
+     */
+    public Date getLastIngest() {
+        Object value = Memcache.get(LAST_INGEST_KEY);
+        return value instanceof Date ? (Date) value : null;
+    }
+
+    /**
+     * 最後にニコニコ生放送RSSを取り込んだ日時を保存する。
+     * @param lastIngest 取り込んだ日時
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public void setLastIngest(Date lastIngest) {
+        if (lastIngest == null) {
+            throw new NullPointerException("lastIngest is null.");
+        }
+        Memcache.put(LAST_INGEST_KEY, lastIngest);
+    }
+
+    /**
+     * 世代のキーを作成する。
+     * @param keywords キーワード
+     * @return 世代のキー
+     */
+    private static List<String> createGenerationKeys(
+            Collection<String> keywords) {
+        List<String> keys = new ArrayList<String>();
+        if (keywords == null || keywords.size() <= 0) {
+            keys.add(GENERATION_KEY);
+        } else {
+            for (String keyword : keywords) {
+                keys.add(KEYWORD_GENERATION_PREFIX + keyword);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * フィードの世代を取得する。
+     * <p>
+     * 世代がMemcacheから追い出されていた場合は現在日時で初期化する。
+     * 追い出される前より小さい値に戻って、古いキャッシュを使ってしまうことがないようにするため。
+     * </p>
+     * @param keywords フィードのキーワード。キーワードのないフィードの場合はnullまたは空のコレクション。
+     * @return 世代を表す文字列。Memcacheが使えない場合はnull。
+     */
+    public String getGeneration(Collection<String> keywords) {
+        List<String> keys = createGenerationKeys(keywords);
+        Map<String, Object> values =
+                new HashMap<String, Object>(Memcache.getAll(keys));
+        List<String> missing = new ArrayList<String>();
+        for (String key : keys) {
+            if (values.get(key) == null) {
+                missing.add(key);
+            }
+        }
+        if (0 < missing.size()) {
+            values.putAll(Memcache.incrementAll(
+                missing,
+                0L,
+                System.currentTimeMillis()));
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String key : keys) {
+            Object value = values.get(key);
+            if (value == null) {
+                return null;
+            }
+            if (0 < sb.length()) {
+                sb.append('.');
+            }
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * キーワードのないフィードの世代を進める。
+     */
+    public void incrementGeneration() {
+        Memcache.increment(GENERATION_KEY, 1L, System.currentTimeMillis());
+    }
+
+    /**
+     * キーワードを含むフィードの世代を進める。
+     * @param keywords 全文検索用インデックスが変わったキーワード
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public void incrementGenerations(Collection<String> keywords) {
+        if (keywords == null) {
+            throw new NullPointerException("keywords is null.");
+        }
+        if (keywords.size() <= 0) {
+            return;
+        }
+        Memcache.incrementAll(
+            createGenerationKeys(keywords),
+            1L,
+            System.currentTimeMillis());
+    }
+
+    /**
+     * これから作成するフィードの最終更新日時を取得する。
+     * <p>
+     * 全文検索用インデックスの更新などで、ニコニコ生放送RSSを取り込まなくても世代が進み、
+     * フィードの内容が変わることがある。最後に取り込んだ日時を使うと、
+     * 前の世代のフィードを持っているクライアントのIf-Modified-Sinceに304を返してしまうので、
+     * フィードを作成する日時を使う。
+     * </p>
+     * @return 現在日時。最後に取り込んだ日時の方が後の場合はその日時。秒未満は切り捨てる。
+     */
+    public long getLastModified() {
+        long millis = System.currentTimeMillis();
+        Date lastIngest = getLastIngest();
+        if (lastIngest != null && millis < lastIngest.getTime()) {
+            // インスタンス間の時刻のずれで、取り込んだ日時より前にならないようにする。
+            millis = lastIngest.getTime();
+        }
+        return truncateToSeconds(millis);
+    }
+
+    /**
+     * キャッシュしたフィードの{@link FeedCacheMeta}を取得する。
+     * @param variant フィードの条件
+     * @return {@link FeedCacheMeta}。キャッシュがない場合はnull。
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public FeedCacheMeta getMeta(String variant) {
+        if (variant == null) {
+            throw new NullPointerException("variant is null.");
+        }
+        Object value = Memcache.get(META_PREFIX + variant);
+        return value instanceof FeedCacheMeta ? (FeedCacheMeta) value : null;
+    }
+
+    /**
+     * キャッシュしたフィードの本文を取得する。
+     * @param variant フィードの条件
+     * @return gzipで圧縮した本文。キャッシュがない場合はnull。
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public byte[] getBody(String variant) {
+        FeedCacheMeta meta = getMeta(variant);
+        return meta == null ? null : getBody(variant, meta);
+    }
+
+    /**
+     * キャッシュしたフィードの本文を取得する。
+     * <p>
+     * 分割した本文の一部でも追い出されていた場合は、キャッシュがないものとして扱う。
+     * </p>
+     * @param variant フィードの条件
+     * @param meta 取得済みの{@link FeedCacheMeta}
+     * @return gzipで圧縮した本文。キャッシュがない場合はnull。
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public byte[] getBody(String variant, FeedCacheMeta meta) {
+        if (variant == null) {
+            throw new NullPointerException("variant is null.");
+        }
+        if (meta == null) {
+            throw new NullPointerException("meta is null.");
+        }
+        int chunkCount = meta.getChunkCount();
+        if (chunkCount < 1) {
+            return null;
+        }
+        List<String> keys = new ArrayList<String>(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            keys.add(createChunkKey(variant, meta.getEtag(), i));
+        }
+        Map<String, Object> values = Memcache.getAll(keys);
+        byte[] body = new byte[meta.getLength()];
+        int offset = 0;
+        for (String key : keys) {
+            Object value = values.get(key);
+            if (!(value instanceof byte[])
+                || body.length < offset + ((byte[]) value).length) {
+                LOGGER.info("Cached feed is partially evicted: " + key);
+                return null;
+            }
+            byte[] chunk = (byte[]) value;
+            System.arraycopy(chunk, 0, body, offset, chunk.length);
+            offset += chunk.length;
+        }
+        if (offset != body.length) {
+            LOGGER.info("Cached feed is partially evicted: " + variant);
+            return null;
+        }
+        return body;
+    }
+
+    /**
+     * フィードをキャッシュする。
+     * @param variant フィードの条件
+     * @param body 本文
+     * @param lastModified 最終更新日時
+     * @return 保存した{@link FeedCacheMeta}
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public FeedCacheMeta put(String variant, String body, long lastModified) {
+        if (variant == null) {
+            throw new NullPointerException("variant is null.");
+        }
+        if (body == null) {
+            throw new NullPointerException("body is null.");
+        }
+        byte[] bytes;
+        try {
+            bytes = body.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        return put(
+            variant,
+            compress(bytes),
+            toETag(newDigest().digest(bytes)),
+            lastModified);
+    }
+
+    /**
+     * 圧縮済みのフィードをキャッシュする。
+     * @param variant フィードの条件
+     * @param gzippedBody gzipで圧縮した本文
+     * @param etag 圧縮前の本文から作ったETag
+     * @param lastModified 最終更新日時
+     * @return 保存した{@link FeedCacheMeta}
+     * @throws NullPointerException パラメータがnullの場合。
+     * @see FeedBodyWriter
+     */
+    public FeedCacheMeta put(String variant, byte[] gzippedBody, String etag,
+            long lastModified) {
+        if (variant == null) {
+            throw new NullPointerException("variant is null.");
+        }
+        if (gzippedBody == null) {
+            throw new NullPointerException("gzippedBody is null.");
+        }
+        if (etag == null) {
+            throw new NullPointerException("etag is null.");
+        }
+        int chunkCount =
+                Math.max(1, (gzippedBody.length + chunkSize - 1) / chunkSize);
+        FeedCacheMeta meta =
+                new FeedCacheMeta(
+                    etag,
+                    truncateToSeconds(lastModified),
+                    gzippedBody.length,
+                    chunkCount);
+        Map<String, Object> values = new HashMap<String, Object>();
+        for (int i = 0; i < chunkCount; i++) {
+            int from = i * chunkSize;
+            int to = Math.min(from + chunkSize, gzippedBody.length);
+            values.put(
+                createChunkKey(variant, etag, i),
+                Arrays.copyOfRange(gzippedBody, from, to));
+        }
+        // 目録と本文を1回でまとめて保存する。
+        // 一部だけ保存に失敗しても、取得するときに分かる。
+        values.put(META_PREFIX + variant, meta);
+        Memcache.putAll(values, Expiration.byDeltaSeconds(EXPIRATION_SECONDS));
+        return meta;
+    }
+
+    /**
+     * 世代を除いたフィードの条件に対して、最後にキャッシュした条件を保存する。
+     * @param baseVariant 世代を除いたフィードの条件
+     * @param variant 世代を含むフィードの条件
+     * @throws NullPointerException パラメータがnullの場合。
+     * @see #getLatest(String)
+     */
+    public void setLatest(String baseVariant, String variant) {
+        if (baseVariant == null) {
+            throw new NullPointerException("baseVariant is null.");
+        }
+        if (variant == null) {
+            throw new NullPointerException("variant is null.");
+        }
+        Memcache.put(
+            LATEST_PREFIX + baseVariant,
+            variant,
+            Expiration.byDeltaSeconds(EXPIRATION_SECONDS));
+    }
+
+    /**
+     * 世代を問わず、最後にキャッシュしたフィードを取得する。
+     * <p>
+     * 世代が進んだ直後に、新しい世代のフィードを作成している間だけ古い内容を返すために使う。
+     * </p>
+     * @param baseVariant 世代を除いたフィードの条件
+     * @return 最後にキャッシュしたフィード。キャッシュがない場合はnull。
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public CachedFeed getLatest(String baseVariant) {
+        if (baseVariant == null) {
+            throw new NullPointerException("baseVariant is null.");
+        }
+        Object variant = Memcache.get(LATEST_PREFIX + baseVariant);
+        if (!(variant instanceof String)) {
+            return null;
+        }
+        FeedCacheMeta meta = getMeta((String) variant);
+        if (meta == null) {
+            return null;
+        }
+        byte[] body = getBody((String) variant, meta);
+        return body == null ? null : new CachedFeed(meta, body);
+    }
+}
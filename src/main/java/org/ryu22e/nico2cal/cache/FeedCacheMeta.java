@@ -0,0 +1,103 @@
+package org.ryu22e.nico2cal.cache;
+
+import java.io.Serializable;
+
+/**
+ * キャッシュしたiCalendarフィードの付帯情報。
+ * <p>
+ * 条件付きGETの判定に使うので、本文とは別にMemcacheに保存する。
+ * 本文を分割して保存した場合は、分割数と本文の長さを持つ目録も兼ねる。
+ * </p>
+ * @author ryu22e
+ *
+ */
+public final class FeedCacheMeta implements Serializable {
+
+    /**
+     * 
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * gzipで圧縮した本文のETagの末尾。
+     */
+    private static final String GZIP_SUFFIX = "-gzip\"";
+
+    /**
+     * 本文のハッシュ値から作ったETag（ダブルクォートを含む）。
+     */
+    private final String etag;
+
+    /**
+     * 最終更新日時（ミリ秒、秒未満は切り捨て）。
+     */
+    private final long lastModified;
+
+    /**
+     * 圧縮した本文のバイト数。
+     */
+    private final int length;
+
+    /**
+     * 本文の分割数。
+     */
+    private final int chunkCount;
+
+    /**
+     * コンストラクタ。
+     * @param etag ETag
+     * @param lastModified 最終更新日時
+     * @param length 圧縮した本文のバイト数
+     * @param chunkCount 本文の分割数
+     * @throws NullPointerException ETagがnullの場合。
+     */
+    public FeedCacheMeta(String etag, long lastModified, int length,
+            int chunkCount) {
+        if (etag == null) {
+            throw new NullPointerException("etag is null.");
+        }
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.length = length;
+        this.chunkCount = chunkCount;
+    }
+
+    /**
+     * @return the etag
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    /**
+     * gzipで圧縮した本文を返す場合のETagを取得する。
+     * <p>
+     * 圧縮前と圧縮後では本文のバイト列が違うので、強いETagも別の値にする。
+     * </p>
+     * @return ETag（ダブルクォートを含む）
+     */
+    public String getGzipEtag() {
+        return etag.substring(0, etag.length() - 1) + GZIP_SUFFIX;
+    }
+
+    /**
+     * @return the lastModified
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return the length
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the chunkCount
+     */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+}
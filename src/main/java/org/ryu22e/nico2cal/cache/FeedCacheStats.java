@@ -0,0 +1,120 @@
+package org.ryu22e.nico2cal.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * iCalendarフィードのキャッシュのヒット数を数えるクラス。
+ * <p>
+ * インスタンスのメモリ（{@link FeedLocalCache}）とMemcache（{@link FeedCache}）の
+ * それぞれについて、このインスタンスで数えた値を持つ。
+ * </p>
+ * @author ryu22e
+ *
+ */
+public final class FeedCacheStats {
+
+    /**
+     * 
+     */
+    private static final AtomicLong LOCAL_HITS = new AtomicLong();
+
+    /**
+     * 
+     */
+    private static final AtomicLong LOCAL_MISSES = new AtomicLong();
+
+    /**
+     * 
+     */
+    private static final AtomicLong MEMCACHE_HITS = new AtomicLong();
+
+    /**
+     * 
+     */
+    private static final AtomicLong MEMCACHE_MISSES = new AtomicLong();
+
+    /**
+     * コンストラクタ。
+     */
+    private FeedCacheStats() {
+        throw new AssertionError();
+    }
+
+    /**
+     * @param hits ヒット数
+     * @param misses ミス数
+     * @return ヒット率。まだ1回も問い合わせていない場合は0。
+     */
+    private static double ratio(long hits, long misses) {
+        long total = hits + misses;
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    /**
+     * インスタンスのメモリへの問い合わせを記録する。
+     * @param hit ヒットした場合はtrue
+     */
+    static void recordLocal(boolean hit) {
+        (hit ? LOCAL_HITS : LOCAL_MISSES).incrementAndGet();
+    }
+
+    /**
+     * Memcacheへの問い合わせを記録する。
+     * @param hit ヒットした場合はtrue
+     */
+    public static void recordMemcache(boolean hit) {
+        (hit ? MEMCACHE_HITS : MEMCACHE_MISSES).incrementAndGet();
+    }
+
+    /**
+     * @return インスタンスのメモリのヒット数
+     */
+    public static long getLocalHits() {
+        return LOCAL_HITS.get();
+    }
+
+    /**
+     * @return インスタンスのメモリのミス数
+     */
+    public static long getLocalMisses() {
+        return LOCAL_MISSES.get();
+    }
+
+    /**
+     * @return インスタンスのメモリのヒット率
+     */
+    public static double getLocalHitRatio() {
+        return ratio(LOCAL_HITS.get(), LOCAL_MISSES.get());
+    }
+
+    /**
+     * @return Memcacheのヒット数
+     */
+    public static long getMemcacheHits() {
+        return MEMCACHE_HITS.get();
+    }
+
+    /**
+     * @return Memcacheのミス数
+     */
+    public static long getMemcacheMisses() {
+        return MEMCACHE_MISSES.get();
+    }
+
+    /**
+     * @return Memcacheのヒット率（インスタンスのメモリでミスした問い合わせに対する割合）
+     */
+    public static double getMemcacheHitRatio() {
+        return ratio(MEMCACHE_HITS.get(), MEMCACHE_MISSES.get());
+    }
+
+    /**
+     * 数えた値を0に戻す。
+     */
+    public static void reset() {
+        LOCAL_HITS.set(0);
+        LOCAL_MISSES.set(0);
+        MEMCACHE_HITS.set(0);
+        MEMCACHE_MISSES.set(0);
+    }
+}
@@ -0,0 +1,202 @@
+package org.ryu22e.nico2cal.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * iCalendarフィードをインスタンスのメモリにキャッシュするクラス。
+ * <p>
+ * Memcacheの前に置き、よく使われるフィードはMemcacheに問い合わせずに返す。
+ * フィードの条件には世代が含まれるので、取り込みやインデックスの作成で世代が進めば
+ * 古い内容は使われなくなる。保存する本文の合計バイト数に上限があり、
+ * 超えた場合は最も長く使われていないフィードから捨てる。
+ * </p>
+ * @author ryu22e
+ *
+ */
+public final class FeedLocalCache {
+
+    /**
+     * 本文の合計バイト数の上限。
+     */
+    static final long DEFAULT_BYTE_BUDGET = 8L * 1024L * 1024L;
+
+    /**
+     * 有効期限（ミリ秒）。
+     * <p>
+     * 世代が進まなくてもフィードの期間は時間とともにずれていくので、
+     * レスポンスのCache-Controlと同じ10分で作り直す。
+     * </p>
+     */
+    static final long DEFAULT_TTL_MILLIS = 10L * 60L * 1000L;
+
+    /**
+     * 本文以外に1件あたりで使うメモリの見積もり（バイト）。
+     */
+    private static final int ENTRY_OVERHEAD = 256;
+
+    /**
+     * インスタンスで共有するキャッシュ。
+     */
+    private static final FeedLocalCache INSTANCE = new FeedLocalCache(
+        DEFAULT_BYTE_BUDGET,
+        DEFAULT_TTL_MILLIS);
+
+    /**
+     * キャッシュしたフィード。
+     * @author ryu22e
+     *
+     */
+    private static final class Entry {
+
+        /**
+         * 
+         */
+        private final CachedFeed feed;
+
+        /**
+         * 見積もったバイト数。
+         */
+        private final long size;
+
+        /**
+         * 有効期限（ミリ秒）。
+         */
+        private final long expiresAt;
+
+        /**
+         * コンストラクタ。
+         * @param feed フィード
+         * @param size 見積もったバイト数
+         * @param expiresAt 有効期限（ミリ秒）
+         */
+        private Entry(CachedFeed feed, long size, long expiresAt) {
+            this.feed = feed;
+            this.size = size;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * 本文の合計バイト数の上限。
+     */
+    private final long byteBudget;
+
+    /**
+     * 有効期限（ミリ秒）。
+     */
+    private final long ttlMillis;
+
+    /**
+     * フィードの条件とフィード。使われた順に並ぶ。
+     */
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /**
+     * キャッシュしているフィードの見積もったバイト数の合計。
+     */
+    private long bytes;
+
+    /**
+     * コンストラクタ。
+     * @param byteBudget 本文の合計バイト数の上限
+     * @param ttlMillis 有効期限（ミリ秒）
+     */
+    FeedLocalCache(long byteBudget, long ttlMillis) {
+        this.byteBudget = byteBudget;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * インスタンスで共有するキャッシュを取得する。
+     * @return {@link FeedLocalCache}
+     */
+    public static FeedLocalCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * キャッシュしたフィードを取得する。
+     * @param variant 世代を含むフィードの条件
+     * @return フィード。キャッシュがない場合や、有効期限が切れている場合はnull。
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public synchronized CachedFeed get(String variant) {
+        if (variant == null) {
+            throw new NullPointerException("variant is null.");
+        }
+        Entry entry = entries.get(variant);
+        if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+            remove(variant);
+            entry = null;
+        }
+        FeedCacheStats.recordLocal(entry != null);
+        return entry == null ? null : entry.feed;
+    }
+
+    /**
+     * フィードをキャッシュする。
+     * <p>
+     * 1件で上限を超えるフィードはキャッシュしない。
+     * </p>
+     * @param variant 世代を含むフィードの条件
+     * @param feed フィード
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public synchronized void put(String variant, CachedFeed feed) {
+        if (variant == null) {
+            throw new NullPointerException("variant is null.");
+        }
+        if (feed == null) {
+            throw new NullPointerException("feed is null.");
+        }
+        long size =
+                feed.getBody().length + variant.length() * 2L + ENTRY_OVERHEAD;
+        remove(variant);
+        if (byteBudget < size) {
+            return;
+        }
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (byteBudget < bytes + size && it.hasNext()) {
+            bytes -= it.next().getValue().size;
+            it.remove();
+        }
+        long expiresAt = System.currentTimeMillis() + ttlMillis;
+        entries.put(variant, new Entry(feed, size, expiresAt));
+        bytes += size;
+    }
+
+    /**
+     * @param variant フィードの条件
+     */
+    private void remove(String variant) {
+        Entry removed = entries.remove(variant);
+        if (removed != null) {
+            bytes -= removed.size;
+        }
+    }
+
+    /**
+     * 全てのフィードを捨てる。
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return キャッシュしているフィードの件数
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return キャッシュしているフィードの見積もったバイト数の合計
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,238 @@
+package org.ryu22e.nico2cal.cache;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.ryu22e.nico2cal.util.EventFragmentUtil;
+import org.slim3.memcache.Memcache;
+
+import com.google.appengine.api.memcache.Expiration;
+
+/**
+ * 放送日ごとのVEVENTを並べたiCalendarの断片（セグメント）をMemcacheにキャッシュするクラス。
+ * <p>
+ * キーワードのないフィードは期間の開始日時が毎回ずれるので、フィード全体では
+ * 同じ内容を作り直すことになる。丸1日分のセグメントは期間が違うフィードでも同じなので、
+ * 放送日ごとに保存しておけば、startWeekが違うフィードで共有できる。
+ * </p>
+ * <p>
+ * 放送日ごとに世代を持ち、ニコニコ生放送RSSを取り込んだときは
+ * {@link org.ryu22e.nico2cal.model.Nicolive}が追加された放送日の世代だけを進める。
+ * それ以外の放送日のセグメントは作り直さない。
+ * </p>
+ * @author ryu22e
+ *
+ */
+public final class FeedSegmentCache {
+
+    /**
+     * 
+     */
+    private static final Logger LOGGER = Logger
+        .getLogger(FeedSegmentCache.class.getName());
+
+    /**
+     * 
+     */
+    private static final String SEGMENT_PREFIX = "feed-segment:";
+
+    /**
+     * 放送日ごとの世代のキーの接頭辞。
+     */
+    private static final String GENERATION_PREFIX = "feed-segment-generation:";
+
+    /**
+     * セグメントのキャッシュの有効期限（秒）。
+     * <p>
+     * 世代が進まない限り内容は変わらないので、フィードのキャッシュより長くする。
+     * </p>
+     */
+    private static final int EXPIRATION_SECONDS = 24 * 60 * 60;
+
+    /**
+     * 保存するセグメントの最大バイト数（UTF-8）。
+     * <p>
+     * Memcacheの値の上限は1MBなので、シリアライズの分を見込んで小さくする。
+     * </p>
+     */
+    static final int MAX_SEGMENT_BYTES = 900 * 1000;
+
+    /**
+     * セグメントのキーを作成する。
+     * <p>
+     * VEVENTの書式が変わったときに古い書式のセグメントを使わないように、
+     * {@link EventFragmentUtil#FORMAT_VERSION}もキーに含める。
+     * </p>
+     * @param day 放送日（yyyyMMdd）
+     * @param generation 放送日の世代
+     * @return セグメントのキー
+     */
+    static String createSegmentKey(String day, Long generation) {
+        return SEGMENT_PREFIX + "v" + EventFragmentUtil.FORMAT_VERSION + ":"
+                + day + "@" + generation;
+    }
+
+    /**
+     * 放送日の世代のキーを作成する。
+     * @param days 放送日（yyyyMMdd）
+     * @return 世代のキー
+     */
+    private List<String> createGenerationKeys(Collection<String> days) {
+        List<String> keys = new ArrayList<String>(days.size());
+        for (String day : days) {
+            keys.add(GENERATION_PREFIX + day);
+        }
+        return keys;
+    }
+
+    /**
+     * 放送日の世代を取得する。
+     * <p>
+     * 世代がまだない放送日は、現在日時で初期化する。
+     * </p>
+     * @param days 放送日（yyyyMMdd）
+     * @return 放送日と世代のMap。Memcacheが使えず世代が分からない放送日は含まれない。
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public Map<String, Long> getGenerations(Collection<String> days) {
+        if (days == null) {
+            throw new NullPointerException("days is null.");
+        }
+        Map<String, Long> generations = new HashMap<String, Long>();
+        if (days.size() <= 0) {
+            return generations;
+        }
+        List<String> keys = createGenerationKeys(days);
+        Map<String, Object> values =
+                new HashMap<String, Object>(Memcache.getAll(keys));
+        List<String> missing = new ArrayList<String>();
+        for (String key : keys) {
+            if (values.get(key) == null) {
+                missing.add(key);
+            }
+        }
+        if (0 < missing.size()) {
+            values.putAll(Memcache.incrementAll(
+                missing,
+                0L,
+                System.currentTimeMillis()));
+        }
+        for (String day : days) {
+            Object value = values.get(GENERATION_PREFIX + day);
+            if (value instanceof Number) {
+                generations.put(day, ((Number) value).longValue());
+            }
+        }
+        return generations;
+    }
+
+    /**
+     * 放送日の世代を進める。
+     * @param days {@link org.ryu22e.nico2cal.model.Nicolive}が追加された放送日
+     *            （yyyyMMdd）
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public void incrementGenerations(Collection<String> days) {
+        if (days == null) {
+            throw new NullPointerException("days is null.");
+        }
+        if (days.size() <= 0) {
+            return;
+        }
+        Memcache.incrementAll(
+            createGenerationKeys(days),
+            1L,
+            System.currentTimeMillis());
+    }
+
+    /**
+     * キャッシュしたセグメントを取得する。
+     * @param generations 放送日と世代のMap
+     * @return 放送日とセグメントのMap。キャッシュがない放送日は含まれない。
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public Map<String, String> getSegments(Map<String, Long> generations) {
+        if (generations == null) {
+            throw new NullPointerException("generations is null.");
+        }
+        Map<String, String> segments = new HashMap<String, String>();
+        if (generations.size() <= 0) {
+            return segments;
+        }
+        Map<String, String> keys = new HashMap<String, String>();
+        for (Map.Entry<String, Long> entry : generations.entrySet()) {
+            keys.put(
+                createSegmentKey(entry.getKey(), entry.getValue()),
+                entry.getKey());
+        }
+        Map<String, Object> values = Memcache.getAll(keys.keySet());
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            if (entry.getValue() instanceof String) {
+                segments.put(
+                    keys.get(entry.getKey()),
+                    (String) entry.getValue());
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * セグメントをキャッシュする。
+     * <p>
+     * {@link #MAX_SEGMENT_BYTES}を超えるセグメントは保存しない。
+     * </p>
+     * @param generations 放送日と世代のMap
+     * @param segments 放送日とセグメントのMap
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public void putSegments(Map<String, Long> generations,
+            Map<String, String> segments) {
+        if (generations == null) {
+            throw new NullPointerException("generations is null.");
+        }
+        if (segments == null) {
+            throw new NullPointerException("segments is null.");
+        }
+        Map<String, String> values = new HashMap<String, String>();
+        for (Map.Entry<String, String> entry : segments.entrySet()) {
+            Long generation = generations.get(entry.getKey());
+            if (generation == null) {
+                continue;
+            }
+            if (MAX_SEGMENT_BYTES < getByteLength(entry.getValue())) {
+                if (LOGGER.isLoggable(Level.INFO)) {
+                    LOGGER.info("Segment " + entry.getKey()
+                        + " is too large to cache.");
+                }
+                continue;
+            }
+            values.put(
+                createSegmentKey(entry.getKey(), generation),
+                entry.getValue());
+        }
+        if (0 < values.size()) {
+            Memcache.putAll(
+                values,
+                Expiration.byDeltaSeconds(EXPIRATION_SECONDS));
+        }
+    }
+
+    /**
+     * セグメントをUTF-8でエンコードしたときのバイト数を取得する。
+     * @param segment セグメント
+     * @return バイト数
+     */
+    private int getByteLength(String segment) {
+        try {
+            return segment.getBytes("UTF-8").length;
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package org.ryu22e.nico2cal.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.slim3.memcache.Memcache;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+
+/**
+ * キャッシュにないiCalendarフィードを、同じ条件のリクエストが同時に作成しないようにするクラス。
+ * <p>
+ * 同じインスタンスのリクエストは、先に作成を始めたリクエストの結果を待つ。
+ * 別のインスタンスとはMemcacheのリースで調整し、リースを取れなかったリクエストは
+ * 古い世代のフィードを返すか、リースを取ったインスタンスがキャッシュするのを待つ。
+ * </p>
+ * @author ryu22e
+ *
+ */
+public final class FeedSingleFlight {
+
+    /**
+     * 
+     */
+    private static final Logger LOGGER = Logger
+        .getLogger(FeedSingleFlight.class.getName());
+
+    /**
+     * 
+     */
+    private static final String LEASE_PREFIX = "feed-lease:";
+
+    /**
+     * 全てのインスタンスで待ち合わせたリクエスト数のキー。
+     */
+    private static final String COALESCED_KEY = "feed-coalesced";
+
+    /**
+     * リースの有効期限（ミリ秒）。
+     * <p>
+     * 作成したインスタンスが途中で止まっても、この時間が過ぎれば他のインスタンスが作成できる。
+     * </p>
+     */
+    private static final int LEASE_MILLIS = 30 * 1000;
+
+    /**
+     * 他のインスタンスがキャッシュしたかどうかを確認する間隔（ミリ秒）。
+     */
+    private static final long POLL_MILLIS = 100L;
+
+    /**
+     * このインスタンスで作成中のフィード。
+     */
+    private static final ConcurrentMap<String, Flight> FLIGHTS =
+            new ConcurrentHashMap<String, Flight>();
+
+    /**
+     * このインスタンスで待ち合わせたリクエスト数。
+     */
+    private static final AtomicLong COALESCED = new AtomicLong();
+
+    /**
+     * 作成中のフィード。
+     * @author ryu22e
+     *
+     */
+    public static final class Flight {
+
+        /**
+         * 
+         */
+        private final String variant;
+
+        /**
+         * 作成を始めたスレッド。
+         */
+        private final Thread owner = Thread.currentThread();
+
+        /**
+         * 
+         */
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        /**
+         * 作成したフィード。作成に失敗した場合はnull。
+         */
+        private volatile CachedFeed feed;
+
+        /**
+         * コンストラクタ。
+         * @param variant フィードの条件
+         */
+        private Flight(String variant) {
+            this.variant = variant;
+        }
+
+        /**
+         * 呼び出し元のリクエストがフィードを作成するかどうかを判定する。
+         * @return 作成する場合はtrue
+         */
+        public boolean isLeader() {
+            return owner == Thread.currentThread();
+        }
+
+        /**
+         * 作成が終わるのを待つ。
+         * @param timeoutMillis 待つ時間（ミリ秒）
+         * @return 作成したフィード。時間内に終わらなかった場合や、作成に失敗した場合はnull。
+         * @throws InterruptedException 待っている間に割り込まれた場合。
+         */
+        public CachedFeed await(long timeoutMillis)
+                throws InterruptedException {
+            if (!done.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                return null;
+            }
+            return feed;
+        }
+    }
+
+    /**
+     * このインスタンスで待ち合わせたリクエスト数を取得する。
+     * @return リクエスト数
+     */
+    public static long getCoalescedCount() {
+        return COALESCED.get();
+    }
+
+    /**
+     * 全てのインスタンスで待ち合わせたリクエスト数を取得する。
+     * @return リクエスト数。Memcacheから追い出されていた場合は0。
+     */
+    public long getTotalCoalescedCount() {
+        Object value = Memcache.get(COALESCED_KEY);
+        return value instanceof Number ? ((Number) value).longValue() : 0L;
+    }
+
+    /**
+     * フィードの作成に参加する。
+     * <p>
+     * このインスタンスで同じ条件のフィードを作成中でなければ、呼び出し元が作成する
+     * （{@link Flight#isLeader()}がtrueになる）。
+     * 作成したリクエストは、成否にかかわらず{@link #complete(Flight, CachedFeed)}を呼ぶこと。
+     * </p>
+     * @param variant フィードの条件
+     * @return 作成中のフィード
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public Flight join(String variant) {
+        if (variant == null) {
+            throw new NullPointerException("variant is null.");
+        }
+        Flight flight = new Flight(variant);
+        Flight existing = FLIGHTS.putIfAbsent(variant, flight);
+        return existing == null ? flight : existing;
+    }
+
+    /**
+     * フィードの作成を終えて、待っているリクエストに結果を渡す。
+     * @param flight {@link #join(String)}で取得した{@link Flight}
+     * @param feed 作成したフィード。作成に失敗した場合はnull。
+     * @throws NullPointerException flightがnullの場合。
+     * @throws IllegalStateException 呼び出し元が作成したリクエストではない場合。
+     */
+    public void complete(Flight flight, CachedFeed feed) {
+        if (flight == null) {
+            throw new NullPointerException("flight is null.");
+        }
+        if (!flight.isLeader()) {
+            throw new IllegalStateException("not leader.");
+        }
+        flight.feed = feed;
+        FLIGHTS.remove(flight.variant, flight);
+        flight.done.countDown();
+    }
+
+    /**
+     * 全てのインスタンスの中で、呼び出し元がフィードを作成するためのリースを取得する。
+     * @param variant フィードの条件
+     * @return 取得できた場合はtrue。他のインスタンスが作成中の場合はfalse。
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public boolean acquireLease(String variant) {
+        if (variant == null) {
+            throw new NullPointerException("variant is null.");
+        }
+        return Memcache.put(
+            LEASE_PREFIX + variant,
+            Boolean.TRUE,
+            Expiration.byDeltaMillis(LEASE_MILLIS),
+            SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    }
+
+    /**
+     * {@link #acquireLease(String)}で取得したリースを返す。
+     * @param variant フィードの条件
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public void releaseLease(String variant) {
+        if (variant == null) {
+            throw new NullPointerException("variant is null.");
+        }
+        Memcache.delete(LEASE_PREFIX + variant);
+    }
+
+    /**
+     * 他のインスタンスがフィードをキャッシュするのを待つ。
+     * @param feedCache {@link FeedCache}
+     * @param variant フィードの条件
+     * @param timeoutMillis 待つ時間（ミリ秒）
+     * @return キャッシュしたフィード。時間内にキャッシュされなかった場合や、
+     *         リースを取ったインスタンスが作成をやめた場合はnull。
+     * @throws NullPointerException パラメータがnullの場合。
+     * @throws InterruptedException 待っている間に割り込まれた場合。
+     */
+    public CachedFeed awaitLease(FeedCache feedCache, String variant,
+            long timeoutMillis) throws InterruptedException {
+        if (feedCache == null) {
+            throw new NullPointerException("feedCache is null.");
+        }
+        if (variant == null) {
+            throw new NullPointerException("variant is null.");
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            FeedCacheMeta meta = feedCache.getMeta(variant);
+            if (meta != null) {
+                byte[] body = feedCache.getBody(variant, meta);
+                if (body != null) {
+                    return new CachedFeed(meta, body);
+                }
+            }
+            if (!Memcache.contains(LEASE_PREFIX + variant)
+                || deadline <= System.currentTimeMillis()) {
+                return null;
+            }
+            Thread.sleep(POLL_MILLIS);
+        }
+    }
+
+    /**
+     * 自分でフィードを作成せずに、他のリクエストの結果を使ったことを記録する。
+     * @param variant フィードの条件
+     * @param reason 理由（ログに出力する）
+     */
+    public void recordCoalesced(String variant, String reason) {
+        long count = COALESCED.incrementAndGet();
+        Memcache.increment(COALESCED_KEY, 1L, 0L);
+        LOGGER.info("Coalesced feed request (" + reason + "): " + variant
+                + ", " + count + " in this instance.");
+    }
+}
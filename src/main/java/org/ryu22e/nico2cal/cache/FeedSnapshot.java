@@ -0,0 +1,428 @@
+package org.ryu22e.nico2cal.cache;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ryu22e.nico2cal.util.CompressedBitmap;
+
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * 直近の{@link org.ryu22e.nico2cal.model.Nicolive}を列ごとの配列に持つ、読み出し専用のスナップショット。
+ * <p>
+ * 開場日時の昇順に並べた行ごとに、開場日時（long）と取り込み時に書き出したVEVENTを持ち、
+ * キーワードからは該当する行番号の集合を{@link CompressedBitmap}で引けるようにしておく（転置インデックス）。
+ * 期間の開始は二分探索で、キーワードの積集合は件数の少ない順にビットマップの論理積で求めるので、
+ * フィードの作成にデータストアを読む必要がない。
+ * </p>
+ * <p>
+ * ニコニコ生放送RSSを取り込むたびに作り直して{@link FeedSnapshotStore}から公開し、
+ * 各インスタンスはそれをメモリに載せて使う。
+ * </p>
+ * @author ryu22e
+ *
+ */
+public final class FeedSnapshot implements Serializable {
+
+    /**
+     * 
+     */
+    private static final long serialVersionUID = 3L;
+
+    /**
+     * スナップショットの1行分。
+     * @author ryu22e
+     *
+     */
+    public static final class Row {
+
+        /**
+         * 
+         */
+        private final Key key;
+
+        /**
+         * 
+         */
+        private final Date openTime;
+
+        /**
+         * 
+         */
+        private final String event;
+
+        /**
+         * 
+         */
+        private final Set<String> keywords;
+
+        /**
+         * コンストラクタ。
+         * @param key {@link org.ryu22e.nico2cal.model.Nicolive}のキー
+         * @param openTime 開場日時
+         * @param event 改行（CRLF）まで含むVEVENT
+         * @param keywords 全文検索用のキーワード
+         * @throws NullPointerException パラメータがnullの場合。
+         */
+        public Row(Key key, Date openTime, String event, Set<String> keywords) {
+            if (key == null) {
+                throw new NullPointerException("key is null.");
+            }
+            if (openTime == null) {
+                throw new NullPointerException("openTime is null.");
+            }
+            if (event == null) {
+                throw new NullPointerException("event is null.");
+            }
+            if (keywords == null) {
+                throw new NullPointerException("keywords is null.");
+            }
+            this.key = key;
+            this.openTime = openTime;
+            this.event = event;
+            this.keywords = keywords;
+        }
+
+        /**
+         * @return the key
+         */
+        public Key getKey() {
+            return key;
+        }
+
+        /**
+         * @return the openTime
+         */
+        public Date getOpenTime() {
+            return openTime;
+        }
+
+        /**
+         * @return the event
+         */
+        public String getEvent() {
+            return event;
+        }
+
+        /**
+         * @return the keywords
+         */
+        public Set<String> getKeywords() {
+            return keywords;
+        }
+    }
+
+    /**
+     * スナップショットを作成したときのフィードの世代。
+     * @see FeedCache#getGeneration(Collection)
+     */
+    private final String generation;
+
+    /**
+     * 収録した期間の開始日時（ミリ秒）。
+     */
+    private final long from;
+
+    /**
+     * データストアを検索して全ての行を作り直した日時（ミリ秒）。
+     * <p>
+     * 前のスナップショットに行を追加して作り直した場合は、前のスナップショットの値を引き継ぐ。
+     * </p>
+     */
+    private final long rebuiltAt;
+
+    /**
+     * 各行の{@link org.ryu22e.nico2cal.model.Nicolive}のキー。
+     */
+    private final Key[] keys;
+
+    /**
+     * 各行の開場日時（ミリ秒、昇順）。
+     */
+    private final long[] openTimes;
+
+    /**
+     * 各行のVEVENT。
+     */
+    private final String[] events;
+
+    /**
+     * キーワードと、該当する行番号の集合のMap。
+     */
+    private final Map<String, CompressedBitmap> postings;
+
+    /**
+     * コンストラクタ。
+     * @param generation フィードの世代
+     * @param from 収録した期間の開始日時
+     * @param rebuiltAt 全ての行を作り直した日時
+     * @param keys 各行のキー
+     * @param openTimes 各行の開場日時
+     * @param events 各行のVEVENT
+     * @param postings キーワードと行番号の集合のMap
+     */
+    private FeedSnapshot(String generation, long from, long rebuiltAt,
+            Key[] keys, long[] openTimes, String[] events,
+            Map<String, CompressedBitmap> postings) {
+        this.generation = generation;
+        this.from = from;
+        this.rebuiltAt = rebuiltAt;
+        this.keys = keys;
+        this.openTimes = openTimes;
+        this.events = events;
+        this.postings = postings;
+    }
+
+    /**
+     * 全ての行を作り直したスナップショットを作成する。
+     * @param generation フィードの世代
+     * @param from 収録する期間の開始日時
+     * @param rows 行
+     * @return スナップショット
+     * @throws NullPointerException パラメータがnullの場合。
+     * @see #create(String, Date, Date, Collection)
+     */
+    public static FeedSnapshot create(String generation, Date from,
+            Collection<Row> rows) {
+        return create(generation, from, new Date(), rows);
+    }
+
+    /**
+     * スナップショットを作成する。
+     * <p>
+     * 開場日時が期間の開始日時より前の行は含めない。同じキーの行が複数ある場合は後の行を使う。
+     * 行は開場日時の昇順（同じ日時はキーの昇順）に並べる。データストアの検索結果と同じ順序になる。
+     * </p>
+     * @param generation フィードの世代
+     * @param from 収録する期間の開始日時
+     * @param rebuiltAt 全ての行を作り直した日時
+     * @param rows 行
+     * @return スナップショット
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public static FeedSnapshot create(String generation, Date from,
+            Date rebuiltAt, Collection<Row> rows) {
+        if (generation == null) {
+            throw new NullPointerException("generation is null.");
+        }
+        if (from == null) {
+            throw new NullPointerException("from is null.");
+        }
+        if (rebuiltAt == null) {
+            throw new NullPointerException("rebuiltAt is null.");
+        }
+        if (rows == null) {
+            throw new NullPointerException("rows is null.");
+        }
+        Map<Key, Row> unique = new LinkedHashMap<Key, Row>();
+        for (Row row : rows) {
+            if (!row.getOpenTime().before(from)) {
+                unique.put(row.getKey(), row);
+            } else {
+                unique.remove(row.getKey());
+            }
+        }
+        List<Row> sorted = new ArrayList<Row>(unique.values());
+        Collections.sort(sorted, new Comparator<Row>() {
+            @Override
+            public int compare(Row o1, Row o2) {
+                int result = o1.getOpenTime().compareTo(o2.getOpenTime());
+                return result != 0 ? result : o1.getKey().compareTo(
+                    o2.getKey());
+            }
+        });
+
+        int size = sorted.size();
+        Key[] keys = new Key[size];
+        long[] openTimes = new long[size];
+        String[] events = new String[size];
+        Map<String, List<Integer>> rowLists =
+                new HashMap<String, List<Integer>>();
+        for (int i = 0; i < size; i++) {
+            Row row = sorted.get(i);
+            keys[i] = row.getKey();
+            openTimes[i] = row.getOpenTime().getTime();
+            events[i] = row.getEvent();
+            for (String keyword : row.getKeywords()) {
+                List<Integer> list = rowLists.get(keyword);
+                if (list == null) {
+                    list = new ArrayList<Integer>();
+                    rowLists.put(keyword, list);
+                }
+                list.add(Integer.valueOf(i));
+            }
+        }
+        Map<String, CompressedBitmap> postings =
+                new HashMap<String, CompressedBitmap>(
+                    rowLists.size() * 4 / 3 + 1);
+        for (Map.Entry<String, List<Integer>> entry : rowLists.entrySet()) {
+            List<Integer> list = entry.getValue();
+            int[] array = new int[list.size()];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = list.get(i).intValue();
+            }
+            postings.put(entry.getKey(), CompressedBitmap.of(array));
+        }
+        return new FeedSnapshot(
+            generation,
+            from.getTime(),
+            rebuiltAt.getTime(),
+            keys,
+            openTimes,
+            events,
+            postings);
+    }
+
+    /**
+     * @return the generation
+     */
+    public String getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return 収録した期間の開始日時
+     */
+    public Date getFrom() {
+        return new Date(from);
+    }
+
+    /**
+     * @return 全ての行を作り直した日時
+     */
+    public Date getRebuiltAt() {
+        return new Date(rebuiltAt);
+    }
+
+    /**
+     * @return 行数
+     */
+    public int size() {
+        return openTimes.length;
+    }
+
+    /**
+     * 全ての行を取得する。
+     * <p>
+     * スナップショットに行を追加して作り直すときに使う。
+     * </p>
+     * @return 開場日時の昇順に並べた行
+     */
+    public List<Row> getRows() {
+        List<Set<String>> keywords = new ArrayList<Set<String>>(size());
+        for (int i = 0; i < size(); i++) {
+            keywords.add(new HashSet<String>());
+        }
+        for (Map.Entry<String, CompressedBitmap> entry : postings.entrySet()) {
+            CompressedBitmap bitmap = entry.getValue();
+            for (int i = bitmap.nextSetBit(0); 0 <= i; i =
+                    bitmap.nextSetBit(i + 1)) {
+                keywords.get(i).add(entry.getKey());
+            }
+        }
+        List<Row> rows = new ArrayList<Row>(size());
+        for (int i = 0; i < size(); i++) {
+            rows.add(new Row(
+                keys[i],
+                new Date(openTimes[i]),
+                events[i],
+                keywords.get(i)));
+        }
+        return rows;
+    }
+
+    /**
+     * 開始日時以降のフィードをこのスナップショットだけで作成できるかどうかを判定する。
+     * @param startDate 開始日時
+     * @return 開始日時が収録した期間内の場合はtrue
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public boolean covers(Date startDate) {
+        if (startDate == null) {
+            throw new NullPointerException("startDate is null.");
+        }
+        return from <= startDate.getTime();
+    }
+
+    /**
+     * 開場日時が開始日時以降の最初の行番号を二分探索で求める。
+     * @param startDate 開始日時
+     * @return 行番号。該当する行がない場合は行数。
+     */
+    int findFirstRow(Date startDate) {
+        long start = startDate.getTime();
+        int low = 0;
+        int high = openTimes.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (openTimes[mid] < start) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 開始日時以降で、全てのキーワードに該当する行のVEVENTを取得する。
+     * @param startDate 開始日時
+     * @param keywords 正規化したキーワード。nullの場合はキーワードで絞り込まない。
+     * @return 開場日時の昇順に並べたVEVENT
+     * @throws NullPointerException 開始日時がnullの場合。
+     * @throws IllegalArgumentException 開始日時が収録した期間より前の場合。
+     */
+    public List<String> findEvents(Date startDate, Collection<String> keywords) {
+        if (!covers(startDate)) {
+            throw new IllegalArgumentException("startDate is out of range.");
+        }
+        int first = findFirstRow(startDate);
+        if (keywords == null) {
+            return Collections.unmodifiableList(Arrays.asList(events).subList(
+                first,
+                events.length));
+        }
+        List<CompressedBitmap> bitmaps =
+                new ArrayList<CompressedBitmap>(keywords.size());
+        for (String keyword : keywords) {
+            CompressedBitmap bitmap = postings.get(keyword);
+            if (bitmap == null) {
+                return new ArrayList<String>();
+            }
+            bitmaps.add(bitmap);
+        }
+        if (bitmaps.isEmpty()) {
+            return Collections.unmodifiableList(Arrays.asList(events).subList(
+                first,
+                events.length));
+        }
+        // 件数の少ないキーワードから絞り込むと、途中の集合が小さくなる。
+        Collections.sort(bitmaps, new Comparator<CompressedBitmap>() {
+            @Override
+            public int compare(CompressedBitmap o1, CompressedBitmap o2) {
+                return o1.cardinality() - o2.cardinality();
+            }
+        });
+        CompressedBitmap matched = bitmaps.get(0);
+        for (int i = 1; i < bitmaps.size() && !matched.isEmpty(); i++) {
+            matched = matched.and(bitmaps.get(i));
+        }
+        List<String> result = new ArrayList<String>();
+        for (int i = matched.nextSetBit(first); 0 <= i; i =
+                matched.nextSetBit(i + 1)) {
+            result.add(events[i]);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,90 @@
+package org.ryu22e.nico2cal.cache;
+
+import java.io.Serializable;
+
+/**
+ * 公開した{@link FeedSnapshot}の目録。
+ * <p>
+ * スナップショットは分割してMemcacheに保存するので、分割数と全体の長さを持つ。
+ * 各インスタンスはこの目録だけを読んで、手元のスナップショットが最新かどうかを判定する。
+ * </p>
+ * @author ryu22e
+ *
+ */
+public final class FeedSnapshotMeta implements Serializable {
+
+    /**
+     * 
+     */
+    private static final long serialVersionUID = 2L;
+
+    /**
+     * スナップショットを作成したときのフィードの世代。
+     */
+    private final String generation;
+
+    /**
+     * 圧縮したスナップショットのバイト数。
+     */
+    private final int length;
+
+    /**
+     * スナップショットの分割数。
+     */
+    private final int chunkCount;
+
+    /**
+     * スナップショットを公開した日時（ミリ秒）。
+     * <p>
+     * 同じ世代のスナップショットを公開し直したことを見分けるために使う。
+     * </p>
+     */
+    private final long publishedAt;
+
+    /**
+     * コンストラクタ。
+     * @param generation フィードの世代
+     * @param length 圧縮したスナップショットのバイト数
+     * @param chunkCount スナップショットの分割数
+     * @param publishedAt スナップショットを公開した日時（ミリ秒）
+     * @throws NullPointerException 世代がnullの場合。
+     */
+    public FeedSnapshotMeta(String generation, int length, int chunkCount,
+            long publishedAt) {
+        if (generation == null) {
+            throw new NullPointerException("generation is null.");
+        }
+        this.generation = generation;
+        this.length = length;
+        this.chunkCount = chunkCount;
+        this.publishedAt = publishedAt;
+    }
+
+    /**
+     * @return the generation
+     */
+    public String getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return the length
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the chunkCount
+     */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * @return the publishedAt
+     */
+    public long getPublishedAt() {
+        return publishedAt;
+    }
+}
@@ -0,0 +1,327 @@
+package org.ryu22e.nico2cal.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.slim3.memcache.Memcache;
+
+import com.google.appengine.api.memcache.Expiration;
+
+/**
+ * {@link FeedSnapshot}をMemcacheで公開し、インスタンスのメモリに載せて使うクラス。
+ * <p>
+ * スナップショットはシリアライズしてgzipで圧縮し、{@link FeedCache}と同じく
+ * 一定の大きさごとに分割して{@link FeedSnapshotMeta}と一緒に保存する。
+ * 各インスタンスはリクエストごとに目録だけを読み、世代が手元のスナップショットと違うときだけ
+ * 本体を読み直す。同じ世代のうちは、Memcacheから本体を読むことはない。
+ * 読み直すのはインスタンスごとに1つのリクエストだけで、その間の他のリクエストは
+ * 前に読んだスナップショットを使う。
+ * </p>
+ * @author ryu22e
+ *
+ */
+public final class FeedSnapshotStore {
+
+    /**
+     * 
+     */
+    private static final Logger LOGGER = Logger
+        .getLogger(FeedSnapshotStore.class.getName());
+
+    /**
+     * 
+     */
+    private static final String META_KEY = "feed-snapshot-meta";
+
+    /**
+     * 
+     */
+    private static final String CHUNK_PREFIX = "feed-snapshot:";
+
+    /**
+     * スナップショットの有効期限（秒）。
+     * <p>
+     * ニコニコ生放送RSSを取り込むたびに作り直すが、取り込みが止まっても
+     * しばらくは使えるように、フィードのキャッシュより長くする。
+     * </p>
+     */
+    private static final int EXPIRATION_SECONDS = 24 * 60 * 60;
+
+    /**
+     * このインスタンスのメモリに載せたスナップショット。
+     */
+    private static volatile FeedSnapshot resident;
+
+    /**
+     * このインスタンスで読み出せなかったスナップショットの目録。
+     * <p>
+     * 一部が追い出されたスナップショットを、リクエストごとに読み直さないようにする。
+     * 公開し直されて目録が変わるまでは読み直さない。
+     * </p>
+     */
+    private static volatile FeedSnapshotMeta failed;
+
+    /**
+     * このインスタンスでスナップショットを読み直しているかどうか。
+     */
+    static final AtomicBoolean LOADING = new AtomicBoolean();
+
+    /**
+     * スナップショットを分割するときの1つあたりのバイト数。
+     */
+    private final int chunkSize;
+
+    /**
+     * コンストラクタ。
+     */
+    public FeedSnapshotStore() {
+        this(FeedCache.DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * コンストラクタ。
+     * @param chunkSize スナップショットを分割するときの1つあたりのバイト数
+     * @throws IllegalArgumentException パラメータが1未満の場合。
+     */
+    FeedSnapshotStore(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize is less than 1.");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * メモリに載せたスナップショットと、読み出せなかった目録を捨てる（テスト用）。
+     */
+    static void clearResident() {
+        resident = null;
+        failed = null;
+    }
+
+    /**
+     * 2つの目録が同じ公開を指しているかどうかを判定する。
+     * @param a 目録
+     * @param b 目録
+     * @return 同じ世代を同じ日時に公開した目録の場合はtrue
+     */
+    private static boolean isSamePublication(FeedSnapshotMeta a,
+            FeedSnapshotMeta b) {
+        return a != null
+            && b != null
+            && a.getGeneration().equals(b.getGeneration())
+            && a.getPublishedAt() == b.getPublishedAt();
+    }
+
+    /**
+     * 分割したスナップショットのキーを作成する。
+     * @param generation フィードの世代
+     * @param index 何番目か（0から始まる）
+     * @return キー
+     */
+    static String createChunkKey(String generation, int index) {
+        return CHUNK_PREFIX + generation + "#" + index;
+    }
+
+    /**
+     * スナップショットを公開する。
+     * <p>
+     * 公開したスナップショットは、このインスタンスのメモリにもそのまま載せる。
+     * </p>
+     * @param snapshot スナップショット
+     * @return 保存した{@link FeedSnapshotMeta}
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public FeedSnapshotMeta publish(FeedSnapshot snapshot) {
+        if (snapshot == null) {
+            throw new NullPointerException("snapshot is null.");
+        }
+        byte[] data = FeedCache.compress(serialize(snapshot));
+        int chunkCount = Math.max(1, (data.length + chunkSize - 1) / chunkSize);
+        FeedSnapshotMeta meta =
+                new FeedSnapshotMeta(
+                    snapshot.getGeneration(),
+                    data.length,
+                    chunkCount,
+                    System.currentTimeMillis());
+        Map<String, Object> values = new HashMap<String, Object>();
+        for (int i = 0; i < chunkCount; i++) {
+            int from = i * chunkSize;
+            int to = Math.min(from + chunkSize, data.length);
+            values.put(
+                createChunkKey(snapshot.getGeneration(), i),
+                Arrays.copyOfRange(data, from, to));
+        }
+        // 目録と本体を1回でまとめて保存する。
+        // 一部だけ保存に失敗しても、取得するときに分かる。
+        values.put(META_KEY, meta);
+        Memcache.putAll(values, Expiration.byDeltaSeconds(EXPIRATION_SECONDS));
+        resident = snapshot;
+        failed = null;
+        if (LOGGER.isLoggable(Level.INFO)) {
+            LOGGER.info("Published feed snapshot " + meta.getGeneration()
+                + " (" + snapshot.size() + " rows, " + data.length
+                + " bytes, " + chunkCount + " chunks).");
+        }
+        return meta;
+    }
+
+    /**
+     * 公開されているスナップショットの{@link FeedSnapshotMeta}を取得する。
+     * @return {@link FeedSnapshotMeta}。公開されていない場合はnull。
+     */
+    public FeedSnapshotMeta getMeta() {
+        Object value = Memcache.get(META_KEY);
+        return value instanceof FeedSnapshotMeta
+            ? (FeedSnapshotMeta) value : null;
+    }
+
+    /**
+     * 公開されているスナップショットを取得する。
+     * @return スナップショット。公開されていない場合はnull。
+     *         公開されている世代と違うことがある。
+     * @see #get(FeedSnapshotMeta)
+     */
+    public FeedSnapshot get() {
+        FeedSnapshotMeta meta = getMeta();
+        return meta == null ? null : get(meta);
+    }
+
+    /**
+     * 目録に対応するスナップショットを取得する。
+     * <p>
+     * メモリに載せたスナップショットが同じ世代ならそれを返す。
+     * 違う場合はMemcacheから読み直してメモリに載せ直す。
+     * 他のリクエストが読み直している間や、読み出せなかった目録の場合は、待たずに
+     * メモリに載せている前の世代のスナップショットを返すので、呼び出し元は世代を確認する。
+     * </p>
+     * @param meta 取得済みの{@link FeedSnapshotMeta}
+     * @return スナップショット。メモリに載せたものがなく、読み出せなかった場合はnull。
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public FeedSnapshot get(FeedSnapshotMeta meta) {
+        if (meta == null) {
+            throw new NullPointerException("meta is null.");
+        }
+        FeedSnapshot snapshot = resident;
+        if (snapshot != null
+            && snapshot.getGeneration().equals(meta.getGeneration())) {
+            return snapshot;
+        }
+        if (isSamePublication(failed, meta)
+            || !LOADING.compareAndSet(false, true)) {
+            return snapshot;
+        }
+        try {
+            FeedSnapshot loaded = load(meta);
+            if (loaded == null) {
+                failed = meta;
+                return snapshot;
+            }
+            resident = loaded;
+            return loaded;
+        } finally {
+            LOADING.set(false);
+        }
+    }
+
+    /**
+     * Memcacheからスナップショットを読み出す。
+     * @param meta {@link FeedSnapshotMeta}
+     * @return スナップショット。一部が追い出されていた場合や、読み出せなかった場合はnull。
+     */
+    private FeedSnapshot load(FeedSnapshotMeta meta) {
+        int chunkCount = meta.getChunkCount();
+        if (chunkCount < 1) {
+            return null;
+        }
+        List<String> keys = new ArrayList<String>(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            keys.add(createChunkKey(meta.getGeneration(), i));
+        }
+        Map<String, Object> values = Memcache.getAll(keys);
+        byte[] data = new byte[meta.getLength()];
+        int offset = 0;
+        for (String key : keys) {
+            Object value = values.get(key);
+            if (!(value instanceof byte[])
+                || data.length < offset + ((byte[]) value).length) {
+                LOGGER.info("Feed snapshot is partially evicted: " + key);
+                return null;
+            }
+            byte[] chunk = (byte[]) value;
+            System.arraycopy(chunk, 0, data, offset, chunk.length);
+            offset += chunk.length;
+        }
+        if (offset != data.length) {
+            LOGGER.info("Feed snapshot is partially evicted: "
+                + meta.getGeneration());
+            return null;
+        }
+        try {
+            FeedSnapshot snapshot =
+                    deserialize(FeedCache.decompress(data));
+            if (LOGGER.isLoggable(Level.INFO)) {
+                LOGGER.info("Loaded feed snapshot " + meta.getGeneration()
+                    + " (" + snapshot.size() + " rows).");
+            }
+            return snapshot;
+        } catch (IOException e) {
+            LOGGER.warning(e.getMessage());
+            return null;
+        } catch (ClassNotFoundException e) {
+            LOGGER.warning(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * スナップショットをシリアライズする。
+     * @param snapshot スナップショット
+     * @return シリアライズしたバイト列
+     */
+    private static byte[] serialize(FeedSnapshot snapshot) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(out);
+            oos.writeObject(snapshot);
+            oos.close();
+            return out.toByteArray();
+        } catch (IOException e) {
+            // ByteArrayOutputStreamへの書き出しなので起こらない。
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * シリアライズしたスナップショットを復元する。
+     * @param data シリアライズしたバイト列
+     * @return スナップショット
+     * @throws IOException 形式が不正な場合。
+     * @throws ClassNotFoundException クラスが見つからない場合。
+     */
+    private static FeedSnapshot deserialize(byte[] data) throws IOException,
+            ClassNotFoundException {
+        ObjectInputStream ois =
+                new ObjectInputStream(new ByteArrayInputStream(data));
+        try {
+            Object value = ois.readObject();
+            if (!(value instanceof FeedSnapshot)) {
+                throw new IOException("Not a feed snapshot.");
+            }
+            return (FeedSnapshot) value;
+        } finally {
+            ois.close();
+        }
+    }
+}
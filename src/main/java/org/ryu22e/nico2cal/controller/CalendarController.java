@@ -1,17 +1,24 @@
 package org.ryu22e.nico2cal.controller;
 
+import java.io.IOException;
 import java.net.URLEncoder;
 import java.util.Arrays;
+import java.util.List;
 
-import net.fortuna.ical4j.model.Calendar;
-
+import org.ryu22e.nico2cal.cache.CachedFeed;
+import org.ryu22e.nico2cal.cache.FeedBodyWriter;
+import org.ryu22e.nico2cal.cache.FeedCache;
+import org.ryu22e.nico2cal.cache.FeedCacheMeta;
+import org.ryu22e.nico2cal.cache.FeedCacheStats;
+import org.ryu22e.nico2cal.cache.FeedLocalCache;
+import org.ryu22e.nico2cal.cache.FeedSingleFlight;
 import org.ryu22e.nico2cal.service.CalendarCondition;
 import org.ryu22e.nico2cal.service.CalendarService;
+import org.ryu22e.nico2cal.service.KeywordSearchService;
 import org.slim3.controller.Controller;
 import org.slim3.controller.Navigation;
 import org.slim3.controller.validator.Errors;
 import org.slim3.controller.validator.Validators;
-import org.slim3.memcache.Memcache;
 
 /**
  * データストアのNicoliveをiCalendarファイルを変換して取得するコントローラー。
@@ -42,11 +49,239 @@ public final class CalendarController extends Controller {
      */
     private static final String ICALENDAR_FILE_NAME = "nico2ical.ics";
 
+    /**
+     * 
+     */
+    private static final int NOT_MODIFIED = 304;
+
+    /**
+     * エッジキャッシュやクライアントがフィードを再利用してよい秒数。
+     */
+    private static final int MAX_AGE_SECONDS = 10 * 60;
+
+    /**
+     * 同じフィードを作成中の他のリクエストを待つ時間（ミリ秒）。
+     */
+    private static final long COALESCE_WAIT_MILLIS = 5 * 1000L;
+
     /**
      * @see CalendarService
      */
     private CalendarService calendarService = new CalendarService();
 
+    /**
+     * @see FeedCache
+     */
+    private FeedCache feedCache = new FeedCache();
+
+    /**
+     * @see FeedSingleFlight
+     */
+    private FeedSingleFlight singleFlight = new FeedSingleFlight();
+
+    /**
+     * @see FeedLocalCache
+     */
+    private FeedLocalCache localCache = FeedLocalCache.getInstance();
+
+    /**
+     * キャッシュ関連のレスポンスヘッダーを設定する。
+     * @param etag ETag。nullの場合は設定しない。
+     * @param lastModified 最終更新日時
+     */
+    private void setCacheHeaders(String etag, long lastModified) {
+        if (etag != null) {
+            response.setHeader("ETag", etag);
+        }
+        response.setDateHeader("Last-Modified", lastModified);
+        response.setHeader("Cache-Control", "public, max-age="
+                + MAX_AGE_SECONDS);
+        // 同じURLでもAccept-Encodingによって本文が変わる。
+        response.setHeader("Vary", "Accept-Encoding");
+    }
+
+    /**
+     * クライアントがgzipで圧縮したレスポンスを受け付けるかどうかを判定する。
+     * @return 受け付ける場合はtrue
+     */
+    private boolean acceptsGzip() {
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] params = coding.split(";");
+            String name = params[0].trim();
+            if (!name.equalsIgnoreCase("gzip")
+                && !name.equalsIgnoreCase("x-gzip")
+                && !name.equals("*")) {
+                continue;
+            }
+            boolean accepted = true;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        accepted = 0 < Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        accepted = false;
+                    }
+                }
+            }
+            if (accepted) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * クライアントが持っているフィードがキャッシュと同じかどうかを判定する。
+     * <p>
+     * If-None-Matchがあればそれだけで判定し、なければIf-Modified-Sinceで判定する。
+     * </p>
+     * @param meta キャッシュしたフィードの{@link FeedCacheMeta}
+     * @return 同じ場合はtrue
+     */
+    private boolean isNotModified(FeedCacheMeta meta) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*")
+                    || tag.equals(meta.getEtag())
+                    || tag.equals(meta.getGzipEtag())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long ifModifiedSince;
+        try {
+            ifModifiedSince = request.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException e) {
+            // 日付の形式が不正な場合は、ヘッダーがないものとして扱う。
+            return false;
+        }
+        return 0 <= ifModifiedSince
+                && meta.getLastModified() <= ifModifiedSince;
+    }
+
+    /**
+     * iCalendarを作成してレスポンスに書き出す。
+     * @param startWeek 何週間前からのフィードか
+     * @param keywords キーワード
+     * @param gzip レスポンスをgzipで圧縮する場合はtrue
+     * @param memcacheKey キャッシュする場合はフィードの条件。キャッシュしない場合はnull。
+     * @return キャッシュしたフィード。キャッシュしない場合はnull。
+     * @throws IOException レスポンスへの書き出しに失敗した場合。
+     */
+    private CachedFeed writeCalendar(StartWeek startWeek,
+            List<String> keywords, boolean gzip, String memcacheKey)
+            throws IOException {
+        CalendarCondition condition = new CalendarCondition();
+        condition.setKeywords(keywords);
+        condition.setStartDate(startWeek.toDate());
+
+        // 本文を書き出す前なのでETagは分からないが、最終更新日時は返せる。
+        long lastModified = feedCache.getLastModified();
+        setCacheHeaders(null, lastModified);
+        if (gzip) {
+            response.setHeader("Content-Encoding", "gzip");
+        }
+
+        // レスポンスに書き出しながら、同じ内容を圧縮してキャッシュ用にも溜める。
+        FeedBodyWriter bodyWriter =
+                new FeedBodyWriter(response.getOutputStream(), gzip);
+        calendarService.writeCalendar(condition, bodyWriter.getWriter());
+        bodyWriter.finish();
+        if (memcacheKey == null) {
+            return null;
+        }
+
+        // MemcacheにiCalendarの内容をキャッシュする。
+        byte[] gzippedBody = bodyWriter.getGzippedBody();
+        FeedCacheMeta meta =
+                feedCache.put(
+                    memcacheKey,
+                    gzippedBody,
+                    bodyWriter.getEtag(),
+                    lastModified);
+        return new CachedFeed(meta, gzippedBody);
+    }
+
+    /**
+     * キャッシュしたフィードをレスポンスに書き出す。
+     * <p>
+     * gzipを受け付けないクライアントの場合だけ展開する。
+     * </p>
+     * @param cached キャッシュしたフィード
+     * @param gzip レスポンスをgzipで圧縮する場合はtrue
+     * @throws IOException レスポンスへの書き出しに失敗した場合。
+     */
+    private void writeCachedFeed(CachedFeed cached, boolean gzip)
+            throws IOException {
+        FeedCacheMeta meta = cached.getMeta();
+        byte[] content;
+        if (gzip) {
+            setCacheHeaders(meta.getGzipEtag(), meta.getLastModified());
+            response.setHeader("Content-Encoding", "gzip");
+            content = cached.getBody();
+        } else {
+            setCacheHeaders(meta.getEtag(), meta.getLastModified());
+            content = FeedCache.decompress(cached.getBody());
+        }
+        response.setContentLength(content.length);
+        response.getOutputStream().write(content);
+    }
+
+    /**
+     * 他のインスタンスが同じフィードを作成中の場合に、代わりに返すフィードを取得する。
+     * <p>
+     * 古い世代のフィードがあればそれを返し、なければ作成が終わるのを待つ。
+     * </p>
+     * @param memcacheKey フィードの条件
+     * @param baseKey 世代を除いたフィードの条件
+     * @return 代わりに返すフィード。ない場合はnull。
+     * @throws InterruptedException 待っている間に割り込まれた場合。
+     */
+    private CachedFeed findOtherFeed(String memcacheKey, String baseKey)
+            throws InterruptedException {
+        CachedFeed cached = feedCache.getLatest(baseKey);
+        if (cached != null) {
+            singleFlight.recordCoalesced(memcacheKey, "stale");
+            return cached;
+        }
+        cached =
+                singleFlight.awaitLease(
+                    feedCache,
+                    memcacheKey,
+                    COALESCE_WAIT_MILLIS);
+        if (cached != null) {
+            singleFlight.recordCoalesced(memcacheKey, "lease");
+        }
+        return cached;
+    }
+
+    /**
+     * 正規化したキーワードを半角スペースで連結する。
+     * @param keywords キーワード
+     * @return 連結した文字列
+     */
+    private String join(List<String> keywords) {
+        StringBuilder sb = new StringBuilder();
+        for (String keyword : keywords) {
+            if (0 < sb.length()) {
+                sb.append(" ");
+            }
+            sb.append(keyword);
+        }
+        return sb.toString();
+    }
+
     /*
      * (non-Javadoc) {@inheritDoc}
      */
@@ -78,29 +313,107 @@ public final class CalendarController extends Controller {
             StartWeek startWeek = StartWeek.parse(startWeekNum);
             String keyword = request.getParameter("keyword");
             String memcacheKey = "startWeek=" + startWeekNum;
+            List<String> keywords = null;
+            // フィードの作成に使う検索条件のキーワード。
+            List<String> searchKeywords = null;
             if (keyword != null) {
+                // 空白で区切られているキーワードを正規化して並べ替える。
+                // 表記や並び順だけが違う検索条件は同じキャッシュを使う。
+                keywords = KeywordSearchService.canonicalize(keyword);
+                searchKeywords = keywords;
                 memcacheKey +=
-                        "&keyword=" + URLEncoder.encode(keyword, "UTF-8");
+                        "&keyword="
+                                + URLEncoder.encode(join(keywords), "UTF-8");
+                if (keywords.size() <= 0) {
+                    // 有効なキーワードがなくても、キーワードを指定しない場合とは区別して
+                    // 該当なし（空のカレンダー）にする。検索条件には元のキーワードを渡す。
+                    searchKeywords = Arrays.asList(keyword);
+                }
             }
-            Object cache = Memcache.get(memcacheKey);
-            if (cache == null) {
-                CalendarCondition condition = new CalendarCondition();
-                if (keyword != null) {
-                    // 半角スペースで区切られているキーワードは分割して配列にする。
-                    condition.setKeywords(Arrays.asList(keyword.split(" ")));
+            // 全文検索用インデックスやNicoliveが変わると世代が進み、別のキーになる。
+            String baseKey = memcacheKey;
+            String generation = feedCache.getGeneration(keywords);
+            memcacheKey += "&generation=" + generation;
+            boolean gzip = acceptsGzip();
+            // インスタンスのメモリ、Memcacheの順に探す。
+            CachedFeed cached = null;
+            FeedCacheMeta meta = null;
+            if (generation != null) {
+                cached = localCache.get(memcacheKey);
+                if (cached != null) {
+                    meta = cached.getMeta();
+                } else {
+                    meta = feedCache.getMeta(memcacheKey);
+                    FeedCacheStats.recordMemcache(meta != null);
                 }
-                condition.setStartDate(startWeek.toDate());
+            }
+            if (meta != null && isNotModified(meta)) {
+                // クライアントが持っている内容と同じなので、本文は返さない。
+                setCacheHeaders(
+                    gzip ? meta.getGzipEtag() : meta.getEtag(),
+                    meta.getLastModified());
+                response.setStatus(NOT_MODIFIED);
+                return null;
+            }
+            if (cached == null && meta != null) {
+                byte[] body = feedCache.getBody(memcacheKey, meta);
+                if (body != null) {
+                    cached = new CachedFeed(meta, body);
+                    localCache.put(memcacheKey, cached);
+                }
+            }
 
-                Calendar calendar = calendarService.getCalendar(condition);
-                response.getWriter().write(calendar.toString());
+            // 世代が分からない場合は、古い内容と区別できないのでキャッシュしない。
+            FeedSingleFlight.Flight flight = null;
+            boolean leased = false;
+            CachedFeed created = null;
+            try {
+                if (cached == null && generation != null) {
+                    flight = singleFlight.join(memcacheKey);
+                    if (!flight.isLeader()) {
+                        // このインスタンスで同じフィードを作成中なので、その結果を待つ。
+                        cached = flight.await(COALESCE_WAIT_MILLIS);
+                        if (cached != null) {
+                            singleFlight
+                                .recordCoalesced(memcacheKey, "instance");
+                        }
+                        flight = null;
+                    } else {
+                        leased = singleFlight.acquireLease(memcacheKey);
+                        if (!leased) {
+                            cached = findOtherFeed(memcacheKey, baseKey);
+                        }
+                        if (cached != null) {
+                            singleFlight.complete(flight, cached);
+                            flight = null;
+                        }
+                    }
+                }
 
-                // MemcacheにiCalendarの内容をキャッシュする。
-                Memcache.put(memcacheKey, calendar.toString());
-            } else {
-                // キャッシュがある場合はキャッシュの内容を返す。
-                response.getWriter().write((String) cache);
+                if (cached == null) {
+                    created =
+                            writeCalendar(
+                                startWeek,
+                                searchKeywords,
+                                gzip,
+                                generation == null ? null : memcacheKey);
+                    if (created != null) {
+                        feedCache.setLatest(baseKey, memcacheKey);
+                        localCache.put(memcacheKey, created);
+                    }
+                } else {
+                    // キャッシュがある場合はキャッシュの内容を返す。
+                    writeCachedFeed(cached, gzip);
+                }
+            } finally {
+                // 作成に失敗しても、待っているリクエストとリースは必ず解放する。
+                if (flight != null) {
+                    singleFlight.complete(flight, created);
+                }
+                if (leased) {
+                    singleFlight.releaseLease(memcacheKey);
+                }
             }
-
         }
         response.flushBuffer();
 
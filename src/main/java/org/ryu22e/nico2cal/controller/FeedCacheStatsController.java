@@ -0,0 +1,51 @@
+package org.ryu22e.nico2cal.controller;
+
+import org.ryu22e.nico2cal.cache.FeedCacheStats;
+import org.ryu22e.nico2cal.cache.FeedLocalCache;
+import org.ryu22e.nico2cal.cache.FeedSingleFlight;
+import org.slim3.controller.Controller;
+import org.slim3.controller.Navigation;
+
+/**
+ * iCalendarフィードのキャッシュのヒット率などを表示するコントローラー。
+ * <p>
+ * インスタンスのメモリとMemcacheのヒット率は、このリクエストを処理したインスタンスで数えた値。
+ * </p>
+ * @author ryu22e
+ *
+ */
+public final class FeedCacheStatsController extends Controller {
+
+    /**
+     * @see FeedSingleFlight
+     */
+    private FeedSingleFlight singleFlight = new FeedSingleFlight();
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public Navigation run() throws Exception {
+        FeedLocalCache localCache = FeedLocalCache.getInstance();
+        StringBuilder sb = new StringBuilder();
+        sb.append("local.hits=" + FeedCacheStats.getLocalHits() + "\n");
+        sb.append("local.misses=" + FeedCacheStats.getLocalMisses() + "\n");
+        sb.append("local.hitRatio=" + FeedCacheStats.getLocalHitRatio() + "\n");
+        sb.append("local.entries=" + localCache.size() + "\n");
+        sb.append("local.bytes=" + localCache.getBytes() + "\n");
+        sb.append("memcache.hits=" + FeedCacheStats.getMemcacheHits() + "\n");
+        sb.append("memcache.misses=" + FeedCacheStats.getMemcacheMisses()
+                + "\n");
+        sb.append("memcache.hitRatio=" + FeedCacheStats.getMemcacheHitRatio()
+                + "\n");
+        sb.append("coalesced.instance=" + FeedSingleFlight.getCoalescedCount()
+                + "\n");
+        sb.append("coalesced.total=" + singleFlight.getTotalCoalescedCount()
+                + "\n");
+        response.setContentType("text/plain;charset=UTF-8");
+        response.getWriter().write(new String(sb));
+        response.flushBuffer();
+
+        return null;
+    }
+}
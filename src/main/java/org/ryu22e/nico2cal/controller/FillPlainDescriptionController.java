@@ -0,0 +1,56 @@
+package org.ryu22e.nico2cal.controller;
+
+import java.util.logging.Logger;
+
+import org.ryu22e.nico2cal.service.NicoliveService;
+import org.slim3.controller.Controller;
+import org.slim3.controller.Navigation;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.taskqueue.TaskOptions.Method;
+
+/**
+ * 登録済みの{@link org.ryu22e.nico2cal.model.Nicolive}に、HTMLタグを除去した説明文を保存するコントローラー。
+ * <p>
+ * 1回のリクエストでは一定の件数だけ処理し、続きがあれば自分自身をTaskQueueに追加する。
+ * </p>
+ * @author ryu22e
+ *
+ */
+public final class FillPlainDescriptionController extends Controller {
+
+    /**
+     * 
+     */
+    private static final Logger LOGGER = Logger
+        .getLogger(FillPlainDescriptionController.class.getName());
+
+    /**
+     * 
+     */
+    private NicoliveService nicoliveService = new NicoliveService();
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public Navigation run() throws Exception {
+        LOGGER.info("BEGIN: " + this.getClass().getName());
+
+        String cursor =
+                nicoliveService.fillPlainDescription(param("cursor"));
+        if (cursor != null) {
+            // 続きは別のTaskQueueで処理する。
+            TaskOptions options =
+                    TaskOptions.Builder
+                        .withUrl("/FillPlainDescription")
+                        .method(Method.POST)
+                        .param("cursor", cursor);
+            QueueFactory.getDefaultQueue().add(options);
+        }
+
+        LOGGER.info("END: " + this.getClass().getName());
+        return null;
+    }
+}
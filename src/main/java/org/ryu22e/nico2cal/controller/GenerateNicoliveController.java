@@ -1,14 +1,15 @@
 package org.ryu22e.nico2cal.controller;
 
+import java.util.Date;
 import java.util.List;
 import java.util.logging.Logger;
 
+import org.ryu22e.nico2cal.cache.FeedCache;
 import org.ryu22e.nico2cal.service.NicoliveRssService;
 import org.ryu22e.nico2cal.service.NicoliveService;
 import org.slim3.controller.Controller;
 import org.slim3.controller.Navigation;
 import org.slim3.datastore.Datastore;
-import org.slim3.memcache.Memcache;
 
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.taskqueue.QueueFactory;
@@ -44,6 +45,11 @@ public final class GenerateNicoliveController extends Controller {
      */
     private NicoliveService nicoliveService = new NicoliveService();
 
+    /**
+     * @see FeedCache
+     */
+    private FeedCache feedCache = new FeedCache();
+
     /**
      * 全文検索用インデックスを作成するTaskQueueを追加する。
      * @param keys NicoliveのキーのList
@@ -62,6 +68,26 @@ public final class GenerateNicoliveController extends Controller {
         }
     }
 
+    /**
+     * フィードのスナップショットを公開するTaskQueueを追加する。
+     * <p>
+     * 取り込んだNicoliveがなくても追加する。スナップショットがMemcacheから
+     * 追い出されていた場合は、ここで作り直される。
+     * </p>
+     * @param keys 今回取り込んだNicoliveのキーのList
+     */
+    private void addPublishTaskQueue(List<Key> keys) {
+        TaskOptions options =
+                TaskOptions.Builder
+                    .withUrl("/PublishFeedSnapshot")
+                    .method(Method.POST);
+        for (Key key : keys) {
+            options = options.param("keys[]", Datastore.keyToString(key));
+        }
+        // 全文検索用インデックスと同じ（同時に1つしか実行しない）キューに追加する。
+        QueueFactory.getQueue("generate-nicoliveindex").add(options);
+    }
+
     /*
      * (non-Javadoc) {@inheritDoc}
      */
@@ -72,8 +98,11 @@ public final class GenerateNicoliveController extends Controller {
         SyndFeed feed = nicoliveRssService.getFeed();
         List<Key> keys = nicoliveService.put(feed);
         if (0 < keys.size()) {
-            // Memcacheのキャッシュをクリアする。
-            Memcache.cleanAll();
+            // キーワードのないフィードのキャッシュだけを古い世代にする。
+            // キーワードを含むフィードは、全文検索用インデックスを作成したときに世代が進む。
+            feedCache.incrementGeneration();
+            // 条件付きGETの最終更新日時が、取り込んだ日時より前にならないようにする。
+            feedCache.setLastIngest(new Date());
             LOGGER.info("Generated " + keys.size() + " entities.");
             // 全文検索用インデックスを作成する。
             if (SUBLIST_SIZE < keys.size()) {
@@ -93,6 +122,7 @@ public final class GenerateNicoliveController extends Controller {
                 addTaskQueue(keys);
             }
         }
+        addPublishTaskQueue(keys);
 
         LOGGER.info("END: " + this.getClass().getName());
         return null;
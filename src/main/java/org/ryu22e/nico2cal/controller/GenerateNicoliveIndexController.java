@@ -1,11 +1,16 @@
 package org.ryu22e.nico2cal.controller;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.ryu22e.nico2cal.model.Nicolive;
 import org.ryu22e.nico2cal.service.NicoliveService;
+import org.ryu22e.nico2cal.util.TaggerUtil;
 import org.slim3.controller.Controller;
 import org.slim3.controller.Navigation;
 import org.slim3.controller.validator.Errors;
@@ -32,6 +37,11 @@ public final class GenerateNicoliveIndexController extends Controller {
      */
     private static final int UNAUTHORIZED = 401;
 
+    /**
+     * 
+     */
+    private static final long NANOS_PER_MILLI = 1000000L;
+
     /**
      * @see NicoliveService
      */
@@ -56,22 +66,47 @@ public final class GenerateNicoliveIndexController extends Controller {
             }
         } else {
             String[] keysString = request.getParameterValues("keys[]");
+            List<Key> nicoliveKeys = new ArrayList<Key>(keysString.length);
             for (String key : keysString) {
-                Key nicoliveKey;
                 try {
-                    nicoliveKey = Datastore.stringToKey(key);
-                    Nicolive nicolive = nicoliveService.find(nicoliveKey);
-                    if (nicolive != null) {
-                        List<Key> indexes =
-                                nicoliveService.createIndex(nicolive);
-                        LOGGER
-                            .info("Generated " + indexes.size() + " indexes.");
-                    }
+                    nicoliveKeys.add(Datastore.stringToKey(key));
                 } catch (IllegalArgumentException e) {
                     // 不正な値は無視して処理を続行する。
                     LOGGER.warning(e.getMessage());
                 }
             }
+
+            // 全てのNicoliveを1回のバッチ取得で取得する。
+            long start = System.nanoTime();
+            Map<Key, Nicolive> nicolives =
+                    nicoliveService.findAsMap(nicoliveKeys);
+            long fetched = System.nanoTime();
+            // 取り込みの直後に作成した放送日のセグメントには、登録したNicoliveが
+            // 欠けていることがあるので、登録から時間が経ったここでも作り直させる。
+            nicoliveService.incrementSegmentGenerations(nicolives.values());
+
+            // 全てのNicoliveを形態素解析してから、インデックスをまとめて登録する。
+            Map<Nicolive, Set<String>> keywords =
+                    new LinkedHashMap<Nicolive, Set<String>>();
+            for (Nicolive nicolive : nicolives.values()) {
+                keywords.put(
+                    nicolive,
+                    nicoliveService.extractKeywords(nicolive));
+            }
+            long tokenized = System.nanoTime();
+            List<Key> postingKeys = nicoliveService.putPostings(keywords);
+            long written = System.nanoTime();
+
+            if (LOGGER.isLoggable(Level.INFO)) {
+                LOGGER.info("Generated " + postingKeys.size()
+                        + " postings for " + nicolives.size() + "/"
+                        + keysString.length + " entities (fetch="
+                        + (fetched - start) / NANOS_PER_MILLI
+                        + "ms, tokenize=" + (tokenized - fetched)
+                        / NANOS_PER_MILLI + "ms, write="
+                        + (written - tokenized) / NANOS_PER_MILLI + "ms).");
+            }
+            LOGGER.info(TaggerUtil.getStatistics());
         }
 
         LOGGER.info("END: " + this.getClass().getName());
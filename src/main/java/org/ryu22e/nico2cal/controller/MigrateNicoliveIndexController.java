@@ -0,0 +1,56 @@
+package org.ryu22e.nico2cal.controller;
+
+import java.util.logging.Logger;
+
+import org.ryu22e.nico2cal.service.NicoliveService;
+import org.slim3.controller.Controller;
+import org.slim3.controller.Navigation;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.taskqueue.TaskOptions.Method;
+
+/**
+ * 旧形式の全文検索用インデックス{@link org.ryu22e.nico2cal.model.NicoliveIndex}を
+ * {@link org.ryu22e.nico2cal.model.NicolivePosting}に移行するコントローラー。
+ * <p>
+ * 1回のリクエストでは一定の件数だけ移行し、続きがあれば自分自身をTaskQueueに追加する。
+ * インデックスの作成と同時に同じエンティティを更新しないように、
+ * インデックスの作成と同じgenerate-nicoliveindexキューで実行する。
+ * </p>
+ * @author ryu22e
+ *
+ */
+public final class MigrateNicoliveIndexController extends Controller {
+
+    /**
+     * 
+     */
+    private static final Logger LOGGER = Logger
+        .getLogger(MigrateNicoliveIndexController.class.getName());
+
+    /**
+     * 
+     */
+    private NicoliveService nicoliveService = new NicoliveService();
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public Navigation run() throws Exception {
+        LOGGER.info("BEGIN: " + this.getClass().getName());
+
+        int migrated = nicoliveService.migrateIndex();
+        if (0 < migrated) {
+            // 続きは別のTaskQueueで処理する。
+            TaskOptions options =
+                    TaskOptions.Builder.withUrl("/MigrateNicoliveIndex").method(
+                        Method.POST);
+            QueueFactory.getQueue("generate-nicoliveindex").add(options);
+        }
+
+        LOGGER.info("END: " + this.getClass().getName());
+        return null;
+    }
+}
@@ -0,0 +1,57 @@
+package org.ryu22e.nico2cal.controller;
+
+import java.util.logging.Logger;
+
+import org.ryu22e.nico2cal.service.NicoliveService;
+import org.slim3.controller.Controller;
+import org.slim3.controller.Navigation;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.taskqueue.TaskOptions.Method;
+
+/**
+ * キーワードを正規化せずに登録した全文検索用インデックス
+ * {@link org.ryu22e.nico2cal.model.NicolivePosting}を、正規化したキーワードに移し替えるコントローラー。
+ * <p>
+ * 1回のリクエストでは一定の件数だけ処理し、続きがあれば自分自身をTaskQueueに追加する。
+ * インデックスの作成と同じgenerate-nicoliveindexキューで実行する。
+ * </p>
+ * @author ryu22e
+ *
+ */
+public final class NormalizeNicolivePostingController extends Controller {
+
+    /**
+     * 
+     */
+    private static final Logger LOGGER = Logger
+        .getLogger(NormalizeNicolivePostingController.class.getName());
+
+    /**
+     * 
+     */
+    private NicoliveService nicoliveService = new NicoliveService();
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public Navigation run() throws Exception {
+        LOGGER.info("BEGIN: " + this.getClass().getName());
+
+        String cursor = nicoliveService.normalizePostings(param("cursor"));
+        if (cursor != null) {
+            // 続きは別のTaskQueueで処理する。
+            TaskOptions options =
+                    TaskOptions.Builder
+                        .withUrl("/NormalizeNicolivePosting")
+                        .method(Method.POST)
+                        .param("cursor", cursor);
+            QueueFactory.getQueue("generate-nicoliveindex").add(options);
+        }
+
+        LOGGER.info("END: " + this.getClass().getName());
+        return null;
+    }
+}
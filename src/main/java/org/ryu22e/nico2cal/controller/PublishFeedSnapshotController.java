@@ -0,0 +1,58 @@
+package org.ryu22e.nico2cal.controller;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.ryu22e.nico2cal.cache.FeedSnapshot;
+import org.ryu22e.nico2cal.service.FeedSnapshotService;
+import org.slim3.controller.Controller;
+import org.slim3.controller.Navigation;
+import org.slim3.datastore.Datastore;
+
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * ニコニコ生放送RSSを取り込んだ後に、{@link FeedSnapshot}を作成して公開するコントローラー。
+ * @author ryu22e
+ *
+ */
+public final class PublishFeedSnapshotController extends Controller {
+
+    /**
+     * 
+     */
+    private static final Logger LOGGER = Logger
+        .getLogger(PublishFeedSnapshotController.class.getName());
+
+    /**
+     * @see FeedSnapshotService
+     */
+    private FeedSnapshotService feedSnapshotService = new FeedSnapshotService();
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public Navigation run() throws Exception {
+        LOGGER.info("BEGIN: " + this.getClass().getName());
+
+        // 今回取り込んだNicoliveがなければ、keys[]は指定されない。
+        String[] keysString = request.getParameterValues("keys[]");
+        List<Key> keys = new ArrayList<Key>();
+        if (keysString != null) {
+            for (String key : keysString) {
+                try {
+                    keys.add(Datastore.stringToKey(key));
+                } catch (IllegalArgumentException e) {
+                    // 不正な値は無視して処理を続行する。
+                    LOGGER.warning(e.getMessage());
+                }
+            }
+        }
+        feedSnapshotService.publish(keys);
+
+        LOGGER.info("END: " + this.getClass().getName());
+        return null;
+    }
+}
@@ -44,6 +44,13 @@ public final class Nicolive implements Serializable {
      */
     private Text description;
 
+    /**
+     * HTMLタグを除去した説明文。
+     * @see org.ryu22e.nico2cal.util.DescriptionUtil
+     */
+    @Attribute(unindexed = true)
+    private String plainDescription;
+
     /**
      * 
      */
@@ -64,6 +71,19 @@ public final class Nicolive implements Serializable {
      */
     private Link link;
 
+    /**
+     * 取り込み時に書き出したVEVENT。
+     * @see org.ryu22e.nico2cal.util.EventFragmentUtil
+     */
+    private Text eventFragment;
+
+    /**
+     * VEVENTを書き出したときの形式のバージョン。
+     * @see org.ryu22e.nico2cal.util.EventFragmentUtil#FORMAT_VERSION
+     */
+    @Attribute(unindexed = true)
+    private Integer eventFragmentVersion;
+
     /**
      * Returns the key.
      *
@@ -130,6 +150,20 @@ public final class Nicolive implements Serializable {
         this.description = description;
     }
 
+    /**
+     * @return the plainDescription
+     */
+    public String getPlainDescription() {
+        return plainDescription;
+    }
+
+    /**
+     * @param plainDescription the plainDescription to set
+     */
+    public void setPlainDescription(String plainDescription) {
+        this.plainDescription = plainDescription;
+    }
+
     /**
      * @return the openTime
      */
@@ -186,6 +220,34 @@ public final class Nicolive implements Serializable {
         this.link = link;
     }
 
+    /**
+     * @return the eventFragment
+     */
+    public Text getEventFragment() {
+        return eventFragment;
+    }
+
+    /**
+     * @param eventFragment the eventFragment to set
+     */
+    public void setEventFragment(Text eventFragment) {
+        this.eventFragment = eventFragment;
+    }
+
+    /**
+     * @return the eventFragmentVersion
+     */
+    public Integer getEventFragmentVersion() {
+        return eventFragmentVersion;
+    }
+
+    /**
+     * @param eventFragmentVersion the eventFragmentVersion to set
+     */
+    public void setEventFragmentVersion(Integer eventFragmentVersion) {
+        this.eventFragmentVersion = eventFragmentVersion;
+    }
+
     /*
      * (non-Javadoc) {@inheritDoc}
      */
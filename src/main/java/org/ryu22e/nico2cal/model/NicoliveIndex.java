@@ -9,10 +9,10 @@ import org.slim3.datastore.Model;
 import com.google.appengine.api.datastore.Key;
 
 /**
- * @author ryu22e
- *
- */
-/**
+ * 旧形式の全文検索用インデックス。1キーワード、1{@link Nicolive}ごとに1エンティティ。
+ * <p>
+ * 現在は{@link NicolivePosting}を使う。登録済みのデータを移行するためだけに残している。
+ * </p>
  * @author ryu22e
  *
  */
@@ -0,0 +1,173 @@
+package org.ryu22e.nico2cal.model;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.List;
+
+import org.slim3.datastore.Attribute;
+import org.slim3.datastore.Model;
+
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * 全文検索用インデックスのポスティングリスト。
+ * <p>
+ * キーワードと放送日（開場日時の日付）ごとに1エンティティで、
+ * そのキーワードを含む{@link Nicolive}のキーを昇順に並べて持つ。
+ * 追加はトランザクションを使わずにバッチで書き込むので、generate-nicoliveindexキューで直列に行う。
+ * </p>
+ * @author ryu22e
+ *
+ */
+@Model(schemaVersion = 1)
+public final class NicolivePosting implements Serializable {
+
+    /**
+     * 
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 
+     */
+    @Attribute(primaryKey = true)
+    private Key key;
+
+    /**
+     * 
+     */
+    @Attribute(version = true)
+    private Long version;
+
+    /**
+     * 
+     */
+    private String keyword;
+
+    /**
+     * 放送日（日本時間の0時）。
+     */
+    private Date day;
+
+    /**
+     * {@link Nicolive}のキー（昇順）。
+     */
+    @Attribute(unindexed = true)
+    private List<Key> nicoliveKeys;
+
+    /**
+     * Returns the key.
+     * 
+     * @return the key
+     */
+    public Key getKey() {
+        return key;
+    }
+
+    /**
+     * Sets the key.
+     * 
+     * @param key
+     *            the key
+     */
+    public void setKey(Key key) {
+        this.key = key;
+    }
+
+    /**
+     * Returns the version.
+     * 
+     * @return the version
+     */
+    public Long getVersion() {
+        return version;
+    }
+
+    /**
+     * Sets the version.
+     * 
+     * @param version
+     *            the version
+     */
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
+    /**
+     * @return the keyword
+     */
+    public String getKeyword() {
+        return keyword;
+    }
+
+    /**
+     * @param keyword the keyword to set
+     */
+    public void setKeyword(String keyword) {
+        this.keyword = keyword;
+    }
+
+    /**
+     * @return the day
+     */
+    public Date getDay() {
+        return day;
+    }
+
+    /**
+     * @param day the day to set
+     */
+    public void setDay(Date day) {
+        this.day = day;
+    }
+
+    /**
+     * @return the nicoliveKeys
+     */
+    public List<Key> getNicoliveKeys() {
+        return nicoliveKeys;
+    }
+
+    /**
+     * @param nicoliveKeys the nicoliveKeys to set
+     */
+    public void setNicoliveKeys(List<Key> nicoliveKeys) {
+        this.nicoliveKeys = nicoliveKeys;
+    }
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + ((key == null) ? 0 : key.hashCode());
+        return result;
+    }
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        NicolivePosting other = (NicolivePosting) obj;
+        if (key == null) {
+            if (other.key != null) {
+                return false;
+            }
+        } else if (!key.equals(other.key)) {
+            return false;
+        }
+        return true;
+    }
+}
@@ -3,16 +3,24 @@ package org.ryu22e.nico2cal.service;
 import java.io.File;
 import java.io.IOException;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.fortuna.ical4j.model.Calendar;
@@ -28,16 +36,18 @@ import net.fortuna.ical4j.model.property.Url;
 import net.fortuna.ical4j.model.property.Version;
 import net.fortuna.ical4j.model.property.XProperty;
 
+import org.ryu22e.nico2cal.cache.FeedSegmentCache;
+import org.ryu22e.nico2cal.cache.FeedSnapshot;
 import org.ryu22e.nico2cal.meta.MyCalendarLogMeta;
 import org.ryu22e.nico2cal.meta.MyCalendarMeta;
-import org.ryu22e.nico2cal.meta.NicoliveIndexMeta;
 import org.ryu22e.nico2cal.meta.NicoliveMeta;
 import org.ryu22e.nico2cal.model.MyCalendar;
 import org.ryu22e.nico2cal.model.MyCalendarLog;
 import org.ryu22e.nico2cal.model.Nicolive;
-import org.ryu22e.nico2cal.model.NicoliveIndex;
+import org.ryu22e.nico2cal.util.DescriptionUtil;
+import org.ryu22e.nico2cal.util.EventFragmentUtil;
 import org.ryu22e.nico2cal.util.GoogleApiKeyUtil;
-import org.ryu22e.nico2cal.util.HtmlRemoveUtil;
+import org.ryu22e.nico2cal.util.ICalendarWriter;
 import org.slim3.datastore.Datastore;
 import org.slim3.datastore.ModelQuery;
 import org.slim3.util.AppEngineUtil;
@@ -45,7 +55,6 @@ import org.slim3.util.BeanUtil;
 import org.slim3.util.CopyOptions;
 import org.slim3.util.DateUtil;
 import org.slim3.util.TimeZoneLocator;
-import org.xml.sax.SAXException;
 
 import com.google.api.client.auth.oauth2.AuthorizationCodeFlow;
 import com.google.api.client.auth.oauth2.Credential;
@@ -59,6 +68,7 @@ import com.google.api.services.calendar.CalendarScopes;
 import com.google.api.services.calendar.model.CalendarList;
 import com.google.api.services.calendar.model.Event;
 import com.google.api.services.calendar.model.EventDateTime;
+import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.Query.SortDirection;
 import com.google.appengine.api.mail.MailService.Message;
@@ -105,49 +115,102 @@ public class CalendarService {
     private static final String CALNAME = "ニコニコ生放送";
 
     /**
-     * リスト1とリスト2の同じ要素をマージする。
-     * @param <T> 型名
-     * @param list1 リスト1
-     * @param list2 リスト2
-     * @return マージされたリスト
+     * セグメントを並べて書き出す期間の最大日数。
+     * <p>
+     * フィードの期間は最長4週間なので、それより少し長くしている。
+     * </p>
      */
-    private <T> List<T> merge(List<T> list1, List<T> list2) {
-        List<T> merged = new LinkedList<T>();
-        if (list1.size() <= 0) {
-            merged.addAll(list2);
-        } else if (list2.size() <= 0) {
-            merged.addAll(list1);
-        } else {
-            for (T t : list1) {
-                if (list2.contains(t)) {
-                    merged.add(t);
-                }
-            }
-        }
-        return merged;
-    }
+    private static final int MAX_SEGMENT_DAYS = 31;
 
     /**
-     * キーワードに該当する{@link Nicolive}のキーを取得する。
-     * @param keywords キーワード
-     * @return キーワードに該当する{@link Nicolive}のキー
+     * {@link Nicolive}の検索で最初のバッチの件数を指定するシステムプロパティ名。
      */
-    private List<Key> getKeywordKeys(List<String> keywords) {
-        NicoliveIndexMeta ni = NicoliveIndexMeta.get();
-        List<Key> keywordKeys = new LinkedList<Key>();
-        for (String keyword : keywords) {
-            List<NicoliveIndex> indexes =
-                    Datastore
-                        .query(ni)
-                        .filter(ni.keyword.equal(keyword))
-                        .asList();
-            List<Key> keys = new LinkedList<Key>();
-            for (NicoliveIndex nicoliveIndex : indexes) {
-                keys.add(nicoliveIndex.getNicoliveKey());
-            }
-            keywordKeys = merge(keys, keywordKeys);
+    static final String PREFETCH_SIZE_PROPERTY =
+            "nico2ical.calendar.prefetchSize";
+
+    /**
+     * {@link Nicolive}の検索で2回目以降のバッチの件数を指定するシステムプロパティ名。
+     */
+    static final String CHUNK_SIZE_PROPERTY = "nico2ical.calendar.chunkSize";
+
+    /**
+     * 
+     */
+    static final int DEFAULT_PREFETCH_SIZE = 50;
+
+    /**
+     * 
+     */
+    static final int DEFAULT_CHUNK_SIZE = 100;
+
+    /**
+     * キーワード検索で該当した{@link Nicolive}をキーで直接取得する件数の上限を指定するシステムプロパティ名。
+     */
+    static final String KEY_FIRST_THRESHOLD_PROPERTY =
+            "nico2ical.calendar.keyFirstThreshold";
+
+    /**
+     * 
+     */
+    static final int DEFAULT_KEY_FIRST_THRESHOLD = 200;
+
+    /**
+     * 
+     */
+    private KeywordSearchService keywordSearchService =
+            new KeywordSearchService();
+
+    /**
+     * 
+     */
+    private FeedSegmentCache feedSegmentCache = new FeedSegmentCache();
+
+    /**
+     * 
+     */
+    private FeedSnapshotService feedSnapshotService = new FeedSnapshotService();
+
+    /**
+     * {@link Nicolive}の検索で最初のバッチの件数。
+     * <p>
+     * 検索結果はバッチごとに読みながら書き出すので、メモリに載る{@link Nicolive}の数は
+     * 期間の長さではなくバッチの件数で決まる。
+     * </p>
+     */
+    private int prefetchSize = getSizeProperty(
+        PREFETCH_SIZE_PROPERTY,
+        DEFAULT_PREFETCH_SIZE);
+
+    /**
+     * {@link Nicolive}の検索で2回目以降のバッチの件数。
+     */
+    private int chunkSize = getSizeProperty(
+        CHUNK_SIZE_PROPERTY,
+        DEFAULT_CHUNK_SIZE);
+
+    /**
+     * キーワード検索で該当した{@link Nicolive}をキーで直接取得する件数の上限。
+     * <p>
+     * 該当件数が少ない場合は、期間内の全ての{@link Nicolive}を読むより、
+     * 該当したものだけをキーで取得する方が読み出す件数が少ない。
+     * </p>
+     */
+    private int keyFirstThreshold = getSizeProperty(
+        KEY_FIRST_THRESHOLD_PROPERTY,
+        DEFAULT_KEY_FIRST_THRESHOLD);
+
+    /**
+     * バッチの件数をシステムプロパティから取得する。
+     * @param name システムプロパティ名
+     * @param defaultValue システムプロパティがない場合や不正な場合の値
+     * @return バッチの件数
+     */
+    static int getSizeProperty(String name, int defaultValue) {
+        Integer value = Integer.getInteger(name);
+        if (value == null || value.intValue() < 1) {
+            return defaultValue;
         }
-        return keywordKeys;
+        return value.intValue();
     }
 
     /**
@@ -229,36 +292,36 @@ public class CalendarService {
                         n.openTime.greaterThanOrEqual(condition.getStartDate()))
                     .sort(n.openTime.getName(), SortDirection.ASCENDING);
 
+        Set<Key> keywordKeys = null;
         if (condition.getKeywords() != null
                 && 0 < condition.getKeywords().size()) {
-            List<Key> keywordKeys = getKeywordKeys(condition.getKeywords());
-            if (0 < keywordKeys.size()) {
-                query = query.filterInMemory(n.key.in(keywordKeys));
-            } else {
+            keywordKeys =
+                    new HashSet<Key>(keywordSearchService
+                        .findNicoliveKeys(
+                            condition.getKeywords(),
+                            condition.getStartDate()));
+            if (keywordKeys.size() <= 0) {
                 // キーワード検索で該当するエンティティがなければ、この後のクエリを発行する必要がないので、ここで検索を終了とする。
                 return calendar;
             }
         }
 
         TimeZone timezone = TimeZoneLocator.get();
-        List<Nicolive> nicolives = query.asList();
+        // 全件をリストにせず、バッチごとに読みながらVEVENTにする。
+        Iterable<Nicolive> nicolives =
+                findEvents(query, keywordKeys, condition.getStartDate());
         for (Nicolive nicolive : nicolives) {
+            // asIterable()ではfilterInMemory()が使えないので、ここで絞り込む。
+            if (keywordKeys != null
+                    && !keywordKeys.contains(nicolive.getKey())) {
+                continue;
+            }
             PropertyList properties = new PropertyList();
             properties.add(new Summary(nicolive.getTitle()));
-            String description;
-            try {
-                description =
-                        HtmlRemoveUtil.removeHtml(nicolive
-                            .getDescription()
-                            .getValue());
-            } catch (SAXException e1) {
-                description = "";
-            } catch (IOException e1) {
-                description = "";
-            }
             java.util.Calendar c = DateUtil.toCalendar(nicolive.getOpenTime());
             c.setTimeZone(timezone);
-            properties.add(new Description(description));
+            properties.add(new Description(DescriptionUtil
+                .getPlainDescription(nicolive)));
             properties.add(new DtStart(new DateTime(c.getTime()), true));
             properties.add(new DtEnd(new DateTime(c.getTime()), true));
             try {
@@ -275,6 +338,273 @@ public class CalendarService {
         return calendar;
     }
 
+    /**
+     * 開場日時が期間内の{@link Nicolive}を開場日時の昇順に検索するクエリを作成する。
+     * @param from 期間の開始日時（この日時を含む）
+     * @param to 期間の終了日時（この日時を含まない）。nullの場合は終わりを決めない。
+     * @return クエリ
+     */
+    private ModelQuery<Nicolive> createEventQuery(Date from, Date to) {
+        NicoliveMeta n = NicoliveMeta.get();
+        ModelQuery<Nicolive> query =
+                Datastore.query(n).filter(n.openTime.greaterThanOrEqual(from));
+        if (to != null) {
+            query = query.filter(n.openTime.lessThan(to));
+        }
+        return query.sort(n.openTime.getName(), SortDirection.ASCENDING);
+    }
+
+    /**
+     * 開場日時が期間内の{@link Nicolive}を開場日時の昇順に検索する。
+     * @param from 期間の開始日時（この日時を含む）
+     * @param to 期間の終了日時（この日時を含まない）。nullの場合は終わりを決めない。
+     * @return 検索結果
+     */
+    private Iterable<Nicolive> queryEvents(Date from, Date to) {
+        return createEventQuery(from, to)
+            .prefetchSize(prefetchSize)
+            .chunkSize(chunkSize)
+            .asIterable();
+    }
+
+    /**
+     * キーで一括取得した{@link Nicolive}のうち、開場日時が開始日時以降のものを取得する。
+     * @param keys {@link Nicolive}のキー
+     * @param startDate 開始日時
+     * @return 開場日時の昇順（同じ日時はキーの昇順）に並べた{@link Nicolive}
+     */
+    private List<Nicolive> getEventsByKeys(Collection<Key> keys,
+            Date startDate) {
+        NicoliveMeta n = NicoliveMeta.get();
+        List<Nicolive> nicolives = new ArrayList<Nicolive>(keys.size());
+        // 削除済みのNicoliveのキーが含まれていてもよいように、Entityのまま取得する。
+        for (Entity entity : Datastore.getAsMap(keys).values()) {
+            Nicolive nicolive = n.entityToModel(entity);
+            if (nicolive.getOpenTime() != null
+                    && !nicolive.getOpenTime().before(startDate)) {
+                nicolives.add(nicolive);
+            }
+        }
+        Collections.sort(nicolives, new Comparator<Nicolive>() {
+            @Override
+            public int compare(Nicolive o1, Nicolive o2) {
+                int result = o1.getOpenTime().compareTo(o2.getOpenTime());
+                return result != 0 ? result : o1.getKey().compareTo(
+                    o2.getKey());
+            }
+        });
+        return nicolives;
+    }
+
+    /**
+     * 開始日時以降の{@link Nicolive}を取得する。
+     * <p>
+     * キーワード検索で該当した件数がしきい値以下なら、
+     * 該当した{@link Nicolive}だけをキーで一括取得し、メモリ上で絞り込んで開場日時の昇順に並べる。
+     * そうでなければ、期間内の{@link Nicolive}を全て検索する（キーワードでの絞り込みは呼び出し側で行う）。
+     * どちらを選んだかはしきい値の調整のためにログに出力する。
+     * </p>
+     * @param rangeQuery 期間内の{@link Nicolive}を検索するクエリ
+     * @param keywordKeys キーワード検索で該当した{@link Nicolive}のキー。キーワードがない場合はnull。
+     * @param startDate 開始日時
+     * @return {@link Nicolive}
+     */
+    private Iterable<Nicolive> findEvents(ModelQuery<Nicolive> rangeQuery,
+            Set<Key> keywordKeys, Date startDate) {
+        if (keywordKeys != null && keywordKeys.size() <= keyFirstThreshold) {
+            List<Nicolive> nicolives = getEventsByKeys(keywordKeys, startDate);
+            if (LOGGER.isLoggable(Level.INFO)) {
+                LOGGER.info("Keyword path: key-first (keys="
+                    + keywordKeys.size() + ", threshold=" + keyFirstThreshold
+                    + ", events=" + nicolives.size() + ")");
+            }
+            return nicolives;
+        }
+        if (keywordKeys != null && LOGGER.isLoggable(Level.INFO)) {
+            LOGGER.info("Keyword path: range scan (keys=" + keywordKeys.size()
+                + ", threshold=" + keyFirstThreshold + ")");
+        }
+        return rangeQuery
+            .prefetchSize(prefetchSize)
+            .chunkSize(chunkSize)
+            .asIterable();
+    }
+
+    /**
+     * 放送日1日分のセグメントを作成する。
+     * @param day 放送日
+     * @return 放送日の全てのVEVENTを開場日時の昇順に並べたもの
+     */
+    private String buildSegment(Date day) {
+        StringBuilder sb = new StringBuilder();
+        for (Nicolive nicolive : queryEvents(
+            day,
+            NicoliveService.addDays(day, 1))) {
+            sb.append(EventFragmentUtil.getFragment(nicolive));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 開始日時以降の全ての{@link Nicolive}のVEVENTを、放送日ごとのセグメントを並べて書き出す。
+     * <p>
+     * 開始日時の放送日の残りと、明日以降の予定はその都度検索する。
+     * その間の丸1日分の放送日は{@link FeedSegmentCache}のセグメントを使い、
+     * キャッシュがない放送日だけを検索して作成する。
+     * startWeekが違うフィードでも、同じ放送日のセグメントを共有できる。
+     * </p>
+     * @param ics 書き出し先
+     * @param startDate 開始日時
+     * @throws IOException 書き出しに失敗した場合。
+     */
+    private void writeSegments(ICalendarWriter ics, Date startDate)
+            throws IOException {
+        Date firstDay = NicoliveService.addDays(startDate, 1);
+        Date tomorrow = NicoliveService.addDays(new Date(), 1);
+        if (!firstDay.before(tomorrow)
+                || firstDay.before(NicoliveService.addDays(
+                    tomorrow,
+                    -MAX_SEGMENT_DAYS))) {
+            // 丸1日分の放送日がないか、期間が長すぎる場合は、全て検索する。
+            for (Nicolive nicolive : queryEvents(startDate, null)) {
+                ics.writeFragment(EventFragmentUtil.getFragment(nicolive));
+            }
+            return;
+        }
+
+        // 開始日時の放送日の残り。
+        for (Nicolive nicolive : queryEvents(startDate, firstDay)) {
+            ics.writeFragment(EventFragmentUtil.getFragment(nicolive));
+        }
+
+        // 丸1日分の放送日（今日まで）。
+        Map<String, Date> days = new LinkedHashMap<String, Date>();
+        for (Date day = firstDay; day.before(tomorrow); day =
+                NicoliveService.addDays(day, 1)) {
+            days.put(NicoliveService.formatDay(day), day);
+        }
+        Map<String, Long> generations =
+                feedSegmentCache.getGenerations(days.keySet());
+        Map<String, String> segments =
+                feedSegmentCache.getSegments(generations);
+        Map<String, String> built = new HashMap<String, String>();
+        for (Map.Entry<String, Date> day : days.entrySet()) {
+            String segment = segments.get(day.getKey());
+            if (segment == null) {
+                segment = buildSegment(day.getValue());
+                built.put(day.getKey(), segment);
+            }
+            ics.writeFragment(segment);
+        }
+        feedSegmentCache.putSegments(generations, built);
+        if (LOGGER.isLoggable(Level.INFO)) {
+            LOGGER.info("Composed " + days.size() + " day segments ("
+                + built.size() + " built).");
+        }
+
+        // 明日以降の予定。
+        for (Nicolive nicolive : queryEvents(tomorrow, null)) {
+            ics.writeFragment(EventFragmentUtil.getFragment(nicolive));
+        }
+    }
+
+    /**
+     * {@link FeedSnapshot}から開始日時以降のVEVENTを書き出す。
+     * @param ics 書き出し先
+     * @param snapshot 現在の世代のスナップショット
+     * @param condition 検索条件
+     * @throws IOException 書き出しに失敗した場合。
+     */
+    private void writeSnapshot(ICalendarWriter ics, FeedSnapshot snapshot,
+            CalendarCondition condition) throws IOException {
+        List<String> keywords = null;
+        if (condition.getKeywords() != null
+                && 0 < condition.getKeywords().size()) {
+            keywords = KeywordSearchService.normalize(condition.getKeywords());
+            if (keywords.size() <= 0) {
+                // 有効なキーワードがなければ、キーワード検索と同じく空のカレンダーになる。
+                return;
+            }
+        }
+        List<String> events =
+                snapshot.findEvents(condition.getStartDate(), keywords);
+        for (String event : events) {
+            ics.writeFragment(event);
+        }
+        if (LOGGER.isLoggable(Level.INFO)) {
+            LOGGER.info("Wrote " + events.size()
+                + " events from feed snapshot " + snapshot.getGeneration()
+                + ".");
+        }
+    }
+
+    /**
+     * Datastoreに登録されたRSSフィードをiCalendar形式でWriterに直接書き出す。
+     * <p>
+     * {@link #getCalendar(CalendarCondition)}と同じ内容を、ical4jのCalendarを組み立てずに書き出す。
+     * 現在の世代の{@link FeedSnapshot}が開始日時を収録していれば、データストアを読まずに
+     * メモリ上のスナップショットだけで書き出す。
+     * そうでなければ、{@link Nicolive}はクエリの結果を読みながら1件ずつ書き出すので、全件をメモリに載せない。
+     * キーワードのないフィードは、放送日ごとにキャッシュしたセグメントを並べて書き出す。
+     * </p>
+     * @param condition 検索条件
+     * @param writer 書き出し先
+     * @throws IOException 書き出しに失敗した場合。
+     * @throws NullPointerException パラメータがnullの場合。
+     * @throws IllegalArgumentException 検索条件にStartDateが指定されていない場合。
+     */
+    public void writeCalendar(CalendarCondition condition, Writer writer)
+            throws IOException {
+        if (condition == null) {
+            throw new NullPointerException("condition is null.");
+        }
+        if (writer == null) {
+            throw new NullPointerException("writer is null.");
+        }
+        if (condition.getStartDate() == null) {
+            throw new IllegalArgumentException("StartDate is null.");
+        }
+
+        ICalendarWriter ics = new ICalendarWriter(writer);
+        ics.writeHeader(PROD_ID.getValue(), CALNAME);
+
+        FeedSnapshot snapshot = feedSnapshotService.getSnapshot();
+        if (snapshot != null && snapshot.covers(condition.getStartDate())) {
+            writeSnapshot(ics, snapshot, condition);
+            ics.writeFooter();
+            ics.flush();
+            return;
+        }
+
+        Set<Key> keywordKeys = null;
+        if (condition.getKeywords() != null
+                && 0 < condition.getKeywords().size()) {
+            keywordKeys =
+                    new HashSet<Key>(keywordSearchService
+                        .findNicoliveKeys(
+                            condition.getKeywords(),
+                            condition.getStartDate()));
+        }
+        if (keywordKeys == null) {
+            writeSegments(ics, condition.getStartDate());
+        } else if (0 < keywordKeys.size()) {
+            for (Nicolive nicolive : findEvents(
+                createEventQuery(condition.getStartDate(), null),
+                keywordKeys,
+                condition.getStartDate())) {
+                if (!keywordKeys.contains(nicolive.getKey())) {
+                    continue;
+                }
+                // 取り込み時に書き出したVEVENTを並べるだけにする。
+                ics.writeFragment(EventFragmentUtil.getFragment(nicolive));
+            }
+        }
+        // キーワード検索で該当するエンティティがなければ、イベントのない空のカレンダーになる。
+
+        ics.writeFooter();
+        ics.flush();
+    }
+
     /**
      * GoogleCalendarAPI用Flowを取得する。
      * @return GoogleCalendarAPI用Flow
@@ -428,15 +758,17 @@ public class CalendarService {
             ModelQuery<Nicolive> query =
                     Datastore.query(n).filter(
                         n.openTime.greaterThanOrEqual(d.toDate()));
+            Set<Key> keywordKeys = null;
             if (myCalendar.getKeyword() != null
                     && 0 < myCalendar.getKeyword().length()) {
-                List<Key> keywordKeys =
-                        getKeywordKeys(Arrays.asList(myCalendar
-                            .getKeyword()
-                            .split(" ")));
-                if (0 < keywordKeys.size()) {
-                    query = query.filterInMemory(n.key.in(keywordKeys));
-                } else {
+                keywordKeys =
+                        new HashSet<Key>(keywordSearchService
+                            .findNicoliveKeys(
+                                Arrays.asList(myCalendar
+                                    .getKeyword()
+                                    .split(" ")),
+                                d.toDate()));
+                if (keywordKeys.size() <= 0) {
                     // キーワード検索で該当するエンティティがなければ、この後のクエリを発行する必要がないので、ここで検索を終了とする。
                     return;
                 }
@@ -457,8 +789,14 @@ public class CalendarService {
             }
             List<Key> importedNicoliveKeys = new LinkedList<Key>();
             List<Key> allNicoliveKeys = new LinkedList<Key>();
-            List<Nicolive> nicolives = query.asList();
+            Iterable<Nicolive> nicolives =
+                    findEvents(query, keywordKeys, d.toDate());
             for (Nicolive nicolive : nicolives) {
+                // asIterable()ではfilterInMemory()が使えないので、ここで絞り込む。
+                if (keywordKeys != null
+                        && !keywordKeys.contains(nicolive.getKey())) {
+                    continue;
+                }
                 allNicoliveKeys.add(nicolive.getKey());
                 if (!myCalendarLog
                     .getNicoliveKeys()
@@ -467,17 +805,8 @@ public class CalendarService {
                     // カレンダーのSummaryに生放送のタイトルを設定する。
                     event.setSummary(nicolive.getTitle());
                     // カレンダーのDescriptionに生放送のURLと説明文を設定する。
-                    try {
-                        event.setDescription(nicolive.getLink().getValue()
-                                + " "
-                                + HtmlRemoveUtil.removeHtml(nicolive
-                                    .getDescription()
-                                    .getValue()));
-                    } catch (SAXException e) {
-                        LOGGER.warning(e.getMessage());
-                    } catch (IOException e) {
-                        LOGGER.warning(e.getMessage());
-                    }
+                    event.setDescription(nicolive.getLink().getValue() + " "
+                            + DescriptionUtil.getPlainDescription(nicolive));
                     java.util.Calendar c =
                             DateUtil.toCalendar(nicolive.getOpenTime());
                     // 生放送会場日時をcom.google.api.client.util.DateTimeに変換する。
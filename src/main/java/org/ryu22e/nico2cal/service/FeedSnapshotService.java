@@ -0,0 +1,214 @@
+package org.ryu22e.nico2cal.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.ryu22e.nico2cal.cache.FeedCache;
+import org.ryu22e.nico2cal.cache.FeedSnapshot;
+import org.ryu22e.nico2cal.cache.FeedSnapshotMeta;
+import org.ryu22e.nico2cal.cache.FeedSnapshotStore;
+import org.ryu22e.nico2cal.meta.NicoliveMeta;
+import org.ryu22e.nico2cal.model.Nicolive;
+import org.ryu22e.nico2cal.util.EventFragmentUtil;
+import org.slim3.datastore.Datastore;
+
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * 直近の{@link Nicolive}の{@link FeedSnapshot}を作成して公開するサービスクラス。
+ * <p>
+ * スナップショットにはキーワードのないフィードの世代を記録しておき、
+ * 現在の世代と一致するときだけフィードの作成に使う。ニコニコ生放送RSSを取り込んで
+ * 世代が進んでから次のスナップショットを公開するまでの間は、データストアを検索する。
+ * </p>
+ * @author ryu22e
+ *
+ */
+public final class FeedSnapshotService {
+
+    /**
+     * 
+     */
+    private static final Logger LOGGER = Logger
+        .getLogger(FeedSnapshotService.class.getName());
+
+    /**
+     * スナップショットに収録する日数。
+     * <p>
+     * フィードの期間は最長4週間なので、スナップショットを作り直せない日が続いても
+     * 使えるように1週間分を足して5週間にする。
+     * </p>
+     */
+    static final int WINDOW_DAYS = 5 * 7;
+
+    /**
+     * 前のスナップショットに行を追加し続けず、全ての行を作り直す間隔（ミリ秒）。
+     * <p>
+     * 行の追加だけでは、取り込み後に更新・削除された{@link Nicolive}や、
+     * 作り直したときの検索結果に漏れた{@link Nicolive}が反映されないため。
+     * </p>
+     */
+    static final long REBUILD_INTERVAL = 6L * 60 * 60 * 1000;
+
+    /**
+     * @see FeedCache
+     */
+    private FeedCache feedCache = new FeedCache();
+
+    /**
+     * @see FeedSnapshotStore
+     */
+    private FeedSnapshotStore feedSnapshotStore = new FeedSnapshotStore();
+
+    /**
+     * @see NicoliveService
+     */
+    private NicoliveService nicoliveService = new NicoliveService();
+
+    /**
+     * 世代が1つ後かどうかを判定する。
+     * @param previous 前の世代
+     * @param next 次の世代
+     * @return 次の世代が前の世代の1つ後の場合はtrue
+     */
+    static boolean isNextGeneration(String previous, String next) {
+        try {
+            return Long.parseLong(previous) + 1 == Long.parseLong(next);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 現在の世代のスナップショットを取得する。
+     * @return スナップショット。現在の世代のスナップショットが公開されていない場合はnull。
+     */
+    public FeedSnapshot getSnapshot() {
+        String generation = feedCache.getGeneration(null);
+        if (generation == null) {
+            return null;
+        }
+        FeedSnapshotMeta meta = feedSnapshotStore.getMeta();
+        if (meta == null || !generation.equals(meta.getGeneration())) {
+            return null;
+        }
+        FeedSnapshot snapshot = feedSnapshotStore.get(meta);
+        // 読み直している間は前の世代が返るので、データストアを検索させる。
+        if (snapshot == null || !generation.equals(snapshot.getGeneration())) {
+            return null;
+        }
+        return snapshot;
+    }
+
+    /**
+     * {@link Nicolive}からスナップショットの行を作成する。
+     * @param nicolives {@link Nicolive}
+     * @return 行。開場日時のない{@link Nicolive}は含まれない。
+     * @throws IOException Igoの辞書ファイル読み込みに失敗した場合。
+     */
+    private List<FeedSnapshot.Row> createRows(Iterable<Nicolive> nicolives)
+            throws IOException {
+        List<FeedSnapshot.Row> rows = new ArrayList<FeedSnapshot.Row>();
+        for (Nicolive nicolive : nicolives) {
+            if (nicolive.getOpenTime() == null) {
+                continue;
+            }
+            // 全文検索用インデックスと同じキーワードを使う。
+            rows.add(new FeedSnapshot.Row(
+                nicolive.getKey(),
+                nicolive.getOpenTime(),
+                EventFragmentUtil.getFragment(nicolive),
+                nicoliveService.extractKeywords(nicolive)));
+        }
+        return rows;
+    }
+
+    /**
+     * 現在の世代のスナップショットを作成して公開する。
+     * <p>
+     * 1つ前の世代のスナップショットが公開されていて、全ての行を作り直してから
+     * {@link #REBUILD_INTERVAL}が経っていなければ、それに今回取り込んだ{@link Nicolive}を
+     * 追加して作り直す。そうでなければ、期間内の{@link Nicolive}を全て検索して作成する。
+     * 検索結果には直前に登録した{@link Nicolive}が含まれないことがあるので、
+     * 今回取り込んだ{@link Nicolive}はキーで取得して加える。
+     * 現在の世代のスナップショットが公開済みの場合は何もしない。
+     * </p>
+     * @param keys 今回取り込んだ{@link Nicolive}のキー
+     * @return 公開したスナップショット。世代が分からない場合はnull。
+     * @throws IOException Igoの辞書ファイル読み込みに失敗した場合。
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public FeedSnapshot publish(Collection<Key> keys) throws IOException {
+        return publish(keys, new Date());
+    }
+
+    /**
+     * 現在の世代のスナップショットを作成して公開する。
+     * @param keys 今回取り込んだ{@link Nicolive}のキー
+     * @param now 現在日時
+     * @return 公開したスナップショット。世代が分からない場合はnull。
+     * @throws IOException Igoの辞書ファイル読み込みに失敗した場合。
+     * @throws NullPointerException パラメータがnullの場合。
+     * @see #publish(Collection)
+     */
+    FeedSnapshot publish(Collection<Key> keys, Date now) throws IOException {
+        if (keys == null) {
+            throw new NullPointerException("keys is null.");
+        }
+        if (now == null) {
+            throw new NullPointerException("now is null.");
+        }
+        String generation = feedCache.getGeneration(null);
+        if (generation == null) {
+            LOGGER.warning("Feed generation is not available.");
+            return null;
+        }
+        FeedSnapshot base = feedSnapshotStore.get();
+        if (base != null && generation.equals(base.getGeneration())) {
+            LOGGER.info("Feed snapshot " + generation + " is up to date.");
+            return base;
+        }
+
+        Date from = NicoliveService.addDays(now, -WINDOW_DAYS);
+        List<FeedSnapshot.Row> rows;
+        Date rebuiltAt;
+        if (base != null
+            && isNextGeneration(base.getGeneration(), generation)
+            && now.getTime() - base.getRebuiltAt().getTime()
+                < REBUILD_INTERVAL) {
+            rows = base.getRows();
+            rows.addAll(createRows(nicoliveService.findAsMap(
+                new ArrayList<Key>(keys)).values()));
+            rebuiltAt = base.getRebuiltAt();
+            if (LOGGER.isLoggable(Level.INFO)) {
+                LOGGER.info("Merging " + keys.size()
+                    + " entities into feed snapshot " + base.getGeneration()
+                    + ".");
+            }
+        } else {
+            NicoliveMeta n = NicoliveMeta.get();
+            rows =
+                    createRows(Datastore
+                        .query(n)
+                        .filter(n.openTime.greaterThanOrEqual(from))
+                        .asIterable());
+            // 同じキーの行は後の行が使われる。
+            rows.addAll(createRows(nicoliveService.findAsMap(
+                new ArrayList<Key>(keys)).values()));
+            rebuiltAt = now;
+            if (LOGGER.isLoggable(Level.INFO)) {
+                LOGGER.info("Rebuilt feed snapshot from " + rows.size()
+                    + " entities.");
+            }
+        }
+        FeedSnapshot snapshot =
+                FeedSnapshot.create(generation, from, rebuiltAt, rows);
+        feedSnapshotStore.publish(snapshot);
+        return snapshot;
+    }
+}
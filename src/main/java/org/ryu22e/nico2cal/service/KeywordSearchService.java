@@ -0,0 +1,361 @@
+package org.ryu22e.nico2cal.service;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import org.ryu22e.nico2cal.meta.NicolivePostingMeta;
+import org.ryu22e.nico2cal.model.Nicolive;
+import org.ryu22e.nico2cal.model.NicolivePosting;
+import org.slim3.datastore.Datastore;
+import org.slim3.datastore.EntityQuery;
+import org.slim3.memcache.Memcache;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.memcache.Expiration;
+
+/**
+ * 全文検索用インデックス{@link NicolivePosting}を使ってキーワード検索をするサービスクラス。
+ * <p>
+ * キーワードごとに該当する{@link Nicolive}の件数（文書頻度）をMemcacheに保存しておき、
+ * 全てのキーワードを同時に検索して、件数が少ないキーワードの結果から順に積集合を取る。
+ * 積集合が空になった時点で、残りのキーワードの結果は読まない。
+ * </p>
+ * @author ryu22e
+ *
+ */
+public final class KeywordSearchService {
+
+    /**
+     * 
+     */
+    private static final Logger LOGGER = Logger
+        .getLogger(KeywordSearchService.class.getName());
+
+    /**
+     * 文書頻度をMemcacheに保存するときのキーの接頭辞。
+     */
+    private static final String DF_KEY_PREFIX = "df:";
+
+    /**
+     * 文書頻度をMemcacheに保存しておく秒数。
+     */
+    private static final int DF_EXPIRATION_SECONDS = 60 * 60;
+
+    /**
+     * 
+     */
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    /**
+     * キーワードの区切りとみなす空白（全角スペースを含む）。
+     */
+    private static final Pattern WHITESPACE = Pattern.compile("[\\s\u3000]+");
+
+    /**
+     * キーワードからMemcacheのキーを作成する。
+     * @param keyword キーワード
+     * @return Memcacheのキー
+     */
+    private String toDfKey(String keyword) {
+        return DF_KEY_PREFIX + keyword;
+    }
+
+    /**
+     * キーワードを正規化する。
+     * <p>
+     * 各キーワードをUnicodeのNFKCで正規化し、空白（全角スペースを含む）で分割してから、
+     * 空のキーワードと重複したキーワードを取り除いて並べ替える。
+     * 全角と半角の違いや並び順だけが違う検索条件は同じ結果になる。
+     * 全文検索用インデックスのキーワードにも同じ正規化をするので、検索とインデックスで表記が揃う。
+     * </p>
+     * @param keywords キーワード
+     * @return 正規化して並べ替えたキーワード
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public static List<String> normalize(Collection<String> keywords) {
+        if (keywords == null) {
+            throw new NullPointerException("keywords is null.");
+        }
+        Set<String> normalized = new TreeSet<String>();
+        for (String keyword : keywords) {
+            if (keyword == null) {
+                continue;
+            }
+            String nfkc = Normalizer.normalize(keyword, Normalizer.Form.NFKC);
+            for (String term : WHITESPACE.split(nfkc)) {
+                if (0 < term.length()) {
+                    normalized.add(term);
+                }
+            }
+        }
+        return new ArrayList<String>(normalized);
+    }
+
+    /**
+     * 検索条件の文字列を正規化したキーワードに分割する。
+     * @param query 検索条件（空白区切りのキーワード）
+     * @return 正規化して並べ替えたキーワード。有効なキーワードがない場合は空のリスト。
+     * @throws NullPointerException パラメータがnullの場合。
+     * @see #normalize(Collection)
+     */
+    public static List<String> canonicalize(String query) {
+        if (query == null) {
+            throw new NullPointerException("query is null.");
+        }
+        return normalize(Collections.singletonList(query));
+    }
+
+    /**
+     * キーワードに該当する{@link NicolivePosting}の検索を開始する。
+     * <p>
+     * 検索結果の最初のバッチは非同期に取得されるので、
+     * 複数のキーワードの検索を続けて開始すれば、データストアへの問い合わせは同時に実行される。
+     * 読み出すのは{@link NicolivePosting#getNicoliveKeys()}だけなので、
+     * モデルに変換せずにEntityのまま返す。
+     * </p>
+     * <p>
+     * 放送日の下限を指定すると、それより前の{@link NicolivePosting}はインデックスの段階で除外されるので、
+     * 読み出す件数は期間内の件数に比例する（keywordとdayの複合インデックスを使う）。
+     * </p>
+     * @param keyword キーワード
+     * @param fromDay 放送日の下限（この日を含む）。nullの場合は全期間。
+     * @return 検索結果のIterator
+     */
+    private Iterator<Entity> startPostingQuery(String keyword, Date fromDay) {
+        NicolivePostingMeta np = NicolivePostingMeta.get();
+        EntityQuery query =
+                Datastore.query(np.getKind()).filter(
+                    np.keyword.getName(),
+                    FilterOperator.EQUAL,
+                    keyword);
+        if (fromDay != null) {
+            query =
+                    query.filter(
+                        np.day.getName(),
+                        FilterOperator.GREATER_THAN_OR_EQUAL,
+                        fromDay);
+        }
+        return query.asIterator();
+    }
+
+    /**
+     * 検索結果の{@link NicolivePosting}から{@link Nicolive}のキーを全て取り出す。
+     * @param postings 検索結果のIterator
+     * @return {@link Nicolive}のキー
+     */
+    @SuppressWarnings("unchecked")
+    private List<Key> drainPostingKeys(Iterator<Entity> postings) {
+        String propertyName = NicolivePostingMeta.get().nicoliveKeys.getName();
+        List<Key> keys = new ArrayList<Key>();
+        while (postings.hasNext()) {
+            Collection<Key> nicoliveKeys =
+                    (Collection<Key>) postings.next().getProperty(propertyName);
+            if (nicoliveKeys != null) {
+                keys.addAll(nicoliveKeys);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Memcacheに保存されているキーワードの文書頻度を取得する。
+     * @param keywords キーワード
+     * @return キーワードと文書頻度のMap。文書頻度が保存されていないキーワードは含まれない。
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public Map<String, Long> getDocumentFrequencies(Collection<String> keywords) {
+        if (keywords == null) {
+            throw new NullPointerException("keywords is null.");
+        }
+        Map<String, Long> frequencies = new HashMap<String, Long>();
+        if (keywords.size() <= 0) {
+            return frequencies;
+        }
+        Map<String, String> dfKeys = new HashMap<String, String>();
+        for (String keyword : keywords) {
+            dfKeys.put(toDfKey(keyword), keyword);
+        }
+        Map<String, Object> cached = Memcache.getAll(dfKeys.keySet());
+        for (Map.Entry<String, Object> entry : cached.entrySet()) {
+            if (entry.getValue() instanceof Long) {
+                frequencies.put(
+                    dfKeys.get(entry.getKey()),
+                    (Long) entry.getValue());
+            }
+        }
+        return frequencies;
+    }
+
+    /**
+     * Memcacheに保存されているキーワードの文書頻度を削除する。
+     * <p>
+     * 全文検索用インデックスを追加したときに、古い文書頻度で検索結果が変わらないように呼び出す。
+     * </p>
+     * @param keywords キーワード
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public void clearDocumentFrequencies(Collection<String> keywords) {
+        if (keywords == null) {
+            throw new NullPointerException("keywords is null.");
+        }
+        if (keywords.size() <= 0) {
+            return;
+        }
+        List<String> dfKeys = new ArrayList<String>(keywords.size());
+        for (String keyword : keywords) {
+            dfKeys.add(toDfKey(keyword));
+        }
+        Memcache.deleteAll(dfKeys);
+    }
+
+    /**
+     * 全てのキーワードに該当する{@link Nicolive}のキーを取得する。
+     * <p>
+     * 文書頻度が0のキーワードがあれば、データストアに問い合わせずに空のリストを返す。
+     * そうでなければ全てのキーワードの検索を同時に開始し、
+     * 文書頻度が分かっているキーワードから件数の少ない順に、
+     * 文書頻度が分からないキーワードはその後で正規化した順に結果を受け取って積集合を取る。
+     * 積集合が空になった時点で、残りの検索結果は読まずに捨てる。
+     * 検索したキーワードの文書頻度はMemcacheに保存する。
+     * </p>
+     * @param keywords キーワード
+     * @return 全てのキーワードに該当する{@link Nicolive}のキー。有効なキーワードがない場合は空のリスト。
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public List<Key> findNicoliveKeys(Collection<String> keywords) {
+        return findNicoliveKeys(keywords, null);
+    }
+
+    /**
+     * 全てのキーワードに該当し、開始日時の放送日以降に放送される{@link Nicolive}のキーを取得する。
+     * <p>
+     * 期間の下限は{@link NicolivePosting}の検索条件に含めるので、期間より前の
+     * {@link NicolivePosting}は読み出さない。放送日単位で絞り込むので、開始日時より前でも
+     * 同じ放送日の{@link Nicolive}は含まれる。開場日時での絞り込みは呼び出し側で行う。
+     * </p>
+     * <p>
+     * 期間を指定した場合、文書頻度は期間内の件数になる。期間外には該当する{@link Nicolive}が
+     * あるかもしれないので、0件だった文書頻度は保存しない。
+     * </p>
+     * @param keywords キーワード
+     * @param startDate 開始日時。nullの場合は全期間。
+     * @return 全てのキーワードに該当する{@link Nicolive}のキー。有効なキーワードがない場合は空のリスト。
+     * @throws NullPointerException キーワードがnullの場合。
+     * @see #findNicoliveKeys(Collection)
+     */
+    public List<Key> findNicoliveKeys(Collection<String> keywords,
+            Date startDate) {
+        if (keywords == null) {
+            throw new NullPointerException("keywords is null.");
+        }
+        Date fromDay =
+                startDate == null ? null : NicoliveService.toDay(startDate);
+        List<String> plan = normalize(keywords);
+        if (plan.size() <= 0) {
+            return new ArrayList<Key>();
+        }
+
+        final Map<String, Long> frequencies = getDocumentFrequencies(plan);
+        // 文書頻度が分からないキーワードは後回しにする（ソートは安定なので正規化した順が保たれる）。
+        Collections.sort(plan, new Comparator<String>() {
+            @Override
+            public int compare(String o1, String o2) {
+                Long df1 = frequencies.get(o1);
+                Long df2 = frequencies.get(o2);
+                if (df1 == null) {
+                    return df2 == null ? 0 : 1;
+                } else if (df2 == null) {
+                    return -1;
+                }
+                return df1.compareTo(df2);
+            }
+        });
+        if (LOGGER.isLoggable(Level.INFO)) {
+            StringBuilder sb = new StringBuilder("Keyword plan:");
+            for (String keyword : plan) {
+                Long df = frequencies.get(keyword);
+                sb.append(" ").append(keyword).append("(df=").append(
+                    df == null ? "?" : df.toString()).append(")");
+            }
+            LOGGER.info(sb.toString());
+        }
+
+        for (String keyword : plan) {
+            Long df = frequencies.get(keyword);
+            if (df != null && df.longValue() <= 0) {
+                if (LOGGER.isLoggable(Level.INFO)) {
+                    LOGGER.info("Keyword " + keyword
+                        + " has no match. Skipped all lookups.");
+                }
+                return new ArrayList<Key>();
+            }
+        }
+
+        // キーワードごとの検索を全て開始してから、結果を順に受け取る。
+        long started = System.nanoTime();
+        Map<String, Iterator<Entity>> lookups =
+                new LinkedHashMap<String, Iterator<Entity>>();
+        for (String keyword : plan) {
+            lookups.put(keyword, startPostingQuery(keyword, fromDay));
+        }
+
+        Set<Key> result = null;
+        Map<String, Long> learned = new HashMap<String, Long>();
+        int evaluated = 0;
+        for (Map.Entry<String, Iterator<Entity>> lookup : lookups.entrySet()) {
+            String keyword = lookup.getKey();
+            List<Key> keys = drainPostingKeys(lookup.getValue());
+            if (fromDay == null || 0 < keys.size()) {
+                learned.put(toDfKey(keyword), Long.valueOf(keys.size()));
+            }
+            if (result == null) {
+                result = new HashSet<Key>(keys);
+            } else {
+                Set<Key> intersection = new HashSet<Key>();
+                for (Key key : keys) {
+                    if (result.contains(key)) {
+                        intersection.add(key);
+                    }
+                }
+                result = intersection;
+            }
+            evaluated++;
+            if (LOGGER.isLoggable(Level.INFO)) {
+                LOGGER.info("Keyword " + keyword + ": df=" + keys.size()
+                    + ", remaining=" + result.size() + " (+"
+                    + ((System.nanoTime() - started) / NANOS_PER_MILLI)
+                    + "ms)");
+            }
+            if (result.size() <= 0) {
+                break;
+            }
+        }
+        if (LOGGER.isLoggable(Level.INFO) && evaluated < plan.size()) {
+            LOGGER.info("Skipped " + (plan.size() - evaluated)
+                + " keywords after the result became empty.");
+        }
+        if (0 < learned.size()) {
+            Memcache.putAll(
+                learned,
+                Expiration.byDeltaSeconds(DF_EXPIRATION_SECONDS));
+        }
+        return new ArrayList<Key>(result);
+    }
+}
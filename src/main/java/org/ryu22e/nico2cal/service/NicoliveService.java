@@ -3,28 +3,46 @@ package org.ryu22e.nico2cal.service;
 import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import net.reduls.igo.Morpheme;
-import net.reduls.igo.Tagger;
 
+import org.ryu22e.nico2cal.cache.FeedCache;
+import org.ryu22e.nico2cal.cache.FeedSegmentCache;
 import org.ryu22e.nico2cal.meta.NicoliveIndexMeta;
 import org.ryu22e.nico2cal.meta.NicoliveMeta;
+import org.ryu22e.nico2cal.meta.NicolivePostingMeta;
 import org.ryu22e.nico2cal.model.Nicolive;
 import org.ryu22e.nico2cal.model.NicoliveIndex;
+import org.ryu22e.nico2cal.model.NicolivePosting;
 import org.ryu22e.nico2cal.rome.module.NicoliveModule;
-import org.ryu22e.nico2cal.util.HtmlRemoveUtil;
+import org.ryu22e.nico2cal.util.DescriptionUtil;
+import org.ryu22e.nico2cal.util.EventFragmentUtil;
+import org.ryu22e.nico2cal.util.TaggerUtil;
 import org.slim3.datastore.Datastore;
+import org.slim3.datastore.ModelQuery;
+import org.slim3.datastore.S3QueryResultList;
 import org.slim3.util.DateUtil;
-import org.xml.sax.SAXException;
 
+import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.Link;
 import com.google.appengine.api.datastore.Query.SortDirection;
@@ -49,8 +67,131 @@ public final class NicoliveService {
     private static final Logger LOGGER = Logger.getLogger(NicoliveService.class
         .getName());
 
+    /**
+     * {@link #fillPlainDescription(String)}で1度に処理するエンティティの数。
+     */
+    private static final int FILL_BATCH_SIZE = 100;
+
+    /**
+     * 1回のバッチ登録で登録するエンティティの最大数。
+     */
+    private static final int PUT_BATCH_SIZE = 500;
+
+    /**
+     * {@link NicolivePosting}のバッチ登録が競合したときにやり直す回数。
+     */
+    private static final int MAX_PUT_RETRIES = 5;
+
+    /**
+     * IN条件の1回のクエリで指定できる値の最大数。
+     */
+    private static final int MAX_IN_VALUES = 30;
+
+    /**
+     * 
+     */
+    private static final String TIMEZONE_ID = "Asia/Tokyo";
+
+    /**
+     * {@link NicolivePosting}のキーに使う放送日の形式。
+     */
+    private static final String DAY_PATTERN = "yyyyMMdd";
+
+    /**
+     * リンクに含まれる放送IDのパターン。
+     */
+    private static final Pattern LIVE_ID_PATTERN = Pattern
+        .compile("\\blv[0-9]+\\b");
+
+    /**
+     * 
+     */
+    private KeywordSearchService keywordSearchService =
+            new KeywordSearchService();
+
+    /**
+     * @see FeedCache
+     */
+    private FeedCache feedCache = new FeedCache();
+
+    /**
+     * 
+     */
+    private FeedSegmentCache feedSegmentCache = new FeedSegmentCache();
+
+    /**
+     * リンクから放送ID（lv123456など）を取得する。
+     * @param link ニコニコ生放送のリンク
+     * @return 放送ID。リンクに放送IDが含まれない場合はnull。
+     */
+    static String getLiveId(String link) {
+        if (link == null) {
+            return null;
+        }
+        Matcher matcher = LIVE_ID_PATTERN.matcher(link);
+        if (matcher.find()) {
+            return matcher.group();
+        }
+        return null;
+    }
+
+    /**
+     * RSSフィードのエントリーから{@link Nicolive}を作成する。
+     * @param entry RSSフィードのエントリー
+     * @param module エントリーの「nicolive:***」部分
+     * @param df 日時のフォーマット
+     * @return {@link Nicolive}。日時の形式が不正な場合はnull。
+     */
+    private Nicolive createNicolive(SyndEntry entry, NicoliveModule module,
+            SimpleDateFormat df) {
+        Nicolive nicolive = new Nicolive();
+        nicolive.setTitle(entry.getTitle());
+        String description = entry.getDescription().getValue();
+        nicolive.setDescription(new Text(description));
+        // 読み出しのたびにHTMLを解析しなくてよいように、タグを除去した説明文も保存しておく。
+        nicolive.setPlainDescription(DescriptionUtil.toPlainText(description));
+        try {
+            Date openTime = DateUtil.toDate(df.parse(module.getOpenTime()));
+            nicolive.setOpenTime(openTime);
+            Date startTime = DateUtil.toDate(df.parse(module.getStartTime()));
+            nicolive.setStartTime(startTime);
+        } catch (ParseException e) {
+            LOGGER.log(Level.WARNING, e.getMessage());
+            return null;
+        }
+
+        nicolive.setType(module.getType());
+        nicolive.setLink(new Link(entry.getLink()));
+        // iCalendarの生成で書き出さなくてよいように、VEVENTも保存しておく。
+        EventFragmentUtil.fill(nicolive);
+        return nicolive;
+    }
+
+    /**
+     * RSSフィードのエントリーから「nicolive:***」部分を取得する。
+     * @param entry RSSフィードのエントリー
+     * @return エントリーの「nicolive:***」部分。含まれない場合はnull。
+     */
+    private NicoliveModule getModule(SyndEntry entry) {
+        @SuppressWarnings("unchecked")
+        List<Object> modules = entry.getModules();
+        for (Object o : modules) {
+            if (o instanceof NicoliveModule) {
+                return (NicoliveModule) o;
+            }
+        }
+        return null;
+    }
+
     /**
      * RSSフィードをデータストアに登録する。
+     * <p>
+     * {@link Nicolive}のキーはリンクに含まれる放送IDから決めるので、
+     * 登録済みかどうかはフィード全体で1回のバッチ取得で調べられる。
+     * 放送IDを含まないリンクのエントリーと、キーで見つからなかったエントリー
+     * （放送IDからキーを決める前に登録したエンティティの場合がある）は、リンクで検索して調べる。
+     * 説明文のHTMLの除去やVEVENTの書き出しは、登録済みでないと分かったエントリーだけで行う。
+     * </p>
      * @param feed RSSフィード
      * @throws NullPointerException パラメータがnullの場合。
      * @return 登録したNicoliveのキー
@@ -62,120 +203,508 @@ public final class NicoliveService {
 
         NicoliveMeta n = NicoliveMeta.get();
         SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        df.setTimeZone(TimeZone.getTimeZone("Asia/Tokyo"));
+        df.setTimeZone(TimeZone.getTimeZone(TIMEZONE_ID));
+        // 放送IDから決めたキーと、そのキーのエントリー（フィードの順）。
+        List<Key> candidateKeys = new ArrayList<Key>();
+        List<SyndEntry> candidateEntries = new ArrayList<SyndEntry>();
         List<Nicolive> nicolives = new LinkedList<Nicolive>();
+        int rpcCount = 0;
         @SuppressWarnings("unchecked")
         List<SyndEntry> entries = (List<SyndEntry>) feed.getEntries();
         for (SyndEntry entry : entries) {
-            // RSSフィードの「nicolive:***」部分を取得する。
-            NicoliveModule module = null;
-            @SuppressWarnings("unchecked")
-            List<Object> modules = entry.getModules();
-            for (Object o : modules) {
-                if (o instanceof NicoliveModule) {
-                    module = (NicoliveModule) o;
-                    break;
-                }
+            // 「nicolive:***」が取得できないエントリーは登録しない。
+            NicoliveModule module = getModule(entry);
+            if (module == null) {
+                continue;
             }
 
-            // 「nicolive:***」が取得できないエントリーは登録しない。
-            if (module != null) {
+            String liveId = getLiveId(entry.getLink());
+            if (liveId != null) {
+                candidateKeys.add(Datastore.createKey(n, liveId));
+                candidateEntries.add(entry);
+            } else {
                 // 重複するリンクを持つエンティティがある場合は更新対象から外す。
-                Nicolive nicolive =
+                rpcCount++;
+                int count =
                         Datastore
                             .query(n)
                             .filter(n.link.equal(new Link(entry.getLink())))
-                            .asSingle();
-                if (nicolive == null) {
-                    nicolive = new Nicolive();
-                    nicolive.setTitle(entry.getTitle());
-                    nicolive.setDescription(new Text(entry
-                        .getDescription()
-                        .getValue()));
-                    try {
-                        Date openTime =
-                                DateUtil.toDate(df.parse(module.getOpenTime()));
-                        nicolive.setOpenTime(openTime);
-                        Date startTime =
-                                DateUtil
-                                    .toDate(df.parse(module.getStartTime()));
-                        nicolive.setStartTime(startTime);
-                    } catch (ParseException e) {
-                        LOGGER.log(Level.WARNING, e.getMessage());
-                        continue;
+                            .count();
+                if (count <= 0) {
+                    Nicolive nicolive = createNicolive(entry, module, df);
+                    if (nicolive != null) {
+                        nicolives.add(nicolive);
                     }
+                }
+            }
+        }
 
-                    nicolive.setType(module.getType());
-                    nicolive.setLink(new Link(entry.getLink()));
-
-                    nicolives.add(nicolive);
+        if (0 < candidateKeys.size()) {
+            // 登録済みのエンティティは更新対象から外す。
+            rpcCount++;
+            Map<Key, Entity> stored = Datastore.getAsMap(candidateKeys);
+            // 放送IDからキーを決める前に登録したエンティティはIDが自動採番されているので、
+            // キーで見つからなかったエントリーはリンクでも調べる。
+            Set<Link> missingLinks = new LinkedHashSet<Link>();
+            for (int i = 0; i < candidateKeys.size(); i++) {
+                if (!stored.containsKey(candidateKeys.get(i))) {
+                    missingLinks.add(new Link(candidateEntries
+                        .get(i)
+                        .getLink()));
                 }
             }
+            List<Link> linkList = new ArrayList<Link>(missingLinks);
+            Set<Link> storedLinks = new HashSet<Link>();
+            for (int i = 0; i < linkList.size(); i += MAX_IN_VALUES) {
+                rpcCount++;
+                for (Nicolive nicolive : Datastore
+                    .query(n)
+                    .filter(
+                        n.link.in(linkList.subList(
+                            i,
+                            Math.min(i + MAX_IN_VALUES, linkList.size()))))
+                    .asList()) {
+                    storedLinks.add(nicolive.getLink());
+                }
+            }
+            Map<Key, Nicolive> created = new LinkedHashMap<Key, Nicolive>();
+            for (int i = 0; i < candidateKeys.size(); i++) {
+                Key key = candidateKeys.get(i);
+                if (stored.containsKey(key) || created.containsKey(key)) {
+                    continue;
+                }
+                SyndEntry entry = candidateEntries.get(i);
+                if (storedLinks.contains(new Link(entry.getLink()))) {
+                    continue;
+                }
+                Nicolive nicolive = createNicolive(entry, getModule(entry), df);
+                if (nicolive != null) {
+                    nicolive.setKey(key);
+                    created.put(key, nicolive);
+                }
+            }
+            nicolives.addAll(created.values());
         }
 
-        return Datastore.put(nicolives);
+        List<Key> keys;
+        if (0 < nicolives.size()) {
+            rpcCount++;
+            keys = Datastore.put(nicolives);
+            // 追加した放送日のセグメントだけを作り直す。
+            incrementSegmentGenerations(nicolives);
+        } else {
+            keys = new ArrayList<Key>();
+        }
+        if (LOGGER.isLoggable(Level.INFO)) {
+            LOGGER.info("Put " + keys.size() + "/" + entries.size()
+                    + " entries with " + rpcCount + " datastore RPCs.");
+        }
+        return keys;
     }
 
     /**
-     * {@link Nicolive}の全文検索用インデックス{@link NicoliveIndex}を作成する。
-     * @param nicolive インデックスを作成するNicoliveエンティティ。
+     * {@link Nicolive}の放送日のセグメントを作り直すように、放送日の世代を進める。
+     * <p>
+     * {@link #put(SyndFeed)}は登録した直後に世代を進めるが、その直後に作成したセグメントは
+     * 結果整合性のクエリで検索するので、登録したエンティティが欠けたまま新しい世代で
+     * キャッシュされることがある。全文検索用インデックスの作成など、登録から時間が経って
+     * 実行される処理からもう一度呼び出し、欠けたセグメントを使わないようにする。
+     * </p>
+     * @param nicolives 登録した{@link Nicolive}
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public void incrementSegmentGenerations(Collection<Nicolive> nicolives) {
+        if (nicolives == null) {
+            throw new NullPointerException("nicolives is null.");
+        }
+        Set<String> days = new TreeSet<String>();
+        for (Nicolive nicolive : nicolives) {
+            if (nicolive.getOpenTime() != null) {
+                days.add(formatDay(nicolive.getOpenTime()));
+            }
+        }
+        feedSegmentCache.incrementGenerations(days);
+    }
+
+    /**
+     * 開場日時から放送日（日本時間の0時）を取得する。
+     * @param openTime 開場日時
+     * @return 放送日
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public static Date toDay(Date openTime) {
+        if (openTime == null) {
+            throw new NullPointerException("openTime is null.");
+        }
+        Calendar c = Calendar.getInstance(TimeZone.getTimeZone(TIMEZONE_ID));
+        c.setTime(openTime);
+        c.set(Calendar.HOUR_OF_DAY, 0);
+        c.set(Calendar.MINUTE, 0);
+        c.set(Calendar.SECOND, 0);
+        c.set(Calendar.MILLISECOND, 0);
+        return c.getTime();
+    }
+
+    /**
+     * 放送日に日数を足す。
+     * @param day 放送日
+     * @param days 足す日数
+     * @return 放送日（日本時間の0時）
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public static Date addDays(Date day, int days) {
+        if (day == null) {
+            throw new NullPointerException("day is null.");
+        }
+        Calendar c = Calendar.getInstance(TimeZone.getTimeZone(TIMEZONE_ID));
+        c.setTime(toDay(day));
+        c.add(Calendar.DAY_OF_MONTH, days);
+        return c.getTime();
+    }
+
+    /**
+     * 放送日を文字列（yyyyMMdd）にする。
+     * @param day 放送日
+     * @return 日本時間の日付
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public static String formatDay(Date day) {
+        if (day == null) {
+            throw new NullPointerException("day is null.");
+        }
+        SimpleDateFormat df = new SimpleDateFormat(DAY_PATTERN);
+        df.setTimeZone(TimeZone.getTimeZone(TIMEZONE_ID));
+        return df.format(day);
+    }
+
+    /**
+     * {@link NicolivePosting}のキーを作成する。
+     * <p>
+     * 放送日とキーワードを名前にするので、同じ組み合わせからは常に同じキーが作られる。
+     * </p>
+     * @param keyword キーワード
+     * @param day 放送日
+     * @return {@link NicolivePosting}のキー
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public Key createPostingKey(String keyword, Date day) {
+        if (keyword == null) {
+            throw new NullPointerException("keyword is null.");
+        }
+        if (day == null) {
+            throw new NullPointerException("day is null.");
+        }
+        return Datastore.createKey(NicolivePostingMeta.get(), formatDay(day)
+                + "_" + keyword);
+    }
+
+    /**
+     * {@link Nicolive}のTitleとDescriptionを形態素解析して、全文検索用のキーワードを取り出す。
+     * <p>
+     * キーワードは検索条件と同じく
+     * {@link KeywordSearchService#normalize(java.util.Collection)}で正規化する。
+     * </p>
+     * @param nicolive キーワードを取り出すNicoliveエンティティ。
      * @throws IOException Igoの辞書ファイル読み込みに失敗した場合。
      * @throws NullPointerException パラメータがnullの場合。
-     * @return 登録したNicoliveIndexのキー
+     * @return キーワード
      */
-    public List<Key> createIndex(Nicolive nicolive) throws IOException,
-            InterruptedException {
+    public Set<String> extractKeywords(Nicolive nicolive) throws IOException {
         if (nicolive == null) {
             throw new NullPointerException("nicolive is null.");
         }
 
-        // ここにインデックスを作る対象のキーワードを入れる。
-        Set<String> keywords = new HashSet<String>();
+        // ここに形態素解析で取り出した文字列を入れる。
+        List<String> surfaces = new ArrayList<String>();
 
-        Tagger tagger = new Tagger("ipadic/");
         // Titleを文節ごとに分解する。
-        List<Morpheme> titleMorphemes = tagger.parse(nicolive.getTitle());
+        List<Morpheme> titleMorphemes = TaggerUtil.parse(nicolive.getTitle());
         for (Morpheme morpheme : titleMorphemes) {
-            keywords.add(morpheme.surface);
+            surfaces.add(morpheme.surface);
+        }
+
+        // Descriptionを文節ごとに分解する。表示用に切り詰める前の全文を使う。
+        List<Morpheme> descriptionMorphemes =
+                TaggerUtil.parse(DescriptionUtil
+                    .getFullPlainDescription(nicolive));
+        for (Morpheme morpheme : descriptionMorphemes) {
+            surfaces.add(morpheme.surface);
+        }
+        // 空のキーワードは正規化で取り除かれる。
+        return new HashSet<String>(KeywordSearchService.normalize(surfaces));
+    }
+
+    /**
+     * 追加する{@link NicolivePosting}にNicoliveのキーを加える。
+     * @param additions 追加する{@link NicolivePosting}
+     * @param keyword キーワード
+     * @param day 放送日
+     * @param nicoliveKey Nicoliveのキー
+     */
+    private void addPosting(Map<Key, NicolivePosting> additions,
+            String keyword, Date day, Key nicoliveKey) {
+        Key key = createPostingKey(keyword, day);
+        NicolivePosting posting = additions.get(key);
+        if (posting == null) {
+            posting = new NicolivePosting();
+            posting.setKey(key);
+            posting.setKeyword(keyword);
+            posting.setDay(day);
+            posting.setNicoliveKeys(new ArrayList<Key>());
+            additions.put(key, posting);
+        }
+        posting.getNicoliveKeys().add(nicoliveKey);
+    }
+
+    /**
+     * 登録済みの{@link NicolivePosting}の一部にNicoliveのキーを追加する。
+     * <p>
+     * 登録済みのエンティティを1回のバッチ取得で取得し、キーの和集合を昇順に並べて
+     * 1回のバッチ登録で書き戻す。キーが増えないエンティティは書き込まない。
+     * バッチ登録が他の更新と競合した場合は、取得からやり直す。
+     * </p>
+     * @param postingKeys 追加する{@link NicolivePosting}のキー
+     * @param additions 追加する{@link NicolivePosting}
+     * @return 登録した{@link NicolivePosting}
+     * @throws ConcurrentModificationException
+     *             {@value #MAX_PUT_RETRIES}回やり直しても競合した場合。
+     */
+    private List<NicolivePosting> appendPostingGroup(List<Key> postingKeys,
+            Map<Key, NicolivePosting> additions) {
+        NicolivePostingMeta np = NicolivePostingMeta.get();
+        for (int retry = 0;; retry++) {
+            Map<Key, NicolivePosting> stored =
+                    Datastore.getAsMap(np, postingKeys);
+            List<NicolivePosting> changed = new ArrayList<NicolivePosting>();
+            for (Key postingKey : postingKeys) {
+                NicolivePosting addition = additions.get(postingKey);
+                NicolivePosting posting = stored.get(postingKey);
+                Set<Key> nicoliveKeys = new TreeSet<Key>();
+                if (posting == null) {
+                    posting = new NicolivePosting();
+                    posting.setKey(postingKey);
+                    posting.setKeyword(addition.getKeyword());
+                    posting.setDay(addition.getDay());
+                } else {
+                    nicoliveKeys.addAll(posting.getNicoliveKeys());
+                }
+                int size = nicoliveKeys.size();
+                nicoliveKeys.addAll(addition.getNicoliveKeys());
+                if (0 < size && size == nicoliveKeys.size()) {
+                    continue;
+                }
+                posting.setNicoliveKeys(new ArrayList<Key>(nicoliveKeys));
+                changed.add(posting);
+            }
+            if (changed.isEmpty()) {
+                return changed;
+            }
+            try {
+                Datastore.put(changed);
+                return changed;
+            } catch (ConcurrentModificationException e) {
+                if (MAX_PUT_RETRIES <= retry) {
+                    throw e;
+                }
+                LOGGER.info("Retrying to append " + changed.size()
+                    + " NicolivePostings.");
+            }
         }
+    }
 
-        // Descriptionを文節ごとに分解する。
+    /**
+     * 登録済みの{@link NicolivePosting}にNicoliveのキーを追加する。
+     * <p>
+     * {@value #PUT_BATCH_SIZE}件ずつ、バッチ取得とバッチ登録でキーの和集合（昇順）に更新する。
+     * 和集合なので、同じ追加を繰り返しても結果は変わらない。
+     * </p>
+     * <p>
+     * 読み出しから書き込みまでをトランザクションにしないので、同じエンティティを
+     * 複数のリクエストが同時に更新すると一方の追加が失われる。
+     * 呼び出し元はgenerate-nicoliveindexキューで1件ずつ直列に実行する。
+     * </p>
+     * @param additions 追加する{@link NicolivePosting}
+     * @return 登録した{@link NicolivePosting}のキー
+     * @throws ConcurrentModificationException バッチ登録が競合し続けた場合。
+     */
+    private List<Key> appendPostings(Map<Key, NicolivePosting> additions) {
+        List<Key> postingKeys = new ArrayList<Key>(additions.keySet());
+        List<Key> keys = new ArrayList<Key>();
+        Set<String> changedKeywords = new HashSet<String>();
         try {
-            String description =
-                    HtmlRemoveUtil.removeHtml(nicolive
-                        .getDescription()
-                        .getValue());
-            List<Morpheme> descriptionMorphemes = tagger.parse(description);
-            for (Morpheme morpheme : descriptionMorphemes) {
-                keywords.add(morpheme.surface);
+            for (int from = 0; from < postingKeys.size(); from +=
+                    PUT_BATCH_SIZE) {
+                int to = Math.min(from + PUT_BATCH_SIZE, postingKeys.size());
+                List<NicolivePosting> changed =
+                        appendPostingGroup(
+                            postingKeys.subList(from, to),
+                            additions);
+                for (NicolivePosting posting : changed) {
+                    keys.add(posting.getKey());
+                    changedKeywords.add(posting.getKeyword());
+                }
+            }
+        } finally {
+            // 途中で失敗しても、書き込んだキーワードのキャッシュは古くしておく。
+            // 件数が変わったキーワードの文書頻度は検索時に計算し直す。
+            keywordSearchService.clearDocumentFrequencies(changedKeywords);
+            // 検索結果が変わるので、そのキーワードを含むフィードのキャッシュを古い世代にする。
+            feedCache.incrementGenerations(changedKeywords);
+        }
+        return keys;
+    }
+
+    /**
+     * 全文検索用インデックス{@link NicolivePosting}に{@link Nicolive}を追加する。
+     * @param keywords Nicoliveと、そのNicoliveのキーワード
+     * @throws NullPointerException パラメータがnullの場合。
+     * @throws ConcurrentModificationException バッチ登録が競合し続けた場合。
+     * @return 登録した{@link NicolivePosting}のキー
+     */
+    public List<Key> putPostings(Map<Nicolive, Set<String>> keywords) {
+        if (keywords == null) {
+            throw new NullPointerException("keywords is null.");
+        }
+        Map<Key, NicolivePosting> additions =
+                new LinkedHashMap<Key, NicolivePosting>();
+        for (Map.Entry<Nicolive, Set<String>> entry : keywords.entrySet()) {
+            Nicolive nicolive = entry.getKey();
+            if (nicolive.getOpenTime() == null) {
+                // 放送日が決まらないので、インデックスを作らない。
+                LOGGER.warning("openTime is null: " + nicolive.getKey());
+                continue;
             }
-        } catch (SAXException e) {
-            if (LOGGER.isLoggable(Level.WARNING)) {
-                LOGGER.warning(e.getMessage());
+            Date day = toDay(nicolive.getOpenTime());
+            for (String keyword : entry.getValue()) {
+                addPosting(additions, keyword, day, nicolive.getKey());
             }
         }
+        return appendPostings(additions);
+    }
 
-        // 1キーワード1エンティティとして登録する。
-        List<NicoliveIndex> indexes = new LinkedList<NicoliveIndex>();
-        NicoliveIndexMeta n = NicoliveIndexMeta.get();
-        for (String keyword : keywords) {
-            int count =
-                    Datastore
-                        .query(n)
-                        .filter(
-                            n.keyword.equal(keyword),
-                            n.nicoliveKey.equal(nicolive.getKey()))
-                        .count();
-            if (count <= 0) {
-                NicoliveIndex index = new NicoliveIndex();
-                index.setKey(Datastore.allocateId(n));
-                index.setKeyword(keyword);
-                index.setNicoliveKey(nicolive.getKey());
-                index.setOpenTime(nicolive.getOpenTime());
-                indexes.add(index);
+    /**
+     * {@link Nicolive}の全文検索用インデックス{@link NicolivePosting}を作成する。
+     * @param nicolive インデックスを作成するNicoliveエンティティ。
+     * @throws IOException Igoの辞書ファイル読み込みに失敗した場合。
+     * @throws NullPointerException パラメータがnullの場合。
+     * @return 登録したNicolivePostingのキー
+     */
+    public List<Key> createIndex(Nicolive nicolive) throws IOException,
+            InterruptedException {
+        Map<Nicolive, Set<String>> keywords =
+                new HashMap<Nicolive, Set<String>>();
+        keywords.put(nicolive, extractKeywords(nicolive));
+        return putPostings(keywords);
+    }
+
+    /**
+     * 旧形式の全文検索用インデックス{@link NicoliveIndex}を{@link NicolivePosting}に移行する。
+     * <p>
+     * 1回の呼び出しで最大{@value #PUT_BATCH_SIZE}件を移行し、移行した{@link NicoliveIndex}は削除する。
+     * キーワードは検索条件と同じく{@link KeywordSearchService#canonicalize(String)}で正規化する。
+     * </p>
+     * @return 移行した{@link NicoliveIndex}の件数
+     */
+    public int migrateIndex() {
+        NicoliveIndexMeta ni = NicoliveIndexMeta.get();
+        List<NicoliveIndex> indexes =
+                Datastore.query(ni).limit(PUT_BATCH_SIZE).asList();
+        Map<Key, NicolivePosting> additions =
+                new LinkedHashMap<Key, NicolivePosting>();
+        List<Key> indexKeys = new ArrayList<Key>(indexes.size());
+        for (NicoliveIndex index : indexes) {
+            indexKeys.add(index.getKey());
+            if (index.getKeyword() != null
+                    && index.getNicoliveKey() != null
+                    && index.getOpenTime() != null) {
+                // 空のキーワードは正規化で取り除かれる。
+                for (String keyword : KeywordSearchService
+                    .canonicalize(index.getKeyword())) {
+                    addPosting(
+                        additions,
+                        keyword,
+                        toDay(index.getOpenTime()),
+                        index.getNicoliveKey());
+                }
+            }
+        }
+        List<Key> postingKeys = appendPostings(additions);
+        if (0 < indexKeys.size()) {
+            Datastore.delete(indexKeys);
+        }
+        if (LOGGER.isLoggable(Level.INFO)) {
+            LOGGER.info("Migrated " + indexKeys.size() + " NicoliveIndex to "
+                    + postingKeys.size() + " NicolivePosting.");
+        }
+        return indexKeys.size();
+    }
+
+    /**
+     * キーワードが正規化されていない{@link NicolivePosting}を、正規化したキーワードに移し替える。
+     * <p>
+     * 検索条件は{@link KeywordSearchService#canonicalize(String)}で正規化して検索するので、
+     * キーワードを正規化せずに登録したエンティティはそのままでは検索にかからない。
+     * そのようなエンティティのキーを同じ放送日の正規化したキーワードのエンティティに追加し、
+     * 元のエンティティは削除する。
+     * </p>
+     * <p>
+     * 1回の呼び出しで最大{@value #PUT_BATCH_SIZE}件を調べるので、
+     * 戻り値のカーソルを渡して繰り返し呼び出す。
+     * </p>
+     * @param encodedCursor 前回の続きから処理する場合のカーソル。最初から処理する場合はnull。
+     * @return 続きのカーソル。全てのエンティティを処理し終えた場合はnull。
+     */
+    public String normalizePostings(String encodedCursor) {
+        NicolivePostingMeta np = NicolivePostingMeta.get();
+        ModelQuery<NicolivePosting> query =
+                Datastore.query(np).limit(PUT_BATCH_SIZE);
+        if (encodedCursor != null) {
+            query = query.encodedStartCursor(encodedCursor);
+        }
+        S3QueryResultList<NicolivePosting> postings =
+                query.asQueryResultList();
+
+        Map<Key, NicolivePosting> additions =
+                new LinkedHashMap<Key, NicolivePosting>();
+        List<Key> oldKeys = new ArrayList<Key>();
+        for (NicolivePosting posting : postings) {
+            String keyword = posting.getKeyword();
+            List<String> keywords =
+                    keyword == null ? new ArrayList<String>()
+                        : KeywordSearchService.canonicalize(keyword);
+            if (keywords.size() == 1 && keywords.get(0).equals(keyword)) {
+                continue;
+            }
+            oldKeys.add(posting.getKey());
+            if (posting.getDay() == null
+                    || posting.getNicoliveKeys() == null) {
+                continue;
+            }
+            for (String normalized : keywords) {
+                for (Key nicoliveKey : posting.getNicoliveKeys()) {
+                    addPosting(
+                        additions,
+                        normalized,
+                        posting.getDay(),
+                        nicoliveKey);
+                }
             }
         }
-        return Datastore.put(indexes);
+        // 追加し終えてから元のエンティティを削除するので、途中で失敗しても検索結果は欠けない。
+        List<Key> postingKeys = appendPostings(additions);
+        if (0 < oldKeys.size()) {
+            Datastore.delete(oldKeys);
+        }
+        if (LOGGER.isLoggable(Level.INFO)) {
+            LOGGER.info("Normalized " + oldKeys.size() + "/"
+                + postings.size() + " NicolivePosting into "
+                + postingKeys.size() + " NicolivePosting.");
+        }
+
+        if (postings.hasNext()) {
+            return postings.getEncodedCursor();
+        }
+        return null;
     }
 
     /**
@@ -226,7 +755,24 @@ public final class NicoliveService {
     }
 
     /**
-     * 古い{@link NicoliveIndex}を全て削除する。
+     * 登録されている{@link Nicolive}を1回のバッチ取得でまとめて取得する。
+     * @param keys {@link Nicolive}のキー
+     * @return キーと{@link Nicolive}のMap。登録されていないキーは含まれない。
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public Map<Key, Nicolive> findAsMap(List<Key> keys) {
+        if (keys == null) {
+            throw new NullPointerException("keys is null.");
+        }
+        if (keys.size() <= 0) {
+            return new LinkedHashMap<Key, Nicolive>();
+        }
+        NicoliveMeta n = NicoliveMeta.get();
+        return Datastore.getAsMap(n, keys);
+    }
+
+    /**
+     * 古い全文検索用インデックスを全て削除する。
      * @param from この日付より前のデータを削除する。
      * @throws NullPointerException パラメータがnullの場合。
      */
@@ -234,10 +780,67 @@ public final class NicoliveService {
         if (from == null) {
             throw new NullPointerException("from is null.");
         }
+        NicolivePostingMeta np = NicolivePostingMeta.get();
+        Datastore.deleteAsync(Datastore
+            .query(np)
+            .filter(np.day.lessThan(toDay(from)))
+            .asKeyList());
+        // 移行前の古い形式のインデックスも削除する。
         NicoliveIndexMeta ni = NicoliveIndexMeta.get();
         Datastore.deleteAsync(Datastore
             .query(ni)
             .filter(ni.openTime.lessThanOrEqual(from))
             .asKeyList());
     }
+
+    /**
+     * HTMLタグを除去した説明文かVEVENTが保存されていない{@link Nicolive}に、それらを保存する。
+     * <p>
+     * 1回の呼び出しで最大{@value #FILL_BATCH_SIZE}件を処理するので、
+     * 戻り値のカーソルを渡して繰り返し呼び出す。
+     * VEVENTの形式のバージョンが古いものも書き出し直す。
+     * </p>
+     * @param encodedCursor 前回の続きから処理する場合のカーソル。最初から処理する場合はnull。
+     * @return 続きのカーソル。全てのエンティティを処理し終えた場合はnull。
+     */
+    public String fillPlainDescription(String encodedCursor) {
+        NicoliveMeta n = NicoliveMeta.get();
+        ModelQuery<Nicolive> query =
+                Datastore.query(n).limit(FILL_BATCH_SIZE);
+        if (encodedCursor != null) {
+            query = query.encodedStartCursor(encodedCursor);
+        }
+        S3QueryResultList<Nicolive> nicolives = query.asQueryResultList();
+
+        List<Nicolive> targets = new LinkedList<Nicolive>();
+        for (Nicolive nicolive : nicolives) {
+            boolean filled = false;
+            if (nicolive.getPlainDescription() == null) {
+                nicolive.setPlainDescription(DescriptionUtil
+                    .getPlainDescription(nicolive));
+                filled = true;
+            }
+            // 開始日時がないエンティティはiCalendarに書き出さないので対象外とする。
+            if (nicolive.getOpenTime() != null
+                    && (filled || !EventFragmentUtil.hasFragment(nicolive))) {
+                EventFragmentUtil.fill(nicolive);
+                filled = true;
+            }
+            if (filled) {
+                targets.add(nicolive);
+            }
+        }
+        if (0 < targets.size()) {
+            Datastore.put(targets);
+        }
+        if (LOGGER.isLoggable(Level.INFO)) {
+            LOGGER.info("Filled plainDescription and eventFragment of "
+                + targets.size() + "/" + nicolives.size() + " entities.");
+        }
+
+        if (nicolives.hasNext()) {
+            return nicolives.getEncodedCursor();
+        }
+        return null;
+    }
 }
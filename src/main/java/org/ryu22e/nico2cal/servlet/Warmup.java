@@ -0,0 +1,40 @@
+package org.ryu22e.nico2cal.servlet;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.ryu22e.nico2cal.util.TaggerUtil;
+
+/**
+ * インスタンス起動時のウォームアップリクエスト（/_ah/warmup）を処理するサーブレット。
+ * @author ryu22e
+ *
+ */
+public final class Warmup extends HttpServlet {
+
+    /**
+     * 
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 
+     */
+    private static final Logger LOGGER = Logger.getLogger(Warmup.class
+        .getName());
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    protected void doGet(HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        // 形態素解析用の辞書を読み込んでおく。
+        TaggerUtil.warmup();
+        LOGGER.info(TaggerUtil.getStatistics());
+    }
+}
@@ -0,0 +1,442 @@
+package org.ryu22e.nico2cal.util;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * 0以上の整数の集合を表す、読み出し専用の圧縮ビットマップ。
+ * <p>
+ * 要素が少ない集合は昇順の{@code int}配列で、多い集合は64ビットごとの{@code long}配列で持ち、
+ * 集合ごとに小さい方の形式を選ぶ。全文検索用インデックスのように、大半のキーワードは
+ * 該当する件数が少なく、一部のキーワードだけが多い場合に、どちらの場合も小さく持てる。
+ * </p>
+ * <p>
+ * 積集合・和集合・差集合は、両方の形式の組み合わせごとに
+ * 要素を1つずつ取り出さずに計算する。要素を順に読むときは
+ * {@link #nextSetBit(int)}を使えば、イテレーターを作らずに済む。
+ * </p>
+ * <pre>
+ * for (int i = bitmap.nextSetBit(0); 0 &lt;= i; i = bitmap.nextSetBit(i + 1)) {
+ *     ...
+ * }
+ * </pre>
+ * @author ryu22e
+ *
+ */
+public final class CompressedBitmap implements Serializable {
+
+    /**
+     * 
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 空の集合。
+     */
+    public static final CompressedBitmap EMPTY = new CompressedBitmap(
+        new int[0],
+        null,
+        0);
+
+    /**
+     * 
+     */
+    private static final int ADDRESS_BITS_PER_WORD = 6;
+
+    /**
+     * 
+     */
+    private static final int BITS_PER_WORD = 1 << ADDRESS_BITS_PER_WORD;
+
+    /**
+     * 
+     */
+    private static final int BITS_PER_INT = 32;
+
+    /**
+     * 要素（昇順）。{@link #words}で持つ場合はnull。
+     */
+    private final int[] values;
+
+    /**
+     * 要素のビット。{@link #values}で持つ場合はnull。
+     */
+    private final long[] words;
+
+    /**
+     * 要素の数。
+     */
+    private final int cardinality;
+
+    /**
+     * コンストラクタ。
+     * @param values 要素（昇順）
+     * @param words 要素のビット
+     * @param cardinality 要素の数
+     */
+    private CompressedBitmap(int[] values, long[] words, int cardinality) {
+        this.values = values;
+        this.words = words;
+        this.cardinality = cardinality;
+    }
+
+    /**
+     * 要素の配列から集合を作成する。
+     * @param values 要素（昇順、重複なし、0以上）
+     * @return 集合
+     * @throws NullPointerException パラメータがnullの場合。
+     * @throws IllegalArgumentException 要素が昇順でない場合や、負の要素がある場合。
+     */
+    public static CompressedBitmap of(int... values) {
+        if (values == null) {
+            throw new NullPointerException("values is null.");
+        }
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] < 0 || (0 < i && values[i] <= values[i - 1])) {
+                throw new IllegalArgumentException(
+                    "values must be sorted and not negative.");
+            }
+        }
+        return fromValues(values.clone(), values.length);
+    }
+
+    /**
+     * 要素の配列の先頭から、小さい方の形式で集合を作成する。
+     * @param values 要素（昇順）。このメソッドに渡した後は変更しない。
+     * @param length 要素の数
+     * @return 集合
+     */
+    private static CompressedBitmap fromValues(int[] values, int length) {
+        if (length <= 0) {
+            return EMPTY;
+        }
+        int wordCount = wordIndex(values[length - 1]) + 1;
+        if ((long) wordCount * BITS_PER_WORD < (long) length * BITS_PER_INT) {
+            long[] words = new long[wordCount];
+            for (int i = 0; i < length; i++) {
+                words[wordIndex(values[i])] |= 1L << values[i];
+            }
+            return new CompressedBitmap(null, words, length);
+        }
+        return new CompressedBitmap(
+            length == values.length ? values : Arrays.copyOf(values, length),
+            null,
+            length);
+    }
+
+    /**
+     * ビットの配列から、小さい方の形式で集合を作成する。
+     * @param words 要素のビット。このメソッドに渡した後は変更しない。
+     * @return 集合
+     */
+    private static CompressedBitmap fromWords(long[] words) {
+        int wordCount = words.length;
+        while (0 < wordCount && words[wordCount - 1] == 0L) {
+            wordCount--;
+        }
+        int cardinality = 0;
+        for (int i = 0; i < wordCount; i++) {
+            cardinality += Long.bitCount(words[i]);
+        }
+        if (cardinality <= 0) {
+            return EMPTY;
+        }
+        if ((long) cardinality * BITS_PER_INT <= (long) wordCount
+                * BITS_PER_WORD) {
+            int[] values = new int[cardinality];
+            int n = 0;
+            for (int i = 0; i < wordCount; i++) {
+                long word = words[i];
+                while (word != 0L) {
+                    values[n++] =
+                            (i << ADDRESS_BITS_PER_WORD)
+                                + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                }
+            }
+            return new CompressedBitmap(values, null, cardinality);
+        }
+        return new CompressedBitmap(
+            null,
+            wordCount == words.length ? words : Arrays.copyOf(
+                words,
+                wordCount),
+            cardinality);
+    }
+
+    /**
+     * @param value 要素
+     * @return 要素が含まれる{@link #words}の位置
+     */
+    private static int wordIndex(int value) {
+        return value >> ADDRESS_BITS_PER_WORD;
+    }
+
+    /**
+     * @return 要素の数
+     */
+    public int cardinality() {
+        return cardinality;
+    }
+
+    /**
+     * @return 空の集合の場合はtrue
+     */
+    public boolean isEmpty() {
+        return cardinality <= 0;
+    }
+
+    /**
+     * 要素が含まれるかどうかを判定する。
+     * @param value 要素
+     * @return 含まれる場合はtrue
+     */
+    public boolean contains(int value) {
+        if (value < 0) {
+            return false;
+        }
+        if (words == null) {
+            return 0 <= Arrays.binarySearch(values, value);
+        }
+        int index = wordIndex(value);
+        return index < words.length && (words[index] & (1L << value)) != 0L;
+    }
+
+    /**
+     * 指定した値以上の最小の要素を取得する。
+     * @param from 値
+     * @return 要素。該当する要素がない場合は-1。
+     */
+    public int nextSetBit(int from) {
+        if (from < 0) {
+            from = 0;
+        }
+        if (words == null) {
+            int index = Arrays.binarySearch(values, from);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return index < values.length ? values[index] : -1;
+        }
+        int index = wordIndex(from);
+        if (words.length <= index) {
+            return -1;
+        }
+        long word = words[index] & (-1L << from);
+        while (true) {
+            if (word != 0L) {
+                return (index << ADDRESS_BITS_PER_WORD)
+                    + Long.numberOfTrailingZeros(word);
+            }
+            if (++index == words.length) {
+                return -1;
+            }
+            word = words[index];
+        }
+    }
+
+    /**
+     * 積集合を求める。
+     * @param other もう一方の集合
+     * @return 両方に含まれる要素の集合
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public CompressedBitmap and(CompressedBitmap other) {
+        if (other == null) {
+            throw new NullPointerException("other is null.");
+        }
+        if (isEmpty() || other.isEmpty()) {
+            return EMPTY;
+        }
+        if (words != null && other.words != null) {
+            long[] result = new long[Math.min(words.length, other.words.length)];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = words[i] & other.words[i];
+            }
+            return fromWords(result);
+        }
+        if (words != null) {
+            return other.and(this);
+        }
+        int[] result = new int[Math.min(cardinality, other.cardinality)];
+        int n = 0;
+        if (other.words != null) {
+            for (int value : values) {
+                if (other.contains(value)) {
+                    result[n++] = value;
+                }
+            }
+        } else {
+            int i = 0;
+            int j = 0;
+            while (i < values.length && j < other.values.length) {
+                if (values[i] < other.values[j]) {
+                    i++;
+                } else if (other.values[j] < values[i]) {
+                    j++;
+                } else {
+                    result[n++] = values[i];
+                    i++;
+                    j++;
+                }
+            }
+        }
+        return fromValues(result, n);
+    }
+
+    /**
+     * 和集合を求める。
+     * @param other もう一方の集合
+     * @return どちらかに含まれる要素の集合
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public CompressedBitmap or(CompressedBitmap other) {
+        if (other == null) {
+            throw new NullPointerException("other is null.");
+        }
+        if (other.isEmpty()) {
+            return this;
+        }
+        if (isEmpty()) {
+            return other;
+        }
+        if (words == null && other.words == null) {
+            int[] result = new int[cardinality + other.cardinality];
+            int n = 0;
+            int i = 0;
+            int j = 0;
+            while (i < values.length || j < other.values.length) {
+                if (j == other.values.length
+                    || (i < values.length && values[i] < other.values[j])) {
+                    result[n++] = values[i++];
+                } else if (i == values.length || other.values[j] < values[i]) {
+                    result[n++] = other.values[j++];
+                } else {
+                    result[n++] = values[i];
+                    i++;
+                    j++;
+                }
+            }
+            return fromValues(result, n);
+        }
+        long[] result = new long[Math.max(wordLength(), other.wordLength())];
+        orInto(result);
+        other.orInto(result);
+        return fromWords(result);
+    }
+
+    /**
+     * 差集合を求める。
+     * @param other 取り除く要素の集合
+     * @return この集合の要素のうち、もう一方に含まれない要素の集合
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public CompressedBitmap andNot(CompressedBitmap other) {
+        if (other == null) {
+            throw new NullPointerException("other is null.");
+        }
+        if (isEmpty() || other.isEmpty()) {
+            return this;
+        }
+        if (words == null) {
+            int[] result = new int[cardinality];
+            int n = 0;
+            for (int value : values) {
+                if (!other.contains(value)) {
+                    result[n++] = value;
+                }
+            }
+            return fromValues(result, n);
+        }
+        long[] result = words.clone();
+        if (other.words != null) {
+            int length = Math.min(result.length, other.words.length);
+            for (int i = 0; i < length; i++) {
+                result[i] &= ~other.words[i];
+            }
+        } else {
+            for (int value : other.values) {
+                int index = wordIndex(value);
+                if (result.length <= index) {
+                    break;
+                }
+                result[index] &= ~(1L << value);
+            }
+        }
+        return fromWords(result);
+    }
+
+    /**
+     * @return 全ての要素を{@code long}配列で持つときの長さ
+     */
+    private int wordLength() {
+        if (words != null) {
+            return words.length;
+        }
+        return isEmpty() ? 0 : wordIndex(values[values.length - 1]) + 1;
+    }
+
+    /**
+     * 要素のビットを配列に加える。
+     * @param result 加える先
+     */
+    private void orInto(long[] result) {
+        if (words != null) {
+            for (int i = 0; i < words.length; i++) {
+                result[i] |= words[i];
+            }
+        } else {
+            for (int value : values) {
+                result[wordIndex(value)] |= 1L << value;
+            }
+        }
+    }
+
+    /**
+     * 全ての要素を取得する。
+     * @return 要素（昇順）
+     */
+    public int[] toArray() {
+        if (words == null) {
+            return values.clone();
+        }
+        int[] result = new int[cardinality];
+        int n = 0;
+        for (int i = nextSetBit(0); 0 <= i; i = nextSetBit(i + 1)) {
+            result[n++] = i;
+        }
+        return result;
+    }
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(toArray());
+    }
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof CompressedBitmap)) {
+            return false;
+        }
+        CompressedBitmap other = (CompressedBitmap) obj;
+        return cardinality == other.cardinality
+            && Arrays.equals(toArray(), other.toArray());
+    }
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+}
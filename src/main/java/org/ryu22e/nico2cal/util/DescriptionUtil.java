@@ -0,0 +1,135 @@
+/**
+ * 
+ */
+package org.ryu22e.nico2cal.util;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.ryu22e.nico2cal.model.Nicolive;
+import org.xml.sax.SAXException;
+
+import com.google.appengine.api.datastore.Text;
+
+/**
+ * {@link Nicolive}の説明文を扱うユーティリティクラス。
+ * <p>
+ * 説明文のHTMLはRSSフィードの取り込み時に1度だけ除去して
+ * {@link Nicolive#getPlainDescription()}に保存しておき、
+ * iCalendarの生成やGoogle Calendarへのインポートではその値を使う。
+ * </p>
+ * @author ryu22e
+ *
+ */
+public final class DescriptionUtil {
+
+    /**
+     * 
+     */
+    private static final Logger LOGGER = Logger.getLogger(DescriptionUtil.class
+        .getName());
+
+    /**
+     * HTMLタグを除去した説明文の最大文字数。
+     * データストアのインデックスなしの文字列プロパティに収まる長さにしている。
+     */
+    public static final int MAX_LENGTH = 500;
+
+    /**
+     * コンストラクタ。
+     */
+    private DescriptionUtil() {
+        throw new AssertionError("Can not call this constructor.");
+    }
+
+    /**
+     * HTMLの説明文からHTMLタグを除去する。
+     * @param html HTMLの説明文
+     * @return HTMLタグを除去した説明文。パラメータがnullの場合やHTMLの解析に失敗した場合は空文字。
+     */
+    private static String removeHtml(String html) {
+        if (html == null) {
+            return "";
+        }
+        try {
+            return HtmlRemoveUtil.removeHtml(html).trim();
+        } catch (SAXException e) {
+            if (LOGGER.isLoggable(Level.WARNING)) {
+                LOGGER.warning(e.getMessage());
+            }
+            return "";
+        } catch (IOException e) {
+            if (LOGGER.isLoggable(Level.WARNING)) {
+                LOGGER.warning(e.getMessage());
+            }
+            return "";
+        }
+    }
+
+    /**
+     * HTMLの説明文からHTMLタグを除去し、{@link #MAX_LENGTH}文字以内に切り詰める。
+     * @param html HTMLの説明文
+     * @return HTMLタグを除去した説明文。パラメータがnullの場合やHTMLの解析に失敗した場合は空文字。
+     */
+    public static String toPlainText(String html) {
+        String text = removeHtml(html);
+        if (text.length() <= MAX_LENGTH) {
+            return text;
+        }
+        int end = MAX_LENGTH;
+        // サロゲートペアの途中で切らないようにする。
+        if (Character.isHighSurrogate(text.charAt(end - 1))) {
+            end--;
+        }
+        return text.substring(0, end);
+    }
+
+    /**
+     * {@link Nicolive}のHTMLタグを除去した説明文を取得する。
+     * <p>
+     * 取り込み時に保存した値がない古いエンティティの場合は、その場でHTMLタグを除去する。
+     * </p>
+     * @param nicolive {@link Nicolive}
+     * @return HTMLタグを除去した説明文
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public static String getPlainDescription(Nicolive nicolive) {
+        if (nicolive == null) {
+            throw new NullPointerException("nicolive is null.");
+        }
+        if (nicolive.getPlainDescription() != null) {
+            return nicolive.getPlainDescription();
+        }
+        Text description = nicolive.getDescription();
+        return toPlainText(description == null ? null : description
+            .getValue());
+    }
+
+    /**
+     * {@link Nicolive}のHTMLタグを除去した説明文を、切り詰めずに取得する。
+     * <p>
+     * 全文検索用のキーワードを取り出すときに使う。保存した値が切り詰められていない長さなら
+     * それを使い、そうでなければ{@link Nicolive#getDescription()}からHTMLタグを除去する。
+     * </p>
+     * @param nicolive {@link Nicolive}
+     * @return HTMLタグを除去した説明文
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public static String getFullPlainDescription(Nicolive nicolive) {
+        if (nicolive == null) {
+            throw new NullPointerException("nicolive is null.");
+        }
+        String plainDescription = nicolive.getPlainDescription();
+        // サロゲートペアの分だけ短く切り詰めることがあるので、1文字余裕を見る。
+        if (plainDescription != null
+                && plainDescription.length() < MAX_LENGTH - 1) {
+            return plainDescription;
+        }
+        Text description = nicolive.getDescription();
+        if (description == null) {
+            return plainDescription == null ? "" : plainDescription;
+        }
+        return removeHtml(description.getValue());
+    }
+}
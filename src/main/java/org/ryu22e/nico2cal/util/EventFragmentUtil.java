@@ -0,0 +1,115 @@
+package org.ryu22e.nico2cal.util;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.ryu22e.nico2cal.model.Nicolive;
+
+import com.google.appengine.api.datastore.Text;
+
+/**
+ * {@link Nicolive}のVEVENTを扱うユーティリティクラス。
+ * <p>
+ * VEVENTはRSSフィードの取り込み時に1度だけ書き出して
+ * {@link Nicolive#getEventFragment()}に保存しておき、
+ * iCalendarの生成ではヘッダーとフッターの間にその値を並べるだけにする。
+ * </p>
+ * @author ryu22e
+ *
+ */
+public final class EventFragmentUtil {
+
+    /**
+     * 
+     */
+    private static final Logger LOGGER = Logger
+        .getLogger(EventFragmentUtil.class.getName());
+
+    /**
+     * VEVENTの形式のバージョン。
+     * 書き出す内容を変えたときは値を上げて、保存済みのVEVENTを使わないようにする。
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    /**
+     * コンストラクタ。
+     */
+    private EventFragmentUtil() {
+        throw new AssertionError("Can not call this constructor.");
+    }
+
+    /**
+     * {@link Nicolive}のVEVENTを書き出す。
+     * @param nicolive {@link Nicolive}
+     * @return 改行（CRLF）まで含むVEVENT
+     * @throws NullPointerException パラメータがnullの場合か、開始日時がnullの場合。
+     */
+    public static String render(Nicolive nicolive) {
+        if (nicolive == null) {
+            throw new NullPointerException("nicolive is null.");
+        }
+        String url = null;
+        if (nicolive.getLink() != null) {
+            try {
+                url = new URI(nicolive.getLink().getValue()).toString();
+            } catch (URISyntaxException e) {
+                if (LOGGER.isLoggable(Level.WARNING)) {
+                    LOGGER.warning(e.getMessage());
+                }
+            }
+        }
+        return ICalendarWriter.renderEvent(
+            nicolive.getTitle(),
+            DescriptionUtil.getPlainDescription(nicolive),
+            nicolive.getOpenTime(),
+            nicolive.getOpenTime(),
+            url);
+    }
+
+    /**
+     * {@link Nicolive}にVEVENTを書き出して保存する。
+     * <p>
+     * データストアへの保存は呼び出し側で行う。
+     * </p>
+     * @param nicolive {@link Nicolive}
+     * @throws NullPointerException パラメータがnullの場合か、開始日時がnullの場合。
+     */
+    public static void fill(Nicolive nicolive) {
+        nicolive.setEventFragment(new Text(render(nicolive)));
+        nicolive.setEventFragmentVersion(FORMAT_VERSION);
+    }
+
+    /**
+     * {@link Nicolive}に現在の形式のVEVENTが保存されているかどうかを判定する。
+     * @param nicolive {@link Nicolive}
+     * @return 保存されている場合はtrue
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public static boolean hasFragment(Nicolive nicolive) {
+        if (nicolive == null) {
+            throw new NullPointerException("nicolive is null.");
+        }
+        return nicolive.getEventFragment() != null
+                && nicolive.getEventFragmentVersion() != null
+                && nicolive.getEventFragmentVersion().intValue()
+                    == FORMAT_VERSION;
+    }
+
+    /**
+     * {@link Nicolive}のVEVENTを取得する。
+     * <p>
+     * 取り込み時に保存した値がない古いエンティティや、形式のバージョンが違う場合は、その場で書き出す。
+     * </p>
+     * @param nicolive {@link Nicolive}
+     * @return 改行（CRLF）まで含むVEVENT
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public static String getFragment(Nicolive nicolive) {
+        if (hasFragment(nicolive)) {
+            return nicolive.getEventFragment().getValue();
+        }
+        return render(nicolive);
+    }
+}
@@ -5,26 +5,97 @@ package org.ryu22e.nico2cal.util;
 
 import java.io.IOException;
 import java.io.StringReader;
-import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.html.dom.HTMLDocumentImpl;
 import org.apache.xerces.xni.parser.XMLDocumentFilter;
-import org.apache.xml.serialize.OutputFormat;
-import org.apache.xml.serialize.XMLSerializer;
 import org.cyberneko.html.filters.ElementRemover;
 import org.cyberneko.html.parsers.DOMFragmentParser;
 import org.w3c.dom.DocumentFragment;
+import org.w3c.dom.Node;
 import org.w3c.dom.html.HTMLDocument;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 /**
  * 文字列中のHTMLのタグを除去するユーティリティクラス。
+ * <p>
+ * 通常は文字列を先頭から1度だけ走査してタグを読み飛ばし、文字実体参照を展開する。
+ * 閉じていないタグやコメントなど、走査だけでは解釈できないマークアップの場合は
+ * NekoHTMLでパースした結果からテキストを取り出す。
+ * </p>
  * @author ryu22e
  *
  */
 public final class HtmlRemoveUtil {
 
+    /**
+     * 再利用するバッファの最大サイズ。これより大きくなったバッファは破棄する。
+     */
+    private static final int MAX_BUFFER_CAPACITY = 64 * 1024;
+
+    /**
+     * 実体参照名の最大長。
+     */
+    private static final int MAX_ENTITY_NAME_LENGTH = 10;
+
+    /**
+     * 
+     */
+    private static final int RADIX_DECIMAL = 10;
+
+    /**
+     * 
+     */
+    private static final int RADIX_HEX = 16;
+
+    /**
+     * スレッドごとに再利用するバッファ。
+     */
+    private static final ThreadLocal<StringBuilder> BUFFER =
+            new ThreadLocal<StringBuilder>() {
+                @Override
+                protected StringBuilder initialValue() {
+                    return new StringBuilder();
+                }
+            };
+
+    /**
+     * 展開する文字実体参照。
+     */
+    private static final Map<String, Character> ENTITIES =
+            new HashMap<String, Character>();
+    static {
+        ENTITIES.put("amp", '&');
+        ENTITIES.put("lt", '<');
+        ENTITIES.put("gt", '>');
+        ENTITIES.put("quot", '"');
+        ENTITIES.put("apos", '\'');
+        ENTITIES.put("nbsp", '\u00A0');
+        ENTITIES.put("copy", '\u00A9');
+        ENTITIES.put("reg", '\u00AE');
+        ENTITIES.put("trade", '\u2122');
+        ENTITIES.put("yen", '\u00A5');
+        ENTITIES.put("times", '\u00D7');
+        ENTITIES.put("divide", '\u00F7');
+        ENTITIES.put("middot", '\u00B7');
+        ENTITIES.put("laquo", '\u00AB');
+        ENTITIES.put("raquo", '\u00BB');
+        ENTITIES.put("hellip", '\u2026');
+        ENTITIES.put("ndash", '\u2013');
+        ENTITIES.put("mdash", '\u2014');
+        ENTITIES.put("lsquo", '\u2018');
+        ENTITIES.put("rsquo", '\u2019');
+        ENTITIES.put("ldquo", '\u201C');
+        ENTITIES.put("rdquo", '\u201D');
+        ENTITIES.put("hearts", '\u2665');
+        ENTITIES.put("larr", '\u2190');
+        ENTITIES.put("rarr", '\u2192');
+        ENTITIES.put("uarr", '\u2191');
+        ENTITIES.put("darr", '\u2193');
+    }
+
     /**
      * コンストラクタ。
      */
@@ -45,6 +116,80 @@ public final class HtmlRemoveUtil {
             return null;
         }
 
+        StringBuilder buffer = BUFFER.get();
+        if (MAX_BUFFER_CAPACITY < buffer.capacity()) {
+            buffer = new StringBuilder();
+            BUFFER.set(buffer);
+        }
+        buffer.setLength(0);
+        if (removeHtml(html, buffer)) {
+            return buffer.toString();
+        }
+        // 走査だけでは解釈できない場合はHTMLパーサーを使う。
+        return removeHtmlByParser(html);
+    }
+
+    /**
+     * 文字列中のHTMLタグを除去した結果をバッファに追加する。
+     * <p>
+     * 閉じていないタグやコメント、未知の文字実体参照を含む場合は何も追加せずにfalseを返す。
+     * その場合は{@link #removeHtml(String)}を使うこと。
+     * </p>
+     * @param html HTMLタグを含む文字列
+     * @param out 結果を追加するバッファ
+     * @return タグを除去できた場合はtrue
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public static boolean removeHtml(CharSequence html, StringBuilder out) {
+        if (html == null) {
+            throw new NullPointerException("html is null.");
+        }
+        if (out == null) {
+            throw new NullPointerException("out is null.");
+        }
+
+        int start = out.length();
+        int length = html.length();
+        int i = 0;
+        while (i < length) {
+            char c = html.charAt(i);
+            if (c == '<') {
+                int next = skipMarkup(html, i);
+                if (next < 0) {
+                    out.setLength(start);
+                    return false;
+                }
+                if (next == i) {
+                    // タグとして解釈できない「<」は文字として扱う。
+                    out.append(c);
+                    i++;
+                } else {
+                    i = next;
+                }
+            } else if (c == '&') {
+                int next = appendEntity(html, i, out);
+                if (next < 0) {
+                    out.setLength(start);
+                    return false;
+                }
+                i = next;
+            } else {
+                out.append(c);
+                i++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * HTMLパーサーを使って文字列中のHTMLタグを除去する。
+     * @param html HTMLタグを含む文字列
+     * @return HTMLタグを除去された文字列
+     * @throws IOException
+     * @throws SAXException
+     */
+    static String removeHtmlByParser(String html) throws SAXException,
+            IOException {
         DOMFragmentParser parser = new DOMFragmentParser();
 
         // フィルターの設定
@@ -58,16 +203,213 @@ public final class HtmlRemoveUtil {
 
         InputSource inputSource = new InputSource(new StringReader(html));
         parser.parse(inputSource, fragment);
-        StringWriter writer = new StringWriter();
-        OutputFormat format = new OutputFormat();
 
-        format.setOmitXMLDeclaration(true);
-        XMLSerializer serializer = new XMLSerializer();
-        serializer.setOutputCharStream(writer);
-        serializer.setOutputFormat(format);
-        serializer.serialize(fragment);
+        StringBuilder sb = new StringBuilder(html.length());
+        appendText(fragment, sb);
+        return sb.toString();
+    }
 
-        return writer.getBuffer().toString();
+    /**
+     * ノード以下のテキストをバッファに追加する。
+     * @param node ノード
+     * @param out 結果を追加するバッファ
+     */
+    private static void appendText(Node node, StringBuilder out) {
+        for (Node child = node.getFirstChild(); child != null; child =
+                child.getNextSibling()) {
+            short type = child.getNodeType();
+            if (type == Node.TEXT_NODE || type == Node.CDATA_SECTION_NODE) {
+                out.append(child.getNodeValue());
+            } else if (type == Node.ELEMENT_NODE) {
+                appendText(child, out);
+            }
+        }
     }
 
+    /**
+     * タグ、コメント、宣言を読み飛ばす。
+     * @param html 文字列
+     * @param from 「<」の位置
+     * @return 読み飛ばした後の位置。タグでない場合はfrom、閉じていない場合は-1。
+     */
+    private static int skipMarkup(CharSequence html, int from) {
+        int length = html.length();
+        if (length <= from + 1) {
+            return from;
+        }
+        char c = html.charAt(from + 1);
+        if (c == '!') {
+            if (startsWith(html, from, "<!--")) {
+                int end = indexOf(html, "-->", from + 4);
+                return end < 0 ? -1 : end + 3;
+            }
+            if (startsWith(html, from, "<![CDATA[")) {
+                // CDATAセクションはHTMLパーサーに任せる。
+                return -1;
+            }
+            int end = indexOf(html, ">", from + 2);
+            return end < 0 ? -1 : end + 1;
+        } else if (c == '?') {
+            int end = indexOf(html, ">", from + 2);
+            return end < 0 ? -1 : end + 1;
+        } else if (c == '/' || isAsciiLetter(c)) {
+            // 属性値の中の「>」はタグの終わりとして扱わない。
+            char quote = 0;
+            for (int i = from + 2; i < length; i++) {
+                char ch = html.charAt(i);
+                if (quote != 0) {
+                    if (ch == quote) {
+                        quote = 0;
+                    }
+                } else if (ch == '"' || ch == '\'') {
+                    quote = ch;
+                } else if (ch == '>') {
+                    return i + 1;
+                } else if (ch == '<') {
+                    return -1;
+                }
+            }
+            return -1;
+        }
+        return from;
+    }
+
+    /**
+     * 文字実体参照を展開してバッファに追加する。
+     * @param html 文字列
+     * @param from 「&」の位置
+     * @param out 結果を追加するバッファ
+     * @return 文字実体参照の後の位置。展開できない場合は-1。
+     */
+    private static int appendEntity(CharSequence html, int from,
+            StringBuilder out) {
+        int length = html.length();
+        int semicolon = -1;
+        int limit = Math.min(length, from + MAX_ENTITY_NAME_LENGTH + 2);
+        for (int i = from + 1; i < limit; i++) {
+            char ch = html.charAt(i);
+            if (ch == ';') {
+                semicolon = i;
+                break;
+            }
+            if (!isAsciiLetter(ch) && !isAsciiDigit(ch) && ch != '#') {
+                break;
+            }
+        }
+        if (semicolon < 0) {
+            if (from + 1 < length && isAsciiLetter(html.charAt(from + 1))) {
+                // 「;」のない実体参照らしき文字列はHTMLパーサーに任せる。
+                return -1;
+            }
+            // 実体参照でない「&」は文字として扱う。
+            out.append('&');
+            return from + 1;
+        }
+        if (semicolon == from + 1) {
+            out.append('&');
+            return from + 1;
+        }
+
+        if (html.charAt(from + 1) == '#') {
+            int codePoint = parseCharacterReference(html, from + 2, semicolon);
+            if (codePoint < 0) {
+                return -1;
+            }
+            out.appendCodePoint(codePoint);
+        } else {
+            String name = html.subSequence(from + 1, semicolon).toString();
+            Character ch = ENTITIES.get(name);
+            if (ch == null) {
+                return -1;
+            }
+            out.append(ch.charValue());
+        }
+        return semicolon + 1;
+    }
+
+    /**
+     * 数値文字参照（「&#123;」「&#x7B;」）を解釈する。
+     * @param html 文字列
+     * @param from 「#」の次の位置
+     * @param to 「;」の位置
+     * @return コードポイント。解釈できない場合は-1。
+     */
+    private static int parseCharacterReference(CharSequence html, int from,
+            int to) {
+        int radix = RADIX_DECIMAL;
+        int i = from;
+        if (i < to && (html.charAt(i) == 'x' || html.charAt(i) == 'X')) {
+            radix = RADIX_HEX;
+            i++;
+        }
+        if (to <= i) {
+            return -1;
+        }
+        int codePoint = 0;
+        for (; i < to; i++) {
+            int digit = Character.digit(html.charAt(i), radix);
+            if (digit < 0) {
+                return -1;
+            }
+            codePoint = codePoint * radix + digit;
+            if (Character.MAX_CODE_POINT < codePoint) {
+                return -1;
+            }
+        }
+        if (codePoint == 0) {
+            return -1;
+        }
+        return codePoint;
+    }
+
+    /**
+     * @param html 文字列
+     * @param from 開始位置
+     * @param prefix 接頭辞
+     * @return 開始位置から接頭辞が始まる場合はtrue
+     */
+    private static boolean startsWith(CharSequence html, int from,
+            String prefix) {
+        if (html.length() < from + prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (html.charAt(from + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param html 文字列
+     * @param target 検索する文字列
+     * @param from 検索を開始する位置
+     * @return 見つかった位置。見つからない場合は-1。
+     */
+    private static int indexOf(CharSequence html, String target, int from) {
+        int last = html.length() - target.length();
+        for (int i = from; i <= last; i++) {
+            if (startsWith(html, i, target)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param c 文字
+     * @return ASCIIの英字の場合はtrue
+     */
+    private static boolean isAsciiLetter(char c) {
+        return ('a' <= c && c <= 'z') || ('A' <= c && c <= 'Z');
+    }
+
+    /**
+     * @param c 文字
+     * @return ASCIIの数字の場合はtrue
+     */
+    private static boolean isAsciiDigit(char c) {
+        return '0' <= c && c <= '9';
+    }
 }
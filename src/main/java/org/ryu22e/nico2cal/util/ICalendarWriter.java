@@ -0,0 +1,251 @@
+package org.ryu22e.nico2cal.util;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * iCalendar（RFC 5545）形式のテキストを{@link Writer}に直接書き出すクラス。
+ * <p>
+ * ical4jのCalendarオブジェクトを組み立てずに、VEVENTを1件ずつ書き出す。
+ * 値のエスケープと、75オクテットごとの行の折り返しを行う。
+ * スレッドセーフではない。
+ * </p>
+ * @author ryu22e
+ *
+ */
+public final class ICalendarWriter {
+
+    /**
+     * 
+     */
+    private static final String CRLF = "\r\n";
+
+    /**
+     * 1行の最大オクテット数（改行を除く）。
+     */
+    private static final int MAX_LINE_OCTETS = 75;
+
+    /**
+     * 
+     */
+    private final Writer out;
+
+    /**
+     * UTCの日時の形式。
+     */
+    private final SimpleDateFormat utcFormat;
+
+    /**
+     * コンストラクタ。
+     * @param out 書き出し先
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public ICalendarWriter(Writer out) {
+        if (out == null) {
+            throw new NullPointerException("out is null.");
+        }
+        this.out = out;
+        utcFormat = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+        utcFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * TEXT型の値をエスケープする。
+     * @param value 値
+     * @return エスケープした値。パラメータがnullの場合は空文字。
+     */
+    public static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case ';':
+                sb.append("\\;");
+                break;
+            case ',':
+                sb.append("\\,");
+                break;
+            case '\r':
+                // CRLFは改行1つとして扱う。
+                if (i + 1 < value.length() && value.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                sb.append("\\n");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            default:
+                sb.append(c);
+                break;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 文字をUTF-8で書き出したときのオクテット数を取得する。
+     * @param c 文字
+     * @return オクテット数。サロゲートペアの場合は上位・下位それぞれ2。
+     */
+    private static int octets(char c) {
+        if (c < 0x80) {
+            return 1;
+        } else if (c < 0x800) {
+            return 2;
+        } else if (Character.isHighSurrogate(c)
+                || Character.isLowSurrogate(c)) {
+            return 2;
+        }
+        return 3;
+    }
+
+    /**
+     * 1行を75オクテットごとに折り返して書き出す。
+     * @param line 行
+     * @throws IOException 書き出しに失敗した場合。
+     */
+    private void writeLine(String line) throws IOException {
+        int start = 0;
+        int lineOctets = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            int size = octets(c);
+            boolean pairStart =
+                    Character.isHighSurrogate(c) && i + 1 < line.length();
+            int needed = pairStart ? size + octets(line.charAt(i + 1)) : size;
+            if (MAX_LINE_OCTETS < lineOctets + needed) {
+                out.write(line, start, i - start);
+                out.write(CRLF);
+                // 継続行は先頭の空白1文字分も数える。
+                out.write(' ');
+                start = i;
+                lineOctets = 1;
+            }
+            lineOctets += size;
+        }
+        out.write(line, start, line.length() - start);
+        out.write(CRLF);
+    }
+
+    /**
+     * プロパティを書き出す。
+     * @param name プロパティ名
+     * @param value エスケープ済みの値
+     * @throws IOException 書き出しに失敗した場合。
+     */
+    private void writeProperty(String name, String value) throws IOException {
+        writeLine(name + ":" + value);
+    }
+
+    /**
+     * VCALENDARの開始部分を書き出す。
+     * @param prodId PRODIDの値
+     * @param calName X-WR-CALNAMEの値
+     * @throws IOException 書き出しに失敗した場合。
+     */
+    public void writeHeader(String prodId, String calName) throws IOException {
+        writeLine("BEGIN:VCALENDAR");
+        writeProperty("PRODID", escape(prodId));
+        writeProperty("VERSION", "2.0");
+        writeProperty("X-WR-CALNAME", escape(calName));
+    }
+
+    /**
+     * VEVENTを書き出す。
+     * @param summary 件名
+     * @param description 説明文
+     * @param start 開始日時
+     * @param end 終了日時
+     * @param url URL。nullの場合は書き出さない。
+     * @throws IOException 書き出しに失敗した場合。
+     * @throws NullPointerException 開始日時か終了日時がnullの場合。
+     */
+    public void writeEvent(String summary, String description, Date start,
+            Date end, String url) throws IOException {
+        if (start == null) {
+            throw new NullPointerException("start is null.");
+        }
+        if (end == null) {
+            throw new NullPointerException("end is null.");
+        }
+        writeLine("BEGIN:VEVENT");
+        writeProperty("SUMMARY", escape(summary));
+        writeProperty("DESCRIPTION", escape(description));
+        writeProperty("DTSTART", utcFormat.format(start));
+        writeProperty("DTEND", utcFormat.format(end));
+        if (url != null) {
+            writeProperty("URL", url);
+        }
+        writeLine("END:VEVENT");
+    }
+
+    /**
+     * {@link #renderEvent(String, String, Date, Date, String)}で書き出したVEVENTをそのまま書き出す。
+     * @param fragment 書き出し済みのVEVENT
+     * @throws IOException 書き出しに失敗した場合。
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public void writeFragment(String fragment) throws IOException {
+        if (fragment == null) {
+            throw new NullPointerException("fragment is null.");
+        }
+        out.write(fragment);
+    }
+
+    /**
+     * VEVENTを文字列に書き出す。
+     * <p>
+     * 書き出した文字列は{@link #writeFragment(String)}で他のカレンダーに埋め込める。
+     * </p>
+     * @param summary 件名
+     * @param description 説明文
+     * @param start 開始日時
+     * @param end 終了日時
+     * @param url URL。nullの場合は書き出さない。
+     * @return 改行（CRLF）まで含むVEVENT
+     * @throws NullPointerException 開始日時か終了日時がnullの場合。
+     */
+    public static String renderEvent(String summary, String description,
+            Date start, Date end, String url) {
+        StringWriter sw = new StringWriter();
+        try {
+            new ICalendarWriter(sw).writeEvent(
+                summary,
+                description,
+                start,
+                end,
+                url);
+        } catch (IOException e) {
+            // StringWriterへの書き出しは失敗しない。
+            throw new IllegalStateException(e);
+        }
+        return sw.toString();
+    }
+
+    /**
+     * VCALENDARの終了部分を書き出す。
+     * @throws IOException 書き出しに失敗した場合。
+     */
+    public void writeFooter() throws IOException {
+        writeLine("END:VCALENDAR");
+    }
+
+    /**
+     * 書き出し先をフラッシュする。
+     * @throws IOException フラッシュに失敗した場合。
+     */
+    public void flush() throws IOException {
+        out.flush();
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * 
+ */
+package org.ryu22e.nico2cal.util;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.reduls.igo.Morpheme;
+import net.reduls.igo.Tagger;
+
+/**
+ * インスタンス内で共有する形態素解析器（Igoの{@link Tagger}）を扱うユーティリティクラス。
+ * <p>
+ * {@link Tagger}は辞書の読み込み後は状態を変更しないので、
+ * threadsafeなアプリケーションでも1インスタンスを全スレッドで共有できる。
+ * 辞書（約9MB）の読み込みは最初の利用時に1度だけ行う。
+ * </p>
+ * @author ryu22e
+ *
+ */
+public final class TaggerUtil {
+
+    /**
+     * 
+     */
+    private static final Logger LOGGER = Logger.getLogger(TaggerUtil.class
+        .getName());
+
+    /**
+     * Igoの辞書ディレクトリ。
+     */
+    private static final String DICTIONARY_DIR = "ipadic/";
+
+    /**
+     * ウォームアップ時に解析する文字列。
+     */
+    private static final String WARMUP_TEXT = "ニコニコ生放送の番組表をカレンダーに登録する。";
+
+    /**
+     * 
+     */
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    /**
+     * 
+     */
+    private static final long NANOS_PER_MICRO = 1000L;
+
+    /**
+     * 共有する{@link Tagger}。
+     */
+    private static volatile Tagger tagger;
+
+    /**
+     * 辞書の読み込みにかかった時間（ミリ秒）。未読み込みの場合は-1。
+     */
+    private static volatile long loadTimeMillis = -1;
+
+    /**
+     * 解析した回数。
+     */
+    private static final AtomicLong PARSE_COUNT = new AtomicLong();
+
+    /**
+     * 解析にかかった時間の合計（ナノ秒）。
+     */
+    private static final AtomicLong PARSE_NANOS = new AtomicLong();
+
+    /**
+     * 解析にかかった時間の最大値（ナノ秒）。
+     */
+    private static final AtomicLong MAX_PARSE_NANOS = new AtomicLong();
+
+    /**
+     * コンストラクタ。
+     */
+    private TaggerUtil() {
+        throw new AssertionError("Can not call this constructor.");
+    }
+
+    /**
+     * 共有する{@link Tagger}を取得する。初回呼び出し時に辞書を読み込む。
+     * @return {@link Tagger}
+     * @throws IOException Igoの辞書ファイル読み込みに失敗した場合。
+     */
+    public static Tagger getTagger() throws IOException {
+        Tagger result = tagger;
+        if (result == null) {
+            synchronized (TaggerUtil.class) {
+                result = tagger;
+                if (result == null) {
+                    long start = System.nanoTime();
+                    result = new Tagger(DICTIONARY_DIR);
+                    loadTimeMillis =
+                            (System.nanoTime() - start) / NANOS_PER_MILLI;
+                    tagger = result;
+                    if (LOGGER.isLoggable(Level.INFO)) {
+                        LOGGER.info("Igo dictionary was loaded in "
+                                + loadTimeMillis + " ms.");
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 文字列を形態素解析する。
+     * @param text 解析する文字列
+     * @return 形態素のリスト
+     * @throws IOException Igoの辞書ファイル読み込みに失敗した場合。
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public static List<Morpheme> parse(String text) throws IOException {
+        if (text == null) {
+            throw new NullPointerException("text is null.");
+        }
+        Tagger t = getTagger();
+        long start = System.nanoTime();
+        List<Morpheme> morphemes = t.parse(text);
+        long elapsed = System.nanoTime() - start;
+        PARSE_COUNT.incrementAndGet();
+        PARSE_NANOS.addAndGet(elapsed);
+        long max = MAX_PARSE_NANOS.get();
+        while (max < elapsed && !MAX_PARSE_NANOS.compareAndSet(max, elapsed)) {
+            max = MAX_PARSE_NANOS.get();
+        }
+        return morphemes;
+    }
+
+    /**
+     * 辞書を読み込み、1度解析を実行しておく。
+     * @throws IOException Igoの辞書ファイル読み込みに失敗した場合。
+     */
+    public static void warmup() throws IOException {
+        parse(WARMUP_TEXT);
+    }
+
+    /**
+     * 辞書の読み込みにかかった時間を取得する。
+     * @return 辞書の読み込みにかかった時間（ミリ秒）。未読み込みの場合は-1。
+     */
+    public static long getLoadTimeMillis() {
+        return loadTimeMillis;
+    }
+
+    /**
+     * 解析した回数を取得する。
+     * @return 解析した回数
+     */
+    public static long getParseCount() {
+        return PARSE_COUNT.get();
+    }
+
+    /**
+     * 1回あたりの平均解析時間を取得する。
+     * @return 平均解析時間（マイクロ秒）。未解析の場合は0。
+     */
+    public static long getAverageParseMicros() {
+        long count = PARSE_COUNT.get();
+        if (count <= 0) {
+            return 0;
+        }
+        return PARSE_NANOS.get() / count / NANOS_PER_MICRO;
+    }
+
+    /**
+     * 最大解析時間を取得する。
+     * @return 最大解析時間（マイクロ秒）
+     */
+    public static long getMaxParseMicros() {
+        return MAX_PARSE_NANOS.get() / NANOS_PER_MICRO;
+    }
+
+    /**
+     * 計測値をログ出力用の文字列にする。
+     * @return 計測値の文字列
+     */
+    public static String getStatistics() {
+        return "Tagger(loadTime=" + getLoadTimeMillis() + "ms, parseCount="
+                + getParseCount() + ", avgParse=" + getAverageParseMicros()
+                + "us, maxParse=" + getMaxParseMicros() + "us)";
+    }
+}
@@ -0,0 +1,82 @@
+package org.ryu22e.nico2cal.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 書き出した内容を2つの{@link OutputStream}に同時に書き出す{@link OutputStream}。
+ * <p>
+ * {@link org.ryu22e.nico2cal.cache.FeedBodyWriter}が、レスポンスとキャッシュ用の本文に
+ * 同じバイト列を書き出すのに使う。
+ * </p>
+ * @author ryu22e
+ *
+ */
+public final class TeeOutputStream extends OutputStream {
+
+    /**
+     * 
+     */
+    private final OutputStream primary;
+
+    /**
+     * 
+     */
+    private final OutputStream secondary;
+
+    /**
+     * コンストラクタ。
+     * @param primary 書き出し先1
+     * @param secondary 書き出し先2
+     * @throws NullPointerException パラメータがnullの場合。
+     */
+    public TeeOutputStream(OutputStream primary, OutputStream secondary) {
+        if (primary == null) {
+            throw new NullPointerException("primary is null.");
+        }
+        if (secondary == null) {
+            throw new NullPointerException("secondary is null.");
+        }
+        this.primary = primary;
+        this.secondary = secondary;
+    }
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        primary.write(b, off, len);
+        secondary.write(b, off, len);
+    }
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public void write(int b) throws IOException {
+        primary.write(b);
+        secondary.write(b);
+    }
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public void flush() throws IOException {
+        primary.flush();
+        secondary.flush();
+    }
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            primary.close();
+        } finally {
+            secondary.close();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package org.ryu22e.nico2cal.cache;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+/**
+ * @author ryu22e
+ *
+ */
+public final class FeedBodyWriterTest {
+
+    /**
+     * 
+     */
+    private static final String BODY =
+            "BEGIN:VCALENDAR\r\nテスト\r\nEND:VCALENDAR\r\n";
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void コンストラクタのテスト_パラメータがnull() throws Exception {
+        new FeedBodyWriter(null, false);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = IllegalStateException.class)
+    public void 書き出しを終える前にETagを取得する() throws Exception {
+        new FeedBodyWriter(new ByteArrayOutputStream(), false).getEtag();
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 圧縮せずにレスポンスに書き出す() throws Exception {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        FeedBodyWriter writer = new FeedBodyWriter(response, false);
+        writer.getWriter().write(BODY);
+        writer.finish();
+
+        assertThat(response.toString("UTF-8"), is(BODY));
+        assertThat(
+            FeedCache.decompress(writer.getGzippedBody()),
+            is(BODY.getBytes("UTF-8")));
+        assertThat(writer.getEtag(), is(FeedCache.createETag(BODY)));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void gzipで圧縮してレスポンスに書き出す() throws Exception {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        FeedBodyWriter writer = new FeedBodyWriter(response, true);
+        writer.getWriter().write(BODY);
+        writer.finish();
+        // 2回呼んでも同じ。
+        writer.finish();
+
+        // レスポンスとキャッシュは同じバイト列になる。
+        assertThat(writer.getGzippedBody(), is(response.toByteArray()));
+        assertThat(
+            FeedCache.decompress(response.toByteArray()),
+            is(BODY.getBytes("UTF-8")));
+        assertThat(writer.getEtag(), is(FeedCache.createETag(BODY)));
+    }
+}
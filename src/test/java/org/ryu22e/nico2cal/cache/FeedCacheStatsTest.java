@@ -0,0 +1,40 @@
+package org.ryu22e.nico2cal.cache;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author ryu22e
+ *
+ */
+public final class FeedCacheStatsTest {
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void ヒット率を計算する() throws Exception {
+        FeedCacheStats.reset();
+        assertThat(FeedCacheStats.getLocalHitRatio(), is(0.0));
+        assertThat(FeedCacheStats.getMemcacheHitRatio(), is(0.0));
+
+        FeedCacheStats.recordLocal(true);
+        FeedCacheStats.recordLocal(true);
+        FeedCacheStats.recordLocal(true);
+        FeedCacheStats.recordLocal(false);
+        FeedCacheStats.recordMemcache(true);
+        FeedCacheStats.recordMemcache(false);
+        assertThat(FeedCacheStats.getLocalHits(), is(3L));
+        assertThat(FeedCacheStats.getLocalMisses(), is(1L));
+        assertThat(FeedCacheStats.getLocalHitRatio(), is(0.75));
+        assertThat(FeedCacheStats.getMemcacheHits(), is(1L));
+        assertThat(FeedCacheStats.getMemcacheMisses(), is(1L));
+        assertThat(FeedCacheStats.getMemcacheHitRatio(), is(0.5));
+
+        FeedCacheStats.reset();
+        assertThat(FeedCacheStats.getLocalHits(), is(0L));
+        assertThat(FeedCacheStats.getMemcacheMisses(), is(0L));
+    }
+}
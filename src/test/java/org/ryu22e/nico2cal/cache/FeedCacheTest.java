@@ -0,0 +1,282 @@
+package org.ryu22e.nico2cal.cache;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.junit.Test;
+import org.slim3.memcache.Memcache;
+import org.slim3.tester.AppEngineTestCase;
+
+/**
+ * @author ryu22e
+ *
+ */
+public final class FeedCacheTest extends AppEngineTestCase {
+
+    /**
+     * 
+     */
+    private FeedCache feedCache = new FeedCache();
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        Memcache.cleanAll();
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void ETagを作成する_パラメータがnull() throws Exception {
+        FeedCache.createETag(null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void ETagを作成する() throws Exception {
+        String etag = FeedCache.createETag("テスト");
+        assertThat(etag.startsWith("\""), is(true));
+        assertThat(etag.endsWith("\""), is(true));
+        assertThat(etag.length(), is(34));
+        assertThat(FeedCache.createETag("テスト"), is(etag));
+        assertThat(FeedCache.createETag("テスト2"), is(not(etag)));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void フィードをキャッシュする() throws Exception {
+        assertThat(feedCache.getMeta("startWeek=1"), is(nullValue()));
+        assertThat(feedCache.getBody("startWeek=1"), is(nullValue()));
+
+        FeedCacheMeta meta = feedCache.put("startWeek=1", "テスト", 1234567L);
+        assertThat(meta.getEtag(), is(FeedCache.createETag("テスト")));
+        // 秒未満は切り捨てる。
+        assertThat(meta.getLastModified(), is(1234000L));
+
+        FeedCacheMeta stored = feedCache.getMeta("startWeek=1");
+        assertThat(stored.getEtag(), is(meta.getEtag()));
+        assertThat(stored.getLastModified(), is(meta.getLastModified()));
+        // 本文はgzipで圧縮して保存する。
+        byte[] body = feedCache.getBody("startWeek=1");
+        assertThat(new String(FeedCache.decompress(body), "UTF-8"), is("テスト"));
+        assertThat(feedCache.getBody("startWeek=2"), is(nullValue()));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 圧縮済みのフィードをキャッシュする() throws Exception {
+        byte[] gzipped = FeedCache.compress("テスト".getBytes("UTF-8"));
+        FeedCacheMeta meta =
+                feedCache.put("startWeek=1", gzipped, "\"etag\"", 1234567L);
+        assertThat(meta.getEtag(), is("\"etag\""));
+        assertThat(meta.getGzipEtag(), is("\"etag-gzip\""));
+        assertThat(feedCache.getMeta("startWeek=1").getEtag(), is("\"etag\""));
+        assertThat(feedCache.getBody("startWeek=1"), is(gzipped));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 大きいフィードは分割してキャッシュする() throws Exception {
+        FeedCache smallChunkCache = new FeedCache(4);
+        byte[] body = "0123456789".getBytes("UTF-8");
+        FeedCacheMeta meta =
+                smallChunkCache.put("startWeek=4", body, "\"etag\"", 0L);
+        assertThat(meta.getLength(), is(10));
+        assertThat(meta.getChunkCount(), is(3));
+        assertThat(smallChunkCache.getBody("startWeek=4"), is(body));
+        assertThat(smallChunkCache.getBody("startWeek=4", meta), is(body));
+
+        // 分割数がちょうど割り切れる場合。
+        body = "01234567".getBytes("UTF-8");
+        meta = smallChunkCache.put("startWeek=3", body, "\"etag\"", 0L);
+        assertThat(meta.getChunkCount(), is(2));
+        assertThat(smallChunkCache.getBody("startWeek=3"), is(body));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 分割した本文の一部が追い出された場合はキャッシュがないものとして扱う()
+            throws Exception {
+        FeedCache smallChunkCache = new FeedCache(4);
+        byte[] body = "0123456789".getBytes("UTF-8");
+        FeedCacheMeta meta =
+                smallChunkCache.put("startWeek=4", body, "\"etag\"", 0L);
+        Memcache.delete(FeedCache.createChunkKey("startWeek=4", "\"etag\"", 1));
+
+        assertThat(smallChunkCache.getMeta("startWeek=4"), is(notNullValue()));
+        assertThat(
+            smallChunkCache.getBody("startWeek=4", meta),
+            is(nullValue()));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 保存し直した場合は古い本文と混ざらない() throws Exception {
+        FeedCache smallChunkCache = new FeedCache(4);
+        FeedCacheMeta oldMeta =
+                smallChunkCache.put(
+                    "startWeek=4",
+                    "0123456789".getBytes("UTF-8"),
+                    "\"old\"",
+                    0L);
+        byte[] body = "abcdefghij".getBytes("UTF-8");
+        smallChunkCache.put("startWeek=4", body, "\"new\"", 0L);
+        // 新しい本文の一部が追い出されても、古い本文の断片は使わない。
+        Memcache.delete(FeedCache.createChunkKey("startWeek=4", "\"new\"", 2));
+
+        assertThat(smallChunkCache.getBody("startWeek=4"), is(nullValue()));
+        assertThat(
+            smallChunkCache.getBody("startWeek=4", oldMeta),
+            is("0123456789".getBytes("UTF-8")));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 圧縮して展開すると元に戻る() throws Exception {
+        byte[] data = "テスト\r\nテスト\r\nテスト".getBytes("UTF-8");
+        byte[] gzipped = FeedCache.compress(data);
+        assertThat(gzipped, is(not(data)));
+        assertThat(FeedCache.decompress(gzipped), is(data));
+        assertThat(
+            FeedCache.decompress(FeedCache.compress(new byte[0])).length,
+            is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = IOException.class)
+    public void 展開する_gzipの形式ではない() throws Exception {
+        FeedCache.decompress("テスト".getBytes("UTF-8"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void キーワードのないフィードの世代を進める() throws Exception {
+        String generation = feedCache.getGeneration(null);
+        assertThat(generation, is(notNullValue()));
+        assertThat(
+            feedCache.getGeneration(new ArrayList<String>()),
+            is(generation));
+
+        feedCache.incrementGeneration();
+        String next = feedCache.getGeneration(null);
+        assertThat(next, is(not(generation)));
+        // キーワードを含むフィードの世代は変わらない。
+        String keywordGeneration =
+                feedCache.getGeneration(Arrays.asList("テスト"));
+        feedCache.incrementGeneration();
+        assertThat(
+            feedCache.getGeneration(Arrays.asList("テスト")),
+            is(keywordGeneration));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void キーワードを含むフィードの世代を進める() throws Exception {
+        String generation =
+                feedCache.getGeneration(Arrays.asList("テスト", "説明"));
+        String other = feedCache.getGeneration(Arrays.asList("他"));
+        String global = feedCache.getGeneration(null);
+        assertThat(generation.split("\\.").length, is(2));
+
+        feedCache.incrementGenerations(Arrays.asList("説明"));
+        assertThat(
+            feedCache.getGeneration(Arrays.asList("テスト", "説明")),
+            is(not(generation)));
+        assertThat(feedCache.getGeneration(Arrays.asList("他")), is(other));
+        assertThat(feedCache.getGeneration(null), is(global));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void キーワードを含むフィードの世代を進める_パラメータがnull() throws Exception {
+        feedCache.incrementGenerations(null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 世代が追い出された場合は以前より大きい値で初期化する() throws Exception {
+        String generation = feedCache.getGeneration(null);
+        Memcache.cleanAll();
+        Thread.sleep(2);
+        long next = Long.parseLong(feedCache.getGeneration(null));
+        assertThat(Long.parseLong(generation) < next, is(true));
+        // 初期化した後は同じ値を返す。
+        assertThat(feedCache.getGeneration(null), is(Long.toString(next)));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 最後にキャッシュしたフィードを取得する() throws Exception {
+        assertThat(feedCache.getLatest("startWeek=1"), is(nullValue()));
+
+        feedCache.put("startWeek=1&generation=1", "テスト", 0L);
+        feedCache.setLatest("startWeek=1", "startWeek=1&generation=1");
+        CachedFeed latest = feedCache.getLatest("startWeek=1");
+        assertThat(latest.getMeta().getEtag(), is(FeedCache.createETag("テスト")));
+        assertThat(
+            new String(FeedCache.decompress(latest.getBody()), "UTF-8"),
+            is("テスト"));
+
+        // 本文が追い出されていればnull。
+        Memcache.delete("feed-meta:startWeek=1&generation=1");
+        assertThat(feedCache.getLatest("startWeek=1"), is(nullValue()));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 最終更新日時を取得する() throws Exception {
+        // 取り込んだ日時が分からない場合は現在日時。
+        long before = System.currentTimeMillis() / 1000L * 1000L;
+        assertThat(before <= feedCache.getLastModified(), is(true));
+
+        // 取り込んだ日時が前の場合も現在日時。
+        feedCache.setLastIngest(new Date(1234567L));
+        assertThat(feedCache.getLastIngest(), is(new Date(1234567L)));
+        assertThat(before <= feedCache.getLastModified(), is(true));
+
+        // 取り込んだ日時の方が後の場合はその日時。
+        long future = System.currentTimeMillis() + 60 * 60 * 1000L + 567L;
+        feedCache.setLastIngest(new Date(future));
+        assertThat(
+            feedCache.getLastModified(),
+            is(future / 1000L * 1000L));
+    }
+}
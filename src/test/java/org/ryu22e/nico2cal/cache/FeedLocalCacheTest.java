@@ -0,0 +1,98 @@
+package org.ryu22e.nico2cal.cache;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author ryu22e
+ *
+ */
+public final class FeedLocalCacheTest {
+
+    /**
+     * @param size 本文のバイト数
+     * @return テスト用のフィード
+     */
+    private CachedFeed createFeed(int size) {
+        return new CachedFeed(
+            new FeedCacheMeta("\"etag\"", 0L, size, 1),
+            new byte[size]);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void フィードを取得する_パラメータがnull() throws Exception {
+        new FeedLocalCache(1000L, 1000L).get(null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void フィードをキャッシュする() throws Exception {
+        FeedLocalCache cache = new FeedLocalCache(10000L, 60000L);
+        long hits = FeedCacheStats.getLocalHits();
+        long misses = FeedCacheStats.getLocalMisses();
+        assertThat(cache.get("a"), is(nullValue()));
+
+        CachedFeed feed = createFeed(100);
+        cache.put("a", feed);
+        assertThat(cache.get("a"), is(sameInstance(feed)));
+        assertThat(cache.size(), is(1));
+        assertThat(100 < cache.getBytes(), is(true));
+        assertThat(FeedCacheStats.getLocalHits(), is(hits + 1));
+        assertThat(FeedCacheStats.getLocalMisses(), is(misses + 1));
+
+        // 同じ条件で保存し直すと置き換わる。
+        long bytes = cache.getBytes();
+        CachedFeed other = createFeed(100);
+        cache.put("a", other);
+        assertThat(cache.get("a"), is(sameInstance(other)));
+        assertThat(cache.getBytes(), is(bytes));
+
+        cache.clear();
+        assertThat(cache.size(), is(0));
+        assertThat(cache.getBytes(), is(0L));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 上限を超えたら最も長く使われていないフィードから捨てる() throws Exception {
+        // 1件あたり1000バイトと少し。
+        FeedLocalCache cache = new FeedLocalCache(3000L, 60000L);
+        cache.put("a", createFeed(1000));
+        cache.put("b", createFeed(1000));
+        // aを使ったので、bの方が長く使われていない。
+        assertThat(cache.get("a"), is(notNullValue()));
+        cache.put("c", createFeed(1000));
+
+        assertThat(cache.size(), is(2));
+        assertThat(cache.get("a"), is(notNullValue()));
+        assertThat(cache.get("b"), is(nullValue()));
+        assertThat(cache.get("c"), is(notNullValue()));
+        assertThat(cache.getBytes() <= 3000L, is(true));
+
+        // 1件で上限を超えるフィードはキャッシュしない。
+        cache.put("d", createFeed(5000));
+        assertThat(cache.get("d"), is(nullValue()));
+        assertThat(cache.size(), is(2));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 有効期限が切れたフィードは返さない() throws Exception {
+        FeedLocalCache cache = new FeedLocalCache(10000L, 0L);
+        cache.put("a", createFeed(100));
+        assertThat(cache.get("a"), is(nullValue()));
+        assertThat(cache.size(), is(0));
+        assertThat(cache.getBytes(), is(0L));
+    }
+}
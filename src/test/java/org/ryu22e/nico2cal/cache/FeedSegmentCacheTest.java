@@ -0,0 +1,145 @@
+package org.ryu22e.nico2cal.cache;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.ryu22e.nico2cal.util.EventFragmentUtil;
+import org.slim3.memcache.Memcache;
+import org.slim3.tester.AppEngineTestCase;
+
+/**
+ * @author ryu22e
+ *
+ */
+public final class FeedSegmentCacheTest extends AppEngineTestCase {
+
+    /**
+     * 
+     */
+    private FeedSegmentCache segmentCache = new FeedSegmentCache();
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        Memcache.cleanAll();
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void セグメントのキーにVEVENTの書式のバージョンを含める() throws Exception {
+        assertThat(
+            FeedSegmentCache.createSegmentKey("20120512", 3L),
+            is("feed-segment:v" + EventFragmentUtil.FORMAT_VERSION
+                + ":20120512@3"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void 放送日の世代を取得する_パラメータがnull() throws Exception {
+        segmentCache.getGenerations(null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 放送日の世代を取得する() throws Exception {
+        assertThat(
+            segmentCache.getGenerations(new ArrayList<String>()).size(),
+            is(0));
+
+        Map<String, Long> generations =
+                segmentCache.getGenerations(Arrays.asList(
+                    "20120512",
+                    "20120513"));
+        assertThat(generations.size(), is(2));
+        // 2回目は同じ世代になる。
+        assertThat(
+            segmentCache.getGenerations(Arrays.asList("20120512", "20120513")),
+            is(generations));
+
+        // 世代を進めた放送日だけが変わる。
+        segmentCache.incrementGenerations(Arrays.asList("20120513"));
+        Map<String, Long> next =
+                segmentCache.getGenerations(Arrays.asList(
+                    "20120512",
+                    "20120513"));
+        assertThat(next.get("20120512"), is(generations.get("20120512")));
+        assertThat(next.get("20120513"), is(not(generations.get("20120513"))));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void 放送日の世代を進める_パラメータがnull() throws Exception {
+        segmentCache.incrementGenerations(null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void セグメントをキャッシュする() throws Exception {
+        Map<String, Long> generations =
+                segmentCache.getGenerations(Arrays.asList(
+                    "20120512",
+                    "20120513"));
+        assertThat(segmentCache.getSegments(generations).size(), is(0));
+
+        Map<String, String> segments = new HashMap<String, String>();
+        segments.put("20120512", "BEGIN:VEVENT\r\nEND:VEVENT\r\n");
+        segments.put("20120513", "");
+        segmentCache.putSegments(generations, segments);
+        assertThat(segmentCache.getSegments(generations), is(segments));
+
+        // 世代が進むと、その放送日のセグメントは使わない。
+        segmentCache.incrementGenerations(Arrays.asList("20120513"));
+        Map<String, String> stored =
+                segmentCache.getSegments(segmentCache.getGenerations(Arrays
+                    .asList("20120512", "20120513")));
+        assertThat(stored.size(), is(1));
+        assertThat(stored.get("20120512"), is(segments.get("20120512")));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void セグメントをキャッシュする_大きすぎるセグメントは保存しない() throws Exception {
+        Map<String, Long> generations =
+                segmentCache.getGenerations(Arrays.asList("20120512"));
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() <= FeedSegmentCache.MAX_SEGMENT_BYTES) {
+            sb.append("0123456789");
+        }
+        Map<String, String> segments = new HashMap<String, String>();
+        segments.put("20120512", sb.toString());
+        segmentCache.putSegments(generations, segments);
+        assertThat(segmentCache.getSegments(generations).size(), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void セグメントをキャッシュする_パラメータがnull() throws Exception {
+        segmentCache.putSegments(
+            new HashMap<String, Long>(),
+            null);
+    }
+}
@@ -0,0 +1,190 @@
+package org.ryu22e.nico2cal.cache;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+import org.slim3.memcache.Memcache;
+import org.slim3.tester.AppEngineTestCase;
+
+/**
+ * @author ryu22e
+ *
+ */
+public final class FeedSingleFlightTest extends AppEngineTestCase {
+
+    /**
+     * 
+     */
+    private FeedSingleFlight singleFlight = new FeedSingleFlight();
+
+    /**
+     * 別のリクエストの代わりに使うスレッド。
+     */
+    private ExecutorService otherThread;
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        Memcache.cleanAll();
+        otherThread = Executors.newSingleThreadExecutor();
+    }
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public void tearDown() throws Exception {
+        otherThread.shutdown();
+
+        super.tearDown();
+    }
+
+    /**
+     * @param variant フィードの条件
+     * @return 別のスレッドで{@link FeedSingleFlight#join(String)}した結果
+     * @throws Exception
+     */
+    private FeedSingleFlight.Flight joinFromOtherThread(final String variant)
+            throws Exception {
+        return otherThread.submit(new Callable<FeedSingleFlight.Flight>() {
+            @Override
+            public FeedSingleFlight.Flight call() throws Exception {
+                return singleFlight.join(variant);
+            }
+        }).get();
+    }
+
+    /**
+     * @param flight 別のスレッドで作成を始めた{@link FeedSingleFlight.Flight}
+     * @throws Exception
+     */
+    private void completeFromOtherThread(final FeedSingleFlight.Flight flight)
+            throws Exception {
+        otherThread.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                singleFlight.complete(flight, null);
+                return null;
+            }
+        }).get();
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void 作成に参加する_パラメータがnull() throws Exception {
+        singleFlight.join(null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 同じ条件のフィードは最初のリクエストだけが作成する() throws Exception {
+        FeedSingleFlight.Flight flight = singleFlight.join("startWeek=1");
+        assertThat(flight.isLeader(), is(true));
+
+        FeedSingleFlight.Flight other = joinFromOtherThread("startWeek=1");
+        assertThat(other, is(sameInstance(flight)));
+        // 作成中は待っても結果がない。
+        assertThat(flight.await(1L), is(nullValue()));
+
+        CachedFeed feed =
+                new CachedFeed(
+                    new FeedCacheMeta("\"etag\"", 0L, 1, 1),
+                    new byte[] { 1 });
+        singleFlight.complete(flight, feed);
+        assertThat(other.await(1L), is(sameInstance(feed)));
+
+        // 作成が終わった後は、次のリクエストが作成する。
+        FeedSingleFlight.Flight next = singleFlight.join("startWeek=1");
+        assertThat(next, is(not(sameInstance(flight))));
+        assertThat(next.isLeader(), is(true));
+        singleFlight.complete(next, null);
+        assertThat(next.await(1L), is(nullValue()));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 作成していないリクエストは作成を終えられない() throws Exception {
+        FeedSingleFlight.Flight flight = joinFromOtherThread("startWeek=3");
+        assertThat(flight.isLeader(), is(false));
+        try {
+            singleFlight.complete(flight, null);
+            fail();
+        } catch (IllegalStateException e) {
+            // 作成したリクエストが終えるまで、待っているリクエストは待ち続ける。
+            assertThat(flight.await(1L), is(nullValue()));
+        } finally {
+            completeFromOtherThread(flight);
+        }
+        FeedSingleFlight.Flight next = singleFlight.join("startWeek=3");
+        assertThat(next.isLeader(), is(true));
+        singleFlight.complete(next, null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void リースは1つのリクエストだけが取得できる() throws Exception {
+        assertThat(singleFlight.acquireLease("startWeek=1"), is(true));
+        assertThat(singleFlight.acquireLease("startWeek=1"), is(false));
+        assertThat(singleFlight.acquireLease("startWeek=2"), is(true));
+
+        singleFlight.releaseLease("startWeek=1");
+        assertThat(singleFlight.acquireLease("startWeek=1"), is(true));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 他のインスタンスがキャッシュするのを待つ() throws Exception {
+        FeedCache feedCache = new FeedCache();
+        // リースがなければ待たない。
+        assertThat(
+            singleFlight.awaitLease(feedCache, "startWeek=1", 1000L),
+            is(nullValue()));
+
+        // リースがあっても、時間内にキャッシュされなければnull。
+        assertThat(singleFlight.acquireLease("startWeek=1"), is(true));
+        assertThat(
+            singleFlight.awaitLease(feedCache, "startWeek=1", 1L),
+            is(nullValue()));
+
+        feedCache.put("startWeek=1", "テスト", 0L);
+        CachedFeed feed =
+                singleFlight.awaitLease(feedCache, "startWeek=1", 1000L);
+        assertThat(feed.getMeta().getEtag(), is(FeedCache.createETag("テスト")));
+        assertThat(
+            new String(FeedCache.decompress(feed.getBody()), "UTF-8"),
+            is("テスト"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 待ち合わせたリクエスト数を記録する() throws Exception {
+        long count = FeedSingleFlight.getCoalescedCount();
+        assertThat(singleFlight.getTotalCoalescedCount(), is(0L));
+
+        singleFlight.recordCoalesced("startWeek=1", "instance");
+        singleFlight.recordCoalesced("startWeek=1", "stale");
+        assertThat(FeedSingleFlight.getCoalescedCount(), is(count + 2));
+        assertThat(singleFlight.getTotalCoalescedCount(), is(2L));
+    }
+}
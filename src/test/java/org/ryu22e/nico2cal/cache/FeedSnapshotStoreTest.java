@@ -0,0 +1,220 @@
+package org.ryu22e.nico2cal.cache;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+import org.slim3.memcache.Memcache;
+import org.slim3.tester.AppEngineTestCase;
+
+import com.google.appengine.api.datastore.KeyFactory;
+
+/**
+ * @author ryu22e
+ *
+ */
+public final class FeedSnapshotStoreTest extends AppEngineTestCase {
+
+    /**
+     * 
+     */
+    private static final long BASE = 1336748400000L;
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        Memcache.cleanAll();
+        FeedSnapshotStore.clearResident();
+    }
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public void tearDown() throws Exception {
+        FeedSnapshotStore.clearResident();
+
+        super.tearDown();
+    }
+
+    /**
+     * @param generation 世代
+     * @return スナップショット
+     */
+    private FeedSnapshot createSnapshot(String generation) {
+        List<FeedSnapshot.Row> rows = new ArrayList<FeedSnapshot.Row>();
+        for (int i = 0; i < 50; i++) {
+            rows.add(new FeedSnapshot.Row(
+                KeyFactory.createKey("Nicolive", "lv" + i),
+                new Date(BASE + i * 60L * 1000L),
+                "BEGIN:VEVENT\r\nSUMMARY:テスト" + i + "\r\nEND:VEVENT\r\n",
+                new HashSet<String>(Arrays.asList("テスト", "番組" + i))));
+        }
+        return FeedSnapshot.create(generation, new Date(BASE), rows);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void スナップショットを公開する_パラメータがnull() throws Exception {
+        new FeedSnapshotStore().publish(null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void スナップショットを取得する_公開されていない() throws Exception {
+        FeedSnapshotStore store = new FeedSnapshotStore();
+        assertThat(store.getMeta(), is(nullValue()));
+        assertThat(store.get(), is(nullValue()));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void スナップショットを公開する() throws Exception {
+        // 小さく分割して保存する。
+        FeedSnapshotStore store = new FeedSnapshotStore(100);
+        FeedSnapshot snapshot = createSnapshot("1");
+        FeedSnapshotMeta meta = store.publish(snapshot);
+        assertThat(meta.getGeneration(), is("1"));
+        assertThat(1 < meta.getChunkCount(), is(true));
+        assertThat(store.getMeta().getGeneration(), is("1"));
+
+        // 公開したインスタンスでは、メモリに載せたスナップショットを使う。
+        assertThat(store.get(), is(sameInstance(snapshot)));
+
+        // 他のインスタンスでは、Memcacheから読み出して復元する。
+        FeedSnapshotStore.clearResident();
+        FeedSnapshot loaded = store.get();
+        assertThat(loaded, is(not(sameInstance(snapshot))));
+        assertThat(loaded.getGeneration(), is("1"));
+        assertThat(loaded.size(), is(snapshot.size()));
+        assertThat(
+            loaded.findEvents(new Date(BASE), Arrays.asList("番組3")),
+            is(snapshot.findEvents(new Date(BASE), Arrays.asList("番組3"))));
+        // 同じ世代のうちは読み直さない。
+        assertThat(store.get(), is(sameInstance(loaded)));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void スナップショットを取得する_世代が変わったら読み直す() throws Exception {
+        FeedSnapshotStore store = new FeedSnapshotStore();
+        store.publish(createSnapshot("1"));
+        FeedSnapshot current = store.get();
+
+        // 別のインスタンスが次の世代を公開した。
+        FeedSnapshotStore.clearResident();
+        FeedSnapshot next = createSnapshot("2");
+        store.publish(next);
+        FeedSnapshotStore.clearResident();
+        assertThat(store.get().getGeneration(), is("2"));
+        assertThat(store.get(), is(not(sameInstance(current))));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void スナップショットを取得する_一部が追い出されていた() throws Exception {
+        FeedSnapshotStore store = new FeedSnapshotStore(100);
+        store.publish(createSnapshot("1"));
+        FeedSnapshotStore.clearResident();
+        Memcache.delete(FeedSnapshotStore.createChunkKey("1", 1));
+
+        assertThat(store.getMeta(), is(notNullValue()));
+        assertThat(store.get(), is(nullValue()));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void スナップショットを取得する_読み出せなかった目録は公開し直すまで読み直さない()
+            throws Exception {
+        FeedSnapshotStore store = new FeedSnapshotStore(100);
+        FeedSnapshot snapshot = createSnapshot("1");
+        FeedSnapshotMeta meta = store.publish(snapshot);
+        FeedSnapshotStore.clearResident();
+        String chunkKey = FeedSnapshotStore.createChunkKey("1", 1);
+        Object chunk = Memcache.get(chunkKey);
+        Memcache.delete(chunkKey);
+        assertThat(store.get(meta), is(nullValue()));
+
+        // 同じ目録のうちは、追い出された部分が戻っても読み直さない。
+        Memcache.put(chunkKey, chunk);
+        assertThat(store.get(meta), is(nullValue()));
+
+        // 公開し直されて目録が変わったら読み直す。
+        FeedSnapshot loaded =
+                store.get(new FeedSnapshotMeta(
+                    meta.getGeneration(),
+                    meta.getLength(),
+                    meta.getChunkCount(),
+                    meta.getPublishedAt() + 1));
+        assertThat(loaded.getGeneration(), is("1"));
+        assertThat(loaded.size(), is(snapshot.size()));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void スナップショットを取得する_読み出せなかった場合は前の世代を返す()
+            throws Exception {
+        FeedSnapshotStore store = new FeedSnapshotStore(100);
+        // 別のインスタンスが次の世代を公開したが、一部が追い出された。
+        FeedSnapshotMeta next = store.publish(createSnapshot("2"));
+        Memcache.delete(FeedSnapshotStore.createChunkKey("2", 1));
+        FeedSnapshot current = createSnapshot("1");
+        store.publish(current);
+
+        assertThat(store.get(next), is(sameInstance(current)));
+        assertThat(store.get(next), is(sameInstance(current)));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void スナップショットを取得する_他のリクエストが読み直している間は待たない()
+            throws Exception {
+        FeedSnapshotStore store = new FeedSnapshotStore();
+        FeedSnapshotMeta next = store.publish(createSnapshot("2"));
+        FeedSnapshot current = createSnapshot("1");
+        store.publish(current);
+
+        // 他のリクエストが読み直している間は、前の世代のスナップショットを返す。
+        FeedSnapshotStore.LOADING.set(true);
+        try {
+            assertThat(store.get(next), is(sameInstance(current)));
+        } finally {
+            FeedSnapshotStore.LOADING.set(false);
+        }
+        assertThat(store.get(next).getGeneration(), is("2"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void コンストラクタ_分割するバイト数が不正() throws Exception {
+        new FeedSnapshotStore(0);
+    }
+}
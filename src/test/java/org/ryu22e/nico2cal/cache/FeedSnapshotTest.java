@@ -0,0 +1,255 @@
+package org.ryu22e.nico2cal.cache;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import org.slim3.tester.AppEngineTestCase;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+
+/**
+ * @author ryu22e
+ *
+ */
+public final class FeedSnapshotTest extends AppEngineTestCase {
+
+    /**
+     * 
+     */
+    private static final long BASE = 1336748400000L;
+
+    /**
+     * 
+     */
+    private static final long MINUTE = 60L * 1000L;
+
+    /**
+     * @param id 放送ID
+     * @param minutes 基準日時からの分数
+     * @param keywords キーワード
+     * @return 行
+     */
+    private FeedSnapshot.Row createRow(String id, int minutes,
+            String... keywords) {
+        Key key = KeyFactory.createKey("Nicolive", id);
+        return new FeedSnapshot.Row(
+            key,
+            new Date(BASE + minutes * MINUTE),
+            "BEGIN:VEVENT\r\nSUMMARY:" + id + "\r\nEND:VEVENT\r\n",
+            new HashSet<String>(Arrays.asList(keywords)));
+    }
+
+    /**
+     * @return スナップショット
+     */
+    private FeedSnapshot createSnapshot() {
+        List<FeedSnapshot.Row> rows = new ArrayList<FeedSnapshot.Row>();
+        rows.add(createRow("lv3", 30, "ゲーム", "実況"));
+        rows.add(createRow("lv1", 10, "ゲーム"));
+        rows.add(createRow("lv2", 20, "雑談"));
+        rows.add(createRow("lv4", 40, "ゲーム", "実況", "雑談"));
+        // 期間より前の行は含めない。
+        rows.add(createRow("lv0", -10, "ゲーム"));
+        return FeedSnapshot.create("1", new Date(BASE), rows);
+    }
+
+    /**
+     * @param events VEVENT
+     * @return VEVENTのSUMMARY
+     */
+    private List<String> toSummaries(List<String> events) {
+        List<String> summaries = new ArrayList<String>();
+        for (String event : events) {
+            int start = event.indexOf("SUMMARY:") + "SUMMARY:".length();
+            summaries.add(event.substring(start, event.indexOf("\r\n", start)));
+        }
+        return summaries;
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void スナップショットを作成する_パラメータがnull() throws Exception {
+        FeedSnapshot.create("1", new Date(BASE), null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void スナップショットを作成する() throws Exception {
+        FeedSnapshot snapshot = createSnapshot();
+        assertThat(snapshot.getGeneration(), is("1"));
+        assertThat(snapshot.getFrom(), is(new Date(BASE)));
+        assertThat(snapshot.size(), is(4));
+        // 開場日時の昇順に並ぶ。
+        assertThat(
+            toSummaries(snapshot.findEvents(new Date(BASE), null)),
+            is(Arrays.asList("lv1", "lv2", "lv3", "lv4")));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void スナップショットを作成する_作り直した日時がnull() throws Exception {
+        FeedSnapshot.create(
+            "1",
+            new Date(BASE),
+            null,
+            new ArrayList<FeedSnapshot.Row>());
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void スナップショットを作成する_作り直した日時を引き継ぐ() throws Exception {
+        FeedSnapshot snapshot =
+                FeedSnapshot.create(
+                    "2",
+                    new Date(BASE),
+                    new Date(BASE + 5),
+                    createSnapshot().getRows());
+        assertThat(snapshot.getRebuiltAt(), is(new Date(BASE + 5)));
+        assertThat(snapshot.size(), is(4));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void スナップショットを作成する_同じキーの行は後の行を使う() throws Exception {
+        FeedSnapshot snapshot =
+                FeedSnapshot.create("1", new Date(BASE), Arrays.asList(
+                    createRow("lv1", 10, "ゲーム"),
+                    createRow("lv2", 20, "ゲーム"),
+                    createRow("lv1", 30, "雑談")));
+        assertThat(snapshot.size(), is(2));
+        assertThat(
+            toSummaries(snapshot.findEvents(new Date(BASE), null)),
+            is(Arrays.asList("lv2", "lv1")));
+        assertThat(
+            toSummaries(snapshot.findEvents(
+                new Date(BASE),
+                Arrays.asList("ゲーム"))),
+            is(Arrays.asList("lv2")));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 開始日時以降の行番号を二分探索で求める() throws Exception {
+        FeedSnapshot snapshot = createSnapshot();
+        assertThat(snapshot.findFirstRow(new Date(BASE)), is(0));
+        assertThat(snapshot.findFirstRow(new Date(BASE + 10 * MINUTE)), is(0));
+        assertThat(
+            snapshot.findFirstRow(new Date(BASE + 10 * MINUTE + 1)),
+            is(1));
+        assertThat(snapshot.findFirstRow(new Date(BASE + 40 * MINUTE)), is(3));
+        assertThat(snapshot.findFirstRow(new Date(BASE + 50 * MINUTE)), is(4));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 開始日時以降のVEVENTを取得する() throws Exception {
+        FeedSnapshot snapshot = createSnapshot();
+        assertThat(
+            toSummaries(snapshot.findEvents(
+                new Date(BASE + 20 * MINUTE),
+                null)),
+            is(Arrays.asList("lv2", "lv3", "lv4")));
+        assertThat(
+            snapshot.findEvents(new Date(BASE + 50 * MINUTE), null).size(),
+            is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 全てのキーワードに該当するVEVENTを取得する() throws Exception {
+        FeedSnapshot snapshot = createSnapshot();
+        assertThat(
+            toSummaries(snapshot.findEvents(
+                new Date(BASE),
+                Arrays.asList("ゲーム"))),
+            is(Arrays.asList("lv1", "lv3", "lv4")));
+        assertThat(
+            toSummaries(snapshot.findEvents(
+                new Date(BASE),
+                Arrays.asList("ゲーム", "実況"))),
+            is(Arrays.asList("lv3", "lv4")));
+        // 開始日時より前の行は含めない。
+        assertThat(
+            toSummaries(snapshot.findEvents(
+                new Date(BASE + 35 * MINUTE),
+                Arrays.asList("ゲーム", "実況"))),
+            is(Arrays.asList("lv4")));
+        assertThat(
+            snapshot.findEvents(
+                new Date(BASE),
+                Arrays.asList("ゲーム", "存在しないキーワード")).size(),
+            is(0));
+        // キーワードが空の場合は絞り込まない。
+        assertThat(
+            snapshot.findEvents(new Date(BASE), new ArrayList<String>()).size(),
+            is(4));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 開始日時が期間内かどうかを判定する() throws Exception {
+        FeedSnapshot snapshot = createSnapshot();
+        assertThat(snapshot.covers(new Date(BASE)), is(true));
+        assertThat(snapshot.covers(new Date(BASE - 1)), is(false));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void 開始日時以降のVEVENTを取得する_期間外() throws Exception {
+        createSnapshot().findEvents(new Date(BASE - 1), null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 全ての行を取得する() throws Exception {
+        FeedSnapshot snapshot = createSnapshot();
+        List<FeedSnapshot.Row> rows = snapshot.getRows();
+        assertThat(rows.size(), is(4));
+        assertThat(rows.get(3).getKey(), is(KeyFactory.createKey(
+            "Nicolive",
+            "lv4")));
+        assertThat(
+            rows.get(3).getKeywords(),
+            is((Set<String>) new HashSet<String>(Arrays.asList(
+                "ゲーム",
+                "実況",
+                "雑談"))));
+
+        // 取得した行から作り直しても同じ内容になる。
+        FeedSnapshot rebuilt = FeedSnapshot.create("2", new Date(BASE), rows);
+        assertThat(
+            rebuilt.findEvents(new Date(BASE), Arrays.asList("雑談")),
+            is(snapshot.findEvents(new Date(BASE), Arrays.asList("雑談"))));
+    }
+}
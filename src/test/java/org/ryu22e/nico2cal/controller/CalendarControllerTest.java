@@ -8,8 +8,12 @@ import java.io.Reader;
 import java.io.StringReader;
 import java.net.URLEncoder;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import net.fortuna.ical4j.data.CalendarBuilder;
 import net.fortuna.ical4j.data.ParserException;
@@ -19,10 +23,15 @@ import net.fortuna.ical4j.model.component.VEvent;
 
 import org.joda.time.DateTime;
 import org.junit.Test;
-import org.ryu22e.nico2cal.meta.NicoliveIndexMeta;
+import org.ryu22e.nico2cal.cache.FeedCache;
+import org.ryu22e.nico2cal.cache.FeedCacheStats;
+import org.ryu22e.nico2cal.cache.FeedLocalCache;
+import org.ryu22e.nico2cal.cache.FeedSingleFlight;
 import org.ryu22e.nico2cal.meta.NicoliveMeta;
+import org.ryu22e.nico2cal.meta.NicolivePostingMeta;
 import org.ryu22e.nico2cal.model.Nicolive;
-import org.ryu22e.nico2cal.model.NicoliveIndex;
+import org.ryu22e.nico2cal.service.KeywordSearchService;
+import org.ryu22e.nico2cal.service.NicoliveService;
 import org.slim3.datastore.Datastore;
 import org.slim3.memcache.Memcache;
 import org.slim3.tester.ControllerTestCase;
@@ -49,8 +58,8 @@ public final class CalendarControllerTest extends ControllerTestCase {
     private void clearDataStore() {
         NicoliveMeta n = NicoliveMeta.get();
         Datastore.delete(Datastore.query(n).asKeyList());
-        NicoliveIndexMeta ni = NicoliveIndexMeta.get();
-        Datastore.delete(Datastore.query(ni).asKeyList());
+        NicolivePostingMeta np = NicolivePostingMeta.get();
+        Datastore.delete(Datastore.query(np).asKeyList());
     }
 
     /*
@@ -63,11 +72,13 @@ public final class CalendarControllerTest extends ControllerTestCase {
         NamespaceManager.set("test");
 
         clearDataStore();
+        FeedLocalCache.getInstance().clear();
 
         // テストデータを登録する。
         testDataKeys.clear();
         List<Nicolive> nicolives = new LinkedList<Nicolive>();
-        List<NicoliveIndex> indexes = new LinkedList<NicoliveIndex>();
+        Map<Nicolive, Set<String>> keywords =
+                new LinkedHashMap<Nicolive, Set<String>>();
         DateTime datetime = new DateTime();
         for (int i = 0; i < 4; i++) {
             Nicolive nicolive = new Nicolive();
@@ -78,28 +89,14 @@ public final class CalendarControllerTest extends ControllerTestCase {
             nicolive.setLink(new Link("http://ryu22e.org/" + i));
             nicolives.add(nicolive);
 
-            NicoliveIndex index1 = new NicoliveIndex();
-            index1.setKeyword("テスト");
-            index1.setNicoliveKey(nicolive.getKey());
-            indexes.add(index1);
-
-            NicoliveIndex index2 = new NicoliveIndex();
-            index2.setKeyword("説明");
-            index2.setNicoliveKey(nicolive.getKey());
-            indexes.add(index2);
-
-            NicoliveIndex index3 = new NicoliveIndex();
-            index3.setKeyword("文");
-            index3.setNicoliveKey(nicolive.getKey());
-            indexes.add(index3);
-
-            NicoliveIndex index4 = new NicoliveIndex();
-            index4.setKeyword(Integer.toString(i));
-            index4.setNicoliveKey(nicolive.getKey());
-            indexes.add(index4);
+            keywords.put(nicolive, new HashSet<String>(Arrays.asList(
+                "テスト",
+                "説明",
+                "文",
+                Integer.toString(i))));
         }
         testDataKeys.addAll(Datastore.put(nicolives));
-        testDataKeys.addAll(Datastore.put(indexes));
+        testDataKeys.addAll(new NicoliveService().putPostings(keywords));
     }
 
     /*
@@ -552,9 +549,10 @@ public final class CalendarControllerTest extends ControllerTestCase {
      */
     @Test
     public void 同じ条件で２回iCalendarファイルをダウンロードする() throws Exception {
+        // キャッシュのキーには正規化して並べ替えたキーワードを使う。
         String memcacheKey =
-                "startWeek=1&keyword=" + URLEncoder.encode("テスト 説明 文", "UTF-8");
-        Memcache.delete(memcacheKey);
+                "startWeek=1&keyword=" + URLEncoder.encode("テスト 文 説明", "UTF-8");
+        Memcache.cleanAll();
 
         tester.param("startWeek", 1);
         tester.param("keyword", "テスト 説明 文");
@@ -577,11 +575,19 @@ public final class CalendarControllerTest extends ControllerTestCase {
         }
 
         // 取得した内容がキャッシュにも保存されている。
-        Object cache = Memcache.get(memcacheKey);
-        assertThat(output1, is(instanceOf(String.class)));
+        FeedCache feedCache = new FeedCache();
+        memcacheKey +=
+                "&generation="
+                        + feedCache.getGeneration(KeywordSearchService
+                            .canonicalize("テスト 説明 文"));
+        byte[] cache = feedCache.getBody(memcacheKey);
+        assertThat(cache, is(notNullValue()));
         Calendar calendarCache = null;
         try {
-            Reader reader = new StringReader((String) cache);
+            Reader reader =
+                    new StringReader(new String(
+                        FeedCache.decompress(cache),
+                        "UTF-8"));
             CalendarBuilder builder = new CalendarBuilder();
             calendarCache = builder.build(reader);
         } catch (IOException e) {
@@ -614,6 +620,331 @@ public final class CalendarControllerTest extends ControllerTestCase {
         assertThat(calendar2, is(calendarCache));
     }
 
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void キャッシュと同じETagを指定すると304を返す() throws Exception {
+        Memcache.cleanAll();
+
+        tester.param("startWeek", 1);
+        tester.param("keyword", "テスト 説明 文");
+        tester.start("/Calendar");
+        assertThat(tester.response.getStatus(), is(200));
+        assertThat(
+            tester.response.getHeader("Cache-Control"),
+            is("public, max-age=600"));
+
+        // 2回目はキャッシュから返すので、ETagが付く。
+        tester.param("startWeek", 1);
+        tester.param("keyword", "テスト 説明 文");
+        tester.start("/Calendar");
+        assertThat(tester.response.getStatus(), is(200));
+        String etag = tester.response.getHeader("ETag");
+        assertThat(etag, is(notNullValue()));
+        assertThat(
+            etag,
+            is(FeedCache.createETag(tester.response.getOutputAsString())));
+
+        tester.param("startWeek", 1);
+        tester.param("keyword", "テスト 説明 文");
+        tester.request.setHeader("If-None-Match", "\"dummy\", " + etag);
+        tester.start("/Calendar");
+        CalendarController controller = tester.getController();
+        assertThat(controller, is(notNullValue()));
+        assertThat(tester.isRedirect(), is(false));
+        assertThat(tester.response.getStatus(), is(304));
+        assertThat(tester.response.getHeader("ETag"), is(etag));
+        assertThat(tester.response.getOutputAsString(), is(""));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void キャッシュと違うETagを指定すると本文を返す() throws Exception {
+        Memcache.cleanAll();
+
+        tester.param("startWeek", 1);
+        tester.start("/Calendar");
+        assertThat(tester.response.getStatus(), is(200));
+
+        tester.param("startWeek", 1);
+        tester.request.setHeader("If-None-Match", "\"dummy\"");
+        tester.start("/Calendar");
+        assertThat(tester.response.getStatus(), is(200));
+        assertThat(tester.response.getOutputAsString().length(), not(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void gzipを受け付けるクライアントには圧縮して返す() throws Exception {
+        Memcache.cleanAll();
+
+        // gzipを受け付けないクライアント。
+        tester.param("startWeek", 1);
+        tester.param("keyword", "テスト 説明 文");
+        tester.start("/Calendar");
+        assertThat(tester.response.getStatus(), is(200));
+        assertThat(
+            tester.response.getHeader("Content-Encoding"),
+            is(nullValue()));
+        assertThat(tester.response.getHeader("Vary"), is("Accept-Encoding"));
+        String plain = tester.response.getOutputAsString();
+
+        // キャッシュがない場合も、キャッシュがある場合も圧縮して返す。
+        for (int i = 0; i < 2; i++) {
+            tester.param("startWeek", 1);
+            tester.param("keyword", "テスト 説明 文");
+            tester.request.setHeader("Accept-Encoding", "deflate, gzip;q=0.5");
+            tester.start("/Calendar");
+            assertThat(tester.response.getStatus(), is(200));
+            assertThat(
+                tester.response.getHeader("Content-Encoding"),
+                is("gzip"));
+            assertThat(
+                tester.response.getHeader("Vary"),
+                is("Accept-Encoding"));
+            byte[] body =
+                    FeedCache.decompress(tester.response
+                        .getOutputAsByteArray());
+            assertThat(new String(body, "UTF-8"), is(plain));
+        }
+        // 圧縮した本文には別のETagが付く。
+        String etag = tester.response.getHeader("ETag");
+        assertThat(etag, is(notNullValue()));
+        assertThat(etag, is(not(FeedCache.createETag(plain))));
+
+        // 圧縮したものと同じETagを指定すると304を返す。
+        tester.param("startWeek", 1);
+        tester.param("keyword", "テスト 説明 文");
+        tester.request.setHeader("Accept-Encoding", "gzip");
+        tester.request.setHeader("If-None-Match", etag);
+        tester.start("/Calendar");
+        assertThat(tester.response.getStatus(), is(304));
+        assertThat(tester.response.getHeader("ETag"), is(etag));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void gzipをq0で拒否するクライアントには圧縮せずに返す() throws Exception {
+        Memcache.cleanAll();
+
+        for (int i = 0; i < 2; i++) {
+            tester.param("startWeek", 1);
+            tester.request.setHeader("Accept-Encoding", "gzip;q=0, identity");
+            tester.start("/Calendar");
+            assertThat(tester.response.getStatus(), is(200));
+            assertThat(
+                tester.response.getHeader("Content-Encoding"),
+                is(nullValue()));
+            assertThat(
+                tester.response.getOutputAsString().startsWith(
+                    "BEGIN:VCALENDAR"),
+                is(true));
+        }
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 世代が進むとキャッシュを使わない() throws Exception {
+        Memcache.cleanAll();
+        FeedCache feedCache = new FeedCache();
+
+        tester.param("startWeek", 1);
+        tester.start("/Calendar");
+        assertThat(tester.response.getStatus(), is(200));
+
+        tester.param("startWeek", 1);
+        tester.start("/Calendar");
+        String etag = tester.response.getHeader("ETag");
+        assertThat(etag, is(notNullValue()));
+
+        // 新しい世代ではまだキャッシュがないので、ETagのない本文を返す。
+        feedCache.incrementGeneration();
+        tester.param("startWeek", 1);
+        tester.request.setHeader("If-None-Match", etag);
+        tester.start("/Calendar");
+        assertThat(tester.response.getStatus(), is(200));
+        assertThat(tester.response.getHeader("ETag"), is(nullValue()));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 他のインスタンスが作成中の場合は古い世代のフィードを返す() throws Exception {
+        Memcache.cleanAll();
+        FeedCache feedCache = new FeedCache();
+
+        tester.param("startWeek", 1);
+        tester.start("/Calendar");
+        tester.param("startWeek", 1);
+        tester.start("/Calendar");
+        String etag = tester.response.getHeader("ETag");
+        assertThat(etag, is(notNullValue()));
+
+        // 新しい世代のフィードを他のインスタンスが作成中。
+        feedCache.incrementGeneration();
+        FeedSingleFlight singleFlight = new FeedSingleFlight();
+        String memcacheKey =
+                "startWeek=1&generation=" + feedCache.getGeneration(null);
+        assertThat(singleFlight.acquireLease(memcacheKey), is(true));
+        long coalesced = singleFlight.getTotalCoalescedCount();
+
+        tester.param("startWeek", 1);
+        tester.start("/Calendar");
+        assertThat(tester.response.getStatus(), is(200));
+        assertThat(tester.response.getHeader("ETag"), is(etag));
+        assertThat(
+            singleFlight.getTotalCoalescedCount(),
+            is(coalesced + 1));
+        // 古い世代のフィードは新しい世代としてキャッシュしない。
+        assertThat(feedCache.getMeta(memcacheKey), is(nullValue()));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void インスタンスのメモリにキャッシュがあればMemcacheを使わない() throws Exception {
+        Memcache.cleanAll();
+
+        tester.param("startWeek", 1);
+        tester.start("/Calendar");
+        assertThat(tester.response.getStatus(), is(200));
+        String output = tester.response.getOutputAsString();
+
+        // Memcacheから追い出されても、インスタンスのメモリから返す。
+        FeedCache feedCache = new FeedCache();
+        String memcacheKey =
+                "startWeek=1&generation=" + feedCache.getGeneration(null);
+        Memcache.delete("feed-meta:" + memcacheKey);
+        long localHits = FeedCacheStats.getLocalHits();
+
+        tester.param("startWeek", 1);
+        tester.start("/Calendar");
+        assertThat(tester.response.getStatus(), is(200));
+        assertThat(tester.response.getHeader("ETag"), is(notNullValue()));
+        assertThat(tester.response.getOutputAsString(), is(output));
+        assertThat(FeedCacheStats.getLocalHits(), is(localHits + 1));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 表記と並び順だけが違うキーワードは同じキャッシュを使う() throws Exception {
+        Memcache.cleanAll();
+
+        tester.param("startWeek", 1);
+        tester.param("keyword", "テスト 説明");
+        tester.start("/Calendar");
+        assertThat(tester.response.getStatus(), is(200));
+        String output = tester.response.getOutputAsString();
+        String etag = tester.response.getHeader("ETag");
+        assertThat(etag, is(notNullValue()));
+        long memcacheHits = FeedCacheStats.getMemcacheHits();
+        long localHits = FeedCacheStats.getLocalHits();
+
+        // 全角スペース、連続した空白、重複を含むキーワード。
+        tester.param("startWeek", 1);
+        tester.param("keyword", " 説明　テスト  説明 ");
+        tester.start("/Calendar");
+        assertThat(tester.response.getStatus(), is(200));
+        assertThat(tester.response.getHeader("ETag"), is(etag));
+        assertThat(tester.response.getOutputAsString(), is(output));
+        assertThat(
+            FeedCacheStats.getLocalHits() + FeedCacheStats.getMemcacheHits(),
+            is(localHits + memcacheHits + 1));
+
+        // 空白だけのキーワードは、キーワードを指定しない場合と区別して該当なしにする。
+        tester.param("startWeek", 1);
+        tester.start("/Calendar");
+        String all = tester.response.getOutputAsString();
+        assertThat(all.contains("BEGIN:VEVENT"), is(true));
+        for (String blank : new String[] { "　 ", "" }) {
+            tester.param("startWeek", 1);
+            tester.param("keyword", blank);
+            tester.start("/Calendar");
+            assertThat(tester.response.getStatus(), is(200));
+            String empty = tester.response.getOutputAsString();
+            assertThat(empty.contains("BEGIN:VCALENDAR"), is(true));
+            assertThat(empty.contains("BEGIN:VEVENT"), is(false));
+        }
+
+        // キャッシュを使っても、キーワードを指定しない場合のフィードにはならない。
+        tester.param("startWeek", 1);
+        tester.param("keyword", "　 ");
+        tester.start("/Calendar");
+        assertThat(
+            tester.response.getOutputAsString().contains("BEGIN:VEVENT"),
+            is(false));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 最終更新日時以降のIf_Modified_Sinceを指定すると304を返す() throws Exception {
+        Memcache.cleanAll();
+        FeedCache feedCache = new FeedCache();
+        DateTime lastIngest = new DateTime().minusHours(1);
+        feedCache.setLastIngest(lastIngest.toDate());
+
+        tester.param("startWeek", 1);
+        tester.start("/Calendar");
+        assertThat(tester.response.getStatus(), is(200));
+        long built = System.currentTimeMillis();
+
+        tester.param("startWeek", 1);
+        tester.request.setDateHeader("If-Modified-Since", built);
+        tester.start("/Calendar");
+        assertThat(tester.response.getStatus(), is(304));
+
+        // 最終更新日時は最後に取り込んだ日時ではなく、フィードを作成した日時になる。
+        tester.param("startWeek", 1);
+        tester.request.setDateHeader("If-Modified-Since", lastIngest
+            .plusMinutes(1)
+            .getMillis());
+        tester.start("/Calendar");
+        assertThat(tester.response.getStatus(), is(200));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 取り込みなしに世代が進むとIf_Modified_Sinceを指定しても200を返す()
+            throws Exception {
+        Memcache.cleanAll();
+        FeedCache feedCache = new FeedCache();
+        feedCache.setLastIngest(new DateTime().minusHours(1).toDate());
+
+        tester.param("startWeek", 1);
+        tester.param("keyword", "テスト");
+        tester.start("/Calendar");
+        assertThat(tester.response.getStatus(), is(200));
+        long built = System.currentTimeMillis();
+
+        // 全文検索用インデックスの更新などで、キーワードの世代だけが進む。
+        // 最終更新日時は秒単位なので、同じ秒に作成されないように待つ。
+        Thread.sleep(1000L);
+        feedCache.incrementGenerations(Arrays.asList("テスト"));
+
+        tester.param("startWeek", 1);
+        tester.param("keyword", "テスト");
+        tester.request.setDateHeader("If-Modified-Since", built);
+        tester.start("/Calendar");
+        assertThat(tester.response.getStatus(), is(200));
+    }
+
     /**
      * @throws Exception
      */
@@ -3,13 +3,22 @@ package org.ryu22e.nico2cal.controller;
 import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.*;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.joda.time.DateTime;
 import org.junit.Test;
 import org.ryu22e.nico2cal.meta.NicoliveIndexMeta;
+import org.ryu22e.nico2cal.meta.NicoliveMeta;
+import org.ryu22e.nico2cal.meta.NicolivePostingMeta;
+import org.ryu22e.nico2cal.model.Nicolive;
 import org.ryu22e.nico2cal.model.NicoliveIndex;
+import org.ryu22e.nico2cal.service.NicoliveService;
 import org.slim3.datastore.Datastore;
 import org.slim3.tester.ControllerTestCase;
 
@@ -47,6 +56,15 @@ public final class DeleteOldNicoliveIndexControllerTest extends
         }
         testDataKeys.addAll(Datastore.put(indexes));
 
+        Map<Nicolive, Set<String>> keywords =
+                new LinkedHashMap<Nicolive, Set<String>>();
+        for (int i = 0; i < 50; i++) {
+            Nicolive nicolive = new Nicolive();
+            nicolive.setKey(Datastore.createKey(NicoliveMeta.get(), "lv" + i));
+            nicolive.setOpenTime(datetime.minusDays(i).toDate());
+            keywords.put(nicolive, new HashSet<String>(Arrays.asList("テスト")));
+        }
+        testDataKeys.addAll(new NicoliveService().putPostings(keywords));
     }
 
     /*
@@ -85,5 +103,16 @@ public final class DeleteOldNicoliveIndexControllerTest extends
                             .toDate()))
                     .count();
         assertThat(count, is(0));
+
+        NicolivePostingMeta np = NicolivePostingMeta.get();
+        int postingCount =
+                Datastore
+                    .query(np)
+                    .filter(
+                        np.day.lessThan(NicoliveService.toDay(datetime
+                            .minusDays(31)
+                            .toDate())))
+                    .count();
+        assertThat(postingCount, is(0));
     }
 }
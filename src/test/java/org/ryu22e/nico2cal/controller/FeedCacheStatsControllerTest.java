@@ -0,0 +1,39 @@
+package org.ryu22e.nico2cal.controller;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.ryu22e.nico2cal.cache.FeedCacheStats;
+import org.slim3.tester.ControllerTestCase;
+
+/**
+ * @author ryu22e
+ *
+ */
+public final class FeedCacheStatsControllerTest extends ControllerTestCase {
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void キャッシュのヒット率を表示する() throws Exception {
+        FeedCacheStats.reset();
+        FeedCacheStats.recordMemcache(true);
+
+        tester.start("/FeedCacheStats");
+        FeedCacheStatsController controller = tester.getController();
+        assertThat(controller, is(notNullValue()));
+        assertThat(tester.isRedirect(), is(false));
+        assertThat(tester.response.getStatus(), is(200));
+        assertThat(tester.getDestinationPath(), is(nullValue()));
+        assertThat(
+            tester.response.getContentType(),
+            is("text/plain;charset=UTF-8"));
+        String output = tester.response.getOutputAsString();
+        assertThat(output.contains("local.hitRatio=0.0\n"), is(true));
+        assertThat(output.contains("memcache.hits=1\n"), is(true));
+        assertThat(output.contains("memcache.hitRatio=1.0\n"), is(true));
+        assertThat(output.contains("coalesced.total="), is(true));
+    }
+}
@@ -0,0 +1,87 @@
+package org.ryu22e.nico2cal.controller;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Test;
+import org.ryu22e.nico2cal.meta.NicoliveMeta;
+import org.ryu22e.nico2cal.model.Nicolive;
+import org.slim3.datastore.Datastore;
+import org.slim3.tester.ControllerTestCase;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Link;
+import com.google.appengine.api.datastore.Text;
+
+/**
+ * @author ryu22e
+ *
+ */
+public final class FillPlainDescriptionControllerTest extends
+        ControllerTestCase {
+    /**
+     * 
+     */
+    private List<Key> testDataKeys = new LinkedList<Key>();
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        NamespaceManager.set("test");
+
+        // 説明文が保存されていないテストデータを登録する。
+        List<Nicolive> nicolives = new LinkedList<Nicolive>();
+        for (int i = 0; i < 10; i++) {
+            Nicolive nicolive = new Nicolive();
+            nicolive.setTitle("テスト" + i);
+            nicolive.setDescription(new Text("<p>テスト<b>説明文</b>" + i + "</p>"));
+            nicolive.setLink(new Link("http://ryu22e.org/" + i));
+            nicolives.add(nicolive);
+        }
+        testDataKeys.addAll(Datastore.put(nicolives));
+    }
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public void tearDown() throws Exception {
+        // テストデータを削除する。
+        if (0 < testDataKeys.size()) {
+            Datastore.delete(testDataKeys);
+        }
+
+        super.tearDown();
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void HTMLタグを除去した説明文を保存する() throws Exception {
+        tester.start("/FillPlainDescription");
+        FillPlainDescriptionController controller = tester.getController();
+        assertThat(controller, is(notNullValue()));
+        assertThat(tester.isRedirect(), is(false));
+        assertThat(tester.response.getStatus(), is(200));
+        assertThat(tester.getDestinationPath(), is(nullValue()));
+
+        NicoliveMeta n = NicoliveMeta.get();
+        List<Nicolive> nicolives = Datastore.get(n, testDataKeys);
+        for (int i = 0; i < nicolives.size(); i++) {
+            assertThat(
+                nicolives.get(i).getPlainDescription(),
+                is("テスト説明文" + i));
+        }
+        // 全て処理したので、続きのTaskQueueは追加されない。
+        assertThat(tester.tasks.size(), is(0));
+    }
+}
@@ -4,8 +4,10 @@ import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.*;
 
 import org.junit.Test;
+import org.ryu22e.nico2cal.cache.FeedCache;
 import org.ryu22e.nico2cal.meta.NicoliveIndexMeta;
 import org.ryu22e.nico2cal.meta.NicoliveMeta;
+import org.ryu22e.nico2cal.meta.NicolivePostingMeta;
 import org.slim3.datastore.Datastore;
 import org.slim3.memcache.Memcache;
 import org.slim3.tester.ControllerTestCase;
@@ -26,6 +28,8 @@ public final class GenerateNicoliveControllerTest extends ControllerTestCase {
         Datastore.delete(Datastore.query(n).asKeyList());
         NicoliveIndexMeta ni = NicoliveIndexMeta.get();
         Datastore.delete(Datastore.query(ni).asKeyList());
+        NicolivePostingMeta np = NicolivePostingMeta.get();
+        Datastore.delete(Datastore.query(np).asKeyList());
     }
 
     /*
@@ -70,8 +74,10 @@ public final class GenerateNicoliveControllerTest extends ControllerTestCase {
      * @throws Exception
      */
     @Test
-    public void キャッシュを削除する() throws Exception {
+    public void フィードの世代を進める() throws Exception {
         Memcache.put("test", "dummy");
+        FeedCache feedCache = new FeedCache();
+        String generation = feedCache.getGeneration(null);
 
         tester.start("/GenerateNicolive");
         GenerateNicoliveController controller = tester.getController();
@@ -80,6 +86,9 @@ public final class GenerateNicoliveControllerTest extends ControllerTestCase {
         assertThat(tester.response.getStatus(), is(200));
         assertThat(tester.getDestinationPath(), is(nullValue()));
 
-        assertThat(Memcache.get("test"), is(nullValue()));
+        // Memcacheの他の値は消さない。
+        assertThat((String) Memcache.get("test"), is("dummy"));
+        assertThat(feedCache.getGeneration(null), is(not(generation)));
+        assertThat(feedCache.getLastIngest(), is(notNullValue()));
     }
 }
@@ -9,10 +9,10 @@ import java.util.List;
 
 import org.joda.time.DateTime;
 import org.junit.Test;
-import org.ryu22e.nico2cal.meta.NicoliveIndexMeta;
 import org.ryu22e.nico2cal.meta.NicoliveMeta;
+import org.ryu22e.nico2cal.meta.NicolivePostingMeta;
 import org.ryu22e.nico2cal.model.Nicolive;
-import org.ryu22e.nico2cal.model.NicoliveIndex;
+import org.ryu22e.nico2cal.model.NicolivePosting;
 import org.slim3.datastore.Datastore;
 import org.slim3.tester.ControllerTestCase;
 
@@ -38,8 +38,25 @@ public class GenerateNicoliveIndexControllerTest extends ControllerTestCase {
     private void clearDataStore() {
         NicoliveMeta n = NicoliveMeta.get();
         Datastore.delete(Datastore.query(n).asKeyList());
-        NicoliveIndexMeta ni = NicoliveIndexMeta.get();
-        Datastore.delete(Datastore.query(ni).asKeyList());
+        NicolivePostingMeta np = NicolivePostingMeta.get();
+        Datastore.delete(Datastore.query(np).asKeyList());
+    }
+
+    /**
+     * キーワードに対応する{@link NicolivePosting}に登録されたNicoliveのKeyを取得する。
+     * @param keyword キーワード
+     * @return NicoliveのKey
+     */
+    private List<Key> getNicoliveKeys(String keyword) {
+        NicolivePostingMeta np = NicolivePostingMeta.get();
+        List<NicolivePosting> postings =
+                Datastore.query(np).filter(np.keyword.equal(keyword)).asList();
+        assertThat(postings, is(notNullValue()));
+        List<Key> nicoliveKeys = new LinkedList<Key>();
+        for (NicolivePosting posting : postings) {
+            nicoliveKeys.addAll(posting.getNicoliveKeys());
+        }
+        return nicoliveKeys;
     }
 
     /*
@@ -79,11 +96,8 @@ public class GenerateNicoliveIndexControllerTest extends ControllerTestCase {
             Datastore.delete(testDataKeys);
         }
 
-        NicoliveIndexMeta ni = NicoliveIndexMeta.get();
-        Datastore.delete(Datastore
-            .query(ni)
-            .filter(ni.keyword.startsWith("テスト"))
-            .asKeyList());
+        NicolivePostingMeta np = NicolivePostingMeta.get();
+        Datastore.delete(Datastore.query(np).asKeyList());
 
         super.tearDown();
     }
@@ -119,34 +133,10 @@ public class GenerateNicoliveIndexControllerTest extends ControllerTestCase {
         assertThat(tester.response.getStatus(), is(200));
         assertThat(tester.getDestinationPath(), is(nullValue()));
 
-        NicoliveIndexMeta ni = NicoliveIndexMeta.get();
-
-        List<NicoliveIndex> indexes1 =
-                Datastore.query(ni).filter(ni.keyword.equal("テスト")).asList();
-        assertThat(indexes1, is(notNullValue()));
-        List<Key> indexKeys1 = new LinkedList<Key>();
-        for (NicoliveIndex index1 : indexes1) {
-            indexKeys1.add(index1.getNicoliveKey());
-        }
-        assertThat(indexKeys1, hasItems(testDataKeys.toArray(new Key[0])));
-
-        List<NicoliveIndex> indexes2 =
-                Datastore.query(ni).filter(ni.keyword.equal("説明")).asList();
-        assertThat(indexes2, is(notNullValue()));
-        List<Key> indexKeys2 = new LinkedList<Key>();
-        for (NicoliveIndex index2 : indexes2) {
-            indexKeys2.add(index2.getNicoliveKey());
-        }
-        assertThat(indexKeys2, hasItems(testDataKeys.toArray(new Key[0])));
-
-        List<NicoliveIndex> indexes3 =
-                Datastore.query(ni).filter(ni.keyword.equal("文")).asList();
-        assertThat(indexes3, is(notNullValue()));
-        List<Key> indexKeys3 = new LinkedList<Key>();
-        for (NicoliveIndex index3 : indexes3) {
-            indexKeys3.add(index3.getNicoliveKey());
-        }
-        assertThat(indexKeys3, hasItems(testDataKeys.toArray(new Key[0])));
+        Key[] expected = testDataKeys.toArray(new Key[0]);
+        assertThat(getNicoliveKeys("テスト"), hasItems(expected));
+        assertThat(getNicoliveKeys("説明"), hasItems(expected));
+        assertThat(getNicoliveKeys("文"), hasItems(expected));
     }
 
     /**
@@ -169,33 +159,9 @@ public class GenerateNicoliveIndexControllerTest extends ControllerTestCase {
         assertThat(tester.response.getStatus(), is(200));
         assertThat(tester.getDestinationPath(), is(nullValue()));
 
-        NicoliveIndexMeta ni = NicoliveIndexMeta.get();
-
-        List<NicoliveIndex> indexes1 =
-                Datastore.query(ni).filter(ni.keyword.equal("テスト")).asList();
-        assertThat(indexes1, is(notNullValue()));
-        List<Key> indexKeys1 = new LinkedList<Key>();
-        for (NicoliveIndex index1 : indexes1) {
-            indexKeys1.add(index1.getNicoliveKey());
-        }
-        assertThat(indexKeys1, hasItems(testDataKeys.toArray(new Key[0])));
-
-        List<NicoliveIndex> indexes2 =
-                Datastore.query(ni).filter(ni.keyword.equal("説明")).asList();
-        assertThat(indexes2, is(notNullValue()));
-        List<Key> indexKeys2 = new LinkedList<Key>();
-        for (NicoliveIndex index2 : indexes2) {
-            indexKeys2.add(index2.getNicoliveKey());
-        }
-        assertThat(indexKeys2, hasItems(testDataKeys.toArray(new Key[0])));
-
-        List<NicoliveIndex> indexes3 =
-                Datastore.query(ni).filter(ni.keyword.equal("文")).asList();
-        assertThat(indexes3, is(notNullValue()));
-        List<Key> indexKeys3 = new LinkedList<Key>();
-        for (NicoliveIndex index3 : indexes3) {
-            indexKeys3.add(index3.getNicoliveKey());
-        }
-        assertThat(indexKeys3, hasItems(testDataKeys.toArray(new Key[0])));
+        Key[] expected = testDataKeys.toArray(new Key[0]);
+        assertThat(getNicoliveKeys("テスト"), hasItems(expected));
+        assertThat(getNicoliveKeys("説明"), hasItems(expected));
+        assertThat(getNicoliveKeys("文"), hasItems(expected));
     }
 }
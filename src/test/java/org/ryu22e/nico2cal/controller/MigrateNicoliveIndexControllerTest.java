@@ -0,0 +1,102 @@
+package org.ryu22e.nico2cal.controller;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+import org.ryu22e.nico2cal.meta.NicoliveIndexMeta;
+import org.ryu22e.nico2cal.meta.NicoliveMeta;
+import org.ryu22e.nico2cal.meta.NicolivePostingMeta;
+import org.ryu22e.nico2cal.model.NicoliveIndex;
+import org.ryu22e.nico2cal.model.NicolivePosting;
+import org.ryu22e.nico2cal.service.NicoliveService;
+import org.slim3.datastore.Datastore;
+import org.slim3.tester.ControllerTestCase;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * @author ryu22e
+ *
+ */
+public final class MigrateNicoliveIndexControllerTest extends
+        ControllerTestCase {
+    /**
+     * 
+     */
+    private List<Key> testDataKeys = new LinkedList<Key>();
+
+    /**
+     * 
+     */
+    private DateTime datetime = new DateTime(2012, 5, 12, 21, 0, 0, 0);
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        NamespaceManager.set("test");
+
+        // 旧形式のテストデータを登録する。
+        List<NicoliveIndex> indexes = new LinkedList<NicoliveIndex>();
+        for (int i = 0; i < 10; i++) {
+            NicoliveIndex index = new NicoliveIndex();
+            index.setKeyword("テスト");
+            index.setNicoliveKey(Datastore.createKey(
+                NicoliveMeta.get(),
+                "lv" + i));
+            index.setOpenTime(datetime.toDate());
+            indexes.add(index);
+        }
+        testDataKeys.addAll(Datastore.put(indexes));
+    }
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public void tearDown() throws Exception {
+        // テストデータを削除する。
+        if (0 < testDataKeys.size()) {
+            Datastore.delete(testDataKeys);
+        }
+        NicolivePostingMeta np = NicolivePostingMeta.get();
+        Datastore.delete(Datastore.query(np).asKeyList());
+
+        super.tearDown();
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 旧形式の全文検索用インデックスを移行する() throws Exception {
+        tester.start("/MigrateNicoliveIndex");
+        MigrateNicoliveIndexController controller = tester.getController();
+        assertThat(controller, is(notNullValue()));
+        assertThat(tester.isRedirect(), is(false));
+        assertThat(tester.response.getStatus(), is(200));
+        assertThat(tester.getDestinationPath(), is(nullValue()));
+
+        NicoliveIndexMeta ni = NicoliveIndexMeta.get();
+        assertThat(Datastore.query(ni).count(), is(0));
+
+        NicoliveService service = new NicoliveService();
+        NicolivePosting posting =
+                Datastore.get(NicolivePostingMeta.get(), service
+                    .createPostingKey(
+                        "テスト",
+                        NicoliveService.toDay(datetime.toDate())));
+        assertThat(posting.getNicoliveKeys().size(), is(10));
+        // 移行したデータがあったので、続きのTaskQueueが追加される。
+        assertThat(tester.tasks.size(), is(1));
+    }
+}
@@ -0,0 +1,95 @@
+package org.ryu22e.nico2cal.controller;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+import org.ryu22e.nico2cal.meta.NicoliveMeta;
+import org.ryu22e.nico2cal.meta.NicolivePostingMeta;
+import org.ryu22e.nico2cal.model.NicolivePosting;
+import org.ryu22e.nico2cal.service.NicoliveService;
+import org.slim3.datastore.Datastore;
+import org.slim3.tester.ControllerTestCase;
+
+import com.google.appengine.api.NamespaceManager;
+
+/**
+ * @author ryu22e
+ *
+ */
+public final class NormalizeNicolivePostingControllerTest extends
+        ControllerTestCase {
+
+    /**
+     * 
+     */
+    private Date day = NicoliveService.toDay(new DateTime(
+        2012,
+        5,
+        12,
+        21,
+        0,
+        0,
+        0).toDate());
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        NamespaceManager.set("test");
+
+        // キーワードを正規化せずに登録したテストデータ。
+        NicolivePosting posting = new NicolivePosting();
+        posting.setKey(new NicoliveService().createPostingKey("ＴＥＳＴ", day));
+        posting.setKeyword("ＴＥＳＴ");
+        posting.setDay(day);
+        posting.setNicoliveKeys(Arrays.asList(Datastore.createKey(
+            NicoliveMeta.get(),
+            "lv1")));
+        Datastore.put(posting);
+    }
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public void tearDown() throws Exception {
+        // テストデータを削除する。
+        NicolivePostingMeta np = NicolivePostingMeta.get();
+        Datastore.delete(Datastore.query(np).asKeyList());
+
+        super.tearDown();
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 全文検索用インデックスのキーワードを正規化する() throws Exception {
+        tester.start("/NormalizeNicolivePosting");
+        NormalizeNicolivePostingController controller = tester.getController();
+        assertThat(controller, is(notNullValue()));
+        assertThat(tester.isRedirect(), is(false));
+        assertThat(tester.response.getStatus(), is(200));
+        assertThat(tester.getDestinationPath(), is(nullValue()));
+
+        NicoliveService service = new NicoliveService();
+        NicolivePostingMeta np = NicolivePostingMeta.get();
+        assertThat(
+            Datastore.getOrNull(np, service.createPostingKey("ＴＥＳＴ", day)),
+            is(nullValue()));
+        NicolivePosting posting =
+                Datastore.get(np, service.createPostingKey("TEST", day));
+        assertThat(posting.getKeyword(), is("TEST"));
+        assertThat(posting.getNicoliveKeys().size(), is(1));
+        // 全て処理したので、続きのTaskQueueは追加されない。
+        assertThat(tester.tasks.size(), is(0));
+    }
+}
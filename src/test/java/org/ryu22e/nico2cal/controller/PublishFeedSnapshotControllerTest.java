@@ -0,0 +1,102 @@
+package org.ryu22e.nico2cal.controller;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+import org.ryu22e.nico2cal.cache.FeedSnapshot;
+import org.ryu22e.nico2cal.model.Nicolive;
+import org.ryu22e.nico2cal.service.FeedSnapshotService;
+import org.slim3.datastore.Datastore;
+import org.slim3.memcache.Memcache;
+import org.slim3.tester.ControllerTestCase;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Link;
+import com.google.appengine.api.datastore.Text;
+
+/**
+ * @author ryu22e
+ *
+ */
+public final class PublishFeedSnapshotControllerTest extends
+        ControllerTestCase {
+
+    /**
+     * 
+     */
+    private List<Key> testDataKeys = new LinkedList<Key>();
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        NamespaceManager.set("test");
+        Memcache.cleanAll();
+
+        // テストデータを登録する。
+        DateTime now = new DateTime();
+        for (int i = 0; i < 10; i++) {
+            Nicolive nicolive = new Nicolive();
+            nicolive.setTitle("テスト" + i);
+            nicolive.setDescription(new Text("テスト説明文" + i));
+            nicolive.setOpenTime(now.minusDays(i).toDate());
+            nicolive.setLink(new Link("http://ryu22e.org/" + i));
+            testDataKeys.add(Datastore.put(nicolive));
+        }
+    }
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public void tearDown() throws Exception {
+        // テストデータを削除する。
+        if (0 < testDataKeys.size()) {
+            Datastore.delete(testDataKeys);
+        }
+
+        super.tearDown();
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void スナップショットを公開する() throws Exception {
+        tester.paramValues("keys[]", new String[] {
+            Datastore.keyToString(testDataKeys.get(0)),
+            "invalid" });
+        tester.start("/PublishFeedSnapshot");
+        PublishFeedSnapshotController controller = tester.getController();
+        assertThat(controller, is(notNullValue()));
+        assertThat(tester.isRedirect(), is(false));
+        assertThat(tester.response.getStatus(), is(200));
+        assertThat(tester.getDestinationPath(), is(nullValue()));
+
+        FeedSnapshot snapshot = new FeedSnapshotService().getSnapshot();
+        assertThat(snapshot, is(notNullValue()));
+        assertThat(snapshot.size(), is(10));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void スナップショットを公開する_取り込んだNicoliveがない() throws Exception {
+        tester.start("/PublishFeedSnapshot");
+        PublishFeedSnapshotController controller = tester.getController();
+        assertThat(controller, is(notNullValue()));
+        assertThat(tester.response.getStatus(), is(200));
+
+        assertThat(new FeedSnapshotService().getSnapshot(), is(notNullValue()));
+    }
+}
@@ -5,24 +5,31 @@ import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import net.fortuna.ical4j.data.CalendarBuilder;
 import net.fortuna.ical4j.model.Calendar;
 import net.fortuna.ical4j.model.ComponentList;
 import net.fortuna.ical4j.model.component.VEvent;
 
 import org.joda.time.DateTime;
 import org.junit.Test;
+import org.ryu22e.nico2cal.cache.FeedCache;
+import org.ryu22e.nico2cal.cache.FeedSegmentCache;
 import org.ryu22e.nico2cal.meta.MyCalendarLogMeta;
 import org.ryu22e.nico2cal.model.MyCalendar;
 import org.ryu22e.nico2cal.model.MyCalendarLog;
 import org.ryu22e.nico2cal.model.Nicolive;
-import org.ryu22e.nico2cal.model.NicoliveIndex;
 import org.slim3.datastore.Datastore;
 import org.slim3.tester.AppEngineTestCase;
 import org.slim3.util.DateUtil;
@@ -89,6 +96,8 @@ public final class CalendarServiceTest extends AppEngineTestCase {
 
         // テストデータを登録する。
         testDataKeys.clear();
+        Map<Nicolive, Set<String>> keywords =
+                new LinkedHashMap<Nicolive, Set<String>>();
         for (int i = 0; i < 99; i++) {
             Nicolive nicolinve = new Nicolive();
             nicolinve.setTitle("テスト" + i);
@@ -99,19 +108,9 @@ public final class CalendarServiceTest extends AppEngineTestCase {
             nicolinve.setLink(new Link("http://ryu22e.org/" + i));
             Key key = Datastore.put(nicolinve);
             testDataKeys.add(key);
-            NicoliveIndex nicoliveIndex1 = new NicoliveIndex();
-            nicoliveIndex1.setKeyword("テスト");
-            nicoliveIndex1.setNicoliveKey(key);
-            NicoliveIndex nicoliveIndex2 = new NicoliveIndex();
-            nicoliveIndex2.setKeyword("説明");
-            nicoliveIndex2.setNicoliveKey(key);
-            NicoliveIndex nicoliveIndex3 = new NicoliveIndex();
-            nicoliveIndex3.setKeyword("文");
-            nicoliveIndex3.setNicoliveKey(key);
-            testDataKeys.addAll(Datastore.put(
-                nicoliveIndex1,
-                nicoliveIndex2,
-                nicoliveIndex3));
+            keywords.put(
+                nicolinve,
+                new HashSet<String>(Arrays.asList("テスト", "説明", "文")));
         }
 
         Nicolive nicolive = new Nicolive();
@@ -121,10 +120,8 @@ public final class CalendarServiceTest extends AppEngineTestCase {
         nicolive.setOpenTime(datetime.toDate());
         nicolive.setLink(new Link("http://ryu22e.org/"));
         testDataKeys.add(Datastore.put(nicolive));
-        NicoliveIndex nicoliveIndex = new NicoliveIndex();
-        nicoliveIndex.setKeyword("テスト");
-        nicoliveIndex.setNicoliveKey(nicolive.getKey());
-        testDataKeys.add(Datastore.put(nicoliveIndex));
+        keywords.put(nicolive, new HashSet<String>(Arrays.asList("テスト")));
+        testDataKeys.addAll(new NicoliveService().putPostings(keywords));
     }
 
     /*
@@ -235,6 +232,268 @@ public final class CalendarServiceTest extends AppEngineTestCase {
         assertThat(components.size(), is(0));
     }
 
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void iCalendar形式で書き出す_パラメータがnull() throws Exception {
+        assertThat(service, is(notNullValue()));
+
+        service.writeCalendar(null, new StringWriter());
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void iCalendar形式で書き出す_StartDateがnull() throws Exception {
+        assertThat(service, is(notNullValue()));
+
+        service.writeCalendar(new CalendarCondition(), new StringWriter());
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void iCalendar形式で書き出す() throws Exception {
+        assertThat(service, is(notNullValue()));
+
+        CalendarCondition condition = new CalendarCondition();
+        DateTime startDate = new DateTime(2011, 1, 1, 0, 0, 0, 0);
+        startDate = startDate.minusDays(7);
+        condition.setStartDate(startDate.toDate());
+        condition.setKeywords(Arrays.asList("テスト", "説明"));
+
+        StringWriter writer = new StringWriter();
+        service.writeCalendar(condition, writer);
+        Calendar calendar =
+                new CalendarBuilder().build(new StringReader(writer
+                    .toString()));
+
+        // ical4jで組み立てたiCalendarと同じ内容になる。
+        Calendar expected = service.getCalendar(condition);
+        assertThat(
+            calendar.getProperty("PRODID").getValue(),
+            is(expected.getProperty("PRODID").getValue()));
+        assertThat(
+            calendar.getProperty("X-WR-CALNAME").getValue(),
+            is(expected.getProperty("X-WR-CALNAME").getValue()));
+        ComponentList components = calendar.getComponents();
+        ComponentList expectedComponents = expected.getComponents();
+        assertThat(components.size(), is(8));
+        assertThat(components.size(), is(expectedComponents.size()));
+        for (int i = 0; i < components.size(); i++) {
+            VEvent event = (VEvent) components.get(i);
+            VEvent expectedEvent = (VEvent) expectedComponents.get(i);
+            assertThat(
+                event.getSummary().getValue(),
+                is(expectedEvent.getSummary().getValue()));
+            assertThat(
+                event.getDescription().getValue(),
+                is(expectedEvent.getDescription().getValue()));
+            assertThat(
+                event.getUrl().getValue(),
+                is(expectedEvent.getUrl().getValue()));
+            assertThat(
+                event.getStartDate().getDate(),
+                is(expectedEvent.getStartDate().getDate()));
+            assertThat(
+                event.getEndDate().getDate(),
+                is(expectedEvent.getEndDate().getDate()));
+        }
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void バッチの件数をシステムプロパティから取得する() throws Exception {
+        String name = CalendarService.PREFETCH_SIZE_PROPERTY;
+        try {
+            System.clearProperty(name);
+            assertThat(CalendarService.getSizeProperty(name, 50), is(50));
+            System.setProperty(name, "20");
+            assertThat(CalendarService.getSizeProperty(name, 50), is(20));
+            // 不正な値の場合は既定値を使う。
+            System.setProperty(name, "0");
+            assertThat(CalendarService.getSizeProperty(name, 50), is(50));
+            System.setProperty(name, "abc");
+            assertThat(CalendarService.getSizeProperty(name, 50), is(50));
+        } finally {
+            System.clearProperty(name);
+        }
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void iCalendar形式で書き出す_キーで取得しても検索しても同じ結果になる()
+            throws Exception {
+        CalendarCondition condition = new CalendarCondition();
+        DateTime startDate = new DateTime(2011, 1, 1, 0, 0, 0, 0);
+        condition.setStartDate(startDate.minusDays(7).toDate());
+        condition.setKeywords(Arrays.asList("テスト", "説明"));
+        // 全文検索用インデックスに残っていても、削除済みのNicoliveは含めない。
+        Datastore.delete(testDataKeys.get(3));
+
+        // 該当件数（99件）がしきい値以下なので、キーで取得する。
+        StringWriter keyFirst = new StringWriter();
+        new CalendarService().writeCalendar(condition, keyFirst);
+
+        String name = CalendarService.KEY_FIRST_THRESHOLD_PROPERTY;
+        StringWriter rangeScan = new StringWriter();
+        try {
+            System.setProperty(name, "1");
+            new CalendarService().writeCalendar(condition, rangeScan);
+        } finally {
+            System.clearProperty(name);
+        }
+        assertThat(keyFirst.toString(), is(rangeScan.toString()));
+
+        Calendar calendar =
+                new CalendarBuilder().build(new StringReader(keyFirst
+                    .toString()));
+        assertThat(calendar.getComponents().size(), is(7));
+        Calendar expected = service.getCalendar(condition);
+        assertThat(expected.getComponents().size(), is(7));
+    }
+
+    /**
+     * @param openTime 開場日時
+     * @return 登録した{@link Nicolive}
+     */
+    private Nicolive putNicolive(DateTime openTime) {
+        Nicolive nicolive = new Nicolive();
+        nicolive.setTitle("セグメント" + openTime.getMillis());
+        nicolive.setDescription(new Text("セグメント説明文"));
+        nicolive.setOpenTime(openTime.toDate());
+        nicolive.setLink(new Link("http://ryu22e.org/segment"));
+        testDataKeys.add(Datastore.put(nicolive));
+        return nicolive;
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void iCalendar形式で書き出す_キーワードなしは放送日ごとのセグメントを並べる()
+            throws Exception {
+        assertThat(service, is(notNullValue()));
+
+        DateTime now = new DateTime();
+        for (int i = 0; i < 10; i++) {
+            putNicolive(now.minusDays(i));
+        }
+        putNicolive(now.plusDays(1));
+        CalendarCondition condition = new CalendarCondition();
+        condition.setStartDate(now.minusWeeks(1).toDate());
+
+        StringWriter writer = new StringWriter();
+        service.writeCalendar(condition, writer);
+        Calendar calendar =
+                new CalendarBuilder().build(new StringReader(writer
+                    .toString()));
+        // ical4jで組み立てたiCalendarと同じ件数、同じ順番になる。
+        ComponentList components = calendar.getComponents();
+        ComponentList expectedComponents =
+                service.getCalendar(condition).getComponents();
+        assertThat(components.size(), is(9));
+        assertThat(components.size(), is(expectedComponents.size()));
+        for (int i = 0; i < components.size(); i++) {
+            assertThat(
+                ((VEvent) components.get(i)).getSummary().getValue(),
+                is(((VEvent) expectedComponents.get(i))
+                    .getSummary()
+                    .getValue()));
+        }
+
+        // 放送日の世代が進むまでは、キャッシュしたセグメントを使う。
+        Nicolive added = putNicolive(now.minusDays(3).withMillisOfSecond(1));
+        StringWriter cached = new StringWriter();
+        service.writeCalendar(condition, cached);
+        assertThat(cached.toString(), is(writer.toString()));
+
+        new FeedSegmentCache().incrementGenerations(Arrays
+            .asList(NicoliveService.formatDay(added.getOpenTime())));
+        StringWriter rebuilt = new StringWriter();
+        service.writeCalendar(condition, rebuilt);
+        assertThat(rebuilt.toString().contains(added.getTitle()), is(true));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void iCalendar形式で書き出す_スナップショットがあればメモリ上で書き出す()
+            throws Exception {
+        DateTime now = new DateTime();
+        List<Key> keys = new ArrayList<Key>();
+        for (int i = 0; i < 10; i++) {
+            keys.add(putNicolive(now.minusDays(i)).getKey());
+        }
+        Key future = putNicolive(now.plusDays(1)).getKey();
+        CalendarCondition condition = new CalendarCondition();
+        condition.setStartDate(now.minusWeeks(1).toDate());
+
+        StringWriter fromDatastore = new StringWriter();
+        service.writeCalendar(condition, fromDatastore);
+
+        new FeedSnapshotService().publish(new ArrayList<Key>());
+        StringWriter fromSnapshot = new StringWriter();
+        service.writeCalendar(condition, fromSnapshot);
+        assertThat(fromSnapshot.toString(), is(fromDatastore.toString()));
+
+        // スナップショットの世代のうちは、データストアを読まない。
+        Datastore.delete(future);
+        StringWriter cached = new StringWriter();
+        service.writeCalendar(condition, cached);
+        assertThat(cached.toString(), is(fromDatastore.toString()));
+
+        // 世代が進むと、次のスナップショットを公開するまではデータストアを検索する。
+        new FeedCache().incrementGeneration();
+        StringWriter searched = new StringWriter();
+        service.writeCalendar(condition, searched);
+        Calendar calendar =
+                new CalendarBuilder().build(new StringReader(searched
+                    .toString()));
+        assertThat(calendar.getComponents().size(), is(8));
+
+        // スナップショットの期間より前から始まるフィードは、データストアを検索する。
+        new FeedSnapshotService().publish(new ArrayList<Key>());
+        Datastore.delete(keys.get(9));
+        condition.setStartDate(now
+            .minusDays(FeedSnapshotService.WINDOW_DAYS + 1)
+            .toDate());
+        StringWriter outOfRange = new StringWriter();
+        service.writeCalendar(condition, outOfRange);
+        calendar =
+                new CalendarBuilder().build(new StringReader(outOfRange
+                    .toString()));
+        assertThat(calendar.getComponents().size(), is(9));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void iCalendar形式で書き出す_該当するデータが存在しない() throws Exception {
+        assertThat(service, is(notNullValue()));
+
+        CalendarCondition condition = new CalendarCondition();
+        condition.setStartDate(new DateTime(2011, 1, 1, 0, 0, 0, 0).toDate());
+        condition.setKeywords(Arrays.asList("存在しないキーワード"));
+
+        StringWriter writer = new StringWriter();
+        service.writeCalendar(condition, writer);
+        Calendar calendar =
+                new CalendarBuilder().build(new StringReader(writer
+                    .toString()));
+        assertThat(calendar.getProperty("PRODID").getValue(), is("nico2ical"));
+        assertThat(calendar.getComponents().size(), is(0));
+    }
+
     /**
      * @throws Exception
      */
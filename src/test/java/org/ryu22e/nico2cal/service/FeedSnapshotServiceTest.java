@@ -0,0 +1,200 @@
+package org.ryu22e.nico2cal.service;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+import org.ryu22e.nico2cal.cache.FeedCache;
+import org.ryu22e.nico2cal.cache.FeedSnapshot;
+import org.ryu22e.nico2cal.model.Nicolive;
+import org.slim3.datastore.Datastore;
+import org.slim3.memcache.Memcache;
+import org.slim3.tester.AppEngineTestCase;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Link;
+import com.google.appengine.api.datastore.Text;
+
+/**
+ * @author ryu22e
+ *
+ */
+public final class FeedSnapshotServiceTest extends AppEngineTestCase {
+
+    /**
+     * 
+     */
+    private FeedSnapshotService service = new FeedSnapshotService();
+
+    /**
+     * 
+     */
+    private FeedCache feedCache = new FeedCache();
+
+    /**
+     * 
+     */
+    private List<Key> testDataKeys = new LinkedList<Key>();
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        NamespaceManager.set("test");
+        Memcache.cleanAll();
+        testDataKeys.clear();
+    }
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public void tearDown() throws Exception {
+        if (0 < testDataKeys.size()) {
+            Datastore.delete(testDataKeys);
+        }
+
+        super.tearDown();
+    }
+
+    /**
+     * @param title タイトル
+     * @param openTime 開場日時
+     * @return 登録した{@link Nicolive}のキー
+     */
+    private Key putNicolive(String title, DateTime openTime) {
+        Nicolive nicolive = new Nicolive();
+        nicolive.setTitle(title);
+        nicolive.setDescription(new Text("スナップショットの説明文"));
+        nicolive.setOpenTime(openTime.toDate());
+        nicolive.setLink(new Link("http://ryu22e.org/snapshot"));
+        Key key = Datastore.put(nicolive);
+        testDataKeys.add(key);
+        return key;
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 世代が1つ後かどうかを判定する() throws Exception {
+        assertThat(FeedSnapshotService.isNextGeneration("1", "2"), is(true));
+        assertThat(FeedSnapshotService.isNextGeneration("1", "3"), is(false));
+        assertThat(FeedSnapshotService.isNextGeneration("2", "2"), is(false));
+        assertThat(
+            FeedSnapshotService.isNextGeneration("1", "1.2"),
+            is(false));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void スナップショットを公開する_パラメータがnull() throws Exception {
+        service.publish(null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void スナップショットを公開する() throws Exception {
+        DateTime now = new DateTime();
+        putNicolive("ゲーム実況", now.minusDays(1));
+        putNicolive("雑談", now.plusDays(1));
+        // 期間より前のNicoliveは含めない。
+        putNicolive(
+            "ゲーム実況",
+            now.minusDays(FeedSnapshotService.WINDOW_DAYS + 1));
+        assertThat(service.getSnapshot(), is(nullValue()));
+
+        // 公開されていなければ、期間内のNicoliveを全て検索して作成する。
+        FeedSnapshot snapshot = service.publish(new ArrayList<Key>());
+        assertThat(snapshot.size(), is(2));
+        assertThat(snapshot.getGeneration(), is(feedCache.getGeneration(null)));
+        assertThat(service.getSnapshot(), is(notNullValue()));
+        assertThat(
+            snapshot.findEvents(
+                now.minusWeeks(1).toDate(),
+                Arrays.asList("ゲーム")).size(),
+            is(1));
+
+        // 同じ世代のうちは作り直さない。
+        assertThat(
+            service.publish(new ArrayList<Key>()),
+            is(sameInstance(snapshot)));
+
+        // 世代が進むと、次のスナップショットを公開するまでは使わない。
+        Key added = putNicolive("ゲーム大会", now.plusDays(2));
+        feedCache.incrementGeneration();
+        assertThat(service.getSnapshot(), is(nullValue()));
+
+        // 1つ前の世代のスナップショットに、取り込んだNicoliveを追加する。
+        FeedSnapshot merged = service.publish(Arrays.asList(added));
+        assertThat(merged.size(), is(3));
+        assertThat(merged.getGeneration(), is(feedCache.getGeneration(null)));
+        assertThat(service.getSnapshot(), is(notNullValue()));
+        assertThat(
+            merged.findEvents(
+                now.minusWeeks(1).toDate(),
+                Arrays.asList("ゲーム")).size(),
+            is(2));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void スナップショットを公開する_取り込んだNicoliveを加えて作り直す()
+            throws Exception {
+        DateTime now = new DateTime();
+        putNicolive("ゲーム実況", now.minusDays(1));
+        Key added = putNicolive("ゲーム大会", now.plusDays(1));
+        // 検索結果に含まれるNicoliveを渡しても、同じ行が重複しない。
+        FeedSnapshot snapshot = service.publish(Arrays.asList(added));
+        assertThat(snapshot.size(), is(2));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void スナップショットを公開する_時間が経つと全て作り直す() throws Exception {
+        DateTime now = new DateTime();
+        putNicolive("ゲーム実況", now.minusDays(1));
+        FeedSnapshot snapshot =
+                service.publish(new ArrayList<Key>(), now.toDate());
+        assertThat(snapshot.size(), is(1));
+        assertThat(snapshot.getRebuiltAt(), is(now.toDate()));
+
+        // 取り込み時に渡されなかったNicoliveは、行を追加するだけでは反映されない。
+        putNicolive("雑談", now.plusDays(1));
+        feedCache.incrementGeneration();
+        Date merging =
+                new Date(now.getMillis() + FeedSnapshotService.REBUILD_INTERVAL
+                    - 1);
+        FeedSnapshot merged = service.publish(new ArrayList<Key>(), merging);
+        assertThat(merged.size(), is(1));
+        assertThat(merged.getRebuiltAt(), is(now.toDate()));
+
+        // 全ての行を作り直してから時間が経つと、期間内のNicoliveを全て検索して作り直す。
+        feedCache.incrementGeneration();
+        Date rebuilding =
+                new Date(now.getMillis() + FeedSnapshotService.REBUILD_INTERVAL);
+        FeedSnapshot rebuilt =
+                service.publish(new ArrayList<Key>(), rebuilding);
+        assertThat(rebuilt.size(), is(2));
+        assertThat(rebuilt.getRebuiltAt(), is(rebuilding));
+    }
+}
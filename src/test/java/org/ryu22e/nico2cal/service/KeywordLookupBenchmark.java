@@ -0,0 +1,223 @@
+package org.ryu22e.nico2cal.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.joda.time.DateTime;
+import org.ryu22e.nico2cal.meta.NicoliveIndexMeta;
+import org.ryu22e.nico2cal.meta.NicoliveMeta;
+import org.ryu22e.nico2cal.meta.NicolivePostingMeta;
+import org.ryu22e.nico2cal.model.Nicolive;
+import org.ryu22e.nico2cal.model.NicoliveIndex;
+import org.ryu22e.nico2cal.model.NicolivePosting;
+import org.slim3.datastore.Datastore;
+import org.slim3.tester.AppEngineTester;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+
+/**
+ * キーワード1件分の全文検索用インデックスの読み出しについて、
+ * データ量と処理時間をローカルのデータストアで比較する。
+ * <ul>
+ * <li>legacy: 旧形式の{@link NicoliveIndex}をモデルとして読み出す。</li>
+ * <li>posting-model: {@link NicolivePosting}をモデルとして読み出す。</li>
+ * <li>posting-entity: {@link NicolivePosting}をEntityのまま読み出し、Nicoliveのキーだけを取り出す。</li>
+ * </ul>
+ * <p>
+ * JUnitのテストではないので、mainメソッドから実行する。
+ * </p>
+ * @author ryu22e
+ *
+ */
+public final class KeywordLookupBenchmark {
+
+    /**
+     * 
+     */
+    private static final String KEYWORD = "テスト";
+
+    /**
+     * インデックスを作る日数。
+     */
+    private static final int DAYS = 30;
+
+    /**
+     * 1日あたりの{@link Nicolive}の数。
+     */
+    private static final int NICOLIVES_PER_DAY = 100;
+
+    /**
+     * 
+     */
+    private static final int WARMUP_ITERATIONS = 20;
+
+    /**
+     * 
+     */
+    private static final int MEASURE_ITERATIONS = 100;
+
+    /**
+     * 
+     */
+    private static final long NANOS_PER_MICRO = 1000L;
+
+    /**
+     * コンストラクタ。
+     */
+    private KeywordLookupBenchmark() {
+    }
+
+    /**
+     * 計測する処理。
+     */
+    private interface Lookup {
+        /**
+         * @return 該当する{@link Nicolive}のキー
+         */
+        List<Key> run();
+    }
+
+    /**
+     * データストアから受け取るEntityのシリアライズ後のバイト数を計算する。
+     * @param kind カインド
+     * @param propertyName キーワードのプロパティ名
+     * @return バイト数
+     */
+    private static long serializedSize(String kind, String propertyName) {
+        long bytes = 0;
+        for (Entity entity : Datastore
+            .query(kind)
+            .filter(propertyName, FilterOperator.EQUAL, KEYWORD)
+            .asList()) {
+            bytes += EntityTranslator.convertToPb(entity).getSerializedSize();
+        }
+        return bytes;
+    }
+
+    /**
+     * @param name 名前
+     * @param bytes 1回の読み出しで受け取るバイト数
+     * @param lookup 処理
+     */
+    private static void measure(String name, long bytes, Lookup lookup) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            lookup.run();
+        }
+        long total = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURE_ITERATIONS; i++) {
+            total += lookup.run().size();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(name + ": "
+                + (elapsed / MEASURE_ITERATIONS / NANOS_PER_MICRO)
+                + " us/lookup, " + bytes + " bytes/lookup ("
+                + (total / MEASURE_ITERATIONS) + " keys)");
+    }
+
+    /**
+     * テストデータを登録する。
+     */
+    private static void setUpData() {
+        DateTime datetime = new DateTime();
+        NicoliveMeta n = NicoliveMeta.get();
+        Map<Nicolive, Set<String>> keywords =
+                new LinkedHashMap<Nicolive, Set<String>>();
+        List<NicoliveIndex> indexes = new ArrayList<NicoliveIndex>();
+        for (int day = 0; day < DAYS; day++) {
+            for (int i = 0; i < NICOLIVES_PER_DAY; i++) {
+                Nicolive nicolive = new Nicolive();
+                nicolive.setKey(Datastore.createKey(n, "lv"
+                    + (day * NICOLIVES_PER_DAY + i)));
+                nicolive.setOpenTime(datetime.minusDays(day).toDate());
+                keywords.put(
+                    nicolive,
+                    new HashSet<String>(Arrays.asList(KEYWORD)));
+
+                NicoliveIndex index = new NicoliveIndex();
+                index.setKeyword(KEYWORD);
+                index.setNicoliveKey(nicolive.getKey());
+                index.setOpenTime(nicolive.getOpenTime());
+                indexes.add(index);
+            }
+        }
+        new NicoliveService().putPostings(keywords);
+        Datastore.put(indexes);
+    }
+
+    /**
+     * @param args 使わない
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        AppEngineTester tester = new AppEngineTester();
+        tester.setUp();
+        try {
+            setUpData();
+
+            final NicoliveIndexMeta ni = NicoliveIndexMeta.get();
+            measure(
+                "legacy",
+                serializedSize(ni.getKind(), ni.keyword.getName()),
+                new Lookup() {
+                    @Override
+                    public List<Key> run() {
+                        List<Key> keys = new ArrayList<Key>();
+                        for (NicoliveIndex index : Datastore
+                            .query(ni)
+                            .filter(ni.keyword.equal(KEYWORD))
+                            .asList()) {
+                            keys.add(index.getNicoliveKey());
+                        }
+                        return keys;
+                    }
+                });
+
+            final NicolivePostingMeta np = NicolivePostingMeta.get();
+            final long postingBytes =
+                    serializedSize(np.getKind(), np.keyword.getName());
+            measure("posting-model", postingBytes, new Lookup() {
+                @Override
+                public List<Key> run() {
+                    List<Key> keys = new ArrayList<Key>();
+                    for (NicolivePosting posting : Datastore
+                        .query(np)
+                        .filter(np.keyword.equal(KEYWORD))
+                        .asList()) {
+                        keys.addAll(posting.getNicoliveKeys());
+                    }
+                    return keys;
+                }
+            });
+            measure("posting-entity", postingBytes, new Lookup() {
+                @SuppressWarnings("unchecked")
+                @Override
+                public List<Key> run() {
+                    List<Key> keys = new ArrayList<Key>();
+                    for (Entity entity : Datastore
+                        .query(np.getKind())
+                        .filter(
+                            np.keyword.getName(),
+                            FilterOperator.EQUAL,
+                            KEYWORD)
+                        .asList()) {
+                        keys.addAll((Collection<Key>) entity
+                            .getProperty(np.nicoliveKeys.getName()));
+                    }
+                    return keys;
+                }
+            });
+        } finally {
+            tester.tearDown();
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package org.ryu22e.nico2cal.service;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+import org.ryu22e.nico2cal.meta.NicoliveMeta;
+import org.ryu22e.nico2cal.model.Nicolive;
+import org.slim3.datastore.Datastore;
+import org.slim3.memcache.Memcache;
+import org.slim3.tester.AppEngineTestCase;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * @author ryu22e
+ *
+ */
+public final class KeywordSearchServiceTest extends AppEngineTestCase {
+
+    /**
+     * 
+     */
+    private KeywordSearchService service = new KeywordSearchService();
+
+    /**
+     * 
+     */
+    private List<Key> testDataKeys = new LinkedList<Key>();
+
+    /**
+     * 
+     */
+    private List<Key> nicoliveKeys = new ArrayList<Key>();
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        NamespaceManager.set("test");
+
+        // テストデータを登録する。
+        // 「テスト」は全て、「偶数」は偶数番目、「3」は3番目だけに該当する。
+        testDataKeys.clear();
+        nicoliveKeys.clear();
+        DateTime datetime = new DateTime();
+        Map<Nicolive, Set<String>> keywords =
+                new LinkedHashMap<Nicolive, Set<String>>();
+        for (int i = 0; i < 10; i++) {
+            Nicolive nicolive = new Nicolive();
+            nicolive.setKey(Datastore.createKey(NicoliveMeta.get(), "lv" + i));
+            nicolive.setOpenTime(datetime.minusDays(i).toDate());
+            Set<String> set = new HashSet<String>();
+            set.add("テスト");
+            set.add(Integer.toString(i));
+            if (i % 2 == 0) {
+                set.add("偶数");
+            }
+            keywords.put(nicolive, set);
+            nicoliveKeys.add(nicolive.getKey());
+        }
+        testDataKeys.addAll(new NicoliveService().putPostings(keywords));
+        Memcache.cleanAll();
+    }
+
+    /*
+     * (non-Javadoc) {@inheritDoc}
+     */
+    @Override
+    public void tearDown() throws Exception {
+        // テストデータを削除する。
+        if (0 < testDataKeys.size()) {
+            Datastore.delete(testDataKeys);
+        }
+        Memcache.cleanAll();
+
+        super.tearDown();
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void キーワードを正規化する_パラメータがnull() throws Exception {
+        KeywordSearchService.normalize(null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void キーワードを正規化する() throws Exception {
+        assertThat(
+            KeywordSearchService.normalize(Arrays.asList(
+                "説明",
+                null,
+                "ＡＢＣ　ﾃｽﾄ",
+                " ",
+                "説明")),
+            is(Arrays.asList("ABC", "テスト", "説明")));
+        assertThat(
+            KeywordSearchService.normalize(Arrays.asList("", "　")).size(),
+            is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void 検索条件を正規化する_パラメータがnull() throws Exception {
+        KeywordSearchService.canonicalize(null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 検索条件を正規化する() throws Exception {
+        List<String> expected = Arrays.asList("ゲーム", "実況");
+        assertThat(KeywordSearchService.canonicalize("ゲーム 実況"), is(expected));
+        assertThat(KeywordSearchService.canonicalize("実況 ゲーム"), is(expected));
+        assertThat(
+            KeywordSearchService.canonicalize("実況  ゲーム"),
+            is(expected));
+        assertThat(
+            KeywordSearchService.canonicalize("\t実況　ｹﾞｰﾑ 実況\n"),
+            is(expected));
+        assertThat(KeywordSearchService.canonicalize("　 ").size(), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void キーワードで検索する_全角のキーワードは正規化して検索する() throws Exception {
+        assertThat(service, is(notNullValue()));
+
+        List<Key> keys = service.findNicoliveKeys(Arrays.asList("３"));
+        assertThat(keys, is(Arrays.asList(nicoliveKeys.get(3))));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void キーワードで検索する_パラメータがnull() throws Exception {
+        assertThat(service, is(notNullValue()));
+
+        service.findNicoliveKeys(null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void キーワードで検索する() throws Exception {
+        assertThat(service, is(notNullValue()));
+
+        List<Key> keys = service.findNicoliveKeys(Arrays.asList("テスト", "偶数"));
+        Collections.sort(keys);
+        assertThat(keys, is(Arrays.asList(
+            nicoliveKeys.get(0),
+            nicoliveKeys.get(2),
+            nicoliveKeys.get(4),
+            nicoliveKeys.get(6),
+            nicoliveKeys.get(8))));
+
+        // 検索したキーワードの文書頻度が保存される。
+        Map<String, Long> frequencies =
+                service.getDocumentFrequencies(Arrays.asList("テスト", "偶数", "3"));
+        assertThat(frequencies.get("テスト"), is(10L));
+        assertThat(frequencies.get("偶数"), is(5L));
+        assertThat(frequencies.containsKey("3"), is(false));
+
+        // 文書頻度が分かっていても、検索結果は変わらない。
+        keys = service.findNicoliveKeys(Arrays.asList("テスト", "偶数", "4"));
+        assertThat(keys, is(Arrays.asList(nicoliveKeys.get(4))));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void キーワードで検索する_空のキーワードは無視する() throws Exception {
+        assertThat(service, is(notNullValue()));
+
+        List<Key> keys =
+                service.findNicoliveKeys(Arrays.asList("", "3", " ", "3"));
+        assertThat(keys, is(Arrays.asList(nicoliveKeys.get(3))));
+        assertThat(
+            service.findNicoliveKeys(Arrays.asList("", " ")).size(),
+            is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void キーワードで検索する_該当しないキーワードがある() throws Exception {
+        assertThat(service, is(notNullValue()));
+
+        // 積集合が空になったら、残りのキーワードは検索しない。
+        assertThat(
+            service.findNicoliveKeys(Arrays.asList("3", "偶数", "テスト")).size(),
+            is(0));
+        Map<String, Long> frequencies =
+                service.getDocumentFrequencies(Arrays.asList("3", "偶数", "テスト"));
+        assertThat(frequencies.get("3"), is(1L));
+        assertThat(frequencies.get("偶数"), is(5L));
+        assertThat(frequencies.containsKey("テスト"), is(false));
+
+        assertThat(
+            service
+                .findNicoliveKeys(Arrays.asList("テスト", "存在しないキーワード"))
+                .size(),
+            is(0));
+        frequencies =
+                service.getDocumentFrequencies(Arrays.asList("存在しないキーワード"));
+        assertThat(frequencies.get("存在しないキーワード"), is(0L));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void キーワードで検索する_文書頻度が0のキーワードがある() throws Exception {
+        assertThat(service, is(notNullValue()));
+
+        assertThat(
+            service.findNicoliveKeys(Arrays.asList("存在しないキーワード")).size(),
+            is(0));
+
+        // 文書頻度が0のキーワードがあれば、他のキーワードも検索しない。
+        assertThat(
+            service
+                .findNicoliveKeys(Arrays.asList("テスト", "存在しないキーワード"))
+                .size(),
+            is(0));
+        assertThat(service
+            .getDocumentFrequencies(Arrays.asList("テスト"))
+            .containsKey("テスト"), is(false));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void キーワードで検索する_期間より前の放送日は読まない() throws Exception {
+        assertThat(service, is(notNullValue()));
+
+        // 3日前の放送日以降に該当するものだけを返す。
+        Date startDate = new DateTime().minusDays(3).toDate();
+        List<Key> keys =
+                service.findNicoliveKeys(Arrays.asList("テスト"), startDate);
+        Collections.sort(keys);
+        assertThat(keys, is(Arrays.asList(
+            nicoliveKeys.get(0),
+            nicoliveKeys.get(1),
+            nicoliveKeys.get(2),
+            nicoliveKeys.get(3))));
+        assertThat(
+            service.findNicoliveKeys(Arrays.asList("偶数"), startDate).size(),
+            is(2));
+        // 期間内の文書頻度が保存される。
+        assertThat(service
+            .getDocumentFrequencies(Arrays.asList("テスト"))
+            .get("テスト"), is(4L));
+
+        // 期間内に該当しなくても、0件の文書頻度は保存しない。
+        assertThat(
+            service.findNicoliveKeys(Arrays.asList("9"), startDate).size(),
+            is(0));
+        assertThat(service
+            .getDocumentFrequencies(Arrays.asList("9"))
+            .containsKey("9"), is(false));
+        assertThat(
+            service.findNicoliveKeys(Arrays.asList("9")),
+            is(Arrays.asList(nicoliveKeys.get(9))));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 全文検索用インデックスを追加すると文書頻度が削除される() throws Exception {
+        assertThat(service, is(notNullValue()));
+
+        assertThat(
+            service.findNicoliveKeys(Arrays.asList("追加")).size(),
+            is(0));
+        assertThat(service
+            .getDocumentFrequencies(Arrays.asList("追加"))
+            .get("追加"), is(0L));
+
+        Nicolive nicolive = new Nicolive();
+        nicolive.setKey(Datastore.createKey(NicoliveMeta.get(), "lv99"));
+        nicolive.setOpenTime(new DateTime().toDate());
+        Map<Nicolive, Set<String>> keywords =
+                new LinkedHashMap<Nicolive, Set<String>>();
+        keywords.put(nicolive, new HashSet<String>(Arrays.asList("追加")));
+        testDataKeys.addAll(new NicoliveService().putPostings(keywords));
+
+        assertThat(service
+            .getDocumentFrequencies(Arrays.asList("追加"))
+            .containsKey("追加"), is(false));
+        assertThat(
+            service.findNicoliveKeys(Arrays.asList("追加")),
+            is(Arrays.asList(nicolive.getKey())));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void 文書頻度を削除する_パラメータがnull() throws Exception {
+        assertThat(service, is(notNullValue()));
+
+        service.clearDocumentFrequencies(null);
+    }
+}
@@ -3,19 +3,33 @@ package org.ryu22e.nico2cal.service;
 import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 import org.junit.Test;
+import org.ryu22e.nico2cal.cache.FeedCache;
+import org.ryu22e.nico2cal.cache.FeedSegmentCache;
 import org.ryu22e.nico2cal.meta.NicoliveIndexMeta;
 import org.ryu22e.nico2cal.meta.NicoliveMeta;
+import org.ryu22e.nico2cal.meta.NicolivePostingMeta;
 import org.ryu22e.nico2cal.model.Nicolive;
 import org.ryu22e.nico2cal.model.NicoliveIndex;
+import org.ryu22e.nico2cal.model.NicolivePosting;
 import org.ryu22e.nico2cal.rome.module.NicoliveModule;
+import org.ryu22e.nico2cal.util.DescriptionUtil;
+import org.ryu22e.nico2cal.util.EventFragmentUtil;
 import org.slim3.datastore.Datastore;
 import org.slim3.tester.AppEngineTestCase;
 
@@ -332,9 +346,14 @@ public final class NicoliveServiceTest extends AppEngineTestCase {
             assertThat(nicolive.getTitle(), is("テスト" + i));
             assertThat(nicolive.getDescription(), is(notNullValue()));
             assertThat(nicolive.getDescription().getValue(), is("テスト説明" + i));
+            assertThat(nicolive.getPlainDescription(), is("テスト説明" + i));
             assertThat(nicolive.getOpenTime(), is(notNullValue()));
             assertThat(nicolive.getStartTime(), is(notNullValue()));
             assertThat(nicolive.getType(), is("official"));
+            assertThat(EventFragmentUtil.hasFragment(nicolive), is(true));
+            assertThat(
+                nicolive.getEventFragment().getValue(),
+                is(EventFragmentUtil.render(nicolive)));
             assertThat(nicolive.getLink(), is(notNullValue()));
             assertThat(nicolive.getLink().getValue(), is("http://ryu22e.org/"
                     + i));
@@ -349,6 +368,203 @@ public final class NicoliveServiceTest extends AppEngineTestCase {
         assertThat(count, is(0));
     }
 
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void 放送日の世代を進める_パラメータがnull() throws Exception {
+        service.incrementSegmentGenerations(null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 放送日の世代を進める() throws Exception {
+        DateTime datetime = new DateTime(2012, 5, 12, 21, 0, 0, 0);
+        String day = NicoliveService.formatDay(datetime.toDate());
+        String otherDay =
+                NicoliveService.formatDay(datetime.plusDays(1).toDate());
+        FeedSegmentCache feedSegmentCache = new FeedSegmentCache();
+        Map<String, Long> generations =
+                feedSegmentCache.getGenerations(Arrays.asList(day, otherDay));
+
+        Nicolive nicolive = new Nicolive();
+        nicolive.setOpenTime(datetime.toDate());
+        // 開場日時がないNicoliveは無視する。
+        service.incrementSegmentGenerations(Arrays.asList(
+            nicolive,
+            new Nicolive()));
+
+        Map<String, Long> incremented =
+                feedSegmentCache.getGenerations(Arrays.asList(day, otherDay));
+        assertThat(incremented.get(day), is(generations.get(day) + 1));
+        assertThat(incremented.get(otherDay), is(generations.get(otherDay)));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void リンクから放送IDを取得する() throws Exception {
+        assertThat(
+            NicoliveService.getLiveId("http://live.nicovideo.jp/watch/lv123456"),
+            is("lv123456"));
+        assertThat(
+            NicoliveService
+                .getLiveId("http://live.nicovideo.jp/watch/lv123456?ref=rss"),
+            is("lv123456"));
+        assertThat(
+            NicoliveService.getLiveId("http://ryu22e.org/1"),
+            is(nullValue()));
+        assertThat(
+            NicoliveService.getLiveId("http://ryu22e.org/lvx"),
+            is(nullValue()));
+        assertThat(NicoliveService.getLiveId(null), is(nullValue()));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void RSSフィードをデータストアに登録する_放送IDからキーを作る() throws Exception {
+        assertThat(service, is(notNullValue()));
+
+        // 登録済みのデータ。
+        NicoliveMeta n = NicoliveMeta.get();
+        Nicolive stored = new Nicolive();
+        stored.setKey(Datastore.createKey(n, "lv2"));
+        stored.setTitle("テスト登録済み");
+        stored.setLink(new Link("http://live.nicovideo.jp/watch/lv2"));
+        testDataKeys.add(Datastore.put(stored));
+
+        SyndFeed feed = createFeed();
+        DateTimeFormatter df = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss");
+        DateTime datetime = new DateTime(2011, 1, 1, 0, 0, 0, 0);
+        List<SyndEntry> entries = new LinkedList<SyndEntry>();
+        // 同じ放送IDのエントリーが重複していても1件だけ登録する。
+        int[] liveIds = { 1, 2, 3, 3 };
+        for (int liveId : liveIds) {
+            SyndEntry entry = new SyndEntryImpl();
+            entry.setTitle("テスト放送" + liveId);
+            SyndContent description = new SyndContentImpl();
+            description.setValue("テスト説明" + liveId);
+            entry.setDescription(description);
+            entry.setLink("http://live.nicovideo.jp/watch/lv" + liveId);
+            NicoliveModule module = new NicoliveModule();
+            module.setOpenTime(datetime.toString(df));
+            module.setStartTime(datetime.plusMinutes(10).toString(df));
+            module.setType("official");
+            entry.getModules().add(module);
+            entries.add(entry);
+        }
+        feed.setEntries(entries);
+
+        List<Key> keys = service.put(feed);
+        assertThat(keys.size(), is(2));
+        assertThat(keys.contains(Datastore.createKey(n, "lv1")), is(true));
+        assertThat(keys.contains(Datastore.createKey(n, "lv3")), is(true));
+
+        Nicolive nicolive = Datastore.get(n, Datastore.createKey(n, "lv3"));
+        assertThat(nicolive.getTitle(), is("テスト放送3"));
+        assertThat(nicolive.getLink().getValue(), is(entries
+            .get(2)
+            .getLink()));
+        // 登録済みのデータは上書きされない。
+        nicolive = Datastore.get(n, Datastore.createKey(n, "lv2"));
+        assertThat(nicolive.getTitle(), is("テスト登録済み"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void RSSフィードをデータストアに登録する_登録済みのエントリーは解析しない()
+            throws Exception {
+        NicoliveMeta n = NicoliveMeta.get();
+        Nicolive stored = new Nicolive();
+        stored.setKey(Datastore.createKey(n, "lv2"));
+        stored.setTitle("テスト登録済み");
+        stored.setLink(new Link("http://live.nicovideo.jp/watch/lv2"));
+        testDataKeys.add(Datastore.put(stored));
+
+        SyndFeed feed = createFeed();
+        DateTimeFormatter df = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss");
+        DateTime datetime = new DateTime(2011, 1, 1, 0, 0, 0, 0);
+        List<SyndEntry> entries = new LinkedList<SyndEntry>();
+        for (int liveId = 1; liveId <= 2; liveId++) {
+            SyndEntry entry = new SyndEntryImpl();
+            entry.setTitle("テスト放送" + liveId);
+            entry.setLink("http://live.nicovideo.jp/watch/lv" + liveId);
+            NicoliveModule module = new NicoliveModule();
+            module.setOpenTime(datetime.toString(df));
+            module.setStartTime(datetime.plusMinutes(10).toString(df));
+            module.setType("official");
+            entry.getModules().add(module);
+            entries.add(entry);
+        }
+        // 未登録のエントリーだけに説明文を設定する。
+        // 登録済みのエントリーから説明文を読もうとするとNullPointerExceptionになる。
+        SyndContent description = new SyndContentImpl();
+        description.setValue("テスト説明1");
+        entries.get(0).setDescription(description);
+        feed.setEntries(entries);
+
+        List<Key> keys = service.put(feed);
+        assertThat(keys, is(Arrays.asList(Datastore.createKey(n, "lv1"))));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void RSSフィードをデータストアに登録する_IDが自動採番された登録済みのエントリー()
+            throws Exception {
+        // 放送IDからキーを決める前に登録したエンティティ。
+        Nicolive stored = new Nicolive();
+        stored.setTitle("テスト登録済み");
+        stored.setLink(new Link("http://live.nicovideo.jp/watch/lv2"));
+        Key storedKey = Datastore.put(stored);
+        testDataKeys.add(storedKey);
+        assertThat(storedKey.getName(), is(nullValue()));
+
+        SyndFeed feed = createFeed();
+        DateTimeFormatter df = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss");
+        DateTime datetime = new DateTime(2011, 1, 1, 0, 0, 0, 0);
+        List<SyndEntry> entries = new LinkedList<SyndEntry>();
+        for (int liveId = 1; liveId <= 2; liveId++) {
+            SyndEntry entry = new SyndEntryImpl();
+            entry.setTitle("テスト放送" + liveId);
+            entry.setLink("http://live.nicovideo.jp/watch/lv" + liveId);
+            SyndContent description = new SyndContentImpl();
+            description.setValue("テスト説明" + liveId);
+            entry.setDescription(description);
+            NicoliveModule module = new NicoliveModule();
+            module.setOpenTime(datetime.toString(df));
+            module.setStartTime(datetime.plusMinutes(10).toString(df));
+            module.setType("official");
+            entry.getModules().add(module);
+            entries.add(entry);
+        }
+        feed.setEntries(entries);
+
+        // キーで見つからなくても、リンクが同じエンティティがあれば登録しない。
+        List<Key> keys = service.put(feed);
+        testDataKeys.addAll(keys);
+        NicoliveMeta n = NicoliveMeta.get();
+        assertThat(keys, is(Arrays.asList(Datastore.createKey(n, "lv1"))));
+        assertThat(
+            Datastore
+                .query(n)
+                .filter(
+                    n.link.equal(new Link("http://live.nicovideo.jp/watch/lv2")))
+                .count(),
+            is(1));
+    }
+
     /**
      * @throws Exception
      */
@@ -364,8 +580,7 @@ public final class NicoliveServiceTest extends AppEngineTestCase {
         assertThat(service, is(notNullValue()));
 
         // テストデータを作成する。
-        DateTime datetime = new DateTime();
-        datetime = datetime.minusDays(3);
+        DateTime datetime = new DateTime(2012, 5, 12, 21, 0, 0, 0);
         Nicolive nicolinve1 = new Nicolive();
         nicolinve1.setTitle("テスト");
         nicolinve1.setDescription(new Text("本日は晴天なり。"));
@@ -382,55 +597,389 @@ public final class NicoliveServiceTest extends AppEngineTestCase {
         nicolinve2.setLink(new Link("http://ryu22e.org/2"));
         Key key2 = Datastore.put(nicolinve2);
         testDataKeys.add(key2);
-        NicoliveIndex nicoliveIndex = new NicoliveIndex();
-        nicoliveIndex.setKeyword("テスト");
-        nicoliveIndex.setNicoliveKey(key2);
-        testDataKeys.add(Datastore.put(nicoliveIndex));
 
+        testDataKeys.addAll(service.createIndex(nicolinve2));
+        testDataKeys.addAll(service.createIndex(nicolinve1));
+
+        // TitleとDescriptionが文節ごとに分解されて、キーワードと放送日ごとのエンティティにNicoliveのKeyが登録される。
+        NicolivePostingMeta np = NicolivePostingMeta.get();
+        Date day = NicoliveService.toDay(datetime.toDate());
+        List<Key> expected = new ArrayList<Key>(Arrays.asList(key1, key2));
+        Collections.sort(expected);
+        List<String> keywords = Arrays.asList("テスト", "本日", "は", "晴天", "なり", "。");
+        for (String keyword : keywords) {
+            NicolivePosting posting =
+                    Datastore.get(np, service.createPostingKey(keyword, day));
+            assertThat(posting.getKeyword(), is(keyword));
+            assertThat(posting.getDay(), is(day));
+            assertThat(posting.getNicoliveKeys(), is(expected));
+        }
+
+        // 同じNicoliveのインデックスを作り直しても、キーは増えない。
         service.createIndex(nicolinve1);
+        NicolivePosting posting =
+                Datastore.get(np, service.createPostingKey("晴天", day));
+        assertThat(posting.getNicoliveKeys(), is(expected));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void 全文検索用インデックスのキーを作成する_パラメータがnull() throws Exception {
+        assertThat(service, is(notNullValue()));
+
+        service.createPostingKey("テスト", null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 全文検索用インデックスのキーを作成する() throws Exception {
+        assertThat(service, is(notNullValue()));
 
-        // TitleとDescriptionが文節ごとに分解されて、各文節とNicoliveのKeyがエンティティに登録される。
-        NicoliveIndexMeta n = NicoliveIndexMeta.get();
-        testDataKeys.addAll(Datastore
-            .query(n)
-            .filter(n.nicoliveKey.equal(key1))
-            .asKeyList());
+        DateTimeZone tokyo = DateTimeZone.forID("Asia/Tokyo");
+        Date day = new DateTime(2012, 5, 12, 0, 0, 0, 0, tokyo).toDate();
+        Key key1 = service.createPostingKey("テスト", day);
+        Key key2 = service.createPostingKey("テスト", day);
+        assertThat(key1, is(key2));
+        assertThat(key1.getName(), is("20120512_テスト"));
+        assertThat(service.createPostingKey("説明", day), is(not(key1)));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 開場日時から放送日を取得する() throws Exception {
+        DateTimeZone tokyo = DateTimeZone.forID("Asia/Tokyo");
+        Date day = new DateTime(2012, 5, 12, 0, 0, 0, 0, tokyo).toDate();
         assertThat(
-            Datastore
-                .query(n)
-                .filter(n.keyword.equal("テスト"), n.nicoliveKey.equal(key1))
-                .count(),
-            is(1));
+            NicoliveService.toDay(new DateTime(2012, 5, 12, 0, 0, 0, 0, tokyo)
+                .toDate()),
+            is(day));
+        assertThat(NicoliveService.toDay(new DateTime(
+            2012,
+            5,
+            12,
+            23,
+            59,
+            59,
+            999,
+            tokyo).toDate()), is(day));
         assertThat(
-            Datastore
-                .query(n)
-                .filter(n.keyword.equal("本日"), n.nicoliveKey.equal(key1))
-                .count(),
-            is(1));
+            NicoliveService.toDay(new DateTime(2012, 5, 13, 0, 0, 0, 0, tokyo)
+                .toDate()),
+            is(not(day)));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void データストアに登録したRSSデータをまとめて取得する_パラメータがnull()
+            throws Exception {
+        assertThat(service, is(notNullValue()));
+
+        service.findAsMap(null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void データストアに登録したRSSデータをまとめて取得する() throws Exception {
+        assertThat(service, is(notNullValue()));
+
+        Key notExists = Datastore.allocateId(NicoliveMeta.get());
+        Map<Key, Nicolive> nicolives =
+                service.findAsMap(Arrays
+                    .asList(testDataKeys.get(0), notExists));
+        assertThat(nicolives.size(), is(1));
         assertThat(
-            Datastore
-                .query(n)
-                .filter(n.keyword.equal("は"), n.nicoliveKey.equal(key1))
-                .count(),
-            is(1));
+            nicolives.get(testDataKeys.get(0)).getTitle(),
+            is("テスト"));
+        assertThat(nicolives.containsKey(notExists), is(false));
+
+        assertThat(service.findAsMap(new LinkedList<Key>()).size(), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void 全文検索用のキーワードを取り出す_パラメータがnull() throws Exception {
+        assertThat(service, is(notNullValue()));
+
+        service.extractKeywords(null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 放送日に日数を足す() throws Exception {
+        DateTime openTime =
+                new DateTime(2012, 5, 31, 23, 30, 0, 0, DateTimeZone
+                    .forID("Asia/Tokyo"));
+        Date day = NicoliveService.addDays(openTime.toDate(), 1);
+        assertThat(day, is(new DateTime(2012, 6, 1, 0, 0, 0, 0, DateTimeZone
+            .forID("Asia/Tokyo")).toDate()));
+        assertThat(NicoliveService.formatDay(day), is("20120601"));
         assertThat(
-            Datastore
-                .query(n)
-                .filter(n.keyword.equal("晴天"), n.nicoliveKey.equal(key1))
-                .count(),
-            is(1));
+            NicoliveService.formatDay(NicoliveService.addDays(day, -1)),
+            is("20120531"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void 放送日を文字列にする_パラメータがnull() throws Exception {
+        NicoliveService.formatDay(null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 全文検索用のキーワードを取り出す() throws Exception {
+        assertThat(service, is(notNullValue()));
+
+        Nicolive nicolive = new Nicolive();
+        nicolive.setTitle("テスト");
+        nicolive.setDescription(new Text("<p>本日は晴天なり。</p>"));
+        Set<String> keywords = service.extractKeywords(nicolive);
+        assertThat(keywords.contains("テスト"), is(true));
+        assertThat(keywords.contains("晴天"), is(true));
+        assertThat(keywords.contains("p"), is(false));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 全文検索用のキーワードを取り出す_切り詰めた部分より後のキーワード()
+            throws Exception {
+        StringBuilder html = new StringBuilder("<p>");
+        for (int i = 0; i < DescriptionUtil.MAX_LENGTH; i++) {
+            html.append("。");
+        }
+        html.append("本日は晴天なり。</p>");
+        Nicolive nicolive = new Nicolive();
+        nicolive.setTitle("テスト");
+        nicolive.setDescription(new Text(html.toString()));
+        // 取り込み時と同じく、表示用の説明文は切り詰めて保存してある。
+        nicolive.setPlainDescription(DescriptionUtil.toPlainText(html
+            .toString()));
+        Set<String> keywords = service.extractKeywords(nicolive);
+        assertThat(keywords.contains("晴天"), is(true));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void 全文検索用インデックスをまとめて登録する_パラメータがnull() throws Exception {
+        assertThat(service, is(notNullValue()));
+
+        service.putPostings(null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 全文検索用インデックスをまとめて登録する() throws Exception {
+        assertThat(service, is(notNullValue()));
+
+        DateTime datetime = new DateTime(2012, 5, 12, 21, 0, 0, 0);
+        NicoliveMeta n = NicoliveMeta.get();
+        Map<Nicolive, Set<String>> keywords =
+                new LinkedHashMap<Nicolive, Set<String>>();
+        for (int i = 0; i < 3; i++) {
+            Nicolive nicolive = new Nicolive();
+            nicolive.setKey(Datastore.createKey(n, "lv" + i));
+            // 2件目以降は翌日の放送。
+            nicolive.setOpenTime(datetime.plusDays(Math.min(i, 1)).toDate());
+            keywords.put(
+                nicolive,
+                new HashSet<String>(Arrays.asList("テスト", Integer.toString(i))));
+        }
+        // 開場日時がないNicoliveは登録しない。
+        Nicolive noOpenTime = new Nicolive();
+        noOpenTime.setKey(Datastore.createKey(n, "lv9"));
+        keywords.put(noOpenTime, new HashSet<String>(Arrays.asList("テスト")));
+
+        FeedCache feedCache = new FeedCache();
+        String generation = feedCache.getGeneration(Arrays.asList("テスト"));
+        String otherGeneration = feedCache.getGeneration(Arrays.asList("他"));
+
+        List<Key> keys = service.putPostings(keywords);
+        testDataKeys.addAll(keys);
+        // 「テスト」が2日分、「0」「1」「2」が1日分。
+        assertThat(keys.size(), is(5));
+        // 追加したキーワードを含むフィードだけ世代が進む。
         assertThat(
-            Datastore
-                .query(n)
-                .filter(n.keyword.equal("なり"), n.nicoliveKey.equal(key1))
-                .count(),
-            is(1));
+            feedCache.getGeneration(Arrays.asList("テスト")),
+            is(not(generation)));
         assertThat(
-            Datastore
-                .query(n)
-                .filter(n.keyword.equal("。"), n.nicoliveKey.equal(key1))
-                .count(),
+            feedCache.getGeneration(Arrays.asList("他")),
+            is(otherGeneration));
+
+        NicolivePostingMeta np = NicolivePostingMeta.get();
+        Date day = NicoliveService.toDay(datetime.plusDays(1).toDate());
+        NicolivePosting posting =
+                Datastore.get(np, service.createPostingKey("テスト", day));
+        assertThat(posting.getNicoliveKeys(), is(Arrays.asList(
+            Datastore.createKey(n, "lv1"),
+            Datastore.createKey(n, "lv2"))));
+
+        // 登録済みのキーしかない場合は書き込まない。
+        assertThat(service.putPostings(keywords).size(), is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 全文検索用インデックスをまとめて登録する_登録済みのキーと合わせる()
+            throws Exception {
+        DateTime datetime = new DateTime(2012, 5, 12, 21, 0, 0, 0);
+        Date day = NicoliveService.toDay(datetime.toDate());
+        NicoliveMeta n = NicoliveMeta.get();
+        NicolivePostingMeta np = NicolivePostingMeta.get();
+
+        // 他のリクエストが登録済みのエンティティ。
+        NicolivePosting stored = new NicolivePosting();
+        stored.setKey(service.createPostingKey("テスト", day));
+        stored.setKeyword("テスト");
+        stored.setDay(day);
+        stored.setNicoliveKeys(Arrays.asList(Datastore.createKey(n, "lv5")));
+        testDataKeys.add(Datastore.put(stored));
+        Long version = Datastore.get(np, stored.getKey()).getVersion();
+
+        Nicolive nicolive = new Nicolive();
+        nicolive.setKey(Datastore.createKey(n, "lv1"));
+        nicolive.setOpenTime(datetime.toDate());
+        Map<Nicolive, Set<String>> keywords =
+                new LinkedHashMap<Nicolive, Set<String>>();
+        keywords.put(nicolive, new HashSet<String>(Arrays.asList("テスト")));
+        assertThat(
+            service.putPostings(keywords),
+            is(Arrays.asList(stored.getKey())));
+
+        // 登録済みのキーを残したまま、トランザクションで書き込む。
+        NicolivePosting posting = Datastore.get(np, stored.getKey());
+        assertThat(posting.getNicoliveKeys(), is(Arrays.asList(
+            Datastore.createKey(n, "lv1"),
+            Datastore.createKey(n, "lv5"))));
+        assertThat(posting.getVersion(), is(version + 1));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 旧形式の全文検索用インデックスを移行する() throws Exception {
+        assertThat(service, is(notNullValue()));
+
+        DateTime datetime = new DateTime(2012, 5, 12, 21, 0, 0, 0);
+        List<NicoliveIndex> indexes = new LinkedList<NicoliveIndex>();
+        for (int i = 0; i < 3; i++) {
+            NicoliveIndex index = new NicoliveIndex();
+            index.setKeyword("テスト");
+            index.setNicoliveKey(Datastore.createKey(
+                NicoliveMeta.get(),
+                "lv" + i));
+            index.setOpenTime(datetime.toDate());
+            indexes.add(index);
+        }
+        // キーワードなどがないデータは移行せずに削除する。
+        indexes.add(new NicoliveIndex());
+        testDataKeys.addAll(Datastore.put(indexes));
+
+        assertThat(service.migrateIndex(), is(4));
+        assertThat(service.migrateIndex(), is(0));
+
+        NicoliveIndexMeta ni = NicoliveIndexMeta.get();
+        assertThat(Datastore.query(ni).count(), is(0));
+        NicolivePostingMeta np = NicolivePostingMeta.get();
+        Key postingKey =
+                service.createPostingKey(
+                    "テスト",
+                    NicoliveService.toDay(datetime.toDate()));
+        testDataKeys.add(postingKey);
+        NicolivePosting posting = Datastore.get(np, postingKey);
+        assertThat(posting.getNicoliveKeys().size(), is(3));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 旧形式の全文検索用インデックスを移行する_キーワードを正規化する()
+            throws Exception {
+        DateTime datetime = new DateTime(2012, 5, 12, 21, 0, 0, 0);
+        NicoliveIndex index = new NicoliveIndex();
+        // 全角の英字は検索条件と同じく半角にする。
+        index.setKeyword("ＴＥＳＴ");
+        index.setNicoliveKey(Datastore.createKey(NicoliveMeta.get(), "lv1"));
+        index.setOpenTime(datetime.toDate());
+        testDataKeys.add(Datastore.put(index));
+
+        assertThat(service.migrateIndex(), is(1));
+
+        NicolivePostingMeta np = NicolivePostingMeta.get();
+        Date day = NicoliveService.toDay(datetime.toDate());
+        Key postingKey = service.createPostingKey("TEST", day);
+        testDataKeys.add(postingKey);
+        assertThat(
+            Datastore.get(np, postingKey).getNicoliveKeys().size(),
             is(1));
+        assertThat(
+            Datastore.getOrNull(np, service.createPostingKey("ＴＥＳＴ", day)),
+            is(nullValue()));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 全文検索用インデックスのキーワードを正規化する() throws Exception {
+        DateTime datetime = new DateTime(2012, 5, 12, 21, 0, 0, 0);
+        Date day = NicoliveService.toDay(datetime.toDate());
+        NicoliveMeta n = NicoliveMeta.get();
+        NicolivePostingMeta np = NicolivePostingMeta.get();
+
+        // 正規化する前に登録したエンティティと、正規化したキーワードのエンティティ。
+        NicolivePosting legacy = new NicolivePosting();
+        legacy.setKey(service.createPostingKey("ＴＥＳＴ", day));
+        legacy.setKeyword("ＴＥＳＴ");
+        legacy.setDay(day);
+        legacy.setNicoliveKeys(Arrays.asList(
+            Datastore.createKey(n, "lv1"),
+            Datastore.createKey(n, "lv2")));
+        NicolivePosting normalized = new NicolivePosting();
+        normalized.setKey(service.createPostingKey("TEST", day));
+        normalized.setKeyword("TEST");
+        normalized.setDay(day);
+        normalized.setNicoliveKeys(Arrays.asList(Datastore.createKey(n, "lv3")));
+        testDataKeys.addAll(Datastore.put(legacy, normalized));
+
+        assertThat(service.normalizePostings(null), is(nullValue()));
+
+        assertThat(Datastore.getOrNull(np, legacy.getKey()), is(nullValue()));
+        assertThat(
+            Datastore.get(np, normalized.getKey()).getNicoliveKeys(),
+            is(Arrays.asList(
+                Datastore.createKey(n, "lv1"),
+                Datastore.createKey(n, "lv2"),
+                Datastore.createKey(n, "lv3"))));
+        // 正規化済みのエンティティしかなければ何もしない。
+        assertThat(service.normalizePostings(null), is(nullValue()));
+        assertThat(Datastore.query(np).count(), is(1));
     }
 
     /**
@@ -451,25 +1000,76 @@ public final class NicoliveServiceTest extends AppEngineTestCase {
         assertThat(service, is(notNullValue()));
 
         DateTime datetime = new DateTime();
+        Map<Nicolive, Set<String>> keywords =
+                new LinkedHashMap<Nicolive, Set<String>>();
         List<NicoliveIndex> indexes = new LinkedList<NicoliveIndex>();
         for (int i = 0; i < 50; i++) {
+            Nicolive nicolive = new Nicolive();
+            nicolive.setKey(Datastore.createKey(NicoliveMeta.get(), "lv" + i));
+            nicolive.setOpenTime(datetime.minusDays(i).toDate());
+            keywords.put(nicolive, new HashSet<String>(Arrays.asList("テスト")));
+
             NicoliveIndex index = new NicoliveIndex();
             index.setKeyword("テスト");
             index.setOpenTime(datetime.minusDays(i).toDate());
             indexes.add(index);
         }
+        testDataKeys.addAll(service.putPostings(keywords));
         testDataKeys.addAll(Datastore.put(indexes));
-        service.deleteOldIndex(datetime.minusDays(31).toDate());
+        Date from = datetime.minusDays(31).toDate();
+        Date fromDay = NicoliveService.toDay(from);
+        service.deleteOldIndex(from);
 
+        // 放送日がfromの日付より前のものが削除される。
+        NicolivePostingMeta np = NicolivePostingMeta.get();
+        assertThat(
+            Datastore.query(np).filter(np.day.lessThan(fromDay)).count(),
+            is(0));
+        assertThat(Datastore
+            .query(np)
+            .filter(np.day.greaterThanOrEqual(fromDay))
+            .count(), is(32));
         NicoliveIndexMeta ni = NicoliveIndexMeta.get();
-        int count =
-                Datastore
-                    .query(ni)
-                    .filter(
-                        ni.openTime.lessThanOrEqual(datetime
-                            .minusDays(31)
-                            .toDate()))
-                    .count();
-        assertThat(count, is(0));
+        assertThat(
+            Datastore.query(ni).filter(ni.openTime.lessThanOrEqual(from)).count(),
+            is(0));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void HTMLタグを除去した説明文を保存する() throws Exception {
+        assertThat(service, is(notNullValue()));
+
+        // 説明文が保存されていないテストデータを登録する。
+        for (int i = 0; i < 3; i++) {
+            Nicolive nicolive = new Nicolive();
+            nicolive.setTitle("テスト説明文なし" + i);
+            nicolive.setDescription(new Text("<p>テスト<b>説明文</b>" + i + "</p>"));
+            nicolive.setLink(new Link("http://ryu22e.org/" + i));
+            testDataKeys.add(Datastore.put(nicolive));
+        }
+
+        String cursor = service.fillPlainDescription(null);
+        assertThat(cursor, is(nullValue()));
+
+        NicoliveMeta n = NicoliveMeta.get();
+        for (int i = 0; i < 3; i++) {
+            Nicolive nicolive =
+                    Datastore
+                        .query(n)
+                        .filter(n.title.equal("テスト説明文なし" + i))
+                        .asSingle();
+            assertThat(nicolive.getPlainDescription(), is("テスト説明文" + i));
+        }
+        // setUpで登録したデータにも保存される。
+        Nicolive nicolive = Datastore.get(n, testDataKeys.get(0));
+        assertThat(nicolive.getPlainDescription(), is("テスト説明文"));
+        // 開始日時があるデータにはVEVENTも保存される。
+        assertThat(EventFragmentUtil.hasFragment(nicolive), is(true));
+        assertThat(
+            nicolive.getEventFragment().getValue(),
+            is(EventFragmentUtil.render(nicolive)));
     }
 }
@@ -0,0 +1,239 @@
+package org.ryu22e.nico2cal.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.ryu22e.nico2cal.meta.NicoliveMeta;
+import org.slim3.datastore.Datastore;
+import org.slim3.tester.AppEngineTester;
+
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * 複数キーワードに該当する{@link org.ryu22e.nico2cal.model.Nicolive}の積集合を求める処理の処理時間を比較する。
+ * <ul>
+ * <li>linked-list: 以前のCalendarService#mergeと同じく、LinkedListのキーを線形に探す。</li>
+ * <li>hash-set: KeywordSearchServiceと同じく、件数の少ない順にHashSetのキーで絞り込む。</li>
+ * <li>compressed-bitmap: FeedSnapshotと同じく、行番号の{@link CompressedBitmap}の論理積を求める。</li>
+ * </ul>
+ * <p>
+ * 5週間分の番組に対して、該当件数の多いキーワード・中程度のキーワード・少ないキーワードを組み合わせる。
+ * JUnitのテストではないので、mainメソッドから実行する。
+ * </p>
+ * @author ryu22e
+ *
+ */
+public final class CompressedBitmapBenchmark {
+
+    /**
+     * 5週間分の番組数の目安。
+     */
+    private static final int DOCUMENTS = 2500;
+
+    /**
+     * キーワードごとの該当件数。
+     */
+    private static final int[] POSTING_SIZES = new int[] { 900, 150, 12 };
+
+    /**
+     * 検索するキーワードの組み合わせ（{@link #POSTING_SIZES}の添字）。
+     */
+    private static final int[][] QUERIES = new int[][] {
+        { 0, 1 },
+        { 0, 2 },
+        { 0, 1, 2 } };
+
+    /**
+     * 
+     */
+    private static final int WARMUP_ITERATIONS = 2000;
+
+    /**
+     * 
+     */
+    private static final int MEASURE_ITERATIONS = 5000;
+
+    /**
+     * コンストラクタ。
+     */
+    private CompressedBitmapBenchmark() {
+    }
+
+    /**
+     * 計測する処理。
+     */
+    private interface Task {
+        /**
+         * @param query キーワードの組み合わせ
+         * @return 該当する件数
+         */
+        int run(int[] query);
+    }
+
+    /**
+     * @param name 名前
+     * @param task 処理
+     */
+    private static void measure(String name, Task task) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            for (int[] query : QUERIES) {
+                task.run(query);
+            }
+        }
+        for (int[] query : QUERIES) {
+            long total = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < MEASURE_ITERATIONS; i++) {
+                total += task.run(query);
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.println(name + " " + Arrays.toString(query) + ": "
+                    + (elapsed / MEASURE_ITERATIONS)
+                    + " ns/query (" + (total / MEASURE_ITERATIONS)
+                    + " matches)");
+        }
+    }
+
+    /**
+     * 以前のCalendarService#mergeと同じ処理。
+     * @param list1 リスト1
+     * @param list2 リスト2
+     * @return 両方に含まれる要素
+     */
+    private static <T> List<T> merge(List<T> list1, List<T> list2) {
+        List<T> merged = new LinkedList<T>();
+        if (list1.size() <= 0) {
+            merged.addAll(list2);
+        } else if (list2.size() <= 0) {
+            merged.addAll(list1);
+        } else {
+            for (T t : list1) {
+                if (list2.contains(t)) {
+                    merged.add(t);
+                }
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * @param args 使わない
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        AppEngineTester tester = new AppEngineTester();
+        tester.setUp();
+        try {
+            NicoliveMeta n = NicoliveMeta.get();
+            final Key[] keys = new Key[DOCUMENTS];
+            for (int i = 0; i < DOCUMENTS; i++) {
+                keys[i] = Datastore.createKey(n, "lv" + i);
+            }
+
+            // キーワードごとに、該当する行番号を無作為に選ぶ。
+            Random random = new Random(22L);
+            final int[][] postings = new int[POSTING_SIZES.length][];
+            for (int t = 0; t < POSTING_SIZES.length; t++) {
+                List<Integer> rows = new ArrayList<Integer>(DOCUMENTS);
+                for (int i = 0; i < DOCUMENTS; i++) {
+                    rows.add(Integer.valueOf(i));
+                }
+                Collections.shuffle(rows, random);
+                rows = rows.subList(0, POSTING_SIZES[t]);
+                Collections.sort(rows);
+                postings[t] = new int[rows.size()];
+                for (int i = 0; i < rows.size(); i++) {
+                    postings[t][i] = rows.get(i).intValue();
+                }
+            }
+
+            final List<List<Key>> keyLists = new ArrayList<List<Key>>();
+            final CompressedBitmap[] bitmaps =
+                    new CompressedBitmap[postings.length];
+            for (int t = 0; t < postings.length; t++) {
+                List<Key> list = new LinkedList<Key>();
+                for (int row : postings[t]) {
+                    list.add(keys[row]);
+                }
+                keyLists.add(list);
+                bitmaps[t] = CompressedBitmap.of(postings[t]);
+            }
+
+            measure("linked-list", new Task() {
+                @Override
+                public int run(int[] query) {
+                    List<Key> merged = new LinkedList<Key>();
+                    for (int t : query) {
+                        merged = merge(merged, keyLists.get(t));
+                    }
+                    return merged.size();
+                }
+            });
+            measure("hash-set", new Task() {
+                @Override
+                public int run(int[] query) {
+                    List<List<Key>> lists =
+                            new ArrayList<List<Key>>(query.length);
+                    for (int t : query) {
+                        lists.add(keyLists.get(t));
+                    }
+                    Collections.sort(lists, new Comparator<List<Key>>() {
+                        @Override
+                        public int compare(List<Key> o1, List<Key> o2) {
+                            return o1.size() - o2.size();
+                        }
+                    });
+                    Set<Key> matched = new HashSet<Key>(lists.get(0));
+                    for (int i = 1; i < lists.size() && !matched.isEmpty(); i++) {
+                        Set<Key> next = new HashSet<Key>();
+                        for (Key key : lists.get(i)) {
+                            if (matched.contains(key)) {
+                                next.add(key);
+                            }
+                        }
+                        matched = next;
+                    }
+                    return matched.size();
+                }
+            });
+            measure("compressed-bitmap", new Task() {
+                @Override
+                public int run(int[] query) {
+                    CompressedBitmap[] sorted =
+                            new CompressedBitmap[query.length];
+                    for (int i = 0; i < query.length; i++) {
+                        sorted[i] = bitmaps[query[i]];
+                    }
+                    Arrays.sort(sorted, new Comparator<CompressedBitmap>() {
+                        @Override
+                        public int compare(CompressedBitmap o1,
+                                CompressedBitmap o2) {
+                            return o1.cardinality() - o2.cardinality();
+                        }
+                    });
+                    CompressedBitmap matched = sorted[0];
+                    for (int i = 1; i < sorted.length && !matched.isEmpty(); i++) {
+                        matched = matched.and(sorted[i]);
+                    }
+                    int count = 0;
+                    for (int i = matched.nextSetBit(0); 0 <= i; i =
+                            matched.nextSetBit(i + 1)) {
+                        if (keys[i] != null) {
+                            count++;
+                        }
+                    }
+                    return count;
+                }
+            });
+        } finally {
+            tester.tearDown();
+        }
+    }
+}
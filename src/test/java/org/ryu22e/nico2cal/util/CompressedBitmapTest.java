@@ -0,0 +1,253 @@
+package org.ryu22e.nico2cal.util;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author ryu22e
+ *
+ */
+public final class CompressedBitmapTest {
+
+    /**
+     * @param from 最初の要素
+     * @param to 最後の要素の次
+     * @param step 要素の間隔
+     * @return 要素
+     */
+    private int[] range(int from, int to, int step) {
+        int[] values = new int[(to - from + step - 1) / step];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = from + i * step;
+        }
+        return values;
+    }
+
+    /**
+     * @param bitmap 集合
+     * @return {@link CompressedBitmap#nextSetBit(int)}で読み出した要素
+     */
+    private BitSet toBitSet(CompressedBitmap bitmap) {
+        BitSet bits = new BitSet();
+        for (int i = bitmap.nextSetBit(0); 0 <= i; i =
+                bitmap.nextSetBit(i + 1)) {
+            bits.set(i);
+        }
+        return bits;
+    }
+
+    /**
+     * @param values 要素
+     * @return 要素のビット
+     */
+    private BitSet toBitSet(int[] values) {
+        BitSet bits = new BitSet();
+        for (int value : values) {
+            bits.set(value);
+        }
+        return bits;
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void 集合を作成する_パラメータがnull() throws Exception {
+        CompressedBitmap.of((int[]) null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void 集合を作成する_昇順でない() throws Exception {
+        CompressedBitmap.of(3, 1, 2);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void 集合を作成する_重複がある() throws Exception {
+        CompressedBitmap.of(1, 2, 2);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void 集合を作成する_負の要素がある() throws Exception {
+        CompressedBitmap.of(-1, 2);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 集合を作成する() throws Exception {
+        int[] values = new int[] { 3, 64, 1000 };
+        CompressedBitmap bitmap = CompressedBitmap.of(values);
+        assertThat(bitmap.cardinality(), is(3));
+        assertThat(bitmap.isEmpty(), is(false));
+        assertThat(bitmap.toArray(), is(new int[] { 3, 64, 1000 }));
+        // 渡した配列を変更しても影響しない。
+        values[0] = 4;
+        assertThat(bitmap.contains(3), is(true));
+        assertThat(bitmap.contains(4), is(false));
+        assertThat(bitmap.contains(-1), is(false));
+        assertThat(bitmap.contains(2000), is(false));
+
+        assertThat(CompressedBitmap.of(), is(CompressedBitmap.EMPTY));
+        assertThat(CompressedBitmap.EMPTY.isEmpty(), is(true));
+        assertThat(CompressedBitmap.EMPTY.nextSetBit(0), is(-1));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 形式が違っても同じ要素なら等しい() throws Exception {
+        // 密な集合はビットで、疎な集合は配列で持つが、比較の結果は形式によらない。
+        CompressedBitmap dense = CompressedBitmap.of(range(0, 256, 1));
+        CompressedBitmap sparse =
+                CompressedBitmap.of(range(0, 256, 1)).andNot(
+                    CompressedBitmap.of(range(0, 250, 1)));
+        assertThat(sparse.toArray(), is(range(250, 256, 1)));
+        assertThat(sparse, is(CompressedBitmap.of(range(250, 256, 1))));
+        assertThat(
+            sparse.hashCode(),
+            is(CompressedBitmap.of(range(250, 256, 1)).hashCode()));
+        assertThat(dense, is(not(sparse)));
+        assertThat(dense.toString(), is(toBitSet(dense)
+            .toString()
+            .replace('{', '[')
+            .replace('}', ']')));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 指定した値以上の最小の要素を取得する() throws Exception {
+        CompressedBitmap sparse = CompressedBitmap.of(5, 70, 300);
+        assertThat(sparse.nextSetBit(-1), is(5));
+        assertThat(sparse.nextSetBit(5), is(5));
+        assertThat(sparse.nextSetBit(6), is(70));
+        assertThat(sparse.nextSetBit(301), is(-1));
+
+        CompressedBitmap dense = CompressedBitmap.of(range(0, 300, 2));
+        assertThat(dense.nextSetBit(63), is(64));
+        assertThat(dense.nextSetBit(298), is(298));
+        assertThat(dense.nextSetBit(299), is(-1));
+        assertThat(dense.nextSetBit(10000), is(-1));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 積集合と和集合と差集合を求める() throws Exception {
+        // 密な集合と疎な集合の全ての組み合わせをBitSetの結果と比べる。
+        Random random = new Random(22L);
+        List<int[]> sets = new ArrayList<int[]>();
+        sets.add(range(0, 2500, 1));
+        sets.add(range(0, 2500, 3));
+        sets.add(range(100, 2000, 97));
+        sets.add(range(1200, 1300, 1));
+        sets.add(new int[] { 7 });
+        sets.add(new int[0]);
+        for (int n = 0; n < 4; n++) {
+            BitSet bits = new BitSet();
+            for (int i = 0; i < 2500; i++) {
+                if (random.nextInt(8 << n) == 0) {
+                    bits.set(i);
+                }
+            }
+            int[] values = new int[bits.cardinality()];
+            int j = 0;
+            for (int i = bits.nextSetBit(0); 0 <= i; i = bits.nextSetBit(i + 1)) {
+                values[j++] = i;
+            }
+            sets.add(values);
+        }
+
+        for (int[] left : sets) {
+            for (int[] right : sets) {
+                CompressedBitmap a = CompressedBitmap.of(left);
+                CompressedBitmap b = CompressedBitmap.of(right);
+
+                BitSet and = toBitSet(left);
+                and.and(toBitSet(right));
+                assertThat(toBitSet(a.and(b)), is(and));
+                assertThat(a.and(b).cardinality(), is(and.cardinality()));
+
+                BitSet or = toBitSet(left);
+                or.or(toBitSet(right));
+                assertThat(toBitSet(a.or(b)), is(or));
+                assertThat(a.or(b).cardinality(), is(or.cardinality()));
+
+                BitSet andNot = toBitSet(left);
+                andNot.andNot(toBitSet(right));
+                assertThat(toBitSet(a.andNot(b)), is(andNot));
+                assertThat(
+                    a.andNot(b).cardinality(),
+                    is(andNot.cardinality()));
+            }
+        }
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void 積集合を求める_パラメータがnull() throws Exception {
+        CompressedBitmap.of(1).and(null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void 和集合を求める_パラメータがnull() throws Exception {
+        CompressedBitmap.of(1).or(null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void 差集合を求める_パラメータがnull() throws Exception {
+        CompressedBitmap.of(1).andNot(null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void シリアライズして復元する() throws Exception {
+        for (CompressedBitmap bitmap : new CompressedBitmap[] {
+            CompressedBitmap.of(1, 100, 1000),
+            CompressedBitmap.of(range(0, 1000, 2)) }) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(bitmap);
+            out.close();
+            ObjectInputStream in =
+                    new ObjectInputStream(new ByteArrayInputStream(
+                        bytes.toByteArray()));
+            assertThat((CompressedBitmap) in.readObject(), is(bitmap));
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package org.ryu22e.nico2cal.util;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+
+import org.junit.Test;
+import org.ryu22e.nico2cal.model.Nicolive;
+
+import com.google.appengine.api.datastore.Text;
+
+/**
+ * @author ryu22e
+ *
+ */
+public final class DescriptionUtilTest {
+    /**
+     * @throws Exception
+     */
+    @Test(expected = AssertionError.class)
+    public void コンストラクタのテスト() throws Exception {
+        Constructor<?>[] constructors =
+                DescriptionUtil.class.getDeclaredConstructors();
+        assertThat(constructors.length, is(1));
+        Constructor<?> constructor = constructors[0];
+        constructor.setAccessible(true);
+        try {
+            constructor.newInstance();
+        } catch (InvocationTargetException e) {
+            throw (AssertionError) e.getCause();
+        }
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void HTMLタグを除去する() throws Exception {
+        assertThat(
+            DescriptionUtil.toPlainText(" <p>本日は<b>晴天</b>なり。</p> "),
+            is("本日は晴天なり。"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void HTMLタグを除去する_パラメータがnull() throws Exception {
+        assertThat(DescriptionUtil.toPlainText(null), is(""));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void HTMLタグを除去する_最大文字数で切り詰める() throws Exception {
+        StringBuilder html = new StringBuilder();
+        for (int i = 0; i < DescriptionUtil.MAX_LENGTH; i++) {
+            html.append("<b>あ</b>");
+        }
+        String text = DescriptionUtil.toPlainText(html.toString() + "い");
+        assertThat(text.length(), is(DescriptionUtil.MAX_LENGTH));
+        assertThat(text.endsWith("あ"), is(true));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void HTMLタグを除去する_サロゲートペアの途中で切らない() throws Exception {
+        StringBuilder html = new StringBuilder();
+        for (int i = 0; i < DescriptionUtil.MAX_LENGTH - 1; i++) {
+            html.append("a");
+        }
+        // U+20BB7（𠮷）
+        html.append("𠮷");
+        String text = DescriptionUtil.toPlainText(html.toString());
+        assertThat(text.length(), is(DescriptionUtil.MAX_LENGTH - 1));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void 説明文を取得する_パラメータがnull() throws Exception {
+        DescriptionUtil.getPlainDescription(null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 説明文を取得する_保存済みの値を使う() throws Exception {
+        Nicolive nicolive = new Nicolive();
+        nicolive.setDescription(new Text("<p>HTMLの説明文</p>"));
+        nicolive.setPlainDescription("保存済みの説明文");
+        assertThat(
+            DescriptionUtil.getPlainDescription(nicolive),
+            is("保存済みの説明文"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 説明文を取得する_保存済みの値がない() throws Exception {
+        Nicolive nicolive = new Nicolive();
+        nicolive.setDescription(new Text("<p>HTMLの説明文</p>"));
+        assertThat(
+            DescriptionUtil.getPlainDescription(nicolive),
+            is("HTMLの説明文"));
+
+        nicolive.setDescription(null);
+        assertThat(DescriptionUtil.getPlainDescription(nicolive), is(""));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void 切り詰めない説明文を取得する_パラメータがnull() throws Exception {
+        DescriptionUtil.getFullPlainDescription(null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 切り詰めない説明文を取得する() throws Exception {
+        StringBuilder html = new StringBuilder("<p>");
+        for (int i = 0; i < DescriptionUtil.MAX_LENGTH; i++) {
+            html.append("あ");
+        }
+        html.append("晴天</p>");
+        Nicolive nicolive = new Nicolive();
+        nicolive.setDescription(new Text(html.toString()));
+        nicolive.setPlainDescription(DescriptionUtil.toPlainText(html
+            .toString()));
+        // 保存した値は切り詰められているので、HTMLの説明文から全文を取り出す。
+        String text = DescriptionUtil.getFullPlainDescription(nicolive);
+        assertThat(text.length(), is(DescriptionUtil.MAX_LENGTH + 2));
+        assertThat(text.endsWith("晴天"), is(true));
+
+        // 切り詰められていない保存済みの値はそのまま使う。
+        nicolive.setPlainDescription("保存済みの説明文");
+        assertThat(
+            DescriptionUtil.getFullPlainDescription(nicolive),
+            is("保存済みの説明文"));
+
+        nicolive.setDescription(null);
+        nicolive.setPlainDescription(null);
+        assertThat(DescriptionUtil.getFullPlainDescription(nicolive), is(""));
+    }
+}
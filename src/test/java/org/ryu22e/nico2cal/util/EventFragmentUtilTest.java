@@ -0,0 +1,130 @@
+package org.ryu22e.nico2cal.util;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+import org.ryu22e.nico2cal.model.Nicolive;
+
+import com.google.appengine.api.datastore.Link;
+import com.google.appengine.api.datastore.Text;
+
+/**
+ * @author ryu22e
+ *
+ */
+public final class EventFragmentUtilTest {
+
+    /**
+     * @return テスト用の{@link Nicolive}
+     */
+    private Nicolive createNicolive() {
+        Nicolive nicolive = new Nicolive();
+        nicolive.setTitle("テスト");
+        nicolive.setPlainDescription("本日は晴天なり。");
+        nicolive.setOpenTime(new DateTime(
+            2012,
+            5,
+            12,
+            21,
+            0,
+            0,
+            0,
+            DateTimeZone.UTC).toDate());
+        nicolive.setLink(new Link("http://ryu22e.org/1"));
+        return nicolive;
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = AssertionError.class)
+    public void コンストラクタのテスト() throws Exception {
+        Constructor<?>[] constructors =
+                EventFragmentUtil.class.getDeclaredConstructors();
+        assertThat(constructors.length, is(1));
+        Constructor<?> constructor = constructors[0];
+        constructor.setAccessible(true);
+        try {
+            constructor.newInstance();
+        } catch (InvocationTargetException e) {
+            throw (AssertionError) e.getCause();
+        }
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void VEVENTを書き出す_パラメータがnull() throws Exception {
+        EventFragmentUtil.render(null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void VEVENTを書き出す() throws Exception {
+        String fragment = EventFragmentUtil.render(createNicolive());
+        assertThat(fragment, is("BEGIN:VEVENT\r\n"
+            + "SUMMARY:テスト\r\n"
+            + "DESCRIPTION:本日は晴天なり。\r\n"
+            + "DTSTART:20120512T210000Z\r\n"
+            + "DTEND:20120512T210000Z\r\n"
+            + "URL:http://ryu22e.org/1\r\n"
+            + "END:VEVENT\r\n"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void VEVENTを保存する() throws Exception {
+        Nicolive nicolive = createNicolive();
+        assertThat(EventFragmentUtil.hasFragment(nicolive), is(false));
+
+        EventFragmentUtil.fill(nicolive);
+        assertThat(EventFragmentUtil.hasFragment(nicolive), is(true));
+        assertThat(
+            nicolive.getEventFragment().getValue(),
+            is(EventFragmentUtil.render(nicolive)));
+        assertThat(
+            nicolive.getEventFragmentVersion(),
+            is(EventFragmentUtil.FORMAT_VERSION));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void VEVENTを取得する_保存した値を使う() throws Exception {
+        Nicolive nicolive = createNicolive();
+        nicolive.setEventFragment(new Text("保存した値"));
+        nicolive.setEventFragmentVersion(EventFragmentUtil.FORMAT_VERSION);
+        assertThat(EventFragmentUtil.getFragment(nicolive), is("保存した値"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void VEVENTを取得する_保存した値がなければ書き出す() throws Exception {
+        Nicolive nicolive = createNicolive();
+        assertThat(
+            EventFragmentUtil.getFragment(nicolive),
+            is(EventFragmentUtil.render(nicolive)));
+
+        // 形式のバージョンが違う場合も書き出し直す。
+        nicolive.setEventFragment(new Text("古い形式"));
+        nicolive.setEventFragmentVersion(EventFragmentUtil.FORMAT_VERSION - 1);
+        assertThat(
+            EventFragmentUtil.getFragment(nicolive),
+            is(EventFragmentUtil.render(nicolive)));
+        assertThat(EventFragmentUtil.hasFragment(nicolive), is(false));
+    }
+}
@@ -0,0 +1,113 @@
+package org.ryu22e.nico2cal.util;
+
+/**
+ * {@link HtmlRemoveUtil}の走査による除去とHTMLパーサーによる除去の処理時間を比較する。
+ * <p>
+ * JUnitのテストではないので、mainメソッドから実行する。
+ * </p>
+ * @author ryu22e
+ *
+ */
+public final class HtmlRemoveUtilBenchmark {
+
+    /**
+     * ニコニコ生放送RSSのdescriptionに近い文字列。
+     */
+    private static final String[] DESCRIPTIONS =
+            {
+                "<p>毎週恒例の生放送です。<br />今回のゲストは<a href=\"http://www.nicovideo.jp/user/1\">○○さん</a>！</p>",
+                "<img src=\"http://live.nicovideo.jp/thumb/lv100000000.jpg\" alt=\"\" />"
+                        + "ゲーム実況&amp;雑談をします。コメントお待ちしています&#9834;<br /><br />"
+                        + "<font color=\"#ff0000\">※18時開場・18時30分開演</font>",
+                "<div class=\"desc\"><b>【公式】</b>アニメ最新話を一挙放送！<br />"
+                        + "<span style=\"color:#999\">&lt;放送予定&gt; 第1話～第12話</span><br />"
+                        + "タイムシフト予約はこちら&raquo; <a href='http://live.nicovideo.jp/watch/lv100000001'>lv100000001</a></div>",
+                "テキストだけの説明文です。タグは含まれていません。",
+                "<table><tr><td>出演</td><td>テスト太郎、テスト花子</td></tr>"
+                        + "<tr><td>内容</td><td>トーク&nbsp;&amp;&nbsp;ライブ</td></tr></table>"
+                        + "<!-- 運営メモ --><p>※放送内容は予告なく変更になる場合があります。</p>", };
+
+    /**
+     * 
+     */
+    private static final int WARMUP_ITERATIONS = 2000;
+
+    /**
+     * 
+     */
+    private static final int MEASURE_ITERATIONS = 20000;
+
+    /**
+     * 
+     */
+    private static final long NANOS_PER_MICRO = 1000L;
+
+    /**
+     * コンストラクタ。
+     */
+    private HtmlRemoveUtilBenchmark() {
+    }
+
+    /**
+     * 処理対象の処理。
+     */
+    private interface Task {
+        /**
+         * @param html HTML
+         * @return 結果
+         * @throws Exception
+         */
+        String run(String html) throws Exception;
+    }
+
+    /**
+     * @param task 処理
+     * @param iterations 繰り返し回数
+     * @return 結果の文字数の合計（最適化で処理が消されないようにするため）
+     * @throws Exception
+     */
+    private static long loop(Task task, int iterations) throws Exception {
+        long total = 0;
+        for (int i = 0; i < iterations; i++) {
+            for (String html : DESCRIPTIONS) {
+                total += task.run(html).length();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @param name 名前
+     * @param task 処理
+     * @throws Exception
+     */
+    private static void measure(String name, Task task) throws Exception {
+        loop(task, WARMUP_ITERATIONS);
+        long start = System.nanoTime();
+        long total = loop(task, MEASURE_ITERATIONS);
+        long elapsed = System.nanoTime() - start;
+        long operations = (long) MEASURE_ITERATIONS * DESCRIPTIONS.length;
+        System.out.println(name + ": " + (elapsed / operations)
+                + " ns/op (total " + elapsed / NANOS_PER_MICRO + " us, "
+                + total + " chars)");
+    }
+
+    /**
+     * @param args 使わない
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        measure("scanner", new Task() {
+            @Override
+            public String run(String html) throws Exception {
+                return HtmlRemoveUtil.removeHtml(html);
+            }
+        });
+        measure("nekohtml", new Task() {
+            @Override
+            public String run(String html) throws Exception {
+                return HtmlRemoveUtil.removeHtmlByParser(html);
+            }
+        });
+    }
+}
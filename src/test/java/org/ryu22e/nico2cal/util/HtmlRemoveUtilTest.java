@@ -37,4 +37,64 @@ public class HtmlRemoveUtilTest {
         assertThat(result, is("ryu22.orgtestこれはテストです。 ほげほげ"));
     }
 
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 文字列中のHTMLタグを除去する_文字実体参照を展開する() throws Exception {
+        String result =
+                HtmlRemoveUtil
+                    .removeHtml("<p>A&amp;B &lt;テスト&gt; &#12354;&#x3044;</p>");
+        assertThat(result, is("A&B <テスト> あい"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 文字列中のHTMLタグを除去する_コメントと属性値中の記号() throws Exception {
+        String result =
+                HtmlRemoveUtil
+                    .removeHtml("<!-- コメント --><a title=\"a>b\" href='x'>リンク</a>1 < 2 & 3");
+        assertThat(result, is("リンク1 < 2 & 3"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 文字列中のHTMLタグを除去する_閉じていないタグはHTMLパーサーで処理する()
+            throws Exception {
+        StringBuilder sb = new StringBuilder("前");
+        assertThat(HtmlRemoveUtil.removeHtml("テスト<b", sb), is(false));
+        // 処理できない場合はバッファに何も追加しない。
+        assertThat(sb.toString(), is("前"));
+
+        String result = HtmlRemoveUtil.removeHtml("<b>テスト</b><i");
+        assertThat(result, is("テスト"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 文字列中のHTMLタグを除去してバッファに追加する() throws Exception {
+        StringBuilder sb = new StringBuilder("前");
+        assertThat(
+            HtmlRemoveUtil.removeHtml("<h1>test</h1>これはテストです。", sb),
+            is(true));
+        assertThat(sb.toString(), is("前testこれはテストです。"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void HTMLパーサーの結果と同じになる() throws Exception {
+        String html =
+                "<a href=\"http://ryu22e.org/\">ryu22.org</a><h1>test</h1>これはテストです。<br /> ほげほげ";
+        assertThat(
+            HtmlRemoveUtil.removeHtml(html),
+            is(HtmlRemoveUtil.removeHtmlByParser(html)));
+    }
 }
@@ -0,0 +1,182 @@
+package org.ryu22e.nico2cal.util;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.util.Date;
+import java.util.zip.GZIPOutputStream;
+
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.DateTime;
+import net.fortuna.ical4j.model.PropertyList;
+import net.fortuna.ical4j.model.component.VEvent;
+import net.fortuna.ical4j.model.property.Description;
+import net.fortuna.ical4j.model.property.DtEnd;
+import net.fortuna.ical4j.model.property.DtStart;
+import net.fortuna.ical4j.model.property.ProdId;
+import net.fortuna.ical4j.model.property.Summary;
+import net.fortuna.ical4j.model.property.Url;
+import net.fortuna.ical4j.model.property.Version;
+import net.fortuna.ical4j.model.property.XProperty;
+
+import org.ryu22e.nico2cal.cache.FeedBodyWriter;
+
+/**
+ * ical4jのCalendarを組み立てて文字列にする処理と、
+ * {@link ICalendarWriter}で直接書き出す処理の処理時間を比較する。
+ * <p>
+ * どちらもCalendarControllerと同じく、レスポンスとMemcache用のgzipで圧縮した本文の2か所に
+ * 同じ内容を書き出す。
+ * JUnitのテストではないので、mainメソッドから実行する。
+ * </p>
+ * @author ryu22e
+ *
+ */
+public final class ICalendarWriterBenchmark {
+
+    /**
+     * 4週間分の番組数の目安。
+     */
+    private static final int EVENTS = 2000;
+
+    /**
+     * 
+     */
+    private static final int WARMUP_ITERATIONS = 20;
+
+    /**
+     * 
+     */
+    private static final int MEASURE_ITERATIONS = 50;
+
+    /**
+     * 
+     */
+    private static final long NANOS_PER_MICRO = 1000L;
+
+    /**
+     * 
+     */
+    private static final String[] TITLES = new String[EVENTS];
+
+    /**
+     * 
+     */
+    private static final String[] DESCRIPTIONS = new String[EVENTS];
+
+    /**
+     * 
+     */
+    private static final Date[] DATES = new Date[EVENTS];
+
+    /**
+     * 
+     */
+    private static final String[] URLS = new String[EVENTS];
+
+    static {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < EVENTS; i++) {
+            TITLES[i] = "【生放送】ゲーム実況＆雑談 第" + i + "回";
+            DESCRIPTIONS[i] =
+                    "毎週恒例の生放送です。今回のゲストは○○さん！"
+                            + "ゲーム実況&雑談をします。コメントお待ちしています。"
+                            + "※18時開場・18時30分開演, 放送内容は予告なく変更になる場合があります; "
+                            + i;
+            DATES[i] = new Date(now + i * 60L * 1000L);
+            URLS[i] = "http://live.nicovideo.jp/watch/lv" + (100000000 + i);
+        }
+    }
+
+    /**
+     * コンストラクタ。
+     */
+    private ICalendarWriterBenchmark() {
+    }
+
+    /**
+     * 処理対象の処理。
+     */
+    private interface Task {
+        /**
+         * @return 書き出したバイト数
+         * @throws Exception
+         */
+        int run() throws Exception;
+    }
+
+    /**
+     * @param name 名前
+     * @param task 処理
+     * @throws Exception
+     */
+    private static void measure(String name, Task task) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            task.run();
+        }
+        long total = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURE_ITERATIONS; i++) {
+            total += task.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(name + ": "
+                + (elapsed / MEASURE_ITERATIONS / NANOS_PER_MICRO)
+                + " us/calendar (" + (total / MEASURE_ITERATIONS)
+                + " bytes, " + EVENTS + " events)");
+    }
+
+    /**
+     * @param args 使わない
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        measure("ical4j", new Task() {
+            @Override
+            public int run() throws Exception {
+                Calendar calendar = new Calendar();
+                calendar.getProperties().add(new ProdId("nico2ical"));
+                calendar.getProperties().add(Version.VERSION_2_0);
+                calendar.getProperties().add(
+                    new XProperty("X-WR-CALNAME", "ニコニコ生放送"));
+                for (int i = 0; i < EVENTS; i++) {
+                    PropertyList properties = new PropertyList();
+                    properties.add(new Summary(TITLES[i]));
+                    properties.add(new Description(DESCRIPTIONS[i]));
+                    properties.add(new DtStart(new DateTime(DATES[i]), true));
+                    properties.add(new DtEnd(new DateTime(DATES[i]), true));
+                    properties.add(new Url(new URI(URLS[i])));
+                    calendar.getComponents().add(new VEvent(properties));
+                }
+                byte[] bytes = calendar.toString().getBytes("UTF-8");
+                ByteArrayOutputStream response = new ByteArrayOutputStream();
+                response.write(bytes);
+                ByteArrayOutputStream cache = new ByteArrayOutputStream();
+                GZIPOutputStream gzip = new GZIPOutputStream(cache);
+                gzip.write(bytes);
+                gzip.finish();
+                return response.size() + cache.size();
+            }
+        });
+        measure("streaming", new Task() {
+            @Override
+            public int run() throws Exception {
+                ByteArrayOutputStream response = new ByteArrayOutputStream();
+                FeedBodyWriter body = new FeedBodyWriter(response, false);
+                ICalendarWriter writer = new ICalendarWriter(body.getWriter());
+                writer.writeHeader("nico2ical", "ニコニコ生放送");
+                for (int i = 0; i < EVENTS; i++) {
+                    writer.writeEvent(
+                        TITLES[i],
+                        DESCRIPTIONS[i],
+                        DATES[i],
+                        DATES[i],
+                        URLS[i]);
+                }
+                writer.writeFooter();
+                writer.flush();
+                body.finish();
+                return response.size() + body.getGzippedBody().length;
+            }
+        });
+    }
+}
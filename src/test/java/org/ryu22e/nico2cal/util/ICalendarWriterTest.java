@@ -0,0 +1,171 @@
+package org.ryu22e.nico2cal.util;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Date;
+
+import net.fortuna.ical4j.data.CalendarBuilder;
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.component.VEvent;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+/**
+ * @author ryu22e
+ *
+ */
+public final class ICalendarWriterTest {
+
+    /**
+     * @param summary 件名
+     * @param description 説明文
+     * @param date 日時
+     * @param url URL
+     * @return 書き出したiCalendar
+     * @throws Exception
+     */
+    private String write(String summary, String description, Date date,
+            String url) throws Exception {
+        StringWriter out = new StringWriter();
+        ICalendarWriter writer = new ICalendarWriter(out);
+        writer.writeHeader("nico2ical", "ニコニコ生放送");
+        writer.writeEvent(summary, description, date, date, url);
+        writer.writeFooter();
+        writer.flush();
+        return out.toString();
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void コンストラクタのテスト_パラメータがnull() throws Exception {
+        new ICalendarWriter(null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 値をエスケープする() throws Exception {
+        assertThat(ICalendarWriter.escape(null), is(""));
+        assertThat(ICalendarWriter.escape("テスト"), is("テスト"));
+        assertThat(
+            ICalendarWriter.escape("a,b;c\\d"),
+            is("a\\,b\\;c\\\\d"));
+        assertThat(
+            ICalendarWriter.escape("1\r\n2\n3\r4"),
+            is("1\\n2\\n3\\n4"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void iCalendarを書き出す() throws Exception {
+        Date date =
+                new DateTime(2012, 5, 12, 21, 0, 0, 0, DateTimeZone.UTC)
+                    .toDate();
+        String ics =
+                write("テスト", "本日は晴天なり。", date, "http://ryu22e.org/1");
+        assertThat(ics, is("BEGIN:VCALENDAR\r\n"
+            + "PRODID:nico2ical\r\n"
+            + "VERSION:2.0\r\n"
+            + "X-WR-CALNAME:ニコニコ生放送\r\n"
+            + "BEGIN:VEVENT\r\n"
+            + "SUMMARY:テスト\r\n"
+            + "DESCRIPTION:本日は晴天なり。\r\n"
+            + "DTSTART:20120512T210000Z\r\n"
+            + "DTEND:20120512T210000Z\r\n"
+            + "URL:http://ryu22e.org/1\r\n"
+            + "END:VEVENT\r\n"
+            + "END:VCALENDAR\r\n"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void iCalendarを書き出す_URLがnull() throws Exception {
+        String ics = write("テスト", "説明", new Date(), null);
+        assertThat(ics.contains("URL:"), is(false));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void iCalendarを書き出す_日時がnull() throws Exception {
+        write("テスト", "説明", null, null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void iCalendarを書き出す_長い行は75オクテットで折り返す() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            // 3オクテットの文字、サロゲートペア、1オクテットの文字を混ぜる。
+            sb.append("あ𠮷a,");
+        }
+        String description = sb.toString();
+        String ics = write("テスト", description, new Date(), null);
+
+        for (String line : ics.split("\r\n")) {
+            assertThat(line.getBytes("UTF-8").length <= 75, is(true));
+            // サロゲートペアの途中で折り返さない。
+            assertThat(Character.isLowSurrogate(line.charAt(0)), is(false));
+            assertThat(
+                Character.isHighSurrogate(line.charAt(line.length() - 1)),
+                is(false));
+        }
+
+        // ical4jで読み込むと元の値に戻る。
+        Calendar calendar =
+                new CalendarBuilder().build(new StringReader(ics));
+        VEvent event = (VEvent) calendar.getComponents().get(0);
+        assertThat(event.getDescription().getValue(), is(description));
+        assertThat(event.getSummary().getValue(), is("テスト"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 書き出したVEVENTをそのまま書き出す() throws Exception {
+        Date date = new Date();
+        String fragment =
+                ICalendarWriter.renderEvent(
+                    "テスト",
+                    "説明",
+                    date,
+                    date,
+                    "http://ryu22e.org/1");
+        assertThat(fragment.startsWith("BEGIN:VEVENT\r\n"), is(true));
+        assertThat(fragment.endsWith("END:VEVENT\r\n"), is(true));
+
+        StringWriter out = new StringWriter();
+        ICalendarWriter writer = new ICalendarWriter(out);
+        writer.writeHeader("nico2ical", "ニコニコ生放送");
+        writer.writeFragment(fragment);
+        writer.writeFooter();
+        writer.flush();
+        assertThat(
+            out.toString(),
+            is(write("テスト", "説明", date, "http://ryu22e.org/1")));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void 書き出したVEVENTをそのまま書き出す_パラメータがnull() throws Exception {
+        new ICalendarWriter(new StringWriter()).writeFragment(null);
+    }
+}
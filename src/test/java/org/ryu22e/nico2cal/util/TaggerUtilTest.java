@@ -0,0 +1,77 @@
+package org.ryu22e.nico2cal.util;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.LinkedList;
+import java.util.List;
+
+import net.reduls.igo.Morpheme;
+import net.reduls.igo.Tagger;
+
+import org.junit.Test;
+
+/**
+ * @author ryu22e
+ *
+ */
+public final class TaggerUtilTest {
+    /**
+     * @throws Exception
+     */
+    @Test(expected = AssertionError.class)
+    public void コンストラクタのテスト() throws Exception {
+        Constructor<?>[] constructors =
+                TaggerUtil.class.getDeclaredConstructors();
+        assertThat(constructors.length, is(1));
+        Constructor<?> constructor = constructors[0];
+        constructor.setAccessible(true);
+        try {
+            constructor.newInstance();
+        } catch (InvocationTargetException e) {
+            throw (AssertionError) e.getCause();
+        }
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void Taggerは共有される() throws Exception {
+        Tagger tagger1 = TaggerUtil.getTagger();
+        Tagger tagger2 = TaggerUtil.getTagger();
+        assertThat(tagger1, is(notNullValue()));
+        assertThat(tagger1, is(sameInstance(tagger2)));
+        assertThat(TaggerUtil.getLoadTimeMillis() >= 0, is(true));
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void 形態素解析する_パラメータがnull() throws Exception {
+        TaggerUtil.parse(null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 形態素解析する() throws Exception {
+        long count = TaggerUtil.getParseCount();
+
+        List<Morpheme> morphemes = TaggerUtil.parse("本日は晴天なり。");
+        List<String> surfaces = new LinkedList<String>();
+        for (Morpheme morpheme : morphemes) {
+            surfaces.add(morpheme.surface);
+        }
+        assertThat(surfaces.contains("本日"), is(true));
+        assertThat(surfaces.contains("晴天"), is(true));
+
+        // 解析回数が計測されている。
+        assertThat(TaggerUtil.getParseCount(), is(count + 1));
+        assertThat(TaggerUtil.getStatistics(), is(notNullValue()));
+    }
+}
@@ -0,0 +1,40 @@
+package org.ryu22e.nico2cal.util;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+/**
+ * @author ryu22e
+ *
+ */
+public final class TeeOutputStreamTest {
+
+    /**
+     * @throws Exception
+     */
+    @Test(expected = NullPointerException.class)
+    public void コンストラクタのテスト_パラメータがnull() throws Exception {
+        new TeeOutputStream(new ByteArrayOutputStream(), null);
+    }
+
+    /**
+     * @throws Exception
+     */
+    @Test
+    public void 両方に書き出す() throws Exception {
+        ByteArrayOutputStream primary = new ByteArrayOutputStream();
+        ByteArrayOutputStream secondary = new ByteArrayOutputStream();
+        TeeOutputStream out = new TeeOutputStream(primary, secondary);
+        out.write("テスト".getBytes("UTF-8"));
+        out.write('1');
+        out.write(new byte[] { 'a', 'b', 'c' }, 1, 2);
+        out.close();
+
+        assertThat(primary.toString("UTF-8"), is("テスト1bc"));
+        assertThat(secondary.toString("UTF-8"), is("テスト1bc"));
+    }
+}